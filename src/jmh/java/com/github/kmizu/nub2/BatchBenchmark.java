@@ -0,0 +1,57 @@
+package com.github.kmizu.nub2;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One expression over 10000 rows, a column at a time by BatchEvaluator and a row at a time by a Nub loop on
+ * each engine; the engine makes no difference to batch.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BatchBenchmark {
+    private static final int ROWS = 10000;
+    private static final String NEGATIVE = "x * 3 + 7";
+    private static final String OTHERWISE = "x * x - x + 1";
+
+    @Param({"VISITOR", "VM"})
+    public Evaluator.Engine engine;
+
+    private BatchEvaluator batch;
+    private BatchEvaluator.Columns columns;
+    private Ast.Block rows;
+
+    @Setup
+    public void setUp() {
+        batch = new BatchEvaluator(Parser.parse("if(x < 0) { " + NEGATIVE + "; } else { " + OTHERWISE + "; }").expressions.get(0));
+        int[] xs = new int[ROWS];
+        for(int i = 0; i < ROWS; i++) {
+            xs[i] = i - ROWS / 2;
+        }
+        columns = new BatchEvaluator.Columns(ROWS).put("x", xs);
+        rows = Parser.parse(
+                "let out = []; let i = 0;\n" +
+                "while(i < " + ROWS + ") {\n" +
+                "  let x = i - " + ROWS / 2 + ";\n" +
+                "  if(x < 0) { out[i] = " + NEGATIVE + "; } else { out[i] = " + OTHERWISE + "; }\n" +
+                "  i = i + 1;\n" +
+                "}\n" +
+                "out;"
+        );
+    }
+
+    @Benchmark
+    public Object batch() {
+        return batch.evaluate(columns);
+    }
+
+    @Benchmark
+    public Object rows() {
+        return new Evaluator(engine).eval(rows);
+    }
+}
@@ -0,0 +1,128 @@
+package com.github.kmizu.nub2;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static com.github.kmizu.nub2.Collections.listOf;
+import static com.github.kmizu.nub2.Ast.*;
+import static com.github.kmizu.nub2.Ast.Factory.*;
+
+/**
+ * Throughput of whole programs on each engine.  Every program loops enough for the front-end passes
+ * that Evaluator.eval runs to be negligible.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InterpreterBenchmark {
+    @Param({"VISITOR", "CLOSURE", "BYTECODE", "VM"})
+    public Evaluator.Engine engine;
+
+    private Block arithmetic;
+    private Block deepLet;
+    private Block countingLoop;
+    private Block stringConcat;
+    private Block fib;
+    private Block arraySum;
+
+    /*
+     * let i = 0; let acc = 0; while(i < n) { <body(i, acc)> i = i + 1; } acc;
+     */
+    static Block loop(int n, Expression init, Function<Id, Expression> step) {
+        return tBlock(
+                tLet("i", tInt(0), i -> tBlock(
+                        tLet("acc", init, acc -> tBlock(
+                                tWhile(
+                                        tLt(tId(i), tInt(n)),
+                                        tAssign(acc, step.apply(tId(i))),
+                                        tAssign(i, tAdd(tId(i), tInt(1)))
+                                ),
+                                tId(acc)
+                        ))
+                ))
+        );
+    }
+
+    static Block nest(int depth, Block innermost) {
+        Block body = innermost;
+        for(int d = depth - 1; d >= 0; d--) {
+            body = tBlock(tLet("v" + d, tInt(d), body));
+        }
+        return body;
+    }
+
+    @Setup
+    public void setUp() {
+        arithmetic = loop(10000, tInt(0), i -> tAdd(
+                tId("acc"),
+                tSubtract(
+                        tDivide(tAdd(tMultiply(i, tInt(3)), tInt(7)), tInt(2)),
+                        tDivide(tMultiply(tId("i"), tId("i")), tAdd(tId("i"), tInt(1)))
+                )
+        ));
+        deepLet = nest(16, loop(10000, tInt(0), i -> tAdd(tAdd(tId("acc"), tId("v0")), tId("v15"))));
+        countingLoop = loop(100000, tInt(0), i -> tAdd(tId("acc"), tInt(1)));
+        stringConcat = loop(1000, tString(""), i -> tAdd(tId("acc"), tString("x")));
+        fib = tBlock(
+                tDef("fib", listOf("n"), tBlock(
+                        tIf(
+                                tLt(tId("n"), tInt(2)),
+                                tId("n"),
+                                tAdd(
+                                        tCall("fib", tSubtract(tId("n"), tInt(1))),
+                                        tCall("fib", tSubtract(tId("n"), tInt(2)))
+                                )
+                        )
+                )),
+                tCall("fib", tInt(20))
+        );
+        // reads and writes of an int array, which should neither box nor allocate
+        arraySum = Parser.parse(
+                "let a = []; let i = 0; while(i < 1000) { a[i] = i; i = i + 1; }\n" +
+                "let acc = 0; let n = 0;\n" +
+                "while(n < 100) { let j = 0; while(j < length(a)) { acc = acc + a[j]; a[j] = a[j] + 1; j = j + 1; } n = n + 1; }\n" +
+                "acc;"
+        );
+    }
+
+    @Benchmark
+    public Object arithmetic() {
+        return new Evaluator(engine).eval(arithmetic);
+    }
+
+    @Benchmark
+    public Object deepLet() {
+        return new Evaluator(engine).eval(deepLet);
+    }
+
+    @Benchmark
+    public Object countingLoop() {
+        return new Evaluator(engine).eval(countingLoop);
+    }
+
+    @Benchmark
+    public Object stringConcat() {
+        return new Evaluator(engine).eval(stringConcat);
+    }
+
+    @Benchmark
+    public Object fib() {
+        // measures calls, which memoization would mostly skip
+        return new Evaluator(engine).memoize(0).eval(fib);
+    }
+
+    @Benchmark
+    public Object fibMemoized() {
+        return new Evaluator(engine).eval(fib);
+    }
+
+    @Benchmark
+    public Object arraySum() {
+        return new Evaluator(engine).eval(arraySum);
+    }
+}
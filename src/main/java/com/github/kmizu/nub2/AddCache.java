@@ -0,0 +1,27 @@
+package com.github.kmizu.nub2;
+
+/**
+ * The inline cache of an ADD whose operand types Typer could not prove.  Such a node starts UNSEEN, takes
+ * INTS or STRINGS after its first run according to the operands it saw, and becomes GENERIC for good the
+ * first time its operands differ from that.  A quickened node checks its guard and then does the one addition
+ * it expects, without deciding between them again.
+ *
+ * The state is a plain field of the node, shared by every thread running the program.  Since each state is
+ * checked against the operands before it is trusted, a race can only cost a transition, never a wrong result.
+ */
+final class AddCache {
+    static final byte UNSEEN = 0, INTS = 1, STRINGS = 2, GENERIC = 3;
+
+    private AddCache() {
+    }
+
+    /*
+     * The state after a node in the given state missed its guard on lhs and rhs
+     */
+    static byte next(byte state, Object lhs, Object rhs) {
+        if(state != UNSEEN) return GENERIC;
+        if(lhs instanceof Integer && rhs instanceof Integer) return INTS;
+        if(lhs instanceof CharSequence && rhs instanceof CharSequence) return STRINGS;
+        return GENERIC;
+    }
+}
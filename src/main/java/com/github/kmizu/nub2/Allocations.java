@@ -0,0 +1,28 @@
+package com.github.kmizu.nub2;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * The bytes a thread has allocated, where the JVM can tell (HotSpot and its relatives); 0 elsewhere.
+ */
+final class Allocations {
+    private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+    private Allocations() {
+    }
+
+    private static com.sun.management.ThreadMXBean threads() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if(threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean)threads;
+            if(allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled()) {
+                return allocations;
+            }
+        }
+        return null;
+    }
+
+    static long allocatedBytes(long thread) {
+        return THREADS == null ? 0 : THREADS.getThreadAllocatedBytes(thread);
+    }
+}
@@ -0,0 +1,122 @@
+package com.github.kmizu.nub2;
+
+import java.util.Arrays;
+
+/**
+ * The value of [e1, e2, ...]: a growable array.
+ *
+ * While every element is an int the elements live in an int[], so that getInt and setInt neither box nor
+ * allocate.  The first element of another type moves them to an Object[] for good.  Storing at the length
+ * appends; any other index out of range is an error.  Arrays compare by identity.
+ */
+public final class ArrayValue {
+    private int[] ints;
+    private Object[] objects;
+    private int length;
+
+    public ArrayValue(int capacity) {
+        Budget.charge(4L * capacity);
+        ints = new int[Math.max(capacity, 4)];
+    }
+
+    public ArrayValue() {
+        this(4);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Whether the elements are still kept unboxed.
+     */
+    public boolean isIntArray() {
+        return objects == null;
+    }
+
+    private void check(int index) {
+        if(index < 0 || index >= length) {
+            throw new NubRuntimeException("index " + index + " is out of bounds for length " + length);
+        }
+    }
+
+    /*
+     * Makes room for one more element at length.
+     */
+    private void grow() {
+        if(objects == null) {
+            if(length == ints.length) {
+                Budget.charge(8L * length);
+                ints = Arrays.copyOf(ints, length * 2);
+            }
+        } else {
+            if(length == objects.length) {
+                Budget.charge(16L * length);
+                objects = Arrays.copyOf(objects, length * 2);
+            }
+        }
+    }
+
+    private void box() {
+        Budget.charge(24L * length);
+        Object[] boxed = new Object[ints.length];
+        for(int i = 0; i < length; i++) {
+            boxed[i] = ints[i];
+        }
+        objects = boxed;
+        ints = null;
+    }
+
+    public Object get(int index) {
+        check(index);
+        return objects == null ? Integer.valueOf(ints[index]) : objects[index];
+    }
+
+    public int getInt(int index) {
+        check(index);
+        return objects == null ? ints[index] : (Integer)objects[index];
+    }
+
+    public void set(int index, Object value) {
+        if(value instanceof Integer) {
+            setInt(index, (Integer)value);
+            return;
+        }
+        if(index == length) {
+            grow();
+            length++;
+        } else {
+            check(index);
+        }
+        if(objects == null) box();
+        objects[index] = value;
+    }
+
+    public void setInt(int index, int value) {
+        if(index == length) {
+            grow();
+            length++;
+        } else {
+            check(index);
+        }
+        if(objects == null) {
+            ints[index] = value;
+        } else {
+            objects[index] = value;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        for(int i = 0; i < length; i++) {
+            if(i > 0) builder.append(", ");
+            if(objects == null) {
+                builder.append(ints[i]);
+            } else {
+                builder.append(objects[i] == this ? "[...]" : objects[i]);
+            }
+        }
+        return builder.append("]").toString();
+    }
+}
@@ -1,5 +1,6 @@
 package com.github.kmizu.nub2;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.function.Function;
@@ -20,17 +21,214 @@ public class Ast {
         E visitPrintlnExpression(PrintlnExpression node);
         E visitDefFunction(DefFunction node);
         E visitFunctionCall(FunctionCall node);
+        E visitArrayLiteral(ArrayLiteral node);
+        E visitMapLiteral(MapLiteral node);
+        E visitIndexExpression(IndexExpression node);
+        E visitIndexAssignment(IndexAssignment node);
+        E visitLengthExpression(LengthExpression node);
+    }
+
+    /**
+     * Visits every sub-expression and returns null.  Subclasses override only the cases they are interested in.
+     *
+     * The body of a let that ends the body of another let is visited after visitLetExpression of the inner let
+     * returns, by the loop of the outer one, so that a long run of lets does not recurse.
+     */
+    public static class Traverser implements ExpressionVisitor<Object> {
+        // the let that ends the body being visited by visitLetExpression, and that let once it is reached
+        private LetExpression tail, reached;
+
+        public Object visitBinaryExpression(BinaryExpression node) {
+            node.lhs.accept(this);
+            node.rhs.accept(this);
+            return null;
+        }
+        public Object visitIntLiteral(IntLiteral node) { return null; }
+        public Object visitBooleanLiteral(BooleanLiteral node) { return null; }
+        public Object visitStringLiteral(StringLiteral node) { return null; }
+        public Object visitLetExpression(LetExpression node) {
+            node.init.accept(this);
+            if(node == tail) {
+                reached = node;
+                return null;
+            }
+            LetExpression enclosing = tail;
+            for(LetExpression let = node; let != null; let = reached) {
+                tail = let.next();
+                reached = null;
+                let.body.accept(this);
+            }
+            tail = enclosing;
+            return null;
+        }
+        public Object visitId(Id node) { return null; }
+        public Object visitBlock(Block node) {
+            for(Expression e:node.expressions) {
+                e.accept(this);
+            }
+            return null;
+        }
+        public Object visitIfExpression(IfExpression node) {
+            node.condition.accept(this);
+            node.thenClause.accept(this);
+            node.elseClause.accept(this);
+            return null;
+        }
+        public Object visitWhileExpression(WhileExpression node) {
+            node.condition.accept(this);
+            for(Expression e:node.body) {
+                e.accept(this);
+            }
+            return null;
+        }
+        public Object visitAssignmentExpression(AssignmentExpression node) {
+            node.expression.accept(this);
+            return null;
+        }
+        public Object visitPrintlnExpression(PrintlnExpression node) {
+            node.target.accept(this);
+            return null;
+        }
+        public Object visitDefFunction(DefFunction node) {
+            node.body.accept(this);
+            return null;
+        }
+        public Object visitFunctionCall(FunctionCall node) {
+            for(Expression p:node.params) {
+                p.accept(this);
+            }
+            return null;
+        }
+        public Object visitArrayLiteral(ArrayLiteral node) {
+            for(Expression e:node.elements) {
+                e.accept(this);
+            }
+            return null;
+        }
+        public Object visitMapLiteral(MapLiteral node) {
+            for(int i = 0; i < node.keys.size(); i++) {
+                node.keys.get(i).accept(this);
+                node.values.get(i).accept(this);
+            }
+            return null;
+        }
+        public Object visitIndexExpression(IndexExpression node) {
+            node.target.accept(this);
+            node.index.accept(this);
+            return null;
+        }
+        public Object visitIndexAssignment(IndexAssignment node) {
+            node.target.accept(this);
+            node.index.accept(this);
+            node.value.accept(this);
+            return null;
+        }
+        public Object visitLengthExpression(LengthExpression node) {
+            node.target.accept(this);
+            return null;
+        }
+    }
+
+    /**
+     * Rebuilds a tree node by node, leaving out everything the passes fill in, so that a pass can annotate the
+     * copy while others still hold the original.  Every copy is passed to copied, which subclasses may override
+     * to relate the copies to their originals.
+     */
+    public static class Copier implements ExpressionVisitor<Expression> {
+        public Expression copy(Expression node) {
+            return copied(node, node.accept(this));
+        }
+        protected Expression copied(Expression node, Expression copy) {
+            return copy;
+        }
+        public Block copy(Block node) {
+            return (Block)copy((Expression)node);
+        }
+        private List<Expression> copyAll(List<Expression> expressions) {
+            List<Expression> result = new ArrayList<>(expressions.size());
+            for(Expression e:expressions) {
+                result.add(copy(e));
+            }
+            return result;
+        }
+        public Expression visitBinaryExpression(BinaryExpression node) {
+            return new BinaryExpression(node.operator, copy(node.lhs), copy(node.rhs));
+        }
+        public Expression visitIntLiteral(IntLiteral node) { return new IntLiteral(node.value); }
+        public Expression visitBooleanLiteral(BooleanLiteral node) { return new BooleanLiteral(node.value); }
+        public Expression visitStringLiteral(StringLiteral node) { return new StringLiteral(node.value); }
+        public Expression visitLetExpression(LetExpression node) {
+            // a run of lets is copied in a loop, from the last let up
+            List<LetExpression> lets = new ArrayList<>();
+            List<Expression> inits = new ArrayList<>();
+            List<List<Expression>> befores = new ArrayList<>();
+            for(LetExpression let = node; let != null; let = let.next()) {
+                List<Expression> expressions = let.inner().expressions;
+                lets.add(let);
+                inits.add(copy(let.init));
+                befores.add(copyAll(let.next() == null ? expressions : expressions.subList(0, expressions.size() - 1)));
+            }
+            Expression copy = null;
+            for(int i = lets.size() - 1; i >= 0; i--) {
+                LetExpression let = lets.get(i);
+                List<Expression> expressions = befores.get(i);
+                if(copy != null) expressions.add(copied(lets.get(i + 1), copy));
+                LetExpression result = new LetExpression(let.variableName, inits.get(i), (Block)copied(let.inner(), new Block(expressions)));
+                copied(let.body, result.body);
+                copy = result;
+            }
+            return copy;
+        }
+        public Expression visitId(Id node) { return new Id(node.name); }
+        public Expression visitBlock(Block node) { return new Block(copyAll(node.expressions)); }
+        public Expression visitIfExpression(IfExpression node) {
+            return new IfExpression(copy(node.condition), copy(node.thenClause), copy(node.elseClause));
+        }
+        public Expression visitWhileExpression(WhileExpression node) {
+            return new WhileExpression(copy(node.condition), copyAll(node.body));
+        }
+        public Expression visitAssignmentExpression(AssignmentExpression node) {
+            return new AssignmentExpression(node.variableName, copy(node.expression));
+        }
+        public Expression visitPrintlnExpression(PrintlnExpression node) {
+            return new PrintlnExpression(copy(node.target));
+        }
+        public Expression visitDefFunction(DefFunction node) {
+            return new DefFunction(node.name, new ArrayList<>(node.args), copy(node.body));
+        }
+        public Expression visitFunctionCall(FunctionCall node) { return new FunctionCall(node.name, copyAll(node.params)); }
+        public Expression visitArrayLiteral(ArrayLiteral node) { return new ArrayLiteral(copyAll(node.elements)); }
+        public Expression visitMapLiteral(MapLiteral node) { return new MapLiteral(copyAll(node.keys), copyAll(node.values)); }
+        public Expression visitIndexExpression(IndexExpression node) {
+            return new IndexExpression(copy(node.target), copy(node.index));
+        }
+        public Expression visitIndexAssignment(IndexAssignment node) {
+            return new IndexAssignment(copy(node.target), copy(node.index), copy(node.value));
+        }
+        public Expression visitLengthExpression(LengthExpression node) { return new LengthExpression(copy(node.target)); }
     }
 
     public static abstract class Node {}
 
     public static abstract class Expression extends Node {
+        /*
+         * Filled in by Typer
+         */
+        public Type type;
         public abstract <E> E accept(ExpressionVisitor<E> visitor);
     }
 
     public static class FunctionCall extends Expression {
         public final String name;
         public final List<Ast.Expression> params;
+        /*
+         * Filled in by VariableChecker: the function this call invokes
+         */
+        public DefFunction function;
+        /*
+         * Filled in by VariableChecker: whether the call is the last thing its function body does
+         */
+        public boolean tailCall;
         public FunctionCall(String name, List<Ast.Expression> params) {
             this.name = name;
             this.params = params;
@@ -43,6 +241,10 @@ public class Ast {
         public final String                   name;
         public final List<String>             args;
         public final Block body;
+        /*
+         * Filled in by Memoizer: the remembered results of the function, or null when its calls are not memoized
+         */
+        public MemoTable memo;
         public DefFunction(String name, List<String> args, Block body) {
             this.name = name;
             this.args = args;
@@ -56,6 +258,15 @@ public class Ast {
         public final String variableName;
         public final Ast.Expression init;
         public final Ast.Block body;
+        /*
+         * Filled in by VariableChecker: the frame slot this binding occupies.
+         * depth is always 0 since a let allocates its slot in the current frame.
+         */
+        public int depth = -1, slot = -1;
+        /*
+         * Filled in by Typer: the join of every value stored in the variable
+         */
+        public Type variableType;
 
         public LetExpression(String variableName, Ast.Expression init, Ast.Block body) {
             this.variableName = variableName;
@@ -63,12 +274,35 @@ public class Ast {
             this.body = new Ast.Block(Arrays.asList(body));
         }
 
+        /**
+         * The block given to the constructor, which body wraps in another block.
+         */
+        public Ast.Block inner() {
+            return (Ast.Block)body.expressions.get(0);
+        }
+
+        /**
+         * The let that ends inner, or null.  The parser puts the rest of a block after a let in the let's body,
+         * so a run of lets is a chain of lets, each ending the body of the one before; passes walk such a chain
+         * with a loop rather than by recursion.
+         */
+        public LetExpression next() {
+            List<Expression> expressions = inner().expressions;
+            if(expressions.isEmpty()) return null;
+            Expression last = expressions.get(expressions.size() - 1);
+            return last instanceof LetExpression ? (LetExpression)last : null;
+        }
+
         public <E> E accept(ExpressionVisitor<E> visitor) { return visitor.visitLetExpression(this); }
     }
 
     public static class AssignmentExpression extends Expression {
         public final String variableName;
         public final Ast.Expression expression;
+        /*
+         * Filled in by VariableChecker: how many frames to walk up and the slot in that frame.
+         */
+        public int depth = -1, slot = -1;
         public AssignmentExpression(String variableName, Ast.Expression expression) {
             this.variableName = variableName;
             this.expression = expression;
@@ -125,6 +359,11 @@ public class Ast {
 
     public static class Block extends Expression {
         public final List<Expression> expressions;
+        /*
+         * Filled in by VariableChecker for blocks that own a frame (the whole program and function bodies):
+         * the number of slots the frame needs.
+         */
+        public int frameSize;
         public Block(List<Expression> expressions) {
             this.expressions = expressions;
         }
@@ -154,6 +393,10 @@ public class Ast {
     public static class BinaryExpression extends Expression {
         public final BinaryOperator operator;
         public final Expression lhs, rhs;
+        /*
+         * Written by Evaluator when it runs an ADD whose operand types Typer could not prove, see AddCache
+         */
+        byte addCache;
         public BinaryExpression(BinaryOperator operator, Expression lhs, Expression rhs) {
             this.operator = operator;
             this.lhs = lhs;
@@ -198,6 +441,10 @@ public class Ast {
 
     public static class Id extends Expression {
         public final String name;
+        /*
+         * Filled in by VariableChecker: how many frames to walk up and the slot in that frame.
+         */
+        public int depth = -1, slot = -1;
         public Id(String name) {
             this.name = name;
         }
@@ -208,6 +455,75 @@ public class Ast {
         }
     }
 
+    /**
+     * [e1, e2, ...], a new ArrayValue
+     */
+    public static class ArrayLiteral extends Expression {
+        public final List<Expression> elements;
+        public ArrayLiteral(List<Expression> elements) {
+            this.elements = elements;
+        }
+
+        @Override
+        public <E> E accept(ExpressionVisitor<E> visitor) { return visitor.visitArrayLiteral(this); }
+    }
+
+    /**
+     * [k1: v1, k2: v2, ...], or [:] when empty, a new MapValue
+     */
+    public static class MapLiteral extends Expression {
+        public final List<Expression> keys, values;
+        public MapLiteral(List<Expression> keys, List<Expression> values) {
+            this.keys = keys;
+            this.values = values;
+        }
+
+        @Override
+        public <E> E accept(ExpressionVisitor<E> visitor) { return visitor.visitMapLiteral(this); }
+    }
+
+    /**
+     * target[index], an element of an array or the value of a key in a map
+     */
+    public static class IndexExpression extends Expression {
+        public final Expression target, index;
+        public IndexExpression(Expression target, Expression index) {
+            this.target = target;
+            this.index = index;
+        }
+
+        @Override
+        public <E> E accept(ExpressionVisitor<E> visitor) { return visitor.visitIndexExpression(this); }
+    }
+
+    /**
+     * target[index] = value.  Storing at the length of an array appends to it.
+     */
+    public static class IndexAssignment extends Expression {
+        public final Expression target, index, value;
+        public IndexAssignment(Expression target, Expression index, Expression value) {
+            this.target = target;
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override
+        public <E> E accept(ExpressionVisitor<E> visitor) { return visitor.visitIndexAssignment(this); }
+    }
+
+    /**
+     * length(target), the number of elements of an array or of keys of a map
+     */
+    public static class LengthExpression extends Expression {
+        public final Expression target;
+        public LengthExpression(Expression target) {
+            this.target = target;
+        }
+
+        @Override
+        public <E> E accept(ExpressionVisitor<E> visitor) { return visitor.visitLengthExpression(this); }
+    }
+
     public static class Factory {
         /*
          * Literals
@@ -316,5 +632,24 @@ public class Ast {
         public static FunctionCall tCall(String name, Expression... parameters) {
             return new FunctionCall(name, Arrays.asList(parameters));
         }
+
+        /*
+         * Arrays and maps
+         */
+        public static ArrayLiteral tArray(Expression... elements) {
+            return new ArrayLiteral(Arrays.asList(elements));
+        }
+        public static MapLiteral tMap(List<Expression> keys, List<Expression> values) {
+            return new MapLiteral(keys, values);
+        }
+        public static IndexExpression tIndex(Expression target, Expression index) {
+            return new IndexExpression(target, index);
+        }
+        public static IndexAssignment tStore(Expression target, Expression index, Expression value) {
+            return new IndexAssignment(target, index, value);
+        }
+        public static LengthExpression tLength(Expression target) {
+            return new LengthExpression(target);
+        }
     }
 }
@@ -0,0 +1,265 @@
+package com.github.kmizu.nub2;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.github.kmizu.nub2.AstWriter.*;
+
+/**
+ * Loads a program written by AstWriter.  The result is ready for Evaluator.execute; its pure functions are
+ * memoized again with tables of the default size.
+ *
+ * Nodes are stored children first, so the tree is rebuilt in one loop over the node array without recursion.
+ * Call targets may point forward (a function calling itself or one defined later) and are linked after all
+ * nodes exist.  The engines trust the annotations of the tree, so AstVerifier checks them; a file that fails
+ * is rejected as corrupt.
+ */
+public class AstReader {
+    private final ByteBuffer in;
+    private String[] names;
+    private Ast.Expression[] nodes;
+    private int count;
+    // the children of node i are the nodes edges[starts[i]] to edges[starts[i + 1] - 1]
+    private int[] starts;
+    private int[] edges;
+    private int edgeCount;
+
+    public AstReader(ByteBuffer in) {
+        this.in = in;
+    }
+
+    public static Ast.Block read(Path path) {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new AstReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())).read();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static NubRuntimeException corrupt() {
+        return new NubRuntimeException("not a compiled nub2 program");
+    }
+
+    private int number() {
+        int bits = 0;
+        for(int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            bits |= (b & 0x7F) << shift;
+            if(b >= 0) return (bits >>> 1) ^ -(bits & 1);
+        }
+        throw corrupt();
+    }
+
+    /*
+     * A number of things that follow, each of which takes at least one byte.
+     */
+    private int size() {
+        int size = number();
+        if(size < 0 || size > in.remaining()) throw corrupt();
+        return size;
+    }
+
+    private String name() {
+        int index = number();
+        if(index < 0 || index >= names.length) throw corrupt();
+        return names[index];
+    }
+
+    private Ast.Expression node() {
+        int index = number();
+        if(index < 0 || index >= count) throw corrupt();
+        if(edgeCount == edges.length) edges = Arrays.copyOf(edges, edgeCount * 2);
+        edges[edgeCount++] = index;
+        return nodes[index];
+    }
+
+    private Ast.Block block() {
+        Ast.Expression e = node();
+        if(!(e instanceof Ast.Block)) throw corrupt();
+        return (Ast.Block)e;
+    }
+
+    private List<Ast.Expression> children() {
+        int size = size();
+        Ast.Expression[] children = new Ast.Expression[size];
+        for(int i = 0; i < size; i++) {
+            children[i] = node();
+        }
+        return Arrays.asList(children);
+    }
+
+    private Type type() {
+        byte code = in.get();
+        if(code == FUNCTION_TYPE) {
+            int size = size();
+            List<Type> params = new ArrayList<>(size);
+            for(int i = 0; i < size; i++) {
+                params.add(valueType());
+            }
+            return new Type.FunctionType(params, valueType());
+        }
+        if(code < 0 || code >= TYPES.length) throw corrupt();
+        return TYPES[code];
+    }
+
+    private Type valueType() {
+        Type type = type();
+        if(type instanceof Type.FunctionType) throw corrupt();
+        return type;
+    }
+
+    public Ast.Block read() {
+        try {
+            if(in.getInt() != MAGIC) throw corrupt();
+            if(in.getInt() != VERSION) {
+                throw new NubRuntimeException("compiled program was written by another version of nub2");
+            }
+            names = new String[size()];
+            for(int i = 0; i < names.length; i++) {
+                byte[] bytes = new byte[size()];
+                in.get(bytes);
+                names[i] = new String(bytes, StandardCharsets.UTF_8).intern();
+            }
+            nodes = new Ast.Expression[size()];
+            starts = new int[nodes.length + 1];
+            edges = new int[Math.max(16, nodes.length)];
+            edgeCount = 0;
+            List<Ast.FunctionCall> calls = new ArrayList<>();
+            List<Integer> targets = new ArrayList<>();
+            for(count = 0; count < nodes.length; count++) {
+                starts[count] = edgeCount;
+                byte tag = in.get();
+                Type type = type();
+                Ast.Expression node;
+                switch (tag) {
+                    case INT:
+                        node = new Ast.IntLiteral(number());
+                        break;
+                    case BOOLEAN:
+                        node = new Ast.BooleanLiteral(in.get() != 0);
+                        break;
+                    case STRING:
+                        node = new Ast.StringLiteral(name());
+                        break;
+                    case ID: {
+                        Ast.Id id = new Ast.Id(name());
+                        id.depth = number();
+                        id.slot = number();
+                        node = id;
+                        break;
+                    }
+                    case BINARY: {
+                        int operator = in.get();
+                        if(operator < 0 || operator >= Ast.BinaryOperator.values().length) throw corrupt();
+                        node = new Ast.BinaryExpression(Ast.BinaryOperator.values()[operator], node(), node());
+                        break;
+                    }
+                    case LET: {
+                        String name = name();
+                        Ast.Expression init = node();
+                        Ast.Block body = block();
+                        Ast.LetExpression let = new Ast.LetExpression(name, init, body);
+                        let.body.type = body.type;
+                        let.depth = number();
+                        let.slot = number();
+                        let.variableType = valueType();
+                        node = let;
+                        break;
+                    }
+                    case ASSIGN: {
+                        Ast.AssignmentExpression assignment = new Ast.AssignmentExpression(name(), node());
+                        assignment.depth = number();
+                        assignment.slot = number();
+                        node = assignment;
+                        break;
+                    }
+                    case IF:
+                        node = new Ast.IfExpression(node(), block(), block());
+                        break;
+                    case WHILE:
+                        node = new Ast.WhileExpression(node(), children());
+                        break;
+                    case PRINTLN:
+                        node = new Ast.PrintlnExpression(node());
+                        break;
+                    case BLOCK: {
+                        int frameSize = number();
+                        if(frameSize < 0) throw corrupt();
+                        Ast.Block block = new Ast.Block(children());
+                        block.frameSize = frameSize;
+                        node = block;
+                        break;
+                    }
+                    case DEF: {
+                        String name = name();
+                        int size = size();
+                        List<String> args = new ArrayList<>(size);
+                        for(int i = 0; i < size; i++) {
+                            args.add(name());
+                        }
+                        node = new Ast.DefFunction(name, args, block());
+                        break;
+                    }
+                    case CALL: {
+                        String name = name();
+                        boolean tailCall = in.get() != 0;
+                        int target = number();
+                        Ast.FunctionCall call = new Ast.FunctionCall(name, children());
+                        call.tailCall = tailCall;
+                        if(target >= 0) {
+                            calls.add(call);
+                            targets.add(target);
+                        }
+                        node = call;
+                        break;
+                    }
+                    case ARRAY:
+                        node = new Ast.ArrayLiteral(children());
+                        break;
+                    case MAP: {
+                        List<Ast.Expression> keys = children();
+                        List<Ast.Expression> values = children();
+                        if(keys.size() != values.size()) throw corrupt();
+                        node = new Ast.MapLiteral(keys, values);
+                        break;
+                    }
+                    case INDEX:
+                        node = new Ast.IndexExpression(node(), node());
+                        break;
+                    case STORE:
+                        node = new Ast.IndexAssignment(node(), node(), node());
+                        break;
+                    case LENGTH:
+                        node = new Ast.LengthExpression(node());
+                        break;
+                    default:
+                        throw corrupt();
+                }
+                node.type = type;
+                nodes[count] = node;
+            }
+            starts[count] = edgeCount;
+            for(int i = 0; i < calls.size(); i++) {
+                int target = targets.get(i);
+                if(target >= nodes.length || !(nodes[target] instanceof Ast.DefFunction)) throw corrupt();
+                calls.get(i).function = (Ast.DefFunction)nodes[target];
+            }
+            if(nodes.length == 0 || !(nodes[nodes.length - 1] instanceof Ast.Block)) throw corrupt();
+            Ast.Block program = (Ast.Block)nodes[nodes.length - 1];
+            new AstVerifier(nodes, starts, edges).verify();
+            // memo tables are not written, so the loaded functions get fresh ones
+            return new Memoizer().memoize(program);
+        } catch (BufferUnderflowException e) {
+            throw corrupt();
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package com.github.kmizu.nub2;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Checks the annotations of a tree loaded by AstReader, which the engines trust, in time linear in its size.
+ *
+ * The checks do what VariableChecker and Typer would have done, without redoing their work:
+ * <ul>
+ * <li>The nodes form a tree, every name is an identifier and every call target is a function of the tree with
+ * the call's name and arity.</li>
+ * <li>Each variable refers to a slot that a let or a parameter around it holds when it runs.  A program slot
+ * used from a function belongs to one let only.</li>
+ * <li>Only calls in tail position of a function body are marked as tail calls.</li>
+ * <li>Each type covers what Typer's rule for the node gives from the stored types of its operands, variables
+ * and functions.  Those types are then a fixed point of Typer's rules, though not always its least one, so they
+ * stay sound.  An untyped node counts as DYNAMIC.</li>
+ * </ul>
+ */
+final class AstVerifier {
+    private static final int ENTER = 0, BIND = 1, EXIT = 2;
+
+    private final Ast.Expression[] nodes;
+    private final int[] starts;
+    private final int[] edges;
+    private final Ast.Block program;
+    private final boolean[] reached;
+    private final boolean[] tail;
+    private final Set<Ast.DefFunction> definitions = Collections.newSetFromMap(new IdentityHashMap<>());
+    // the element type of all arrays and the value type of all maps, as Typer joins them
+    private Type elements = Type.UNKNOWN, values = Type.UNKNOWN;
+    // the one program let that holds each slot, or null when there are several
+    private Ast.LetExpression[] owners;
+    // the type of the variable each slot of the running frame holds, or null when it holds none
+    private Type[] frame;
+
+    AstVerifier(Ast.Expression[] nodes, int[] starts, int[] edges) {
+        this.nodes = nodes;
+        this.starts = starts;
+        this.edges = edges;
+        this.program = (Ast.Block)nodes[nodes.length - 1];
+        this.reached = new boolean[nodes.length];
+        this.tail = new boolean[nodes.length];
+    }
+
+    private static NubRuntimeException corrupt() {
+        return AstReader.corrupt();
+    }
+
+    private static Type value(Type type) {
+        return type == null ? Type.DYNAMIC : type;
+    }
+
+    private static void covers(Type wider, Type narrower) {
+        Type w = value(wider);
+        if(w.join(value(narrower)) != w) throw corrupt();
+    }
+
+    private static Type.FunctionType signature(Ast.DefFunction function) {
+        return function.type instanceof Type.FunctionType ? (Type.FunctionType)function.type : null;
+    }
+
+    private static Type param(Ast.DefFunction function, int i) {
+        Type.FunctionType signature = signature(function);
+        return signature == null ? Type.DYNAMIC : value(signature.params.get(i));
+    }
+
+    private static Type result(Ast.DefFunction function) {
+        Type.FunctionType signature = signature(function);
+        return signature == null ? Type.DYNAMIC : value(signature.result);
+    }
+
+    /*
+     * Fails unless name is one the lexer reads as an identifier; BytecodeCompiler puts function names in method names
+     */
+    private static void identifier(String name) {
+        if(name.isEmpty() || !Character.isJavaIdentifierStart(name.codePointAt(0))) throw corrupt();
+        for(int i = Character.charCount(name.codePointAt(0)); i < name.length(); i += Character.charCount(name.codePointAt(i))) {
+            if(!Character.isJavaIdentifierPart(name.codePointAt(i))) throw corrupt();
+        }
+    }
+
+    /*
+     * The type Typer gives every node like this one, or null if it depends on the operands
+     */
+    private static Type fixedType(Ast.Expression node) {
+        if(node instanceof Ast.IntLiteral || node instanceof Ast.WhileExpression || node instanceof Ast.LengthExpression) {
+            return Type.INT;
+        }
+        if(node instanceof Ast.BooleanLiteral) return Type.BOOLEAN;
+        if(node instanceof Ast.StringLiteral) return Type.STRING;
+        if(node instanceof Ast.ArrayLiteral) return Type.ARRAY;
+        if(node instanceof Ast.MapLiteral) return Type.MAP;
+        if(node instanceof Ast.BinaryExpression) {
+            switch (((Ast.BinaryExpression)node).operator) {
+                case ADD:
+                    return null;
+                case SUBTRACT:
+                case MULTIPLY:
+                case DIVIDE:
+                    return Type.INT;
+                default:
+                    return Type.BOOLEAN;
+            }
+        }
+        return null;
+    }
+
+    void verify() {
+        reach();
+        collect();
+        walk();
+    }
+
+    /*
+     * Marks the nodes of the tree, each of which has one parent, and checks what needs no scope
+     */
+    private void reach() {
+        int root = nodes.length - 1;
+        boolean[] parented = new boolean[nodes.length];
+        reached[root] = true;
+        // children come before their parents, so going backwards reaches each node before its children
+        for(int i = root; i >= 0; i--) {
+            if(!reached[i]) continue;
+            for(int e = starts[i]; e < starts[i + 1]; e++) {
+                int child = edges[e];
+                if(parented[child]) throw corrupt();
+                parented[child] = true;
+                reached[child] = true;
+            }
+        }
+        // a frame holds at most the parameters and the lets of its body
+        int[] sizes = new int[nodes.length];
+        for(int i = 0; i < nodes.length; i++) {
+            sizes[i] = 1;
+            for(int e = starts[i]; e < starts[i + 1]; e++) sizes[i] += sizes[edges[e]];
+        }
+        if(program.frameSize > nodes.length) throw corrupt();
+        Set<String> functions = new HashSet<>();
+        for(int i = 0; i < nodes.length; i++) {
+            if(!reached[i]) continue;
+            Ast.Expression node = nodes[i];
+            if(node instanceof Ast.Id) identifier(((Ast.Id)node).name);
+            if(node instanceof Ast.LetExpression) identifier(((Ast.LetExpression)node).variableName);
+            if(node instanceof Ast.AssignmentExpression) identifier(((Ast.AssignmentExpression)node).variableName);
+            if(node instanceof Ast.FunctionCall) identifier(((Ast.FunctionCall)node).name);
+            if(node instanceof Ast.DefFunction) {
+                Ast.DefFunction function = (Ast.DefFunction)node;
+                identifier(function.name);
+                for(String arg:function.args) identifier(arg);
+                if(!functions.add(function.name)) throw corrupt();
+                definitions.add(function);
+                if(node.type != null && (signature(function) == null || signature(function).params.size() != function.args.size())) {
+                    throw corrupt();
+                }
+                int size = function.body.frameSize - function.args.size();
+                if(size < 0 || size > sizes[edges[starts[i]]]) throw corrupt();
+            } else if(node.type instanceof Type.FunctionType) {
+                throw corrupt();
+            } else if(node.type != null) {
+                Type fixed = fixedType(node);
+                if(fixed != null && node.type != fixed) throw corrupt();
+            }
+        }
+    }
+
+    /*
+     * Joins the types of everything stored in arrays and maps, and finds the let that holds each program slot
+     */
+    private void collect() {
+        owners = new Ast.LetExpression[program.frameSize];
+        boolean[] shared = new boolean[program.frameSize];
+        collectFrame(nodes.length - 1, shared);
+        for(int i = 0; i < nodes.length; i++) {
+            if(!reached[i]) continue;
+            Ast.Expression node = nodes[i];
+            if(node instanceof Ast.ArrayLiteral) {
+                for(Ast.Expression e:((Ast.ArrayLiteral)node).elements) elements = elements.join(value(e.type));
+            } else if(node instanceof Ast.MapLiteral) {
+                for(Ast.Expression e:((Ast.MapLiteral)node).values) values = values.join(value(e.type));
+            } else if(node instanceof Ast.IndexAssignment) {
+                Ast.IndexAssignment store = (Ast.IndexAssignment)node;
+                Type target = value(store.target.type);
+                if(target != Type.MAP && target != Type.UNKNOWN) elements = elements.join(value(store.value.type));
+                if(target != Type.ARRAY && target != Type.UNKNOWN) values = values.join(value(store.value.type));
+            }
+        }
+        for(int slot = 0; slot < owners.length; slot++) {
+            if(shared[slot]) owners[slot] = null;
+        }
+    }
+
+    private void collectFrame(int root, boolean[] shared) {
+        ArrayDeque<Integer> pending = new ArrayDeque<>();
+        pending.push(root);
+        while(!pending.isEmpty()) {
+            int i = pending.pop();
+            Ast.Expression node = nodes[i];
+            // the lets of function bodies live in frames of their own
+            if(node instanceof Ast.DefFunction) continue;
+            if(node instanceof Ast.LetExpression) {
+                Ast.LetExpression let = (Ast.LetExpression)node;
+                if(let.depth != 0 || let.slot < 0 || let.slot >= owners.length) throw corrupt();
+                if(owners[let.slot] != null) shared[let.slot] = true;
+                owners[let.slot] = let;
+            }
+            for(int e = starts[i]; e < starts[i + 1]; e++) {
+                pending.push(edges[e]);
+            }
+        }
+    }
+
+    /*
+     * The type of the variable a node at depth and slot refers to
+     */
+    private Type variable(int depth, int slot, boolean inFunction) {
+        if(depth == 0) {
+            if(slot < 0 || slot >= frame.length || frame[slot] == null) throw corrupt();
+            return frame[slot];
+        }
+        if(depth != 1 || !inFunction || slot < 0 || slot >= owners.length || owners[slot] == null) throw corrupt();
+        return value(owners[slot].variableType);
+    }
+
+    /*
+     * Goes through the tree in the order it runs, keeping the variables each frame holds
+     */
+    private void walk() {
+        ArrayDeque<int[]> pending = new ArrayDeque<>();
+        ArrayDeque<Type[]> frames = new ArrayDeque<>();
+        frame = new Type[program.frameSize];
+        pending.push(new int[]{ENTER, nodes.length - 1});
+        while(!pending.isEmpty()) {
+            int[] step = pending.pop();
+            int i = step[1];
+            Ast.Expression node = nodes[i];
+            if(step[0] == BIND) {
+                Ast.LetExpression let = (Ast.LetExpression)node;
+                if(let.depth != 0 || let.slot < 0 || let.slot >= frame.length) throw corrupt();
+                frame[let.slot] = value(let.variableType);
+                continue;
+            }
+            if(step[0] == EXIT) {
+                if(node instanceof Ast.DefFunction) {
+                    frame = frames.pop();
+                } else {
+                    // the engines clear the slot of a let when it ends
+                    frame[((Ast.LetExpression)node).slot] = null;
+                }
+                continue;
+            }
+            check(node, i, !frames.isEmpty());
+            if(node instanceof Ast.DefFunction) {
+                Ast.DefFunction function = (Ast.DefFunction)node;
+                frames.push(frame);
+                frame = new Type[function.body.frameSize];
+                for(int p = 0; p < function.args.size(); p++) {
+                    frame[p] = param(function, p);
+                }
+                tail[edges[starts[i]]] = true;
+                pending.push(new int[]{EXIT, i});
+                pending.push(new int[]{ENTER, edges[starts[i]]});
+            } else if(node instanceof Ast.LetExpression) {
+                int init = edges[starts[i]], inner = edges[starts[i] + 1];
+                tail[inner] = tail[i];
+                pending.push(new int[]{EXIT, i});
+                pending.push(new int[]{ENTER, inner});
+                pending.push(new int[]{BIND, i});
+                pending.push(new int[]{ENTER, init});
+            } else if(node instanceof Ast.MapLiteral) {
+                // keys and values are evaluated in pairs
+                int size = ((Ast.MapLiteral)node).keys.size();
+                for(int k = size - 1; k >= 0; k--) {
+                    pending.push(new int[]{ENTER, edges[starts[i] + size + k]});
+                    pending.push(new int[]{ENTER, edges[starts[i] + k]});
+                }
+            } else {
+                for(int e = starts[i + 1] - 1; e >= starts[i]; e--) {
+                    pending.push(new int[]{ENTER, edges[e]});
+                }
+                if(tail[i] && node instanceof Ast.Block && starts[i + 1] > starts[i]) {
+                    tail[edges[starts[i + 1] - 1]] = true;
+                } else if(tail[i] && node instanceof Ast.IfExpression) {
+                    tail[edges[starts[i] + 1]] = true;
+                    tail[edges[starts[i] + 2]] = true;
+                }
+            }
+        }
+    }
+
+    /*
+     * Checks the annotations of node, whose operands have not been checked yet but carry their stored types
+     */
+    private void check(Ast.Expression node, int i, boolean inFunction) {
+        Type type = value(node.type);
+        if(node instanceof Ast.Id) {
+            Ast.Id id = (Ast.Id)node;
+            covers(type, variable(id.depth, id.slot, inFunction));
+        } else if(node instanceof Ast.AssignmentExpression) {
+            Ast.AssignmentExpression assignment = (Ast.AssignmentExpression)node;
+            covers(variable(assignment.depth, assignment.slot, inFunction), assignment.expression.type);
+            covers(type, assignment.expression.type);
+        } else if(node instanceof Ast.LetExpression) {
+            Ast.LetExpression let = (Ast.LetExpression)node;
+            covers(let.variableType, let.init.type);
+            covers(type, let.inner().type);
+        } else if(node instanceof Ast.Block) {
+            List<Ast.Expression> expressions = ((Ast.Block)node).expressions;
+            covers(type, expressions.isEmpty() ? Type.INT : expressions.get(expressions.size() - 1).type);
+        } else if(node instanceof Ast.IfExpression) {
+            Ast.IfExpression ifExpression = (Ast.IfExpression)node;
+            covers(type, value(ifExpression.thenClause.type).join(value(ifExpression.elseClause.type)));
+        } else if(node instanceof Ast.PrintlnExpression) {
+            covers(type, ((Ast.PrintlnExpression)node).target.type);
+        } else if(node instanceof Ast.DefFunction) {
+            Ast.DefFunction function = (Ast.DefFunction)node;
+            covers(result(function), function.body.type);
+        } else if(node instanceof Ast.FunctionCall) {
+            Ast.FunctionCall call = (Ast.FunctionCall)node;
+            Ast.DefFunction function = call.function;
+            if(function == null || !definitions.contains(function) || !function.name.equals(call.name)) throw corrupt();
+            if(function.args.size() != call.params.size()) throw corrupt();
+            if(call.tailCall && !tail[i]) throw corrupt();
+            for(int p = 0; p < call.params.size(); p++) {
+                covers(param(function, p), call.params.get(p).type);
+            }
+            covers(type, result(function));
+        } else if(node instanceof Ast.IndexExpression) {
+            Type target = value(((Ast.IndexExpression)node).target.type);
+            if(target == Type.ARRAY) covers(type, elements);
+            else if(target == Type.MAP) covers(type, values);
+            else if(target != Type.UNKNOWN) covers(type, elements.join(values));
+        } else if(node instanceof Ast.IndexAssignment) {
+            covers(type, ((Ast.IndexAssignment)node).value.type);
+        } else if(node instanceof Ast.BinaryExpression && ((Ast.BinaryExpression)node).operator == Ast.BinaryOperator.ADD) {
+            Type lhs = value(((Ast.BinaryExpression)node).lhs.type), rhs = value(((Ast.BinaryExpression)node).rhs.type);
+            if(lhs == Type.STRING || rhs == Type.STRING) covers(type, Type.STRING);
+            else if(lhs == Type.INT && rhs == Type.INT) covers(type, Type.INT);
+            else if(lhs != Type.UNKNOWN && rhs != Type.UNKNOWN) covers(type, Type.DYNAMIC);
+        }
+    }
+}
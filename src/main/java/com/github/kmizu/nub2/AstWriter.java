@@ -0,0 +1,404 @@
+package com.github.kmizu.nub2;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a program that has been through Evaluator.prepare in a compact binary form that AstReader loads
+ * without checking it again.
+ *
+ * <pre>
+ * file  ::= MAGIC VERSION names nodes
+ * names ::= count (length utf8-bytes)*       every identifier and string literal, once
+ * nodes ::= count node*                      in post-order, so children come before their parent
+ * node  ::= tag type fields                  children and names are referred to by index
+ * </pre>
+ *
+ * The last node is the program.  Resolved slots, frame sizes, types, tail call marks and call targets are
+ * stored with the nodes.  MAGIC and VERSION are big-endian ints; every other number is a zigzag varint.
+ */
+public class AstWriter implements Ast.ExpressionVisitor<Object> {
+    static final int MAGIC = 0x4E554232;
+    static final int VERSION = 3;
+
+    static final byte INT = 0, BOOLEAN = 1, STRING = 2, ID = 3, BINARY = 4, LET = 5, ASSIGN = 6, IF = 7,
+            WHILE = 8, PRINTLN = 9, BLOCK = 10, DEF = 11, CALL = 12, ARRAY = 13, MAP = 14, INDEX = 15, STORE = 16,
+            LENGTH = 17;
+
+    static final Type[] TYPES = {null, Type.UNKNOWN, Type.INT, Type.BOOLEAN, Type.STRING, Type.DYNAMIC, Type.ARRAY, Type.MAP};
+    static final byte FUNCTION_TYPE = (byte)TYPES.length;
+
+    private final List<Ast.Expression> nodes = new ArrayList<>();
+    private final Map<Ast.Expression, Integer> indices = new IdentityHashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private final Map<String, Integer> nameIndices = new HashMap<>();
+    private DataOutputStream out;
+
+    public static void write(Ast.Block program, Path path) {
+        try(OutputStream stream = Files.newOutputStream(path)) {
+            new AstWriter().write(program, stream);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void write(Ast.Block program, OutputStream stream) throws IOException {
+        nodes.clear();
+        indices.clear();
+        names.clear();
+        nameIndices.clear();
+        program.accept(this);
+        // names are collected while the nodes are written, but have to come first in the file
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        out = new DataOutputStream(body);
+        writeNumber(nodes.size());
+        for(Ast.Expression node:nodes) {
+            writeNode(node);
+        }
+        out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeNumber(names.size());
+        for(String name:names) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            writeNumber(bytes.length);
+            out.write(bytes);
+        }
+        body.writeTo(out);
+        out.flush();
+    }
+
+    /*
+     * Zigzag varint: small numbers of either sign take one byte.
+     */
+    private void writeNumber(int n) throws IOException {
+        int bits = (n << 1) ^ (n >> 31);
+        while((bits & ~0x7F) != 0) {
+            out.writeByte((bits & 0x7F) | 0x80);
+            bits >>>= 7;
+        }
+        out.writeByte(bits);
+    }
+
+    private void add(Ast.Expression node) {
+        indices.put(node, nodes.size());
+        nodes.add(node);
+    }
+
+    private int name(String name) {
+        Integer index = nameIndices.get(name);
+        if(index == null) {
+            index = names.size();
+            names.add(name);
+            nameIndices.put(name, index);
+        }
+        return index;
+    }
+
+    private static byte typeCode(Type type) {
+        if(type instanceof Type.FunctionType) return FUNCTION_TYPE;
+        for(byte i = 0; i < TYPES.length; i++) {
+            if(TYPES[i] == type) return i;
+        }
+        throw new NubRuntimeException("cannot write type " + type);
+    }
+
+    private void writeType(Type type) throws IOException {
+        byte code = typeCode(type);
+        out.writeByte(code);
+        if(code == FUNCTION_TYPE) {
+            Type.FunctionType function = (Type.FunctionType)type;
+            writeNumber(function.params.size());
+            for(Type param:function.params) {
+                writeType(param);
+            }
+            writeType(function.result);
+        }
+    }
+
+    private void writeChildren(List<Ast.Expression> children) throws IOException {
+        writeNumber(children.size());
+        for(Ast.Expression child:children) {
+            writeNumber(indices.get(child));
+        }
+    }
+
+    private void writeNode(Ast.Expression node) throws IOException {
+        if(node instanceof Ast.IntLiteral) {
+            out.writeByte(INT);
+            writeType(node.type);
+            writeNumber(((Ast.IntLiteral)node).value);
+        } else if(node instanceof Ast.BooleanLiteral) {
+            out.writeByte(BOOLEAN);
+            writeType(node.type);
+            out.writeBoolean(((Ast.BooleanLiteral)node).value);
+        } else if(node instanceof Ast.StringLiteral) {
+            out.writeByte(STRING);
+            writeType(node.type);
+            writeNumber(name(((Ast.StringLiteral)node).value));
+        } else if(node instanceof Ast.Id) {
+            Ast.Id id = (Ast.Id)node;
+            out.writeByte(ID);
+            writeType(node.type);
+            writeNumber(name(id.name));
+            writeNumber(id.depth);
+            writeNumber(id.slot);
+        } else if(node instanceof Ast.BinaryExpression) {
+            Ast.BinaryExpression binary = (Ast.BinaryExpression)node;
+            out.writeByte(BINARY);
+            writeType(node.type);
+            out.writeByte(binary.operator.ordinal());
+            writeNumber(indices.get(binary.lhs));
+            writeNumber(indices.get(binary.rhs));
+        } else if(node instanceof Ast.LetExpression) {
+            Ast.LetExpression let = (Ast.LetExpression)node;
+            out.writeByte(LET);
+            writeType(node.type);
+            writeNumber(name(let.variableName));
+            writeNumber(indices.get(let.init));
+            writeNumber(indices.get(let.body.expressions.get(0)));
+            writeNumber(let.depth);
+            writeNumber(let.slot);
+            writeType(let.variableType);
+        } else if(node instanceof Ast.AssignmentExpression) {
+            Ast.AssignmentExpression assignment = (Ast.AssignmentExpression)node;
+            out.writeByte(ASSIGN);
+            writeType(node.type);
+            writeNumber(name(assignment.variableName));
+            writeNumber(indices.get(assignment.expression));
+            writeNumber(assignment.depth);
+            writeNumber(assignment.slot);
+        } else if(node instanceof Ast.IfExpression) {
+            Ast.IfExpression ifExpression = (Ast.IfExpression)node;
+            out.writeByte(IF);
+            writeType(node.type);
+            writeNumber(indices.get(ifExpression.condition));
+            writeNumber(indices.get(ifExpression.thenClause));
+            writeNumber(indices.get(ifExpression.elseClause));
+        } else if(node instanceof Ast.WhileExpression) {
+            Ast.WhileExpression whileExpression = (Ast.WhileExpression)node;
+            out.writeByte(WHILE);
+            writeType(node.type);
+            writeNumber(indices.get(whileExpression.condition));
+            writeChildren(whileExpression.body);
+        } else if(node instanceof Ast.PrintlnExpression) {
+            out.writeByte(PRINTLN);
+            writeType(node.type);
+            writeNumber(indices.get(((Ast.PrintlnExpression)node).target));
+        } else if(node instanceof Ast.Block) {
+            Ast.Block block = (Ast.Block)node;
+            out.writeByte(BLOCK);
+            writeType(node.type);
+            writeNumber(block.frameSize);
+            writeChildren(block.expressions);
+        } else if(node instanceof Ast.DefFunction) {
+            Ast.DefFunction function = (Ast.DefFunction)node;
+            out.writeByte(DEF);
+            writeType(node.type);
+            writeNumber(name(function.name));
+            writeNumber(function.args.size());
+            for(String arg:function.args) {
+                writeNumber(name(arg));
+            }
+            writeNumber(indices.get(function.body));
+        } else if(node instanceof Ast.FunctionCall) {
+            Ast.FunctionCall call = (Ast.FunctionCall)node;
+            out.writeByte(CALL);
+            writeType(node.type);
+            writeNumber(name(call.name));
+            out.writeBoolean(call.tailCall);
+            writeNumber(call.function == null ? -1 : indices.get(call.function));
+            writeChildren(call.params);
+        } else if(node instanceof Ast.ArrayLiteral) {
+            out.writeByte(ARRAY);
+            writeType(node.type);
+            writeChildren(((Ast.ArrayLiteral)node).elements);
+        } else if(node instanceof Ast.MapLiteral) {
+            out.writeByte(MAP);
+            writeType(node.type);
+            writeChildren(((Ast.MapLiteral)node).keys);
+            writeChildren(((Ast.MapLiteral)node).values);
+        } else if(node instanceof Ast.IndexExpression) {
+            Ast.IndexExpression index = (Ast.IndexExpression)node;
+            out.writeByte(INDEX);
+            writeType(node.type);
+            writeNumber(indices.get(index.target));
+            writeNumber(indices.get(index.index));
+        } else if(node instanceof Ast.IndexAssignment) {
+            Ast.IndexAssignment store = (Ast.IndexAssignment)node;
+            out.writeByte(STORE);
+            writeType(node.type);
+            writeNumber(indices.get(store.target));
+            writeNumber(indices.get(store.index));
+            writeNumber(indices.get(store.value));
+        } else if(node instanceof Ast.LengthExpression) {
+            out.writeByte(LENGTH);
+            writeType(node.type);
+            writeNumber(indices.get(((Ast.LengthExpression)node).target));
+        } else {
+            throw new NotImplementedException(node.getClass().getSimpleName());
+        }
+    }
+
+    private void visitAll(List<Ast.Expression> expressions) {
+        for(Ast.Expression e:expressions) {
+            e.accept(this);
+        }
+    }
+
+    @Override
+    public Object visitBinaryExpression(Ast.BinaryExpression node) {
+        node.lhs.accept(this);
+        node.rhs.accept(this);
+        add(node);
+        return null;
+    }
+
+    @Override
+    public Object visitIntLiteral(Ast.IntLiteral node) {
+        add(node);
+        return null;
+    }
+
+    @Override
+    public Object visitBooleanLiteral(Ast.BooleanLiteral node) {
+        add(node);
+        return null;
+    }
+
+    @Override
+    public Object visitStringLiteral(Ast.StringLiteral node) {
+        add(node);
+        return null;
+    }
+
+    @Override
+    public Object visitLetExpression(Ast.LetExpression node) {
+        // only the block given to the constructor is stored; the reader wraps it again.  A run of lets is
+        // written in one loop: each let and the block it ends follow the let after them
+        List<Ast.LetExpression> lets = new ArrayList<>();
+        for(Ast.LetExpression let = node; let != null; let = let.next()) {
+            lets.add(let);
+            let.init.accept(this);
+            List<Ast.Expression> expressions = let.inner().expressions;
+            int end = let.next() == null ? expressions.size() : expressions.size() - 1;
+            for(int i = 0; i < end; i++) {
+                expressions.get(i).accept(this);
+            }
+        }
+        for(int i = lets.size() - 1; i >= 0; i--) {
+            add(lets.get(i).inner());
+            add(lets.get(i));
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitId(Ast.Id node) {
+        add(node);
+        return null;
+    }
+
+    @Override
+    public Object visitBlock(Ast.Block node) {
+        visitAll(node.expressions);
+        add(node);
+        return null;
+    }
+
+    @Override
+    public Object visitIfExpression(Ast.IfExpression node) {
+        node.condition.accept(this);
+        node.thenClause.accept(this);
+        node.elseClause.accept(this);
+        add(node);
+        return null;
+    }
+
+    @Override
+    public Object visitWhileExpression(Ast.WhileExpression node) {
+        node.condition.accept(this);
+        visitAll(node.body);
+        add(node);
+        return null;
+    }
+
+    @Override
+    public Object visitAssignmentExpression(Ast.AssignmentExpression node) {
+        node.expression.accept(this);
+        add(node);
+        return null;
+    }
+
+    @Override
+    public Object visitPrintlnExpression(Ast.PrintlnExpression node) {
+        node.target.accept(this);
+        add(node);
+        return null;
+    }
+
+    @Override
+    public Object visitDefFunction(Ast.DefFunction node) {
+        node.body.accept(this);
+        add(node);
+        return null;
+    }
+
+    @Override
+    public Object visitFunctionCall(Ast.FunctionCall node) {
+        visitAll(node.params);
+        add(node);
+        return null;
+    }
+
+    @Override
+    public Object visitArrayLiteral(Ast.ArrayLiteral node) {
+        visitAll(node.elements);
+        add(node);
+        return null;
+    }
+
+    @Override
+    public Object visitMapLiteral(Ast.MapLiteral node) {
+        visitAll(node.keys);
+        visitAll(node.values);
+        add(node);
+        return null;
+    }
+
+    @Override
+    public Object visitIndexExpression(Ast.IndexExpression node) {
+        node.target.accept(this);
+        node.index.accept(this);
+        add(node);
+        return null;
+    }
+
+    @Override
+    public Object visitIndexAssignment(Ast.IndexAssignment node) {
+        node.target.accept(this);
+        node.index.accept(this);
+        node.value.accept(this);
+        add(node);
+        return null;
+    }
+
+    @Override
+    public Object visitLengthExpression(Ast.LengthExpression node) {
+        node.target.accept(this);
+        add(node);
+        return null;
+    }
+}
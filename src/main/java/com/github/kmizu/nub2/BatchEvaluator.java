@@ -0,0 +1,639 @@
+package com.github.kmizu.nub2;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Evaluates one expression over many rows at once, a column at a time.
+ *
+ * The free variables of the expression are bound to columns of one length: int[], boolean[] or String[].  Each
+ * node computes its whole result column before its parent runs, so a binary expression over ints is one
+ * counted loop over primitive arrays, which the JIT unrolls and vectorizes, instead of one tree walk per row.
+ * Literals, variables, binary expressions, if, let and blocks are supported; loops, assignments, calls, print
+ * and arrays are rejected, since they do not compute a value from their row alone.
+ *
+ * Types come from the columns.  The branches of an if and the right operand of a && or || are run on every row
+ * and blended, which keeps the loops free of branches, only when their column types show that they cannot fail:
+ * no division, and arithmetic, comparisons and logic only on int and boolean columns.  Otherwise they run only
+ * on the rows that reach them, as Evaluator would.  A value of the wrong type on a row that is reached is
+ * reported as a NubRuntimeException.
+ */
+public final class BatchEvaluator {
+    /**
+     * The input columns, by variable name.
+     */
+    public static final class Columns {
+        private final int size;
+        private final Map<String, Column> columns = new HashMap<>();
+
+        public Columns(int size) {
+            this.size = size;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        private Columns put(String name, int length, Column column) {
+            if(length != size) {
+                throw new IllegalArgumentException("column " + name + " has " + length + " rows instead of " + size);
+            }
+            columns.put(name, column);
+            return this;
+        }
+
+        public Columns put(String name, int[] column) {
+            return put(name, column.length, Column.ofInts(column));
+        }
+
+        public Columns put(String name, boolean[] column) {
+            return put(name, column.length, Column.ofBooleans(column));
+        }
+
+        public Columns put(String name, String[] column) {
+            return put(name, column.length, new Column(Type.STRING, null, null, column));
+        }
+    }
+
+    /*
+     * A column of values of one type: ints for INT, booleans for BOOLEAN and objects for STRING and DYNAMIC
+     */
+    private static final class Column {
+        final Type type;
+        final int[] ints;
+        final boolean[] booleans;
+        final Object[] objects;
+        Column(Type type, int[] ints, boolean[] booleans, Object[] objects) {
+            this.type = type;
+            this.ints = ints;
+            this.booleans = booleans;
+            this.objects = objects;
+        }
+
+        static Column ofInts(int[] ints) {
+            return new Column(Type.INT, ints, null, null);
+        }
+
+        static Column ofBooleans(boolean[] booleans) {
+            return new Column(Type.BOOLEAN, null, booleans, null);
+        }
+
+        /*
+         * An INT or BOOLEAN column is unboxed, since the other columns of those types are read unboxed
+         */
+        static Column ofObjects(Type type, Object[] objects) {
+            if(type == Type.INT) {
+                int[] ints = new int[objects.length];
+                for(int i = 0; i < ints.length; i++) ints[i] = (Integer)objects[i];
+                return ofInts(ints);
+            }
+            if(type == Type.BOOLEAN) {
+                boolean[] booleans = new boolean[objects.length];
+                for(int i = 0; i < booleans.length; i++) booleans[i] = (Boolean)objects[i];
+                return ofBooleans(booleans);
+            }
+            return new Column(type, null, null, objects);
+        }
+
+        Object get(int row) {
+            if(ints != null) return ints[row];
+            if(booleans != null) return booleans[row];
+            return objects[row];
+        }
+
+        int size() {
+            if(ints != null) return ints.length;
+            if(booleans != null) return booleans.length;
+            return objects.length;
+        }
+
+        int[] asInts() {
+            if(ints != null) return ints;
+            int[] result = new int[size()];
+            for(int i = 0; i < result.length; i++) {
+                Object value = get(i);
+                if(!(value instanceof Integer)) throw mismatch(value, "an int");
+                result[i] = (Integer)value;
+            }
+            return result;
+        }
+
+        boolean[] asBooleans() {
+            if(booleans != null) return booleans;
+            boolean[] result = new boolean[size()];
+            for(int i = 0; i < result.length; i++) {
+                Object value = get(i);
+                if(!(value instanceof Boolean)) throw mismatch(value, "a boolean");
+                result[i] = (Boolean)value;
+            }
+            return result;
+        }
+
+        /*
+         * The values at the given rows
+         */
+        Column gather(int[] rows) {
+            if(ints != null) {
+                int[] result = new int[rows.length];
+                for(int i = 0; i < rows.length; i++) result[i] = ints[rows[i]];
+                return ofInts(result);
+            }
+            if(booleans != null) {
+                boolean[] result = new boolean[rows.length];
+                for(int i = 0; i < rows.length; i++) result[i] = booleans[rows[i]];
+                return ofBooleans(result);
+            }
+            Object[] result = new Object[rows.length];
+            for(int i = 0; i < rows.length; i++) result[i] = objects[rows[i]];
+            return ofObjects(type, result);
+        }
+    }
+
+    private static NubRuntimeException mismatch(Object value, String expected) {
+        return new NubRuntimeException(StringValue.flatten(value) + " is not " + expected);
+    }
+
+    /*
+     * The type of the column an expression evaluates to, or null when it may fail on some of the rows
+     */
+    private static final class Types implements Ast.ExpressionVisitor<Type> {
+        final Map<String, Type> scope;
+        Types(Map<String, Type> scope) {
+            this.scope = scope;
+        }
+
+        private static boolean typed(Type type) {
+            return type == Type.INT || type == Type.BOOLEAN || type == Type.STRING;
+        }
+
+        @Override
+        public Type visitBinaryExpression(Ast.BinaryExpression node) {
+            Type lhs = node.lhs.accept(this);
+            Type rhs = node.rhs.accept(this);
+            if(lhs == null || rhs == null) return null;
+            switch (node.operator) {
+                case ADD:
+                    if(lhs == Type.INT && rhs == Type.INT) return Type.INT;
+                    if(lhs == Type.STRING || rhs == Type.STRING) return Type.STRING;
+                    return null;
+                case SUBTRACT:
+                case MULTIPLY:
+                    return lhs == Type.INT && rhs == Type.INT ? Type.INT : null;
+                case DIVIDE:
+                    return null;
+                case EQUAL:
+                case NOT_EQUAL:
+                    return Type.BOOLEAN;
+                case LOGICAL_AND:
+                case LOGCIAL_OR:
+                    return lhs == Type.BOOLEAN && rhs == Type.BOOLEAN ? Type.BOOLEAN : null;
+                default:
+                    return lhs == Type.INT && rhs == Type.INT ? Type.BOOLEAN : null;
+            }
+        }
+
+        @Override
+        public Type visitIntLiteral(Ast.IntLiteral node) {
+            return Type.INT;
+        }
+
+        @Override
+        public Type visitBooleanLiteral(Ast.BooleanLiteral node) {
+            return Type.BOOLEAN;
+        }
+
+        @Override
+        public Type visitStringLiteral(Ast.StringLiteral node) {
+            return Type.STRING;
+        }
+
+        @Override
+        public Type visitLetExpression(Ast.LetExpression node) {
+            Type init = node.init.accept(this);
+            if(init == null) return null;
+            Map<String, Type> inner = new HashMap<>(scope);
+            inner.put(node.variableName, init);
+            return node.body.accept(new Types(inner));
+        }
+
+        @Override
+        public Type visitId(Ast.Id node) {
+            return scope.get(node.name);
+        }
+
+        @Override
+        public Type visitBlock(Ast.Block node) {
+            Type last = Type.INT;
+            for(Ast.Expression e:node.expressions) {
+                last = e.accept(this);
+                if(last == null) return null;
+            }
+            return last;
+        }
+
+        @Override
+        public Type visitIfExpression(Ast.IfExpression node) {
+            if(node.condition.accept(this) != Type.BOOLEAN) return null;
+            Type whenTrue = node.thenClause.accept(this);
+            Type whenFalse = node.elseClause.accept(this);
+            if(whenTrue == null || whenFalse == null) return null;
+            Type type = whenTrue.join(whenFalse);
+            // a column that mixes types can be used by ==, != and + on strings, which never fail
+            return typed(type) ? type : Type.DYNAMIC;
+        }
+
+        @Override
+        public Type visitWhileExpression(Ast.WhileExpression node) {
+            return null;
+        }
+
+        @Override
+        public Type visitAssignmentExpression(Ast.AssignmentExpression node) {
+            return null;
+        }
+
+        @Override
+        public Type visitPrintlnExpression(Ast.PrintlnExpression node) {
+            return null;
+        }
+
+        @Override
+        public Type visitDefFunction(Ast.DefFunction node) {
+            return null;
+        }
+
+        @Override
+        public Type visitFunctionCall(Ast.FunctionCall node) {
+            return null;
+        }
+
+        @Override
+        public Type visitArrayLiteral(Ast.ArrayLiteral node) {
+            return null;
+        }
+
+        @Override
+        public Type visitMapLiteral(Ast.MapLiteral node) {
+            return null;
+        }
+
+        @Override
+        public Type visitIndexExpression(Ast.IndexExpression node) {
+            return null;
+        }
+
+        @Override
+        public Type visitIndexAssignment(Ast.IndexAssignment node) {
+            return null;
+        }
+
+        @Override
+        public Type visitLengthExpression(Ast.LengthExpression node) {
+            return null;
+        }
+    }
+
+    /*
+     * Evaluates expressions over the rows of one batch; an if or a logical operator that has to split the rows
+     * evaluates its operands in a batch of the rows that reach them.
+     */
+    private static final class Batch implements Ast.ExpressionVisitor<Column> {
+        final int size;
+        final Map<String, Column> scope;
+        Batch(int size, Map<String, Column> scope) {
+            this.size = size;
+            this.scope = scope;
+        }
+
+        private Batch select(int[] rows) {
+            Map<String, Column> selected = new HashMap<>();
+            for(Map.Entry<String, Column> entry:scope.entrySet()) {
+                selected.put(entry.getKey(), entry.getValue().gather(rows));
+            }
+            return new Batch(rows.length, selected);
+        }
+
+        private static int[] rows(boolean[] condition, boolean when) {
+            int count = 0;
+            for(boolean c:condition) {
+                if(c == when) count++;
+            }
+            int[] rows = new int[count];
+            for(int i = 0, j = 0; i < condition.length; i++) {
+                if(condition[i] == when) rows[j++] = i;
+            }
+            return rows;
+        }
+
+        /*
+         * Evaluates e on the rows where condition is when, or on none when there are none
+         */
+        private Column where(Ast.Expression e, boolean[] condition, boolean when) {
+            int[] rows = rows(condition, when);
+            return rows.length == 0 ? null : e.accept(select(rows));
+        }
+
+        /*
+         * Merges a column of the rows where condition is true and one of the rows where it is false
+         */
+        private Column scatter(boolean[] condition, Column whenTrue, Column whenFalse) {
+            Type type = whenTrue == null ? whenFalse.type : whenFalse == null ? whenTrue.type : whenTrue.type.join(whenFalse.type);
+            if(type == Type.INT) {
+                int[] result = new int[size];
+                for(int i = 0, t = 0, f = 0; i < size; i++) {
+                    result[i] = condition[i] ? whenTrue.ints[t++] : whenFalse.ints[f++];
+                }
+                return Column.ofInts(result);
+            }
+            if(type == Type.BOOLEAN) {
+                boolean[] result = new boolean[size];
+                for(int i = 0, t = 0, f = 0; i < size; i++) {
+                    result[i] = condition[i] ? whenTrue.booleans[t++] : whenFalse.booleans[f++];
+                }
+                return Column.ofBooleans(result);
+            }
+            Object[] result = new Object[size];
+            for(int i = 0, t = 0, f = 0; i < size; i++) {
+                result[i] = condition[i] ? whenTrue.get(t++) : whenFalse.get(f++);
+            }
+            return Column.ofObjects(type, result);
+        }
+
+        /*
+         * Whether e can run on every row of the batch, i.e. cannot fail on any of them
+         */
+        private boolean blends(Ast.Expression e) {
+            Map<String, Type> types = new HashMap<>();
+            for(Map.Entry<String, Column> entry:scope.entrySet()) {
+                types.put(entry.getKey(), entry.getValue().type);
+            }
+            return e.accept(new Types(types)) != null;
+        }
+
+        private Column ints(int value) {
+            int[] result = new int[size];
+            Arrays.fill(result, value);
+            return Column.ofInts(result);
+        }
+
+        private Column add(Column lhs, Column rhs) {
+            if(lhs.type == Type.INT && rhs.type == Type.INT) {
+                int[] l = lhs.ints, r = rhs.ints, result = new int[size];
+                for(int i = 0; i < size; i++) result[i] = l[i] + r[i];
+                return Column.ofInts(result);
+            }
+            if(lhs.type == Type.STRING || rhs.type == Type.STRING) {
+                Object[] result = new Object[size];
+                for(int i = 0; i < size; i++) result[i] = String.valueOf(lhs.get(i)).concat(String.valueOf(rhs.get(i)));
+                return Column.ofObjects(Type.STRING, result);
+            }
+            Object[] result = new Object[size];
+            for(int i = 0; i < size; i++) {
+                Object l = lhs.get(i), r = rhs.get(i);
+                if(!(l instanceof CharSequence || r instanceof CharSequence)) {
+                    if(!(l instanceof Integer)) throw mismatch(l, "an int");
+                    if(!(r instanceof Integer)) throw mismatch(r, "an int");
+                }
+                result[i] = StringValue.flatten(BytecodeSupport.add(l, r));
+            }
+            return Column.ofObjects(Type.DYNAMIC, result);
+        }
+
+        private Column arithmetic(Ast.BinaryOperator operator, Column lhs, Column rhs) {
+            int[] l = lhs.asInts(), r = rhs.asInts(), result = new int[size];
+            switch (operator) {
+                case SUBTRACT:
+                    for(int i = 0; i < size; i++) result[i] = l[i] - r[i];
+                    break;
+                case MULTIPLY:
+                    for(int i = 0; i < size; i++) result[i] = l[i] * r[i];
+                    break;
+                default:
+                    for(int i = 0; i < size; i++) result[i] = l[i] / r[i];
+                    break;
+            }
+            return Column.ofInts(result);
+        }
+
+        private Column compare(Ast.BinaryOperator operator, Column lhs, Column rhs) {
+            int[] l = lhs.asInts(), r = rhs.asInts();
+            boolean[] result = new boolean[size];
+            switch (operator) {
+                case LESS_THAN:
+                    for(int i = 0; i < size; i++) result[i] = l[i] < r[i];
+                    break;
+                case LESS_THAN_OR_EQUAL:
+                    for(int i = 0; i < size; i++) result[i] = l[i] <= r[i];
+                    break;
+                case GREATER_THAN:
+                    for(int i = 0; i < size; i++) result[i] = l[i] > r[i];
+                    break;
+                default:
+                    for(int i = 0; i < size; i++) result[i] = l[i] >= r[i];
+                    break;
+            }
+            return Column.ofBooleans(result);
+        }
+
+        private Column equal(Column lhs, Column rhs, boolean when) {
+            boolean[] result = new boolean[size];
+            if(lhs.type == Type.INT && rhs.type == Type.INT) {
+                int[] l = lhs.ints, r = rhs.ints;
+                for(int i = 0; i < size; i++) result[i] = (l[i] == r[i]) == when;
+            } else if(lhs.type == Type.BOOLEAN && rhs.type == Type.BOOLEAN) {
+                boolean[] l = lhs.booleans, r = rhs.booleans;
+                for(int i = 0; i < size; i++) result[i] = (l[i] == r[i]) == when;
+            } else {
+                for(int i = 0; i < size; i++) result[i] = StringValue.equal(lhs.get(i), rhs.get(i)) == when;
+            }
+            return Column.ofBooleans(result);
+        }
+
+        /*
+         * lhs && rhs when and is true, lhs || rhs otherwise
+         */
+        private Column logical(Ast.BinaryExpression node, boolean and) {
+            boolean[] l = node.lhs.accept(this).asBooleans();
+            boolean[] result = new boolean[size];
+            if(!blends(node.rhs)) {
+                // the right operand only runs on the rows the left one does not decide
+                Column rest = where(node.rhs, l, and);
+                boolean[] r = rest == null ? null : rest.asBooleans();
+                for(int i = 0, j = 0; i < size; i++) result[i] = l[i] == and ? r[j++] : l[i];
+                return Column.ofBooleans(result);
+            }
+            boolean[] r = node.rhs.accept(this).asBooleans();
+            if(and) {
+                for(int i = 0; i < size; i++) result[i] = l[i] & r[i];
+            } else {
+                for(int i = 0; i < size; i++) result[i] = l[i] | r[i];
+            }
+            return Column.ofBooleans(result);
+        }
+
+        @Override
+        public Column visitBinaryExpression(Ast.BinaryExpression node) {
+            switch (node.operator) {
+                case LOGICAL_AND:
+                    return logical(node, true);
+                case LOGCIAL_OR:
+                    return logical(node, false);
+                default:
+                    break;
+            }
+            Column lhs = node.lhs.accept(this);
+            Column rhs = node.rhs.accept(this);
+            switch (node.operator) {
+                case ADD:
+                    return add(lhs, rhs);
+                case SUBTRACT:
+                case MULTIPLY:
+                case DIVIDE:
+                    return arithmetic(node.operator, lhs, rhs);
+                case EQUAL:
+                    return equal(lhs, rhs, true);
+                case NOT_EQUAL:
+                    return equal(lhs, rhs, false);
+                default:
+                    return compare(node.operator, lhs, rhs);
+            }
+        }
+
+        @Override
+        public Column visitIntLiteral(Ast.IntLiteral node) {
+            return ints(node.value);
+        }
+
+        @Override
+        public Column visitBooleanLiteral(Ast.BooleanLiteral node) {
+            boolean[] result = new boolean[size];
+            Arrays.fill(result, node.value);
+            return Column.ofBooleans(result);
+        }
+
+        @Override
+        public Column visitStringLiteral(Ast.StringLiteral node) {
+            Object[] result = new Object[size];
+            Arrays.fill(result, node.value);
+            return Column.ofObjects(Type.STRING, result);
+        }
+
+        @Override
+        public Column visitLetExpression(Ast.LetExpression node) {
+            Map<String, Column> inner = new HashMap<>(scope);
+            inner.put(node.variableName, node.init.accept(this));
+            return node.body.accept(new Batch(size, inner));
+        }
+
+        @Override
+        public Column visitId(Ast.Id node) {
+            Column column = scope.get(node.name);
+            if(column == null) throw new NubRuntimeException(node.name + " is not defined");
+            return column;
+        }
+
+        @Override
+        public Column visitBlock(Ast.Block node) {
+            Column last = null;
+            for(Ast.Expression e:node.expressions) {
+                last = e.accept(this);
+            }
+            return last == null ? ints(0) : last;
+        }
+
+        @Override
+        public Column visitIfExpression(Ast.IfExpression node) {
+            boolean[] condition = node.condition.accept(this).asBooleans();
+            if(!blends(node.thenClause) || !blends(node.elseClause)) {
+                return scatter(condition, where(node.thenClause, condition, true), where(node.elseClause, condition, false));
+            }
+            Column whenTrue = node.thenClause.accept(this);
+            Column whenFalse = node.elseClause.accept(this);
+            if(whenTrue.type == Type.INT && whenFalse.type == Type.INT) {
+                int[] t = whenTrue.ints, f = whenFalse.ints, result = new int[size];
+                for(int i = 0; i < size; i++) result[i] = condition[i] ? t[i] : f[i];
+                return Column.ofInts(result);
+            }
+            if(whenTrue.type == Type.BOOLEAN && whenFalse.type == Type.BOOLEAN) {
+                boolean[] t = whenTrue.booleans, f = whenFalse.booleans, result = new boolean[size];
+                for(int i = 0; i < size; i++) result[i] = condition[i] ? t[i] : f[i];
+                return Column.ofBooleans(result);
+            }
+            Object[] result = new Object[size];
+            for(int i = 0; i < size; i++) result[i] = condition[i] ? whenTrue.get(i) : whenFalse.get(i);
+            return Column.ofObjects(whenTrue.type.join(whenFalse.type), result);
+        }
+
+        private static NubRuntimeException unsupported(Ast.Expression node) {
+            return new NubRuntimeException(node.getClass().getSimpleName() + " cannot be evaluated in batches");
+        }
+
+        @Override
+        public Column visitWhileExpression(Ast.WhileExpression node) {
+            throw unsupported(node);
+        }
+
+        @Override
+        public Column visitAssignmentExpression(Ast.AssignmentExpression node) {
+            throw unsupported(node);
+        }
+
+        @Override
+        public Column visitPrintlnExpression(Ast.PrintlnExpression node) {
+            throw unsupported(node);
+        }
+
+        @Override
+        public Column visitDefFunction(Ast.DefFunction node) {
+            throw unsupported(node);
+        }
+
+        @Override
+        public Column visitFunctionCall(Ast.FunctionCall node) {
+            throw unsupported(node);
+        }
+
+        @Override
+        public Column visitArrayLiteral(Ast.ArrayLiteral node) {
+            throw unsupported(node);
+        }
+
+        @Override
+        public Column visitMapLiteral(Ast.MapLiteral node) {
+            throw unsupported(node);
+        }
+
+        @Override
+        public Column visitIndexExpression(Ast.IndexExpression node) {
+            throw unsupported(node);
+        }
+
+        @Override
+        public Column visitIndexAssignment(Ast.IndexAssignment node) {
+            throw unsupported(node);
+        }
+
+        @Override
+        public Column visitLengthExpression(Ast.LengthExpression node) {
+            throw unsupported(node);
+        }
+    }
+
+    private final Ast.Expression expression;
+
+    public BatchEvaluator(Ast.Expression expression) {
+        this.expression = expression;
+    }
+
+    /**
+     * The value of the expression for every row of the columns: an int[] when every value is an int, a
+     * boolean[] when every value is a boolean, and an Object[] otherwise.
+     */
+    public Object evaluate(Columns columns) {
+        Column result = expression.accept(new Batch(columns.size, columns.columns));
+        if(result.type == Type.INT) return result.ints;
+        if(result.type == Type.BOOLEAN) return result.booleans;
+        return result.objects;
+    }
+}
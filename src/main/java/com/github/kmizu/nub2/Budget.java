@@ -0,0 +1,93 @@
+package com.github.kmizu.nub2;
+
+/**
+ * What is left of the ExecutionLimits of one run.  Every engine calls tick on loop back-edges and enter and
+ * exit around calls.  On the way only a countdown is decremented; the limits are checked when it runs out.
+ * A single value can grow past any allocation limit between two checks, so the values that grow (strings,
+ * arrays and maps) also call charge before a large allocation, which checks it against the budget of the run
+ * on the current thread.  Public for the classes that BytecodeCompiler generates.
+ */
+public final class Budget {
+    private static final int INTERVAL = 4096;
+    /*
+     * Allocations smaller than this are left to the periodic check
+     */
+    private static final long LARGE = 1 << 16;
+    private static final ThreadLocal<Budget> CURRENT = new ThreadLocal<>();
+
+    private final ExecutionLimits limits;
+    private final long start;
+    private final long thread;
+    private final long allocatedAtStart;
+    private long used;
+    private int chunk;
+    private int countdown;
+    private int depth;
+
+    Budget(ExecutionLimits limits) {
+        this.limits = limits;
+        this.start = System.nanoTime();
+        this.thread = Thread.currentThread().getId();
+        this.allocatedAtStart = limits.allocatedBytes == Long.MAX_VALUE ? 0 : Allocations.allocatedBytes(thread);
+        refill();
+    }
+
+    /*
+     * Makes budget the one charged on this thread, returning the one it replaces
+     */
+    static Budget install(Budget budget) {
+        Budget previous = CURRENT.get();
+        CURRENT.set(budget);
+        return previous;
+    }
+
+    /*
+     * Fails the run on this thread if allocating bytes more would take it over its allocation limit
+     */
+    static void charge(long bytes) {
+        if(bytes < LARGE) return;
+        Budget budget = CURRENT.get();
+        if(budget == null || budget.limits.allocatedBytes == Long.MAX_VALUE) return;
+        if(Allocations.allocatedBytes(budget.thread) - budget.allocatedAtStart + bytes > budget.limits.allocatedBytes) {
+            throw budget.overAllocated();
+        }
+    }
+
+    private ExecutionLimitExceededException overAllocated() {
+        return new ExecutionLimitExceededException("allocated more than " + limits.allocatedBytes + " bytes");
+    }
+
+    public void tick() {
+        if(--countdown < 0) check();
+    }
+
+    public void enter() {
+        if(++depth > limits.callDepth) {
+            throw new ExecutionLimitExceededException("calls nested deeper than " + limits.callDepth);
+        }
+        if(--countdown < 0) check();
+    }
+
+    public void exit() {
+        depth--;
+    }
+
+    private void refill() {
+        chunk = (int)Math.min(INTERVAL, limits.steps - used);
+        countdown = chunk;
+    }
+
+    private void check() {
+        used += chunk + 1;
+        if(used > limits.steps) {
+            throw new ExecutionLimitExceededException("more than " + limits.steps + " steps");
+        }
+        if(limits.timeoutNanos > 0 && System.nanoTime() - start > limits.timeoutNanos) {
+            throw new ExecutionLimitExceededException("ran longer than " + limits.timeoutNanos / 1000000 + " ms");
+        }
+        if(limits.allocatedBytes != Long.MAX_VALUE && Allocations.allocatedBytes(thread) - allocatedAtStart > limits.allocatedBytes) {
+            throw overAllocated();
+        }
+        refill();
+    }
+}
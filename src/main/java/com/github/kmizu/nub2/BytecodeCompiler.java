@@ -0,0 +1,765 @@
+package com.github.kmizu.nub2;
+
+import org.objectweb.asm.ClassTooLargeException;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodTooLargeException;
+import org.objectweb.asm.MethodVisitor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Compiles a checked Ast.Block into a JVM class so that the JIT compiles Nub programs directly.
+ *
+ * Each DefFunction becomes a static method taking the program's shared variables followed by its
+ * arguments, and let-bound variables become JVM locals, int locals when Typer proved them INT.  Only the
+ * program variables that some function body reads or writes (depth 1) are kept in the shared Object[] instead
+ * of in locals of the main method.
+ * A program too large for the limits of a class file, or whose functions tail-call each other, is compiled by
+ * ClosureCompiler instead.
+ */
+public class BytecodeCompiler implements Ast.ExpressionVisitor<Object> {
+    /**
+     * The entry point implemented by every generated class.
+     */
+    public interface Script {
+        Object run(Output output, Budget budget);
+    }
+
+    static class Loader extends ClassLoader {
+        Loader() {
+            super(BytecodeCompiler.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    private static final AtomicInteger counter = new AtomicInteger();
+    private static final String SUPPORT = org.objectweb.asm.Type.getInternalName(BytecodeSupport.class);
+    private static final String OUTPUT = org.objectweb.asm.Type.getInternalName(Output.class);
+    private static final String BUDGET = org.objectweb.asm.Type.getInternalName(Budget.class);
+    private static final String MEMO = org.objectweb.asm.Type.getInternalName(MemoTable.class);
+    private static final String OBJECT = "java/lang/Object";
+    private static final String INTEGER = "java/lang/Integer";
+    private static final String BOOLEAN = "java/lang/Boolean";
+
+    private String className;
+    private MethodVisitor mv;
+    private boolean inFunction;
+    private Ast.DefFunction currentFunction;
+    private Label functionStart;
+    private int outputSlot;
+    private int budgetLocal;
+    private final BitSet sharedSlots = new BitSet();
+    // the locals currently holding the int of an INT let
+    private final BitSet intSlots = new BitSet();
+    private final List<Ast.DefFunction> definitions = new ArrayList<>();
+    private final List<MemoTable> memos = new ArrayList<>();
+
+    private static String descriptor(int arity) {
+        StringBuilder builder = new StringBuilder("([Ljava/lang/Object;");
+        for(int i = 0; i < arity; i++) {
+            builder.append("Ljava/lang/Object;");
+        }
+        return builder.append(")Ljava/lang/Object;").toString();
+    }
+
+    private boolean isShared(int depth, int slot) {
+        return depth > 0 || (!inFunction && sharedSlots.get(slot));
+    }
+
+    private boolean isIntLocal(int depth, int slot) {
+        return depth == 0 && intSlots.get(slot);
+    }
+
+    private void pushInt(int value) {
+        if(value >= -1 && value <= 5) {
+            mv.visitInsn(ICONST_0 + value);
+        } else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(BIPUSH, value);
+        } else if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(value);
+        }
+    }
+
+    private void boxInt() {
+        mv.visitMethodInsn(INVOKESTATIC, INTEGER, "valueOf", "(I)Ljava/lang/Integer;", false);
+    }
+
+    private void boxBoolean() {
+        mv.visitMethodInsn(INVOKESTATIC, BOOLEAN, "valueOf", "(Z)Ljava/lang/Boolean;", false);
+    }
+
+    private static boolean isIntShaped(Ast.Expression e) {
+        if(e instanceof Ast.IntLiteral) return true;
+        if(!(e instanceof Ast.BinaryExpression)) return false;
+        Ast.BinaryExpression b = (Ast.BinaryExpression)e;
+        switch (b.operator) {
+            case ADD:
+                return b.type == Type.INT || (isIntShaped(b.lhs) && isIntShaped(b.rhs));
+            case SUBTRACT:
+            case MULTIPLY:
+            case DIVIDE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isInt(Ast.Expression e) {
+        return e.type == Type.INT || isIntShaped(e);
+    }
+
+    private static boolean isBooleanShaped(Ast.Expression e) {
+        if(e instanceof Ast.BooleanLiteral) return true;
+        if(!(e instanceof Ast.BinaryExpression)) return false;
+        Ast.BinaryExpression b = (Ast.BinaryExpression)e;
+        return !isIntShaped(b) && b.operator != Ast.BinaryOperator.ADD;
+    }
+
+    /*
+     * Leaves an int on the operand stack.
+     */
+    private void emitInt(Ast.Expression e) {
+        if(e instanceof Ast.IntLiteral) {
+            pushInt(((Ast.IntLiteral)e).value);
+            return;
+        }
+        if(e instanceof Ast.Id && isIntLocal(((Ast.Id)e).depth, ((Ast.Id)e).slot)) {
+            mv.visitVarInsn(ILOAD, ((Ast.Id)e).slot + 1);
+            return;
+        }
+        if(e instanceof Ast.IndexExpression && e.type == Type.INT) {
+            Ast.IndexExpression x = (Ast.IndexExpression)e;
+            x.target.accept(this);
+            if(isInt(x.index)) {
+                emitInt(x.index);
+                mv.visitMethodInsn(INVOKESTATIC, SUPPORT, "indexInt", "(Ljava/lang/Object;I)I", false);
+            } else {
+                x.index.accept(this);
+                mv.visitMethodInsn(INVOKESTATIC, SUPPORT, "indexToInt", "(Ljava/lang/Object;Ljava/lang/Object;)I", false);
+            }
+            return;
+        }
+        if(e instanceof Ast.LengthExpression) {
+            ((Ast.LengthExpression)e).target.accept(this);
+            mv.visitMethodInsn(INVOKESTATIC, SUPPORT, "length", "(Ljava/lang/Object;)I", false);
+            return;
+        }
+        if(isIntShaped(e)) {
+            Ast.BinaryExpression b = (Ast.BinaryExpression)e;
+            emitInt(b.lhs);
+            emitInt(b.rhs);
+            switch (b.operator) {
+                case ADD: mv.visitInsn(IADD); break;
+                case SUBTRACT: mv.visitInsn(ISUB); break;
+                case MULTIPLY: mv.visitInsn(IMUL); break;
+                case DIVIDE: mv.visitInsn(IDIV); break;
+                default: throw new RuntimeException("cannot reach here");
+            }
+            return;
+        }
+        e.accept(this);
+        mv.visitTypeInsn(CHECKCAST, INTEGER);
+        mv.visitMethodInsn(INVOKEVIRTUAL, INTEGER, "intValue", "()I", false);
+    }
+
+    /*
+     * Leaves a boolean (an int 0 or 1) on the operand stack.
+     */
+    private void emitBoolean(Ast.Expression e) {
+        if(e instanceof Ast.BooleanLiteral) {
+            mv.visitInsn(((Ast.BooleanLiteral)e).value ? ICONST_1 : ICONST_0);
+            return;
+        }
+        if(!isBooleanShaped(e)) {
+            e.accept(this);
+            mv.visitTypeInsn(CHECKCAST, BOOLEAN);
+            mv.visitMethodInsn(INVOKEVIRTUAL, BOOLEAN, "booleanValue", "()Z", false);
+            return;
+        }
+        Ast.BinaryExpression b = (Ast.BinaryExpression)e;
+        Label isFalse = new Label(), end = new Label();
+        switch (b.operator) {
+            case LOGICAL_AND:
+                emitBoolean(b.lhs);
+                mv.visitJumpInsn(IFEQ, isFalse);
+                emitBoolean(b.rhs);
+                mv.visitJumpInsn(IFEQ, isFalse);
+                break;
+            case LOGCIAL_OR: {
+                Label isTrue = new Label();
+                emitBoolean(b.lhs);
+                mv.visitJumpInsn(IFNE, isTrue);
+                emitBoolean(b.rhs);
+                mv.visitJumpInsn(IFEQ, isFalse);
+                mv.visitLabel(isTrue);
+                break;
+            }
+            case EQUAL:
+            case NOT_EQUAL:
+                b.lhs.accept(this);
+                b.rhs.accept(this);
+                mv.visitMethodInsn(INVOKESTATIC, SUPPORT, "equal", "(Ljava/lang/Object;Ljava/lang/Object;)Z", false);
+                if(b.operator == Ast.BinaryOperator.EQUAL) return;
+                mv.visitJumpInsn(IFNE, isFalse);
+                break;
+            default:
+                emitInt(b.lhs);
+                emitInt(b.rhs);
+                switch (b.operator) {
+                    case LESS_THAN: mv.visitJumpInsn(IF_ICMPGE, isFalse); break;
+                    case LESS_THAN_OR_EQUAL: mv.visitJumpInsn(IF_ICMPGT, isFalse); break;
+                    case GREATER_THAN: mv.visitJumpInsn(IF_ICMPLE, isFalse); break;
+                    case GREATER_THAN_OR_EQUAL: mv.visitJumpInsn(IF_ICMPLT, isFalse); break;
+                    default: throw new RuntimeException("cannot reach here");
+                }
+        }
+        mv.visitInsn(ICONST_1);
+        mv.visitJumpInsn(GOTO, end);
+        mv.visitLabel(isFalse);
+        mv.visitInsn(ICONST_0);
+        mv.visitLabel(end);
+    }
+
+    private void emitLoad(String name, int depth, int slot) {
+        if(isIntLocal(depth, slot)) {
+            mv.visitVarInsn(ILOAD, slot + 1);
+            boxInt();
+        } else if(isShared(depth, slot)) {
+            mv.visitVarInsn(ALOAD, 0);
+            pushInt(slot);
+            mv.visitInsn(AALOAD);
+            mv.visitLdcInsn(name);
+            mv.visitMethodInsn(INVOKESTATIC, SUPPORT, "checkDefined", "(Ljava/lang/Object;Ljava/lang/String;)Ljava/lang/Object;", false);
+        } else {
+            mv.visitVarInsn(ALOAD, slot + 1);
+        }
+    }
+
+    /*
+     * Stores the value on top of the operand stack, consuming it.
+     */
+    private void emitStore(int depth, int slot) {
+        if(isShared(depth, slot)) {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitInsn(SWAP);
+            pushInt(slot);
+            mv.visitInsn(SWAP);
+            mv.visitInsn(AASTORE);
+        } else {
+            mv.visitVarInsn(ASTORE, slot + 1);
+        }
+    }
+
+    /*
+     * Emits e for its effect only, so that an assignment to an int local stores without boxing.
+     */
+    private void emitEffect(Ast.Expression e) {
+        if(e instanceof Ast.AssignmentExpression) {
+            Ast.AssignmentExpression a = (Ast.AssignmentExpression)e;
+            if(isIntLocal(a.depth, a.slot)) {
+                emitInt(a.expression);
+                mv.visitVarInsn(ISTORE, a.slot + 1);
+                return;
+            }
+        }
+        e.accept(this);
+        mv.visitInsn(POP);
+    }
+
+    @Override
+    public Object visitBinaryExpression(Ast.BinaryExpression node) {
+        if(isIntShaped(node)) {
+            emitInt(node);
+            boxInt();
+        } else if(node.operator == Ast.BinaryOperator.ADD) {
+            node.lhs.accept(this);
+            node.rhs.accept(this);
+            if(node.type == Type.STRING) {
+                mv.visitMethodInsn(INVOKESTATIC, SUPPORT, "concat", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;", false);
+            } else {
+                mv.visitMethodInsn(INVOKESTATIC, SUPPORT, "add", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;", false);
+            }
+        } else {
+            emitBoolean(node);
+            boxBoolean();
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitIntLiteral(Ast.IntLiteral node) {
+        pushInt(node.value);
+        boxInt();
+        return null;
+    }
+
+    @Override
+    public Object visitBooleanLiteral(Ast.BooleanLiteral node) {
+        mv.visitFieldInsn(GETSTATIC, BOOLEAN, node.value ? "TRUE" : "FALSE", "Ljava/lang/Boolean;");
+        return null;
+    }
+
+    @Override
+    public Object visitStringLiteral(Ast.StringLiteral node) {
+        mv.visitLdcInsn(node.value);
+        return null;
+    }
+
+    @Override
+    public Object visitLetExpression(Ast.LetExpression node) {
+        // a run of lets is emitted in one loop; each let ends the body of the one before
+        List<Ast.LetExpression> lets = new ArrayList<>();
+        for(Ast.LetExpression let = node; let != null; let = let.next()) {
+            lets.add(let);
+            if(let.variableType == Type.INT && !isShared(0, let.slot)) {
+                emitInt(let.init);
+                mv.visitVarInsn(ISTORE, let.slot + 1);
+                intSlots.set(let.slot);
+            } else {
+                let.init.accept(this);
+                emitStore(0, let.slot);
+            }
+            if(let.next() == null) {
+                let.body.accept(this);
+                break;
+            }
+            List<Ast.Expression> expressions = let.inner().expressions;
+            for(int i = 0; i < expressions.size() - 1; i++) {
+                emitEffect(expressions.get(i));
+            }
+        }
+        for(int i = lets.size() - 1; i >= 0; i--) {
+            int slot = lets.get(i).slot;
+            intSlots.clear(slot);
+            if(isShared(0, slot)) {
+                mv.visitInsn(ACONST_NULL);
+                emitStore(0, slot);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitId(Ast.Id node) {
+        emitLoad(node.name, node.depth, node.slot);
+        return null;
+    }
+
+    @Override
+    public Object visitBlock(Ast.Block node) {
+        if(node.expressions.isEmpty()) {
+            pushInt(0);
+            boxInt();
+            return null;
+        }
+        for(int i = 0; i < node.expressions.size() - 1; i++) {
+            emitEffect(node.expressions.get(i));
+        }
+        node.expressions.get(node.expressions.size() - 1).accept(this);
+        return null;
+    }
+
+    @Override
+    public Object visitIfExpression(Ast.IfExpression node) {
+        Label elseLabel = new Label(), end = new Label();
+        emitBoolean(node.condition);
+        mv.visitJumpInsn(IFEQ, elseLabel);
+        node.thenClause.accept(this);
+        mv.visitJumpInsn(GOTO, end);
+        mv.visitLabel(elseLabel);
+        node.elseClause.accept(this);
+        mv.visitLabel(end);
+        return null;
+    }
+
+    @Override
+    public Object visitWhileExpression(Ast.WhileExpression node) {
+        Label head = new Label(), end = new Label();
+        mv.visitLabel(head);
+        emitBoolean(node.condition);
+        mv.visitJumpInsn(IFEQ, end);
+        for(Ast.Expression e:node.body) {
+            emitEffect(e);
+        }
+        emitBudget("tick");
+        mv.visitJumpInsn(GOTO, head);
+        mv.visitLabel(end);
+        pushInt(0);
+        boxInt();
+        return null;
+    }
+
+    @Override
+    public Object visitAssignmentExpression(Ast.AssignmentExpression node) {
+        if(isIntLocal(node.depth, node.slot)) {
+            emitInt(node.expression);
+            mv.visitInsn(DUP);
+            mv.visitVarInsn(ISTORE, node.slot + 1);
+            boxInt();
+            return null;
+        }
+        node.expression.accept(this);
+        mv.visitInsn(DUP);
+        emitStore(node.depth, node.slot);
+        return null;
+    }
+
+    @Override
+    public Object visitPrintlnExpression(Ast.PrintlnExpression node) {
+        node.target.accept(this);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitLdcInsn(outputSlot);
+        mv.visitInsn(AALOAD);
+        mv.visitTypeInsn(CHECKCAST, OUTPUT);
+        mv.visitMethodInsn(INVOKESTATIC, SUPPORT, "println", "(Ljava/lang/Object;L" + OUTPUT + ";)Ljava/lang/Object;", false);
+        return null;
+    }
+
+    @Override
+    public Object visitDefFunction(Ast.DefFunction node) {
+        definitions.add(node);
+        mv.visitInsn(ACONST_NULL);
+        return null;
+    }
+
+    @Override
+    public Object visitFunctionCall(Ast.FunctionCall node) {
+        if(node.tailCall && node.function == currentFunction) {
+            // a self tail call rebinds the parameters and jumps back to the start of the method
+            for(Ast.Expression p:node.params) {
+                p.accept(this);
+            }
+            for(int i = node.params.size(); i > 0; i--) {
+                mv.visitVarInsn(ASTORE, i);
+            }
+            emitBudget("tick");
+            mv.visitJumpInsn(GOTO, functionStart);
+            return null;
+        }
+        mv.visitVarInsn(ALOAD, 0);
+        for(Ast.Expression p:node.params) {
+            p.accept(this);
+        }
+        String prefix = node.function.memo != null ? "m$" : "f$";
+        mv.visitMethodInsn(INVOKESTATIC, className, prefix + node.name, descriptor(node.params.size()), false);
+        return null;
+    }
+
+    @Override
+    public Object visitArrayLiteral(Ast.ArrayLiteral node) {
+        String array = org.objectweb.asm.Type.getInternalName(ArrayValue.class);
+        mv.visitTypeInsn(NEW, array);
+        mv.visitInsn(DUP);
+        pushInt(node.elements.size());
+        mv.visitMethodInsn(INVOKESPECIAL, array, "<init>", "(I)V", false);
+        for(int i = 0; i < node.elements.size(); i++) {
+            Ast.Expression e = node.elements.get(i);
+            mv.visitInsn(DUP);
+            pushInt(i);
+            if(isInt(e)) {
+                emitInt(e);
+                mv.visitMethodInsn(INVOKEVIRTUAL, array, "setInt", "(II)V", false);
+            } else {
+                e.accept(this);
+                mv.visitMethodInsn(INVOKEVIRTUAL, array, "set", "(ILjava/lang/Object;)V", false);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitMapLiteral(Ast.MapLiteral node) {
+        String map = org.objectweb.asm.Type.getInternalName(MapValue.class);
+        mv.visitTypeInsn(NEW, map);
+        mv.visitInsn(DUP);
+        pushInt(node.keys.size());
+        mv.visitMethodInsn(INVOKESPECIAL, map, "<init>", "(I)V", false);
+        for(int i = 0; i < node.keys.size(); i++) {
+            mv.visitInsn(DUP);
+            node.keys.get(i).accept(this);
+            node.values.get(i).accept(this);
+            mv.visitMethodInsn(INVOKEVIRTUAL, map, "put", "(Ljava/lang/Object;Ljava/lang/Object;)V", false);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitIndexExpression(Ast.IndexExpression node) {
+        if(node.type == Type.INT) {
+            emitInt(node);
+            boxInt();
+            return null;
+        }
+        node.target.accept(this);
+        node.index.accept(this);
+        mv.visitMethodInsn(INVOKESTATIC, SUPPORT, "index", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;", false);
+        return null;
+    }
+
+    @Override
+    public Object visitIndexAssignment(Ast.IndexAssignment node) {
+        node.target.accept(this);
+        if(isInt(node.index) && isInt(node.value)) {
+            emitInt(node.index);
+            emitInt(node.value);
+            // keep the value under the arguments as the result
+            mv.visitInsn(DUP_X2);
+            mv.visitMethodInsn(INVOKESTATIC, SUPPORT, "storeInt", "(Ljava/lang/Object;II)V", false);
+            boxInt();
+            return null;
+        }
+        node.index.accept(this);
+        node.value.accept(this);
+        mv.visitMethodInsn(INVOKESTATIC, SUPPORT, "store", "(Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;", false);
+        return null;
+    }
+
+    @Override
+    public Object visitLengthExpression(Ast.LengthExpression node) {
+        emitInt(node);
+        boxInt();
+        return null;
+    }
+
+    /*
+     * Finds the program slots that function bodies access, which must live in the shared array.
+     */
+    private void collectSharedSlots(Ast.Block program) {
+        program.accept(new Ast.Traverser() {
+            @Override
+            public Object visitId(Ast.Id node) {
+                if(node.depth > 0) sharedSlots.set(node.slot);
+                return null;
+            }
+
+            @Override
+            public Object visitAssignmentExpression(Ast.AssignmentExpression node) {
+                node.expression.accept(this);
+                if(node.depth > 0) sharedSlots.set(node.slot);
+                return null;
+            }
+        });
+    }
+
+    /*
+     * Whether some function tail-calls another function that calls it back.  Only self tail calls become
+     * jumps, so every other call of such a cycle would take a JVM stack frame.
+     */
+    private static boolean hasMutualTailCalls(Ast.Block program) {
+        Map<Ast.DefFunction, Set<Ast.DefFunction>> callees = new IdentityHashMap<>();
+        List<Ast.DefFunction[]> tailCalls = new ArrayList<>();
+        program.accept(new Ast.Traverser() {
+            private Ast.DefFunction current;
+
+            @Override
+            public Object visitDefFunction(Ast.DefFunction node) {
+                Ast.DefFunction backup = current;
+                current = node;
+                node.body.accept(this);
+                current = backup;
+                return null;
+            }
+
+            @Override
+            public Object visitFunctionCall(Ast.FunctionCall node) {
+                super.visitFunctionCall(node);
+                if(current == null) return null;
+                callees.computeIfAbsent(current, f -> Collections.newSetFromMap(new IdentityHashMap<>())).add(node.function);
+                if(node.tailCall && node.function != current) tailCalls.add(new Ast.DefFunction[]{current, node.function});
+                return null;
+            }
+        });
+        for(Ast.DefFunction[] call:tailCalls) {
+            Set<Ast.DefFunction> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+            Deque<Ast.DefFunction> pending = new ArrayDeque<>();
+            pending.push(call[1]);
+            while(!pending.isEmpty()) {
+                Ast.DefFunction f = pending.pop();
+                if(f == call[0]) return true;
+                if(!seen.add(f)) continue;
+                pending.addAll(callees.getOrDefault(f, Collections.emptySet()));
+            }
+        }
+        return false;
+    }
+
+    private static Script closures(Ast.Block program) {
+        ClosureCompiler.Code code = new ClosureCompiler().compile(program);
+        return (output, budget) -> code.execute(ClosureCompiler.globals(program, output, budget));
+    }
+
+    private void emitBudget(String method) {
+        mv.visitVarInsn(ALOAD, budgetLocal);
+        mv.visitMethodInsn(INVOKEVIRTUAL, BUDGET, method, "()V", false);
+    }
+
+    private void emitMethod(ClassWriter writer, String name, int access, int arity, Ast.Block body) {
+        mv = writer.visitMethod(access, name, descriptor(arity), null, null);
+        mv.visitCode();
+        intSlots.clear();
+        // the verifier wants every local assigned before any path reads it
+        for(int slot = arity; slot < body.frameSize; slot++) {
+            mv.visitInsn(ACONST_NULL);
+            mv.visitVarInsn(ASTORE, slot + 1);
+        }
+        // the run's Budget is loaded once into the local after the variables
+        budgetLocal = body.frameSize + 1;
+        mv.visitVarInsn(ALOAD, 0);
+        pushInt(outputSlot + 1);
+        mv.visitInsn(AALOAD);
+        mv.visitTypeInsn(CHECKCAST, BUDGET);
+        mv.visitVarInsn(ASTORE, budgetLocal);
+        if(inFunction) emitBudget("enter");
+        functionStart = new Label();
+        mv.visitLabel(functionStart);
+        body.accept(this);
+        if(inFunction) emitBudget("exit");
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /*
+     * Emits m$name, which answers a call of a memoized function from its MemoTable in memos and calls f$name
+     * on a miss.
+     */
+    private void emitMemoized(ClassWriter writer, Ast.DefFunction function) {
+        int arity = function.args.size();
+        int memo = arity + 1, values = arity + 2;
+        mv = writer.visitMethod(ACC_PUBLIC | ACC_STATIC, "m$" + function.name, descriptor(arity), null, null);
+        mv.visitCode();
+        mv.visitFieldInsn(GETSTATIC, className, "memos", "[L" + MEMO + ";");
+        pushInt(memos.size());
+        mv.visitInsn(AALOAD);
+        mv.visitVarInsn(ASTORE, memo);
+        memos.add(function.memo);
+        pushInt(arity);
+        mv.visitTypeInsn(ANEWARRAY, OBJECT);
+        for(int i = 0; i < arity; i++) {
+            mv.visitInsn(DUP);
+            pushInt(i);
+            mv.visitVarInsn(ALOAD, i + 1);
+            mv.visitInsn(AASTORE);
+        }
+        mv.visitVarInsn(ASTORE, values);
+        mv.visitVarInsn(ALOAD, memo);
+        mv.visitVarInsn(ALOAD, values);
+        mv.visitInsn(ICONST_0);
+        pushInt(arity);
+        mv.visitMethodInsn(INVOKEVIRTUAL, MEMO, "get", "([Ljava/lang/Object;II)Ljava/lang/Object;", false);
+        mv.visitInsn(DUP);
+        Label miss = new Label();
+        mv.visitJumpInsn(IFNULL, miss);
+        mv.visitInsn(ARETURN);
+        mv.visitLabel(miss);
+        mv.visitInsn(POP);
+        mv.visitVarInsn(ALOAD, memo);
+        mv.visitVarInsn(ALOAD, memo);
+        mv.visitVarInsn(ALOAD, values);
+        mv.visitInsn(ICONST_0);
+        pushInt(arity);
+        mv.visitMethodInsn(INVOKEVIRTUAL, MEMO, "key", "([Ljava/lang/Object;II)[Ljava/lang/Object;", false);
+        for(int i = 0; i <= arity; i++) {
+            mv.visitVarInsn(ALOAD, i);
+        }
+        mv.visitMethodInsn(INVOKESTATIC, className, "f$" + function.name, descriptor(arity), false);
+        mv.visitMethodInsn(INVOKEVIRTUAL, MEMO, "put", "([Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;", false);
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /**
+     * Compiles a program that has already been through VariableChecker and loads it in a fresh class loader.
+     */
+    public Script compile(Ast.Block program) {
+        if(hasMutualTailCalls(program)) return closures(program);
+        className = "com/github/kmizu/nub2/CompiledScript" + counter.incrementAndGet();
+        inFunction = false;
+        currentFunction = null;
+        sharedSlots.clear();
+        definitions.clear();
+        memos.clear();
+        outputSlot = program.frameSize;
+        collectSharedSlots(program);
+
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+            @Override
+            protected String getCommonSuperClass(String type1, String type2) {
+                return OBJECT;
+            }
+        };
+        writer.visit(V1_8, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, className, null, OBJECT, new String[]{org.objectweb.asm.Type.getInternalName(Script.class)});
+
+        MethodVisitor init = writer.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(ALOAD, 0);
+        init.visitMethodInsn(INVOKESPECIAL, OBJECT, "<init>", "()V", false);
+        init.visitInsn(RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        // the run's Output and Budget are kept in two extra slots after the shared variables
+        MethodVisitor run = writer.visitMethod(ACC_PUBLIC, "run", "(L" + OUTPUT + ";L" + BUDGET + ";)Ljava/lang/Object;", null, null);
+        run.visitCode();
+        run.visitLdcInsn(outputSlot + 2);
+        run.visitTypeInsn(ANEWARRAY, OBJECT);
+        run.visitInsn(DUP);
+        run.visitLdcInsn(outputSlot);
+        run.visitVarInsn(ALOAD, 1);
+        run.visitInsn(AASTORE);
+        run.visitInsn(DUP);
+        run.visitLdcInsn(outputSlot + 1);
+        run.visitVarInsn(ALOAD, 2);
+        run.visitInsn(AASTORE);
+        run.visitMethodInsn(INVOKESTATIC, className, "main", descriptor(0), false);
+        run.visitInsn(ARETURN);
+        run.visitMaxs(0, 0);
+        run.visitEnd();
+
+        emitMethod(writer, "main", ACC_PUBLIC | ACC_STATIC, 0, program);
+        inFunction = true;
+        // function bodies may contain further definitions, so this list can grow while it is walked
+        for(int i = 0; i < definitions.size(); i++) {
+            Ast.DefFunction f = definitions.get(i);
+            currentFunction = f;
+            emitMethod(writer, "f$" + f.name, ACC_PUBLIC | ACC_STATIC, f.args.size(), f.body);
+            if(f.memo != null) emitMemoized(writer, f);
+        }
+        // the MemoTables of the program are set on the class once it is loaded
+        writer.visitField(ACC_PUBLIC | ACC_STATIC, "memos", "[L" + MEMO + ";", null, null).visitEnd();
+        writer.visitEnd();
+
+        byte[] bytes;
+        try {
+            bytes = writer.toByteArray();
+        } catch (MethodTooLargeException | ClassTooLargeException e) {
+            // a JVM method holds at most 64K of code; a program that needs more runs as closures instead
+            return closures(program);
+        }
+        try {
+            Class<?> type = new Loader().define(className.replace('/', '.'), bytes);
+            type.getField("memos").set(null, memos.toArray(new MemoTable[0]));
+            return (Script)type.getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
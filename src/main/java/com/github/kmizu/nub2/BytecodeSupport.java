@@ -0,0 +1,85 @@
+package com.github.kmizu.nub2;
+
+/**
+ * Runtime helpers called from classes generated by BytecodeCompiler.
+ * They must be public since generated classes live in their own class loader.
+ */
+public class BytecodeSupport {
+    public static Object add(Object lhs, Object rhs) {
+        if(lhs instanceof CharSequence || rhs instanceof CharSequence) {
+            return StringValue.concat(lhs, rhs);
+        } else {
+            return ((Integer)lhs).intValue() + ((Integer)rhs).intValue();
+        }
+    }
+
+    public static Object concat(Object lhs, Object rhs) {
+        return StringValue.concat(lhs, rhs);
+    }
+
+    public static boolean equal(Object lhs, Object rhs) {
+        return StringValue.equal(lhs, rhs);
+    }
+
+    public static Object checkDefined(Object value, String name) {
+        if(value == null) throw new NubRuntimeException(name + " is not defined");
+        return value;
+    }
+
+    public static Object println(Object value, Output output) {
+        output.println(value);
+        return value;
+    }
+
+    private static NubRuntimeException notIndexable(Object target) {
+        return new NubRuntimeException(target + " is not an array or a map");
+    }
+
+    public static Object index(Object target, Object index) {
+        if(target instanceof ArrayValue) return ((ArrayValue)target).get((Integer)index);
+        if(target instanceof MapValue) return ((MapValue)target).get(index);
+        throw notIndexable(target);
+    }
+
+    public static int indexInt(Object target, int index) {
+        if(target instanceof ArrayValue) return ((ArrayValue)target).getInt(index);
+        if(target instanceof MapValue) return ((MapValue)target).getInt(index);
+        throw notIndexable(target);
+    }
+
+    /*
+     * Reads an element that Typer proved to be an int, with an index that may be of any type
+     */
+    public static int indexToInt(Object target, Object index) {
+        if(target instanceof ArrayValue) return ((ArrayValue)target).getInt((Integer)index);
+        if(target instanceof MapValue) return (Integer)((MapValue)target).get(index);
+        throw notIndexable(target);
+    }
+
+    public static Object store(Object target, Object index, Object value) {
+        if(target instanceof ArrayValue) {
+            ((ArrayValue)target).set((Integer)index, value);
+        } else if(target instanceof MapValue) {
+            ((MapValue)target).put(index, value);
+        } else {
+            throw notIndexable(target);
+        }
+        return value;
+    }
+
+    public static void storeInt(Object target, int index, int value) {
+        if(target instanceof ArrayValue) {
+            ((ArrayValue)target).setInt(index, value);
+        } else if(target instanceof MapValue) {
+            ((MapValue)target).putInt(index, value);
+        } else {
+            throw notIndexable(target);
+        }
+    }
+
+    public static int length(Object target) {
+        if(target instanceof ArrayValue) return ((ArrayValue)target).length();
+        if(target instanceof MapValue) return ((MapValue)target).size();
+        throw notIndexable(target);
+    }
+}
@@ -0,0 +1,975 @@
+package com.github.kmizu.nub2;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles a checked Ast.Block once into a tree of executable Code objects.
+ *
+ * Every Code is specialized for its operator and operand shape when it is built, so running the
+ * program does neither visitor dispatch nor a switch on BinaryOperator.  Nodes that always produce
+ * an int or a boolean also answer executeInt/executeBoolean so that nested arithmetic and
+ * conditions don't go through boxed values.  Lets that Typer proved INT keep their value in the frame's
+ * ints, unless some function body reads them from the program frame.
+ */
+public class ClosureCompiler implements Ast.ExpressionVisitor<ClosureCompiler.Code> {
+    public static abstract class Code {
+        public abstract Object execute(Evaluator.Frame frame);
+
+        public int executeInt(Evaluator.Frame frame) {
+            return ((Integer)execute(frame)).intValue();
+        }
+
+        public boolean executeBoolean(Evaluator.Frame frame) {
+            return ((Boolean)execute(frame)).booleanValue();
+        }
+
+        /*
+         * Runs the code for its effect only, so that an int result needn't be boxed.
+         */
+        public void executeVoid(Evaluator.Frame frame) {
+            execute(frame);
+        }
+    }
+
+    /*
+     * Code that always produces an int
+     */
+    static abstract class IntCode extends Code {
+        @Override
+        public Object execute(Evaluator.Frame frame) {
+            return executeInt(frame);
+        }
+
+        @Override
+        public abstract int executeInt(Evaluator.Frame frame);
+
+        @Override
+        public void executeVoid(Evaluator.Frame frame) {
+            executeInt(frame);
+        }
+    }
+
+    /*
+     * Code that always produces a boolean
+     */
+    static abstract class BooleanCode extends Code {
+        @Override
+        public Object execute(Evaluator.Frame frame) {
+            return executeBoolean(frame);
+        }
+
+        @Override
+        public abstract boolean executeBoolean(Evaluator.Frame frame);
+
+        @Override
+        public void executeVoid(Evaluator.Frame frame) {
+            executeBoolean(frame);
+        }
+    }
+
+    static final class Constant extends Code {
+        final Object value;
+        Constant(Object value) { this.value = value; }
+
+        @Override
+        public Object execute(Evaluator.Frame frame) { return value; }
+    }
+
+    static final class IntConstant extends IntCode {
+        final int value;
+        final Integer boxed;
+        IntConstant(int value) {
+            this.value = value;
+            this.boxed = value;
+        }
+
+        @Override
+        public Object execute(Evaluator.Frame frame) { return boxed; }
+
+        @Override
+        public int executeInt(Evaluator.Frame frame) { return value; }
+    }
+
+    static final class BooleanConstant extends BooleanCode {
+        final boolean value;
+        BooleanConstant(boolean value) { this.value = value; }
+
+        @Override
+        public boolean executeBoolean(Evaluator.Frame frame) { return value; }
+    }
+
+    static final class LocalLoad extends Code {
+        final String name;
+        final int slot;
+        LocalLoad(String name, int slot) {
+            this.name = name;
+            this.slot = slot;
+        }
+
+        @Override
+        public Object execute(Evaluator.Frame frame) {
+            Object value = frame.slots[slot];
+            if(value == null) throw new NubRuntimeException(name + " is not defined");
+            return value;
+        }
+    }
+
+    static final class IntLoad extends IntCode {
+        final int slot;
+        IntLoad(int slot) { this.slot = slot; }
+
+        @Override
+        public int executeInt(Evaluator.Frame frame) { return frame.ints[slot]; }
+    }
+
+    static final class OuterLoad extends Code {
+        final String name;
+        final int depth, slot;
+        OuterLoad(String name, int depth, int slot) {
+            this.name = name;
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        public Object execute(Evaluator.Frame frame) {
+            Object value = frame.lookup(depth).slots[slot];
+            if(value == null) throw new NubRuntimeException(name + " is not defined");
+            return value;
+        }
+    }
+
+    static final class LocalStore extends Code {
+        final int slot;
+        final Code value;
+        LocalStore(int slot, Code value) {
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        public Object execute(Evaluator.Frame frame) {
+            Object v = value.execute(frame);
+            frame.slots[slot] = v;
+            return v;
+        }
+    }
+
+    static final class IntLocalStore extends IntCode {
+        final int slot;
+        final Code value;
+        IntLocalStore(int slot, Code value) {
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        public int executeInt(Evaluator.Frame frame) {
+            int v = value.executeInt(frame);
+            frame.ints[slot] = v;
+            return v;
+        }
+    }
+
+    static final class OuterStore extends Code {
+        final int depth, slot;
+        final Code value;
+        OuterStore(int depth, int slot, Code value) {
+            this.depth = depth;
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        public Object execute(Evaluator.Frame frame) {
+            Object v = value.execute(frame);
+            frame.lookup(depth).slots[slot] = v;
+            return v;
+        }
+    }
+
+    static final class Let extends Code {
+        final int slot;
+        final boolean unboxed;
+        final Code init, body;
+        Let(int slot, boolean unboxed, Code init, Code body) {
+            this.slot = slot;
+            this.unboxed = unboxed;
+            this.init = init;
+            this.body = body;
+        }
+
+        @Override
+        public Object execute(Evaluator.Frame frame) {
+            if(unboxed) {
+                frame.setInt(slot, init.executeInt(frame));
+            } else {
+                frame.slots[slot] = init.execute(frame);
+            }
+            Object result = body.execute(frame);
+            frame.slots[slot] = null;
+            return result;
+        }
+    }
+
+    /*
+     * A run of lets, each ending the body of the one before, run in one loop: the init of each let, then what
+     * its body does before the next let, and at last the body of the last let
+     */
+    static final class Lets extends Code {
+        final int[] slots;
+        final boolean[] unboxed;
+        final Code[] inits;
+        final Code[][] befores;
+        final Code body;
+        Lets(int[] slots, boolean[] unboxed, Code[] inits, Code[][] befores, Code body) {
+            this.slots = slots;
+            this.unboxed = unboxed;
+            this.inits = inits;
+            this.befores = befores;
+            this.body = body;
+        }
+
+        @Override
+        public Object execute(Evaluator.Frame frame) {
+            for(int i = 0; i < slots.length; i++) {
+                if(unboxed[i]) {
+                    frame.setInt(slots[i], inits[i].executeInt(frame));
+                } else {
+                    frame.slots[slots[i]] = inits[i].execute(frame);
+                }
+                for(Code code:befores[i]) {
+                    code.executeVoid(frame);
+                }
+            }
+            Object result = body.execute(frame);
+            for(int slot:slots) {
+                frame.slots[slot] = null;
+            }
+            return result;
+        }
+    }
+
+    static final class Sequence extends Code {
+        final Code[] codes;
+        Sequence(Code[] codes) { this.codes = codes; }
+
+        @Override
+        public Object execute(Evaluator.Frame frame) {
+            if(codes.length == 0) return 0;
+            for(int i = 0; i < codes.length - 1; i++) {
+                codes[i].executeVoid(frame);
+            }
+            return codes[codes.length - 1].execute(frame);
+        }
+    }
+
+    /*
+     * ADD of operands Typer could not prove, quickened by what it sees, see AddCache.  Parents hold their
+     * children in final fields, so the node keeps its identity and swaps its behaviour through the cache state.
+     */
+    static final class Add extends Code {
+        final Code lhs, rhs;
+        byte state = AddCache.UNSEEN;
+        Add(Code lhs, Code rhs) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        @Override
+        public Object execute(Evaluator.Frame frame) {
+            Object l = lhs.execute(frame);
+            Object r = rhs.execute(frame);
+            switch (state) {
+                case AddCache.INTS:
+                    if(l instanceof Integer && r instanceof Integer) return (Integer)l + (Integer)r;
+                    break;
+                case AddCache.STRINGS:
+                    if(l instanceof CharSequence && r instanceof CharSequence) return StringValue.concat(l, r);
+                    break;
+                case AddCache.GENERIC:
+                    return BytecodeSupport.add(l, r);
+                default:
+                    break;
+            }
+            state = AddCache.next(state, l, r);
+            return BytecodeSupport.add(l, r);
+        }
+
+        @Override
+        public int executeInt(Evaluator.Frame frame) {
+            if(state != AddCache.INTS) return ((Integer)execute(frame)).intValue();
+            Object l = lhs.execute(frame);
+            Object r = rhs.execute(frame);
+            if(l instanceof Integer && r instanceof Integer) return (Integer)l + (Integer)r;
+            state = AddCache.GENERIC;
+            return ((Integer)BytecodeSupport.add(l, r)).intValue();
+        }
+    }
+
+    static final class Concat extends Code {
+        final Code lhs, rhs;
+        Concat(Code lhs, Code rhs) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        @Override
+        public Object execute(Evaluator.Frame frame) {
+            return StringValue.concat(lhs.execute(frame), rhs.execute(frame));
+        }
+    }
+
+    static final class IntAdd extends IntCode {
+        final Code lhs, rhs;
+        IntAdd(Code lhs, Code rhs) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        @Override
+        public int executeInt(Evaluator.Frame frame) { return lhs.executeInt(frame) + rhs.executeInt(frame); }
+    }
+
+    static final class IntSubtract extends IntCode {
+        final Code lhs, rhs;
+        IntSubtract(Code lhs, Code rhs) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        @Override
+        public int executeInt(Evaluator.Frame frame) { return lhs.executeInt(frame) - rhs.executeInt(frame); }
+    }
+
+    static final class IntMultiply extends IntCode {
+        final Code lhs, rhs;
+        IntMultiply(Code lhs, Code rhs) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        @Override
+        public int executeInt(Evaluator.Frame frame) { return lhs.executeInt(frame) * rhs.executeInt(frame); }
+    }
+
+    static final class IntDivide extends IntCode {
+        final Code lhs, rhs;
+        IntDivide(Code lhs, Code rhs) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        @Override
+        public int executeInt(Evaluator.Frame frame) { return lhs.executeInt(frame) / rhs.executeInt(frame); }
+    }
+
+    static final class IntLessThan extends BooleanCode {
+        final Code lhs, rhs;
+        IntLessThan(Code lhs, Code rhs) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        @Override
+        public boolean executeBoolean(Evaluator.Frame frame) { return lhs.executeInt(frame) < rhs.executeInt(frame); }
+    }
+
+    static final class IntLessThanOrEqual extends BooleanCode {
+        final Code lhs, rhs;
+        IntLessThanOrEqual(Code lhs, Code rhs) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        @Override
+        public boolean executeBoolean(Evaluator.Frame frame) { return lhs.executeInt(frame) <= rhs.executeInt(frame); }
+    }
+
+    static final class IntGreaterThan extends BooleanCode {
+        final Code lhs, rhs;
+        IntGreaterThan(Code lhs, Code rhs) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        @Override
+        public boolean executeBoolean(Evaluator.Frame frame) { return lhs.executeInt(frame) > rhs.executeInt(frame); }
+    }
+
+    static final class IntGreaterThanOrEqual extends BooleanCode {
+        final Code lhs, rhs;
+        IntGreaterThanOrEqual(Code lhs, Code rhs) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        @Override
+        public boolean executeBoolean(Evaluator.Frame frame) { return lhs.executeInt(frame) >= rhs.executeInt(frame); }
+    }
+
+    static final class IntEqual extends BooleanCode {
+        final Code lhs, rhs;
+        IntEqual(Code lhs, Code rhs) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        @Override
+        public boolean executeBoolean(Evaluator.Frame frame) { return lhs.executeInt(frame) == rhs.executeInt(frame); }
+    }
+
+    static final class Equal extends BooleanCode {
+        final Code lhs, rhs;
+        Equal(Code lhs, Code rhs) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        @Override
+        public boolean executeBoolean(Evaluator.Frame frame) { return StringValue.equal(lhs.execute(frame), rhs.execute(frame)); }
+    }
+
+    static final class Not extends BooleanCode {
+        final Code operand;
+        Not(Code operand) { this.operand = operand; }
+
+        @Override
+        public boolean executeBoolean(Evaluator.Frame frame) { return !operand.executeBoolean(frame); }
+    }
+
+    static final class And extends BooleanCode {
+        final Code lhs, rhs;
+        And(Code lhs, Code rhs) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        @Override
+        public boolean executeBoolean(Evaluator.Frame frame) { return lhs.executeBoolean(frame) && rhs.executeBoolean(frame); }
+    }
+
+    static final class Or extends BooleanCode {
+        final Code lhs, rhs;
+        Or(Code lhs, Code rhs) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        @Override
+        public boolean executeBoolean(Evaluator.Frame frame) { return lhs.executeBoolean(frame) || rhs.executeBoolean(frame); }
+    }
+
+    static final class If extends Code {
+        final Code condition, thenClause, elseClause;
+        If(Code condition, Code thenClause, Code elseClause) {
+            this.condition = condition;
+            this.thenClause = thenClause;
+            this.elseClause = elseClause;
+        }
+
+        @Override
+        public Object execute(Evaluator.Frame frame) {
+            return condition.executeBoolean(frame) ? thenClause.execute(frame) : elseClause.execute(frame);
+        }
+    }
+
+    static final class While extends Code {
+        final Code condition;
+        final Code[] body;
+        final int budgetSlot;
+        final boolean inFunction;
+        While(Code condition, Code[] body, int budgetSlot, boolean inFunction) {
+            this.condition = condition;
+            this.body = body;
+            this.budgetSlot = budgetSlot;
+            this.inFunction = inFunction;
+        }
+
+        @Override
+        public Object execute(Evaluator.Frame frame) {
+            Budget budget = (Budget)(inFunction ? frame.parent : frame).slots[budgetSlot];
+            while(condition.executeBoolean(frame)) {
+                for(Code code:body) {
+                    code.executeVoid(frame);
+                }
+                budget.tick();
+            }
+            return 0;
+        }
+    }
+
+    static final class Println extends Code {
+        final Code target;
+        final int outputSlot;
+        final boolean inFunction;
+        Println(Code target, int outputSlot, boolean inFunction) {
+            this.target = target;
+            this.outputSlot = outputSlot;
+            this.inFunction = inFunction;
+        }
+
+        @Override
+        public Object execute(Evaluator.Frame frame) {
+            Object value = target.execute(frame);
+            Evaluator.Frame globals = inFunction ? frame.parent : frame;
+            ((Output)globals.slots[outputSlot]).println(value);
+            return value;
+        }
+    }
+
+    static final class NewArray extends Code {
+        final Code[] elements;
+        NewArray(Code[] elements) { this.elements = elements; }
+
+        @Override
+        public Object execute(Evaluator.Frame frame) {
+            ArrayValue array = new ArrayValue(elements.length);
+            for(int i = 0; i < elements.length; i++) {
+                if(elements[i] instanceof IntCode) {
+                    array.setInt(i, elements[i].executeInt(frame));
+                } else {
+                    array.set(i, elements[i].execute(frame));
+                }
+            }
+            return array;
+        }
+    }
+
+    static final class NewMap extends Code {
+        final Code[] keys, values;
+        NewMap(Code[] keys, Code[] values) {
+            this.keys = keys;
+            this.values = values;
+        }
+
+        @Override
+        public Object execute(Evaluator.Frame frame) {
+            MapValue map = new MapValue(keys.length);
+            for(int i = 0; i < keys.length; i++) {
+                map.put(keys[i].execute(frame), values[i].execute(frame));
+            }
+            return map;
+        }
+    }
+
+    static final class Index extends Code {
+        final Code target, index;
+        Index(Code target, Code index) {
+            this.target = target;
+            this.index = index;
+        }
+
+        @Override
+        public Object execute(Evaluator.Frame frame) {
+            return BytecodeSupport.index(target.execute(frame), index.execute(frame));
+        }
+
+        @Override
+        public int executeInt(Evaluator.Frame frame) {
+            return BytecodeSupport.indexToInt(target.execute(frame), index.execute(frame));
+        }
+    }
+
+    /*
+     * An int element at an int index
+     */
+    static final class IntIndex extends IntCode {
+        final Code target, index;
+        IntIndex(Code target, Code index) {
+            this.target = target;
+            this.index = index;
+        }
+
+        @Override
+        public int executeInt(Evaluator.Frame frame) {
+            return BytecodeSupport.indexInt(target.execute(frame), index.executeInt(frame));
+        }
+    }
+
+    static final class Store extends Code {
+        final Code target, index, value;
+        Store(Code target, Code index, Code value) {
+            this.target = target;
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override
+        public Object execute(Evaluator.Frame frame) {
+            return BytecodeSupport.store(target.execute(frame), index.execute(frame), value.execute(frame));
+        }
+    }
+
+    /*
+     * An int value at an int index
+     */
+    static final class IntStore extends IntCode {
+        final Code target, index, value;
+        IntStore(Code target, Code index, Code value) {
+            this.target = target;
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override
+        public int executeInt(Evaluator.Frame frame) {
+            Object t = target.execute(frame);
+            int i = index.executeInt(frame);
+            int v = value.executeInt(frame);
+            BytecodeSupport.storeInt(t, i, v);
+            return v;
+        }
+    }
+
+    static final class Length extends IntCode {
+        final Code target;
+        Length(Code target) { this.target = target; }
+
+        @Override
+        public int executeInt(Evaluator.Frame frame) { return BytecodeSupport.length(target.execute(frame)); }
+    }
+
+    static final class Function {
+        final String name;
+        int frameSize;
+        Code body;
+        Function(Ast.DefFunction definition) { this.name = definition.name; }
+    }
+
+    /*
+     * The frame of a call in tail position.  It is returned in place of the call's value, and the Call that
+     * invoked the enclosing function runs it in a loop instead of recursing.
+     */
+    static final class TailFrame extends Evaluator.Frame {
+        final Function function;
+        TailFrame(Function function, Evaluator.Frame parent) {
+            super(function.frameSize, parent);
+            this.function = function;
+        }
+    }
+
+    static final class TailCall extends Code {
+        final Function function;
+        final Code[] args;
+        TailCall(Function function, Code[] args) {
+            this.function = function;
+            this.args = args;
+        }
+
+        @Override
+        public Object execute(Evaluator.Frame frame) {
+            TailFrame callee = new TailFrame(function, frame.parent);
+            for(int i = 0; i < args.length; i++) {
+                callee.slots[i] = args[i].execute(frame);
+            }
+            return callee;
+        }
+    }
+
+    static final class Call extends Code {
+        final Function function;
+        final Code[] args;
+        final boolean inFunction;
+        final int budgetSlot;
+        final MemoTable memo;
+        Call(Function function, Code[] args, boolean inFunction, int budgetSlot, MemoTable memo) {
+            this.function = function;
+            this.args = args;
+            this.memo = memo;
+            this.inFunction = inFunction;
+            this.budgetSlot = budgetSlot;
+        }
+
+        @Override
+        public Object execute(Evaluator.Frame frame) {
+            Evaluator.Frame globals = inFunction ? frame.parent : frame;
+            Evaluator.Frame callee = new Evaluator.Frame(function.frameSize, globals);
+            for(int i = 0; i < args.length; i++) {
+                callee.slots[i] = args[i].execute(frame);
+            }
+            Object[] key = null;
+            if(memo != null) {
+                Object result = memo.get(callee.slots, 0, args.length);
+                if(result != null) return result;
+                key = memo.key(callee.slots, 0, args.length);
+            }
+            Budget budget = (Budget)globals.slots[budgetSlot];
+            budget.enter();
+            Object result = function.body.execute(callee);
+            while(result instanceof TailFrame) {
+                budget.tick();
+                TailFrame next = (TailFrame)result;
+                result = next.function.body.execute(next);
+            }
+            budget.exit();
+            return key == null ? result : memo.put(key, result);
+        }
+    }
+
+    private final Map<Ast.DefFunction, Function> functions = new IdentityHashMap<>();
+    private final BitSet sharedSlots = new BitSet();
+    // the slots of the current frame holding the int of an INT let
+    private BitSet intSlots = new BitSet();
+    private boolean inFunction;
+    private int outputSlot;
+
+    private boolean isUnboxed(Ast.LetExpression let) {
+        return let.variableType == Type.INT && (inFunction || !sharedSlots.get(let.slot));
+    }
+
+    private Function functionFor(Ast.DefFunction definition) {
+        return functions.computeIfAbsent(definition, Function::new);
+    }
+
+    private static boolean isInt(Ast.Expression node, Code code) {
+        return node.type == Type.INT || code instanceof IntCode;
+    }
+
+    private Code[] compileAll(List<Ast.Expression> expressions) {
+        Code[] codes = new Code[expressions.size()];
+        for(int i = 0; i < codes.length; i++) {
+            codes[i] = expressions.get(i).accept(this);
+        }
+        return codes;
+    }
+
+    @Override
+    public Code visitBinaryExpression(Ast.BinaryExpression node) {
+        Code lhs = node.lhs.accept(this);
+        Code rhs = node.rhs.accept(this);
+        switch (node.operator) {
+            case ADD:
+                if(node.type == Type.INT || (lhs instanceof IntCode && rhs instanceof IntCode)) {
+                    return new IntAdd(lhs, rhs);
+                }
+                if(node.type == Type.STRING) {
+                    return new Concat(lhs, rhs);
+                }
+                return new Add(lhs, rhs);
+            case SUBTRACT:
+                return new IntSubtract(lhs, rhs);
+            case MULTIPLY:
+                return new IntMultiply(lhs, rhs);
+            case DIVIDE:
+                return new IntDivide(lhs, rhs);
+            case LESS_THAN:
+                return new IntLessThan(lhs, rhs);
+            case LESS_THAN_OR_EQUAL:
+                return new IntLessThanOrEqual(lhs, rhs);
+            case GREATER_THAN:
+                return new IntGreaterThan(lhs, rhs);
+            case GREATER_THAN_OR_EQUAL:
+                return new IntGreaterThanOrEqual(lhs, rhs);
+            case EQUAL:
+                if(isInt(node.lhs, lhs) && isInt(node.rhs, rhs)) {
+                    return new IntEqual(lhs, rhs);
+                }
+                return new Equal(lhs, rhs);
+            case NOT_EQUAL:
+                if(isInt(node.lhs, lhs) && isInt(node.rhs, rhs)) {
+                    return new Not(new IntEqual(lhs, rhs));
+                }
+                return new Not(new Equal(lhs, rhs));
+            case LOGICAL_AND:
+                return new And(lhs, rhs);
+            case LOGCIAL_OR:
+                return new Or(lhs, rhs);
+            default:
+                throw new RuntimeException("cannot reach here");
+        }
+    }
+
+    @Override
+    public Code visitIntLiteral(Ast.IntLiteral node) {
+        return new IntConstant(node.value);
+    }
+
+    @Override
+    public Code visitBooleanLiteral(Ast.BooleanLiteral node) {
+        return new BooleanConstant(node.value);
+    }
+
+    @Override
+    public Code visitStringLiteral(Ast.StringLiteral node) {
+        return new Constant(node.value);
+    }
+
+    @Override
+    public Code visitLetExpression(Ast.LetExpression node) {
+        if(node.next() == null) {
+            boolean unboxed = isUnboxed(node);
+            Code init = node.init.accept(this);
+            if(unboxed) intSlots.set(node.slot);
+            Code body = node.body.accept(this);
+            intSlots.clear(node.slot);
+            return new Let(node.slot, unboxed, init, body);
+        }
+        List<Ast.LetExpression> lets = new ArrayList<>();
+        for(Ast.LetExpression let = node; let != null; let = let.next()) {
+            lets.add(let);
+        }
+        int[] slots = new int[lets.size()];
+        boolean[] unboxed = new boolean[lets.size()];
+        Code[] inits = new Code[lets.size()];
+        Code[][] befores = new Code[lets.size()][];
+        for(int i = 0; i < lets.size(); i++) {
+            Ast.LetExpression let = lets.get(i);
+            List<Ast.Expression> expressions = let.inner().expressions;
+            slots[i] = let.slot;
+            unboxed[i] = isUnboxed(let);
+            inits[i] = let.init.accept(this);
+            if(unboxed[i]) intSlots.set(let.slot);
+            befores[i] = i + 1 < lets.size() ? compileAll(expressions.subList(0, expressions.size() - 1)) : new Code[0];
+        }
+        Code body = lets.get(lets.size() - 1).body.accept(this);
+        for(int slot:slots) {
+            intSlots.clear(slot);
+        }
+        return new Lets(slots, unboxed, inits, befores, body);
+    }
+
+    @Override
+    public Code visitId(Ast.Id node) {
+        if(node.depth == 0) {
+            if(intSlots.get(node.slot)) return new IntLoad(node.slot);
+            return new LocalLoad(node.name, node.slot);
+        }
+        return new OuterLoad(node.name, node.depth, node.slot);
+    }
+
+    @Override
+    public Code visitBlock(Ast.Block node) {
+        if(node.expressions.size() == 1) {
+            return node.expressions.get(0).accept(this);
+        }
+        return new Sequence(compileAll(node.expressions));
+    }
+
+    @Override
+    public Code visitIfExpression(Ast.IfExpression node) {
+        return new If(node.condition.accept(this), node.thenClause.accept(this), node.elseClause.accept(this));
+    }
+
+    @Override
+    public Code visitWhileExpression(Ast.WhileExpression node) {
+        return new While(node.condition.accept(this), compileAll(node.body), outputSlot + 1, inFunction);
+    }
+
+    @Override
+    public Code visitAssignmentExpression(Ast.AssignmentExpression node) {
+        Code value = node.expression.accept(this);
+        if(node.depth == 0) {
+            if(intSlots.get(node.slot)) return new IntLocalStore(node.slot, value);
+            return new LocalStore(node.slot, value);
+        }
+        return new OuterStore(node.depth, node.slot, value);
+    }
+
+    @Override
+    public Code visitPrintlnExpression(Ast.PrintlnExpression node) {
+        return new Println(node.target.accept(this), outputSlot, inFunction);
+    }
+
+    @Override
+    public Code visitDefFunction(Ast.DefFunction node) {
+        Function function = functionFor(node);
+        boolean backup = inFunction;
+        BitSet slots = intSlots;
+        inFunction = true;
+        intSlots = new BitSet();
+        function.frameSize = node.body.frameSize;
+        function.body = node.body.accept(this);
+        inFunction = backup;
+        intSlots = slots;
+        return new Constant(null);
+    }
+
+    @Override
+    public Code visitFunctionCall(Ast.FunctionCall node) {
+        if(node.tailCall) {
+            return new TailCall(functionFor(node.function), compileAll(node.params));
+        }
+        return new Call(functionFor(node.function), compileAll(node.params), inFunction, outputSlot + 1, node.function.memo);
+    }
+
+    @Override
+    public Code visitArrayLiteral(Ast.ArrayLiteral node) {
+        return new NewArray(compileAll(node.elements));
+    }
+
+    @Override
+    public Code visitMapLiteral(Ast.MapLiteral node) {
+        return new NewMap(compileAll(node.keys), compileAll(node.values));
+    }
+
+    @Override
+    public Code visitIndexExpression(Ast.IndexExpression node) {
+        Code target = node.target.accept(this);
+        Code index = node.index.accept(this);
+        if(node.type == Type.INT && isInt(node.index, index)) return new IntIndex(target, index);
+        return new Index(target, index);
+    }
+
+    @Override
+    public Code visitIndexAssignment(Ast.IndexAssignment node) {
+        Code target = node.target.accept(this);
+        Code index = node.index.accept(this);
+        Code value = node.value.accept(this);
+        if(isInt(node.index, index) && isInt(node.value, value)) return new IntStore(target, index, value);
+        return new Store(target, index, value);
+    }
+
+    @Override
+    public Code visitLengthExpression(Ast.LengthExpression node) {
+        return new Length(node.target.accept(this));
+    }
+
+    /*
+     * Finds the program slots that function bodies access, which must stay boxed.
+     */
+    private void collectSharedSlots(Ast.Block program) {
+        sharedSlots.clear();
+        intSlots.clear();
+        program.accept(new Ast.Traverser() {
+            @Override
+            public Object visitId(Ast.Id node) {
+                if(node.depth > 0) sharedSlots.set(node.slot);
+                return null;
+            }
+
+            @Override
+            public Object visitAssignmentExpression(Ast.AssignmentExpression node) {
+                node.expression.accept(this);
+                if(node.depth > 0) sharedSlots.set(node.slot);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Compiles a program that has already been through VariableChecker.
+     */
+    public Code compile(Ast.Block program) {
+        functions.clear();
+        inFunction = false;
+        outputSlot = program.frameSize;
+        collectSharedSlots(program);
+        return program.accept(this);
+    }
+
+    /**
+     * The frame to run a compiled program in.  The run's Output and Budget are kept in two extra slots after
+     * the program's variables.
+     */
+    public static Evaluator.Frame globals(Ast.Block program, Output output, Budget budget) {
+        Evaluator.Frame globals = new Evaluator.Frame(program.frameSize + 2, null);
+        globals.slots[program.frameSize] = output;
+        globals.slots[program.frameSize + 1] = budget;
+        return globals;
+    }
+}
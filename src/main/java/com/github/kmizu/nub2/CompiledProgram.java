@@ -0,0 +1,121 @@
+package com.github.kmizu.nub2;
+
+/**
+ * A program that has been checked and compiled for one engine, ready to be run any number of times.
+ *
+ * Instances are immutable and may be shared between threads without locking.  compile checks a copy of the
+ * tree it is given, so the caller may go on using that tree.  Everything a run writes (frames, the visitor's
+ * Evaluator, the register file of the VM) is created by execute for that run only, and println goes to the
+ * Output given to execute.
+ */
+public final class CompiledProgram {
+    private final Evaluator.Engine engine;
+    private final Ast.Block program;
+    private final ClosureCompiler.Code closure;
+    private final BytecodeCompiler.Script script;
+    private final RegisterMachine.Program registers;
+    private volatile ProgramCache.Key key;
+
+    private CompiledProgram(Ast.Block program, Evaluator.Engine engine) {
+        this.engine = engine;
+        this.program = program;
+        this.closure = engine == Evaluator.Engine.CLOSURE ? new ClosureCompiler().compile(program) : null;
+        this.script = engine == Evaluator.Engine.BYTECODE ? new BytecodeCompiler().compile(program) : null;
+        this.registers = engine == Evaluator.Engine.VM ? new RegisterCompiler().compile(program) : null;
+    }
+
+    public static CompiledProgram compile(Ast.Block program) {
+        return compile(program, Evaluator.Engine.VISITOR);
+    }
+
+    /**
+     * Checks a parsed program and compiles it for the engine.
+     */
+    public static CompiledProgram compile(Ast.Block program, Evaluator.Engine engine) {
+        return load(new Evaluator(engine).prepare(program), engine);
+    }
+
+    /**
+     * Compiles a program returned by Evaluator.prepare, or loaded by AstReader, without checking it again.
+     */
+    public static CompiledProgram load(Ast.Block checked, Evaluator.Engine engine) {
+        return new CompiledProgram(checked, engine);
+    }
+
+    public Evaluator.Engine engine() {
+        return engine;
+    }
+
+    /**
+     * The checked program, e.g. for AstWriter.  It must not be modified.
+     */
+    public Ast.Block program() {
+        return program;
+    }
+
+    /*
+     * The structure of the program, computed on the first run that reports to metrics.  Racing threads may
+     * both compute it, to equal keys.
+     */
+    ProgramCache.Key key() {
+        ProgramCache.Key k = key;
+        if(k == null) key = k = new ProgramCache.Key(program);
+        return k;
+    }
+
+    /**
+     * Runs the program, printing to stdout in batches.
+     */
+    public Object execute() {
+        return execute(new Output.Buffered(System.out));
+    }
+
+    /**
+     * Runs the program, printing to output, which is flushed when the run ends.
+     */
+    public Object execute(Output output) {
+        return execute(output, Metrics.NONE);
+    }
+
+    /**
+     * Runs the program as execute(output) does, and reports the run to metrics.
+     */
+    public Object execute(Output output, Metrics metrics) {
+        return execute(output, metrics, ExecutionLimits.NONE);
+    }
+
+    /**
+     * Runs the program as execute(output, metrics) does, stopping it with ExecutionLimitExceededException
+     * if it goes over limits.
+     */
+    public Object execute(Output output, Metrics metrics, ExecutionLimits limits) {
+        long start = System.nanoTime();
+        Throwable failure = null;
+        Budget budget = limits.start();
+        Budget previous = Budget.install(budget);
+        try {
+            return StringValue.flatten(run(output, metrics, budget));
+        } catch (RuntimeException | Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            Budget.install(previous);
+            output.flush();
+            metrics.executed(this, System.nanoTime() - start, failure);
+        }
+    }
+
+    private Object run(Output output, Metrics metrics, Budget budget) {
+        switch (engine) {
+            case CLOSURE:
+                return closure.execute(ClosureCompiler.globals(program, output, budget));
+            case BYTECODE:
+                return script.run(output, budget);
+            case VM:
+                return new RegisterMachine(registers, output, budget).run();
+            default:
+                if(metrics != Metrics.NONE) return new CountingEvaluator(output, metrics).interpret(program, budget);
+                return new Evaluator(engine, output).interpret(program, budget);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package com.github.kmizu.nub2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Evaluates constant subexpressions ahead of time and drops code that cannot run.
+ *
+ * Runs after Typer, whose types decide when an operand may be dropped: `x + 0` is only x when x is known to be
+ * an int, otherwise it could be a string concatenation.  A node is returned unchanged when nothing under it
+ * was folded, so the caller can tell from the identity of the result whether the tree has to be checked again.
+ * Division by a literal zero is left alone so that it still fails at runtime.
+ */
+public class ConstantFolder implements Ast.ExpressionVisitor<Ast.Expression> {
+    private static boolean isInt(Ast.Expression e, int value) {
+        return e instanceof Ast.IntLiteral && ((Ast.IntLiteral)e).value == value;
+    }
+
+    static boolean isBoolean(Ast.Expression e, boolean value) {
+        return e instanceof Ast.BooleanLiteral && ((Ast.BooleanLiteral)e).value == value;
+    }
+
+    static boolean isLiteral(Ast.Expression e) {
+        return e instanceof Ast.IntLiteral || e instanceof Ast.BooleanLiteral || e instanceof Ast.StringLiteral;
+    }
+
+    static Object valueOf(Ast.Expression literal) {
+        if(literal instanceof Ast.IntLiteral) return ((Ast.IntLiteral)literal).value;
+        if(literal instanceof Ast.BooleanLiteral) return ((Ast.BooleanLiteral)literal).value;
+        return ((Ast.StringLiteral)literal).value;
+    }
+
+    static Ast.Expression literalOf(Object value) {
+        Ast.Expression literal;
+        if(value instanceof Integer) {
+            literal = new Ast.IntLiteral((Integer)value);
+            literal.type = Type.INT;
+        } else if(value instanceof Boolean) {
+            literal = new Ast.BooleanLiteral((Boolean)value);
+            literal.type = Type.BOOLEAN;
+        } else {
+            literal = new Ast.StringLiteral((String)value);
+            literal.type = Type.STRING;
+        }
+        return literal;
+    }
+
+    /*
+     * Functions are visible to the whole program wherever they are defined, so code that defines one is kept.
+     */
+    static boolean definesFunction(Ast.Expression e) {
+        boolean[] found = new boolean[1];
+        e.accept(new Ast.Traverser() {
+            @Override
+            public Object visitDefFunction(Ast.DefFunction node) {
+                found[0] = true;
+                return null;
+            }
+        });
+        return found[0];
+    }
+
+    private Ast.Block foldBlock(Ast.Block node) {
+        List<Ast.Expression> folded = new ArrayList<>();
+        return foldExpressions(node, node.expressions.size(), folded) ? new Ast.Block(folded) : node;
+    }
+
+    /*
+     * Adds the first end expressions of node, folded, to folded and tells whether any of them changed
+     */
+    private boolean foldExpressions(Ast.Block node, int end, List<Ast.Expression> folded) {
+        boolean changed = false;
+        int last = node.expressions.size() - 1;
+        for(int i = 0; i < end; i++) {
+            Ast.Expression e = node.expressions.get(i);
+            Ast.Expression f = e.accept(this);
+            changed |= f != e;
+            // a literal whose value is not used does nothing
+            if(i < last && isLiteral(f)) {
+                changed = true;
+                continue;
+            }
+            folded.add(f);
+        }
+        return changed;
+    }
+
+    /*
+     * The expressions after visiting each, or the same list when none changed
+     */
+    private List<Ast.Expression> foldAll(List<Ast.Expression> expressions) {
+        List<Ast.Expression> result = new ArrayList<>();
+        boolean changed = false;
+        for(Ast.Expression e:expressions) {
+            Ast.Expression r = e.accept(this);
+            changed |= r != e;
+            result.add(r);
+        }
+        return changed ? result : expressions;
+    }
+
+    static Ast.Expression foldLiterals(Ast.BinaryOperator operator, Object lhs, Object rhs) {
+        switch (operator) {
+            case ADD:
+                if(lhs instanceof String || rhs instanceof String) return literalOf(lhs.toString() + rhs.toString());
+                if(lhs instanceof Integer && rhs instanceof Integer) return literalOf((Integer)lhs + (Integer)rhs);
+                return null;
+            case EQUAL:
+                return literalOf(lhs.equals(rhs));
+            case NOT_EQUAL:
+                return literalOf(!lhs.equals(rhs));
+            default:
+                break;
+        }
+        if(lhs instanceof Integer && rhs instanceof Integer) {
+            int l = (Integer)lhs, r = (Integer)rhs;
+            switch (operator) {
+                case SUBTRACT: return literalOf(l - r);
+                case MULTIPLY: return literalOf(l * r);
+                case DIVIDE: return r == 0 ? null : literalOf(l / r);
+                case LESS_THAN: return literalOf(l < r);
+                case LESS_THAN_OR_EQUAL: return literalOf(l <= r);
+                case GREATER_THAN: return literalOf(l > r);
+                case GREATER_THAN_OR_EQUAL: return literalOf(l >= r);
+                default: return null;
+            }
+        }
+        if(lhs instanceof Boolean && rhs instanceof Boolean) {
+            boolean l = (Boolean)lhs, r = (Boolean)rhs;
+            switch (operator) {
+                case LOGICAL_AND: return literalOf(l && r);
+                case LOGCIAL_OR: return literalOf(l || r);
+                default: return null;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Simplifications that need only one operand to be constant.
+     */
+    private Ast.Expression simplify(Ast.BinaryOperator operator, Ast.Expression lhs, Ast.Expression rhs) {
+        boolean intLhs = lhs.type == Type.INT, intRhs = rhs.type == Type.INT;
+        switch (operator) {
+            case ADD:
+                if(isInt(rhs, 0) && intLhs) return lhs;
+                if(isInt(lhs, 0) && intRhs) return rhs;
+                break;
+            case SUBTRACT:
+                if(isInt(rhs, 0) && intLhs) return lhs;
+                break;
+            case MULTIPLY:
+                if(isInt(rhs, 1) && intLhs) return lhs;
+                if(isInt(lhs, 1) && intRhs) return rhs;
+                if((isInt(rhs, 0) && intLhs && lhs instanceof Ast.Id) || (isInt(lhs, 0) && intRhs && rhs instanceof Ast.Id)) {
+                    return literalOf(0);
+                }
+                break;
+            case DIVIDE:
+                if(isInt(rhs, 1) && intLhs) return lhs;
+                break;
+            case LOGICAL_AND:
+                if(isBoolean(lhs, false)) return lhs;
+                if(isBoolean(lhs, true) && rhs.type == Type.BOOLEAN) return rhs;
+                if(isBoolean(rhs, true) && lhs.type == Type.BOOLEAN) return lhs;
+                break;
+            case LOGCIAL_OR:
+                if(isBoolean(lhs, true)) return lhs;
+                if(isBoolean(lhs, false) && rhs.type == Type.BOOLEAN) return rhs;
+                if(isBoolean(rhs, false) && lhs.type == Type.BOOLEAN) return lhs;
+                break;
+            default:
+                break;
+        }
+        return null;
+    }
+
+    @Override
+    public Ast.Expression visitBinaryExpression(Ast.BinaryExpression node) {
+        Ast.Expression lhs = node.lhs.accept(this);
+        Ast.Expression rhs = node.rhs.accept(this);
+        Ast.Expression folded = null;
+        if(isLiteral(lhs) && isLiteral(rhs)) {
+            folded = foldLiterals(node.operator, valueOf(lhs), valueOf(rhs));
+        }
+        if(folded == null) {
+            folded = simplify(node.operator, lhs, rhs);
+        }
+        if(folded != null) return folded;
+        if(lhs == node.lhs && rhs == node.rhs) return node;
+        Ast.BinaryExpression result = new Ast.BinaryExpression(node.operator, lhs, rhs);
+        result.type = node.type;
+        return result;
+    }
+
+    @Override
+    public Ast.Expression visitIntLiteral(Ast.IntLiteral node) {
+        return node;
+    }
+
+    @Override
+    public Ast.Expression visitBooleanLiteral(Ast.BooleanLiteral node) {
+        return node;
+    }
+
+    @Override
+    public Ast.Expression visitStringLiteral(Ast.StringLiteral node) {
+        return node;
+    }
+
+    @Override
+    public Ast.Expression visitLetExpression(Ast.LetExpression node) {
+        // a run of lets is folded in one loop, then rebuilt from the last let up
+        List<Ast.LetExpression> lets = new ArrayList<>();
+        List<Ast.Expression> inits = new ArrayList<>();
+        List<List<Ast.Expression>> befores = new ArrayList<>();
+        List<Boolean> changes = new ArrayList<>();
+        for(Ast.LetExpression let = node; let != null; let = let.next()) {
+            List<Ast.Expression> before = new ArrayList<>();
+            int size = let.inner().expressions.size();
+            lets.add(let);
+            inits.add(let.init.accept(this));
+            changes.add(foldExpressions(let.inner(), let.next() == null ? size : size - 1, before));
+            befores.add(before);
+        }
+        Ast.Expression result = null;
+        for(int i = lets.size() - 1; i >= 0; i--) {
+            Ast.LetExpression let = lets.get(i);
+            boolean changed = changes.get(i) || inits.get(i) != let.init;
+            if(result != null) {
+                changed |= result != lets.get(i + 1);
+                befores.get(i).add(result);
+            }
+            result = changed ? new Ast.LetExpression(let.variableName, inits.get(i), new Ast.Block(befores.get(i))) : let;
+        }
+        return result;
+    }
+
+    @Override
+    public Ast.Expression visitId(Ast.Id node) {
+        return node;
+    }
+
+    @Override
+    public Ast.Expression visitBlock(Ast.Block node) {
+        return foldBlock(node);
+    }
+
+    @Override
+    public Ast.Expression visitIfExpression(Ast.IfExpression node) {
+        Ast.Expression condition = node.condition.accept(this);
+        if(isBoolean(condition, true) && !definesFunction(node.elseClause)) return foldBlock(node.thenClause);
+        if(isBoolean(condition, false) && !definesFunction(node.thenClause)) return foldBlock(node.elseClause);
+        Ast.Block thenClause = foldBlock(node.thenClause);
+        Ast.Block elseClause = foldBlock(node.elseClause);
+        if(condition == node.condition && thenClause == node.thenClause && elseClause == node.elseClause) return node;
+        return new Ast.IfExpression(condition, thenClause, elseClause);
+    }
+
+    @Override
+    public Ast.Expression visitWhileExpression(Ast.WhileExpression node) {
+        Ast.Expression condition = node.condition.accept(this);
+        if(isBoolean(condition, false) && !definesFunction(new Ast.Block(node.body))) return literalOf(0);
+        Ast.Block body = foldBlock(new Ast.Block(node.body));
+        // a literal left at the end of the body is not used either
+        List<Ast.Expression> expressions = body.expressions;
+        if(!expressions.isEmpty() && isLiteral(expressions.get(expressions.size() - 1))) {
+            expressions = expressions.subList(0, expressions.size() - 1);
+        }
+        if(condition == node.condition && expressions.equals(node.body)) return node;
+        return new Ast.WhileExpression(condition, new ArrayList<>(expressions));
+    }
+
+    @Override
+    public Ast.Expression visitAssignmentExpression(Ast.AssignmentExpression node) {
+        Ast.Expression expression = node.expression.accept(this);
+        if(expression == node.expression) return node;
+        return new Ast.AssignmentExpression(node.variableName, expression);
+    }
+
+    @Override
+    public Ast.Expression visitPrintlnExpression(Ast.PrintlnExpression node) {
+        Ast.Expression target = node.target.accept(this);
+        if(target == node.target) return node;
+        return new Ast.PrintlnExpression(target);
+    }
+
+    @Override
+    public Ast.Expression visitDefFunction(Ast.DefFunction node) {
+        Ast.Block body = foldBlock(node.body);
+        if(body == node.body) return node;
+        return new Ast.DefFunction(node.name, node.args, body);
+    }
+
+    @Override
+    public Ast.Expression visitFunctionCall(Ast.FunctionCall node) {
+        List<Ast.Expression> params = foldAll(node.params);
+        return params == node.params ? node : new Ast.FunctionCall(node.name, params);
+    }
+
+    @Override
+    public Ast.Expression visitArrayLiteral(Ast.ArrayLiteral node) {
+        List<Ast.Expression> elements = foldAll(node.elements);
+        return elements == node.elements ? node : new Ast.ArrayLiteral(elements);
+    }
+
+    @Override
+    public Ast.Expression visitMapLiteral(Ast.MapLiteral node) {
+        List<Ast.Expression> keys = foldAll(node.keys);
+        List<Ast.Expression> values = foldAll(node.values);
+        if(keys == node.keys && values == node.values) return node;
+        return new Ast.MapLiteral(keys, values);
+    }
+
+    @Override
+    public Ast.Expression visitIndexExpression(Ast.IndexExpression node) {
+        Ast.Expression target = node.target.accept(this);
+        Ast.Expression index = node.index.accept(this);
+        if(target == node.target && index == node.index) return node;
+        return new Ast.IndexExpression(target, index);
+    }
+
+    @Override
+    public Ast.Expression visitIndexAssignment(Ast.IndexAssignment node) {
+        Ast.Expression target = node.target.accept(this);
+        Ast.Expression index = node.index.accept(this);
+        Ast.Expression value = node.value.accept(this);
+        if(target == node.target && index == node.index && value == node.value) return node;
+        return new Ast.IndexAssignment(target, index, value);
+    }
+
+    @Override
+    public Ast.Expression visitLengthExpression(Ast.LengthExpression node) {
+        Ast.Expression target = node.target.accept(this);
+        if(target == node.target) return node;
+        return new Ast.LengthExpression(target);
+    }
+
+    /**
+     * Folds a program that has been through VariableChecker and Typer.  When the result is a different
+     * object it carries no annotations and has to go through both passes again.
+     */
+    public Ast.Block fold(Ast.Block program) {
+        return foldBlock(program);
+    }
+}
@@ -0,0 +1,136 @@
+package com.github.kmizu.nub2;
+
+/**
+ * The visitor engine counting what it does for Metrics.visited.  The counts are plain fields since a run
+ * belongs to one thread; they are handed to the metrics once, when the run ends.
+ */
+final class CountingEvaluator extends Evaluator {
+    private final Metrics metrics;
+    private long nodes;
+    private long calls;
+    private long lookups;
+
+    CountingEvaluator(Output output, Metrics metrics) {
+        super(Engine.VISITOR, output);
+        this.metrics = metrics;
+    }
+
+    @Override
+    Object interpret(Ast.Block program, Budget budget) {
+        try {
+            return super.interpret(program, budget);
+        } finally {
+            metrics.visited(nodes, calls, lookups);
+        }
+    }
+
+    @Override
+    protected Object invoke(Ast.DefFunction function) {
+        calls++;
+        return super.invoke(function);
+    }
+
+    @Override
+    public Object visitBinaryExpression(Ast.BinaryExpression node) {
+        nodes++;
+        return super.visitBinaryExpression(node);
+    }
+
+    @Override
+    public Integer visitIntLiteral(Ast.IntLiteral node) {
+        nodes++;
+        return super.visitIntLiteral(node);
+    }
+
+    @Override
+    public String visitStringLiteral(Ast.StringLiteral node) {
+        nodes++;
+        return super.visitStringLiteral(node);
+    }
+
+    @Override
+    public Object visitBooleanLiteral(Ast.BooleanLiteral node) {
+        nodes++;
+        return super.visitBooleanLiteral(node);
+    }
+
+    @Override
+    public Object visitLetExpression(Ast.LetExpression node) {
+        nodes++;
+        return super.visitLetExpression(node);
+    }
+
+    @Override
+    public Object visitPrintlnExpression(Ast.PrintlnExpression node) {
+        nodes++;
+        return super.visitPrintlnExpression(node);
+    }
+
+    @Override
+    public Object visitBlock(Ast.Block node) {
+        nodes++;
+        return super.visitBlock(node);
+    }
+
+    @Override
+    public Object visitId(Ast.Id node) {
+        nodes++;
+        lookups++;
+        return super.visitId(node);
+    }
+
+    @Override
+    public Object visitIfExpression(Ast.IfExpression node) {
+        nodes++;
+        return super.visitIfExpression(node);
+    }
+
+    @Override
+    public Object visitWhileExpression(Ast.WhileExpression node) {
+        nodes++;
+        return super.visitWhileExpression(node);
+    }
+
+    @Override
+    public Object visitAssignmentExpression(Ast.AssignmentExpression node) {
+        nodes++;
+        lookups++;
+        return super.visitAssignmentExpression(node);
+    }
+
+    @Override
+    public Object visitFunctionCall(Ast.FunctionCall node) {
+        nodes++;
+        return super.visitFunctionCall(node);
+    }
+
+    @Override
+    public Object visitArrayLiteral(Ast.ArrayLiteral node) {
+        nodes++;
+        return super.visitArrayLiteral(node);
+    }
+
+    @Override
+    public Object visitMapLiteral(Ast.MapLiteral node) {
+        nodes++;
+        return super.visitMapLiteral(node);
+    }
+
+    @Override
+    public Object visitIndexExpression(Ast.IndexExpression node) {
+        nodes++;
+        return super.visitIndexExpression(node);
+    }
+
+    @Override
+    public Object visitIndexAssignment(Ast.IndexAssignment node) {
+        nodes++;
+        return super.visitIndexAssignment(node);
+    }
+
+    @Override
+    public Object visitLengthExpression(Ast.LengthExpression node) {
+        nodes++;
+        return super.visitLengthExpression(node);
+    }
+}
@@ -0,0 +1,40 @@
+package com.github.kmizu.nub2;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * One program run, for JDK Flight Recorder.  Only EvaluationMetrics refers to this class, and only when
+ * jdk.jfr exists, so the interpreter still runs on JVMs without it.
+ */
+@Name("com.github.kmizu.nub2.Evaluation")
+@Label("Nub Evaluation")
+@Category("Nub")
+final class EvaluationEvent extends Event {
+    @Label("Program")
+    String program;
+
+    @Label("Engine")
+    String engine;
+
+    @Label("Run Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long runTime;
+
+    @Label("Failure")
+    String failure;
+
+    static void commit(ProgramCache.Key program, Evaluator.Engine engine, long nanos, Throwable failure) {
+        EvaluationEvent event = new EvaluationEvent();
+        if(!event.isEnabled()) return;
+        // the hash of the structure, so that runs of the same program share a label as they share a histogram
+        event.program = Integer.toHexString(program.hashCode());
+        event.engine = engine.name();
+        event.runTime = nanos;
+        event.failure = failure == null ? null : failure.toString();
+        event.commit();
+    }
+}
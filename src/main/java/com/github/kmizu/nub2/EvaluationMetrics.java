@@ -0,0 +1,175 @@
+package com.github.kmizu.nub2;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms built on LongAdder, so that many threads can record at once without
+ * contending.  Each run is also committed as a JDK Flight Recorder event when the JVM has JFR and the event
+ * com.github.kmizu.nub2.Evaluation is enabled in the recording.
+ */
+public class EvaluationMetrics implements Metrics {
+    /**
+     * Run times in power-of-two buckets of nanoseconds.
+     */
+    public static final class Histogram {
+        private final LongAdder[] buckets = new LongAdder[64];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Histogram() {
+            for(int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            buckets[63 - Long.numberOfLeadingZeros(Math.max(nanos, 1))].increment();
+            count.increment();
+            sum.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long totalNanos() {
+            return sum.sum();
+        }
+
+        public long maxNanos() {
+            return max.get();
+        }
+
+        /**
+         * An upper bound, within a factor of two, of the given percentile of run times.
+         */
+        public long percentileNanos(double percentile) {
+            long total = count();
+            long rank = (long)Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for(int i = 0; i < buckets.length; i++) {
+                seen += buckets[i].sum();
+                if(seen >= rank && seen > 0) return (1L << (i + 1)) - 1;
+            }
+            return 0;
+        }
+    }
+
+    private static final boolean JFR = hasFlightRecorder();
+
+    private static boolean hasFlightRecorder() {
+        try {
+            Class.forName("jdk.jfr.Event", false, EvaluationMetrics.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    private final int maximumPrograms;
+    private final ConcurrentHashMap<ProgramCache.Key, Histogram> programs = new ConcurrentHashMap<>();
+    private final Histogram all = new Histogram();
+    private final Histogram others = new Histogram();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder runtimeErrors = new LongAdder();
+    private final LongAdder nodes = new LongAdder();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder lookups = new LongAdder();
+
+    /**
+     * Programs beyond the first maximumPrograms share one histogram, see others.  Programs are told apart by
+     * their structure, as ProgramCache does, so runs of trees parsed from the same source share a histogram
+     * and no tree is kept alive by the metrics.
+     */
+    public EvaluationMetrics(int maximumPrograms) {
+        this.maximumPrograms = maximumPrograms;
+    }
+
+    public EvaluationMetrics() {
+        this(1024);
+    }
+
+    @Override
+    public void executed(Ast.Block program, Evaluator.Engine engine, long nanos, Throwable failure) {
+        executed(new ProgramCache.Key(program), engine, nanos, failure);
+    }
+
+    @Override
+    public void executed(CompiledProgram program, long nanos, Throwable failure) {
+        executed(program.key(), program.engine(), nanos, failure);
+    }
+
+    private void executed(ProgramCache.Key key, Evaluator.Engine engine, long nanos, Throwable failure) {
+        all.record(nanos);
+        latency(key).record(nanos);
+        if(failure != null) {
+            failures.increment();
+            if(failure instanceof NubRuntimeException) runtimeErrors.increment();
+        }
+        if(JFR) EvaluationEvent.commit(key, engine, nanos, failure);
+    }
+
+    @Override
+    public void visited(long nodes, long calls, long lookups) {
+        this.nodes.add(nodes);
+        this.calls.add(calls);
+        this.lookups.add(lookups);
+    }
+
+    /**
+     * The run times of the programs of the same structure as program, which is one as given to CompiledProgram
+     * or returned by Evaluator.prepare.
+     */
+    public Histogram latency(Ast.Block program) {
+        return latency(new ProgramCache.Key(program));
+    }
+
+    private Histogram latency(ProgramCache.Key key) {
+        Histogram histogram = programs.get(key);
+        if(histogram != null) return histogram;
+        if(programs.size() >= maximumPrograms) return others;
+        return programs.computeIfAbsent(key, k -> new Histogram());
+    }
+
+    /**
+     * The run times of every program.
+     */
+    public Histogram latency() {
+        return all;
+    }
+
+    public Histogram others() {
+        return others;
+    }
+
+    public long evaluations() {
+        return all.count();
+    }
+
+    public long failures() {
+        return failures.sum();
+    }
+
+    /**
+     * Failures by NubRuntimeException, the errors of the program rather than of the interpreter.
+     */
+    public long runtimeErrors() {
+        return runtimeErrors.sum();
+    }
+
+    public long nodeVisits() {
+        return nodes.sum();
+    }
+
+    public long functionCalls() {
+        return calls.sum();
+    }
+
+    public long lookups() {
+        return lookups.sum();
+    }
+}
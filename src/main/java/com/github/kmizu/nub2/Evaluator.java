@@ -3,43 +3,113 @@ package com.github.kmizu.nub2;
 import java.util.*;
 
 public class Evaluator implements Ast.ExpressionVisitor<Object> {
-    public static class Environment {
-        public final Map<String, Object> mapping = new HashMap<>();
-        public final Environment parent;
-        public Environment(Environment parent) {
+    /**
+     * An activation record. Variables are addressed by the (depth, slot) pairs assigned by VariableChecker.
+     */
+    public static class Frame {
+        /*
+         * A slot holding UNBOXED keeps its value in ints instead.  The visitor and ClosureCompiler store ints this way.
+         */
+        static final Object UNBOXED = new Object();
+
+        public final Object[] slots;
+        public final Frame parent;
+        int[] ints;
+        public Frame(int size, Frame parent) {
+            this.slots = new Object[size];
             this.parent = parent;
         }
 
-        public Object find(String name) {
-            Object value = mapping.get(name);
-            if(value == null && parent != null) {
-                value = parent.find(name);
-            }
-            return value;
+        public Object get(int slot) {
+            Object value = slots[slot];
+            return value == UNBOXED ? Integer.valueOf(ints[slot]) : value;
         }
 
-        public Optional<Environment> findEnvironment(String name) {
-            if(mapping.containsKey(name))
-                return Optional.of(this);
-            else
-                return parent != null ? parent.findEnvironment(name) : Optional.empty();
+        void setInt(int slot, int value) {
+            if(ints == null) ints = new int[slots.length];
+            ints[slot] = value;
+            slots[slot] = UNBOXED;
         }
 
-        public boolean contains(String name) {
-            boolean contains = mapping.containsKey(name);
-            if(contains)
-                return true;
-            else
-                return parent != null ? parent.contains(name) : false;
+        public Frame lookup(int depth) {
+            Frame frame = this;
+            for(int i = depth; i > 0; i--) {
+                frame = frame.parent;
+            }
+            return frame;
         }
+    }
 
-        public Object register(String name, Object value) {
-            return mapping.put(name, value);
-        }
+    /**
+     * The execution engine that runs a checked program.
+     */
+    public enum Engine {
+        /** walks the Ast directly with this visitor */
+        VISITOR,
+        /** compiles the Ast into a tree of specialized closures first (see ClosureCompiler) */
+        CLOSURE,
+        /** compiles the Ast into a JVM class (see BytecodeCompiler) */
+        BYTECODE,
+        /** compiles the Ast into register code for RegisterMachine (see RegisterCompiler) */
+        VM
+    }
+
+    /*
+     * Returned by a call in tail position instead of its value.  The pending call is left in tailFunction and
+     * tailFrame, and the caller's invocation loop runs it without growing the Java stack.
+     */
+    private static final Object TAIL_CALL = new Object();
+
+    /*
+     * Returned by a let that ends the body of another let instead of running its own body.  The let is left in
+     * reached, and the loop of the outer let runs its body, so that a long run of lets does not grow the Java
+     * stack.
+     */
+    private static final Object NEXT_LET = new Object();
+
+    private final Engine engine;
+    private final Output output;
+    private final Metrics metrics;
+    private final ExecutionLimits limits;
+    private int memoEntries = MemoTable.DEFAULT_ENTRIES;
+    private Budget budget;
+    private Ast.DefFunction tailFunction;
+    private Frame tailFrame;
+    private Ast.LetExpression tailLet, reached;
+    private Frame globals = new Frame(0, null);
+    private Frame frame = globals;
+
+    public Evaluator() {
+        this(Engine.VISITOR);
+    }
+
+    public Evaluator(Engine engine) {
+        this(engine, new Output.Buffered(System.out));
+    }
+
+    public Evaluator(Engine engine, Output output) {
+        this(engine, output, Metrics.NONE);
+    }
+
+    public Evaluator(Engine engine, Output output, Metrics metrics) {
+        this(engine, output, metrics, ExecutionLimits.NONE);
     }
 
-    private Environment environment = new Environment(null);
-    private Map<String, Ast.DefFunction> functions = new HashMap<>();
+    public Evaluator(Engine engine, Output output, Metrics metrics, ExecutionLimits limits) {
+        this.engine = engine;
+        this.output = output;
+        this.metrics = metrics;
+        this.limits = limits;
+    }
+
+    /**
+     * The size of the MemoTable that prepare gives each memoized function, see Memoizer; 0 turns memoization
+     * off.  Returns this evaluator.
+     */
+    public Evaluator memoize(int entries) {
+        this.memoEntries = entries;
+        return this;
+    }
 
     private boolean asBoolean(Object value) {
         return ((Boolean)value).booleanValue();
@@ -49,43 +119,188 @@ public class Evaluator implements Ast.ExpressionVisitor<Object> {
         return ((Integer)value).intValue();
     }
 
+    /*
+     * Whether e is going to produce an int, decided without evaluating it.  Variables answer by what they
+     * currently hold, so this is only meaningful right before e is evaluated.
+     */
+    private boolean producesInt(Ast.Expression e) {
+        if(e.type == Type.INT || e instanceof Ast.IntLiteral) return true;
+        if(e instanceof Ast.Id) {
+            Ast.Id id = (Ast.Id)e;
+            Object value = frame.lookup(id.depth).slots[id.slot];
+            return value == Frame.UNBOXED || value instanceof Integer;
+        }
+        if(e instanceof Ast.BinaryExpression) {
+            Ast.BinaryExpression b = (Ast.BinaryExpression)e;
+            switch (b.operator) {
+                case ADD:
+                    return producesInt(b.lhs) && producesInt(b.rhs);
+                case SUBTRACT:
+                case MULTIPLY:
+                case DIVIDE:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Evaluates e where an int is expected, without boxing intermediate results.
+     */
+    private int evalInt(Ast.Expression e) {
+        if(e instanceof Ast.IntLiteral) {
+            return ((Ast.IntLiteral)e).value;
+        }
+        if(e instanceof Ast.Id) {
+            Ast.Id id = (Ast.Id)e;
+            Frame target = frame.lookup(id.depth);
+            if(target.slots[id.slot] == Frame.UNBOXED) return target.ints[id.slot];
+            return asInt(visitId(id));
+        }
+        if(e instanceof Ast.BinaryExpression) {
+            Ast.BinaryExpression b = (Ast.BinaryExpression)e;
+            switch (b.operator) {
+                // in an int context, ADD only succeeds when both operands are ints
+                case ADD:
+                    return evalInt(b.lhs) + evalInt(b.rhs);
+                case SUBTRACT:
+                    return evalInt(b.lhs) - evalInt(b.rhs);
+                case MULTIPLY:
+                    return evalInt(b.lhs) * evalInt(b.rhs);
+                case DIVIDE:
+                    return evalInt(b.lhs) / evalInt(b.rhs);
+                default:
+                    break;
+            }
+        }
+        if(e instanceof Ast.IndexExpression) {
+            Ast.IndexExpression x = (Ast.IndexExpression)e;
+            Object target = x.target.accept(this);
+            if(producesInt(x.index)) return BytecodeSupport.indexInt(target, evalInt(x.index));
+            return BytecodeSupport.indexToInt(target, x.index.accept(this));
+        }
+        if(e instanceof Ast.LengthExpression) {
+            return BytecodeSupport.length(((Ast.LengthExpression)e).target.accept(this));
+        }
+        return asInt(e.accept(this));
+    }
+
+    /*
+     * Evaluates e where a boolean is expected, without boxing intermediate results.
+     */
+    private boolean evalBoolean(Ast.Expression e) {
+        if(e instanceof Ast.BooleanLiteral) {
+            return ((Ast.BooleanLiteral)e).value;
+        }
+        if(e instanceof Ast.BinaryExpression) {
+            Ast.BinaryExpression b = (Ast.BinaryExpression)e;
+            switch (b.operator) {
+                case LESS_THAN:
+                    return evalInt(b.lhs) < evalInt(b.rhs);
+                case LESS_THAN_OR_EQUAL:
+                    return evalInt(b.lhs) <= evalInt(b.rhs);
+                case GREATER_THAN:
+                    return evalInt(b.lhs) > evalInt(b.rhs);
+                case GREATER_THAN_OR_EQUAL:
+                    return evalInt(b.lhs) >= evalInt(b.rhs);
+                case EQUAL:
+                    return evalEqual(b);
+                case NOT_EQUAL:
+                    return !evalEqual(b);
+                case LOGICAL_AND:
+                    return evalBoolean(b.lhs) && evalBoolean(b.rhs);
+                case LOGCIAL_OR:
+                    return evalBoolean(b.lhs) || evalBoolean(b.rhs);
+                default:
+                    break;
+            }
+        }
+        return asBoolean(e.accept(this));
+    }
+
+    private boolean evalEqual(Ast.BinaryExpression node) {
+        if(producesInt(node.lhs)) {
+            int lhs = evalInt(node.lhs);
+            if(producesInt(node.rhs)) return lhs == evalInt(node.rhs);
+            return Integer.valueOf(lhs).equals(node.rhs.accept(this));
+        }
+        return StringValue.equal(node.lhs.accept(this), node.rhs.accept(this));
+    }
+
+    /*
+     * Evaluates e for its effect only, so that assignments of ints need not box the result.
+     */
+    private void execute(Ast.Expression e) {
+        if(e instanceof Ast.AssignmentExpression) {
+            Ast.AssignmentExpression a = (Ast.AssignmentExpression)e;
+            if(producesInt(a.expression)) {
+                int value = evalInt(a.expression);
+                frame.lookup(a.depth).setInt(a.slot, value);
+                return;
+            }
+        }
+        if(e instanceof Ast.IndexAssignment) {
+            store((Ast.IndexAssignment)e, false);
+            return;
+        }
+        e.accept(this);
+    }
+
+    /*
+     * Stores into an array or a map, without boxing an int index or value.  Returns the value when it is used.
+     */
+    private Object store(Ast.IndexAssignment node, boolean used) {
+        Object target = node.target.accept(this);
+        if(!producesInt(node.index)) {
+            return BytecodeSupport.store(target, node.index.accept(this), node.value.accept(this));
+        }
+        int index = evalInt(node.index);
+        if(producesInt(node.value)) {
+            int value = evalInt(node.value);
+            BytecodeSupport.storeInt(target, index, value);
+            return used ? (Object)value : null;
+        }
+        return BytecodeSupport.store(target, index, node.value.accept(this));
+    }
+
     public Object visitBinaryExpression(Ast.BinaryExpression node) {
         switch (node.operator) {
             case ADD:
-                Object lhs = node.lhs.accept(this);
-                Object rhs = node.rhs.accept(this);
-                if(lhs instanceof String || rhs instanceof String) {
-                    return lhs.toString() + rhs.toString();
-                } else {
-                    return asInt(lhs) + asInt(rhs);
+                if(node.type == Type.STRING) {
+                    return StringValue.concat(node.lhs.accept(this), node.rhs.accept(this));
+                }
+                if(producesInt(node.lhs) && producesInt(node.rhs)) {
+                    return evalInt(node.lhs) + evalInt(node.rhs);
                 }
+                return add(node, node.lhs.accept(this), node.rhs.accept(this));
             case SUBTRACT:
-                return asInt(node.lhs.accept(this)) - asInt(node.rhs.accept(this));
             case MULTIPLY:
-                return asInt(node.lhs.accept(this)) * asInt(node.rhs.accept(this));
             case DIVIDE:
-                return asInt(node.lhs.accept(this)) / asInt(node.rhs.accept(this));
-            case LESS_THAN_OR_EQUAL:
-                return asInt((node.lhs.accept(this))) <= asInt(node.rhs.accept(this));
-            case GREATER_THAN_OR_EQUAL:
-                throw new NotImplementedException("comparing operator " + node.operator.getOp());
-            case LESS_THAN:
-                return asInt((node.lhs.accept(this))) < asInt(node.rhs.accept(this));
-            case GREATER_THAN:
-                throw new NotImplementedException("comparing operator " + node.operator.getOp());
-            case EQUAL:
-                return node.lhs.accept(this).equals(node.rhs.accept(this));
-            case NOT_EQUAL:
-                throw new NotImplementedException("equality operator " + node.operator.getOp());
-            case LOGICAL_AND:
-                throw new NotImplementedException("logical operator " + node.operator.getOp());
-            case LOGCIAL_OR:
-                throw new NotImplementedException("logical operator " + node.operator.getOp());
+                return evalInt(node);
             default:
-                throw new RuntimeException("cannot reach here");
+                return evalBoolean(node);
         }
     }
 
+    private static Object add(Ast.BinaryExpression node, Object lhs, Object rhs) {
+        switch (node.addCache) {
+            case AddCache.INTS:
+                if(lhs instanceof Integer && rhs instanceof Integer) return (Integer)lhs + (Integer)rhs;
+                break;
+            case AddCache.STRINGS:
+                if(lhs instanceof CharSequence && rhs instanceof CharSequence) return StringValue.concat(lhs, rhs);
+                break;
+            case AddCache.GENERIC:
+                return BytecodeSupport.add(lhs, rhs);
+            default:
+                break;
+        }
+        node.addCache = AddCache.next(node.addCache, lhs, rhs);
+        return BytecodeSupport.add(lhs, rhs);
+    }
+
     @Override
     public Integer visitIntLiteral(Ast.IntLiteral node) {
         return node.value;
@@ -103,37 +318,57 @@ public class Evaluator implements Ast.ExpressionVisitor<Object> {
 
     @Override
     public Object visitLetExpression(Ast.LetExpression node) {
-        Object value = node.init.accept(this);
-        if(environment.contains(node.variableName)) {
-            throw new NubRuntimeException("variable " + node.variableName + " is already defined");
-        }
-        Environment backup = environment;
-        this.environment = new Environment(environment);
-        environment.register(node.variableName, value);
-        Object result = node.body.accept(this);
-        this.environment = backup;
+        if(producesInt(node.init)) {
+            int value = evalInt(node.init);
+            frame.setInt(node.slot, value);
+        } else {
+            frame.slots[node.slot] = node.init.accept(this);
+        }
+        if(node == tailLet) {
+            reached = node;
+            return NEXT_LET;
+        }
+        Ast.LetExpression enclosing = tailLet;
+        Ast.LetExpression let = node;
+        Object result;
+        try {
+            while(true) {
+                tailLet = let.next();
+                reached = null;
+                result = let.body.accept(this);
+                if(result != NEXT_LET) break;
+                let = reached;
+            }
+        } finally {
+            tailLet = enclosing;
+        }
+        for(Ast.LetExpression l = node; l != let; l = l.next()) {
+            frame.slots[l.slot] = null;
+        }
+        frame.slots[let.slot] = null;
         return result;
     }
 
     @Override
     public Object visitPrintlnExpression(Ast.PrintlnExpression node) {
         Object value = node.target.accept(this);
-        System.out.println(value);
+        output.println(value);
         return value;
     }
 
     @Override
     public Object visitBlock(Ast.Block node) {
-        Object last = 0;
-        for (Ast.Expression e : node.expressions) {
-            last = e.accept(this);
+        List<Ast.Expression> expressions = node.expressions;
+        int last = expressions.size() - 1;
+        for(int i = 0; i < last; i++) {
+            execute(expressions.get(i));
         }
-        return last;
+        return last >= 0 ? expressions.get(last).accept(this) : (Object)0;
     }
 
     @Override
     public Object visitId(Ast.Id node) {
-        Object ret = environment.find(node.name);
+        Object ret = frame.lookup(node.depth).get(node.slot);
         if (ret == null)
             throw new NubRuntimeException(node.name + " is not defined");
         else
@@ -142,42 +377,177 @@ public class Evaluator implements Ast.ExpressionVisitor<Object> {
 
     @Override
     public Object visitDefFunction(Ast.DefFunction node) {
-        // Nothing to be done
+        // Nothing to be done: calls refer to their DefFunction directly
         return null;
     }
 
     @Override
     public Object visitIfExpression(Ast.IfExpression node) {
-        throw new NotImplementedException("if expression");
+        if(evalBoolean(node.condition)) {
+            return node.thenClause.accept(this);
+        } else {
+            return node.elseClause.accept(this);
+        }
     }
 
     @Override
     public Object visitWhileExpression(Ast.WhileExpression node) {
-        throw new NotImplementedException("while expression");
+        List<Ast.Expression> body = node.body;
+        while(evalBoolean(node.condition)) {
+            for(int i = 0; i < body.size(); i++) {
+                execute(body.get(i));
+            }
+            budget.tick();
+        }
+        return 0;
     }
 
     @Override
     public Object visitAssignmentExpression(Ast.AssignmentExpression node) {
-        throw new NotImplementedException("assignment");
+        Object value = node.expression.accept(this);
+        frame.lookup(node.depth).slots[node.slot] = value;
+        return value;
     }
 
     @Override
     public Object visitFunctionCall(Ast.FunctionCall node) {
-        throw new NotImplementedException("function call");
+        Ast.DefFunction function = node.function;
+        List<Ast.Expression> params = node.params;
+        Frame callee = new Frame(function.body.frameSize, globals);
+        for(int i = 0; i < params.size(); i++) {
+            callee.slots[i] = params.get(i).accept(this);
+        }
+        if(node.tailCall) {
+            tailFunction = function;
+            tailFrame = callee;
+            return TAIL_CALL;
+        }
+        MemoTable memo = function.memo;
+        Object[] key = null;
+        if(memo != null) {
+            Object result = memo.get(callee.slots, 0, params.size());
+            if(result != null) return result;
+            key = memo.key(callee.slots, 0, params.size());
+        }
+        Frame backup = frame;
+        budget.enter();
+        try {
+            while(true) {
+                frame = callee;
+                Object result = invoke(function);
+                if(result != TAIL_CALL) return key == null ? result : memo.put(key, result);
+                function = tailFunction;
+                callee = tailFrame;
+                budget.tick();
+            }
+        } finally {
+            frame = backup;
+            budget.exit();
+        }
     }
 
-    public Object eval(Ast.Block program) {
-        Ast.Block target = program;
+    @Override
+    public Object visitArrayLiteral(Ast.ArrayLiteral node) {
+        List<Ast.Expression> elements = node.elements;
+        ArrayValue array = new ArrayValue(elements.size());
+        for(int i = 0; i < elements.size(); i++) {
+            Ast.Expression e = elements.get(i);
+            if(producesInt(e)) {
+                array.setInt(i, evalInt(e));
+            } else {
+                array.set(i, e.accept(this));
+            }
+        }
+        return array;
+    }
+
+    @Override
+    public Object visitMapLiteral(Ast.MapLiteral node) {
+        MapValue map = new MapValue(node.keys.size());
+        for(int i = 0; i < node.keys.size(); i++) {
+            map.put(node.keys.get(i).accept(this), node.values.get(i).accept(this));
+        }
+        return map;
+    }
+
+    @Override
+    public Object visitIndexExpression(Ast.IndexExpression node) {
+        if(node.type == Type.INT) return evalInt(node);
+        Object target = node.target.accept(this);
+        return BytecodeSupport.index(target, node.index.accept(this));
+    }
+
+    @Override
+    public Object visitIndexAssignment(Ast.IndexAssignment node) {
+        return store(node, true);
+    }
+
+    @Override
+    public Object visitLengthExpression(Ast.LengthExpression node) {
+        return BytecodeSupport.length(node.target.accept(this));
+    }
+
+    /*
+     * Runs the body of a called function in the current frame.  A hook for ProfilingEvaluator.
+     */
+    protected Object invoke(Ast.DefFunction function) {
+        return function.body.accept(this);
+    }
+
+    /*
+     * Copies the program that prepare annotates.  A hook for ProfilingEvaluator.
+     */
+    protected Ast.Copier copier() {
+        return new Ast.Copier();
+    }
+
+    /**
+     * Resolves, types, folds, optimizes loops of and memoizes a program.  The result can be run any number of times with execute.
+     * The passes annotate a copy, so the result shares no node with program, which is left as it was.
+     */
+    public Ast.Block prepare(Ast.Block program) {
         VariableChecker checker = new VariableChecker();
-        target = checker.checkVariable(program);
         Typer typer = new Typer();
-        target = typer.typeCheck(target);
-        for(Ast.Expression top:target.expressions) {
-            if(top instanceof Ast.DefFunction) {
-                Ast.DefFunction f = (Ast.DefFunction)top;
-                functions.put(f.name, f);
-            }
+        Ast.Block target = typer.typeCheck(checker.checkVariable(copier().copy(program)));
+        Ast.Block folded = new ConstantFolder().fold(target);
+        if(folded != target) {
+            target = typer.typeCheck(checker.checkVariable(folded));
         }
+        Ast.Block optimized = new LoopOptimizer().optimize(target);
+        if(optimized != target) {
+            target = typer.typeCheck(checker.checkVariable(optimized));
+        }
+        return new Memoizer(memoEntries).memoize(target);
+    }
+
+    /**
+     * Runs a program returned by prepare, or loaded by AstReader, without checking it again.  To run the same
+     * program many times, or from several threads, compile it once with CompiledProgram instead.
+     */
+    public Object execute(Ast.Block program) {
+        return CompiledProgram.load(program, engine).execute(output, metrics, limits);
+    }
+
+    /*
+     * Walks a checked program with this visitor.  CompiledProgram uses a fresh Evaluator, printing to the
+     * run's Output, for every run.
+     */
+    Object interpret(Ast.Block program, Budget budget) {
+        this.budget = budget;
+        globals = new Frame(program.frameSize, null);
+        frame = globals;
         return program.accept(this);
     }
+
+    public Object eval(Ast.Block program) {
+        long start = System.nanoTime();
+        Ast.Block checked;
+        try {
+            checked = prepare(program);
+        } catch (RuntimeException e) {
+            metrics.executed(program, engine, System.nanoTime() - start, e);
+            throw e;
+        }
+        return execute(checked);
+    }
 }
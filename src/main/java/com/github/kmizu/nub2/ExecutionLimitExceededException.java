@@ -0,0 +1,10 @@
+package com.github.kmizu.nub2;
+
+/**
+ * Thrown when a run goes over one of its ExecutionLimits.
+ */
+public class ExecutionLimitExceededException extends NubRuntimeException {
+    public ExecutionLimitExceededException(String message) {
+        super(message);
+    }
+}
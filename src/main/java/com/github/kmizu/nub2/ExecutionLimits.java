@@ -0,0 +1,50 @@
+package com.github.kmizu.nub2;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds on one run of a program, for scripts that are not trusted.  A run that goes over any of them throws
+ * ExecutionLimitExceededException.
+ *
+ * Steps are counted at loop back-edges and function calls, the only places where a run repeats work, so the
+ * code between two steps is bounded by the size of the program.  The clock and the bytes the running thread
+ * has allocated, which stand in for the size of the values it built, are read every few thousand steps; the
+ * bytes are also read before a string, array or map makes a large allocation, since one value that doubles on
+ * every step would otherwise exhaust the heap between two reads.
+ */
+public final class ExecutionLimits {
+    public static final ExecutionLimits NONE = new ExecutionLimits(Long.MAX_VALUE, 0, Integer.MAX_VALUE, Long.MAX_VALUE);
+
+    public final long steps;
+    /** 0 for no timeout */
+    public final long timeoutNanos;
+    public final int callDepth;
+    public final long allocatedBytes;
+
+    public ExecutionLimits(long steps, long timeoutNanos, int callDepth, long allocatedBytes) {
+        this.steps = steps;
+        this.timeoutNanos = timeoutNanos;
+        this.callDepth = callDepth;
+        this.allocatedBytes = allocatedBytes;
+    }
+
+    public ExecutionLimits withSteps(long steps) {
+        return new ExecutionLimits(steps, timeoutNanos, callDepth, allocatedBytes);
+    }
+
+    public ExecutionLimits withTimeout(long timeout, TimeUnit unit) {
+        return new ExecutionLimits(steps, unit.toNanos(timeout), callDepth, allocatedBytes);
+    }
+
+    public ExecutionLimits withCallDepth(int callDepth) {
+        return new ExecutionLimits(steps, timeoutNanos, callDepth, allocatedBytes);
+    }
+
+    public ExecutionLimits withAllocatedBytes(long allocatedBytes) {
+        return new ExecutionLimits(steps, timeoutNanos, callDepth, allocatedBytes);
+    }
+
+    Budget start() {
+        return new Budget(this);
+    }
+}
@@ -0,0 +1,269 @@
+package com.github.kmizu.nub2;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Splits source text into tokens on demand.
+ *
+ * Only the current token is kept, and the input is read through a fixed-size buffer, so memory use does not
+ * depend on the length of the source.  Identifiers are interned so that every occurrence of a name shares
+ * one String.
+ */
+public class Lexer {
+    public enum Token {
+        INT, STRING, IDENT,
+        LET("let"), DEF("def"), IF("if"), ELSE("else"), WHILE("while"), PRINT("print"), TRUE("true"), FALSE("false"),
+        LENGTH("length"),
+        LPAREN("("), RPAREN(")"), LBRACE("{"), RBRACE("}"), LBRACKET("["), RBRACKET("]"), COMMA(","), COLON(":"),
+        SEMICOLON(";"), ASSIGN("="),
+        PLUS("+"), MINUS("-"), STAR("*"), SLASH("/"),
+        LT("<"), LE("<="), GT(">"), GE(">="), EQ("=="), NE("!="), AND("&&"), OR("||"),
+        EOF;
+
+        private final String text;
+        Token() {
+            this(null);
+        }
+        Token(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public String toString() {
+            return text != null ? "`" + text + "`" : name().toLowerCase();
+        }
+    }
+
+    private static final Map<String, Token> keywords = new HashMap<>();
+    static {
+        for(Token t:Token.values()) {
+            if(t.text != null && Character.isLetter(t.text.charAt(0))) keywords.put(t.text, t);
+        }
+    }
+
+    private final Reader reader;
+    private final char[] buffer = new char[8192];
+    private int position, limit;
+    private final Map<String, String> names = new HashMap<>();
+    private final StringBuilder text = new StringBuilder();
+    private int line = 1, column = 1;
+
+    private Token token;
+    private String value;
+    private long number;
+    private int tokenLine, tokenColumn;
+
+    public Lexer(Reader reader) {
+        this.reader = reader;
+        next();
+    }
+
+    public Token token() {
+        return token;
+    }
+
+    /**
+     * The name of an IDENT or the contents of a STRING.
+     */
+    public String value() {
+        return value;
+    }
+
+    /**
+     * The value of an INT.  It may be Integer.MAX_VALUE + 1, which is only valid right after a minus sign.
+     */
+    public long number() {
+        return number;
+    }
+
+    public int line() {
+        return tokenLine;
+    }
+
+    public int column() {
+        return tokenColumn;
+    }
+
+    private int peekChar() {
+        if(position == limit) {
+            try {
+                int n;
+                do {
+                    n = reader.read(buffer, 0, buffer.length);
+                } while(n == 0);
+                if(n < 0) return -1;
+                position = 0;
+                limit = n;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return buffer[position];
+    }
+
+    private int readChar() {
+        int c = peekChar();
+        if(c < 0) return c;
+        position++;
+        if(c == '\n') {
+            line++;
+            column = 1;
+        } else {
+            column++;
+        }
+        return c;
+    }
+
+    private boolean accept(char expected) {
+        if(peekChar() == expected) {
+            readChar();
+            return true;
+        }
+        return false;
+    }
+
+    private ParseException error(String message) {
+        return new ParseException(message, line, column);
+    }
+
+    private void skipSpaces() {
+        while(true) {
+            int c = peekChar();
+            if(c != ' ' && c != '\t' && c != '\r' && c != '\n') return;
+            readChar();
+        }
+    }
+
+    /**
+     * Advances to the next token.
+     */
+    public void next() {
+        skipSpaces();
+        tokenLine = line;
+        tokenColumn = column;
+        value = null;
+        int c = readChar();
+        while(c == '/' && peekChar() == '/') {
+            while(c >= 0 && c != '\n') {
+                c = readChar();
+            }
+            skipSpaces();
+            tokenLine = line;
+            tokenColumn = column;
+            c = readChar();
+        }
+        if(c < 0) {
+            token = Token.EOF;
+            return;
+        }
+        switch (c) {
+            case '(': token = Token.LPAREN; return;
+            case ')': token = Token.RPAREN; return;
+            case '{': token = Token.LBRACE; return;
+            case '}': token = Token.RBRACE; return;
+            case '[': token = Token.LBRACKET; return;
+            case ']': token = Token.RBRACKET; return;
+            case ':': token = Token.COLON; return;
+            case ',': token = Token.COMMA; return;
+            case ';': token = Token.SEMICOLON; return;
+            case '+': token = Token.PLUS; return;
+            case '-': token = Token.MINUS; return;
+            case '*': token = Token.STAR; return;
+            case '/': token = Token.SLASH; return;
+            case '<': token = accept('=') ? Token.LE : Token.LT; return;
+            case '>': token = accept('=') ? Token.GE : Token.GT; return;
+            case '=': token = accept('=') ? Token.EQ : Token.ASSIGN; return;
+            case '!':
+                if(accept('=')) {
+                    token = Token.NE;
+                    return;
+                }
+                break;
+            case '&':
+                if(accept('&')) {
+                    token = Token.AND;
+                    return;
+                }
+                break;
+            case '|':
+                if(accept('|')) {
+                    token = Token.OR;
+                    return;
+                }
+                break;
+            case '"':
+                readString();
+                return;
+            default:
+                if(c >= '0' && c <= '9') {
+                    readInt(c);
+                    return;
+                }
+                if(Character.isJavaIdentifierStart(c)) {
+                    readIdentifier(c);
+                    return;
+                }
+        }
+        throw new ParseException("unexpected character `" + (char)c + "`", tokenLine, tokenColumn);
+    }
+
+    private void readInt(int first) {
+        long n = first - '0';
+        while(true) {
+            int c = peekChar();
+            if(c < '0' || c > '9') break;
+            readChar();
+            n = n * 10 + (c - '0');
+            if(n > Integer.MAX_VALUE + 1L) throw error("integer literal is too large");
+        }
+        token = Token.INT;
+        number = n;
+    }
+
+    private void readIdentifier(int first) {
+        text.setLength(0);
+        text.append((char)first);
+        while(true) {
+            int c = peekChar();
+            if(c < 0 || !Character.isJavaIdentifierPart(c)) break;
+            text.append((char)readChar());
+        }
+        String name = text.toString();
+        Token keyword = keywords.get(name);
+        if(keyword != null) {
+            token = keyword;
+            return;
+        }
+        String interned = names.putIfAbsent(name, name);
+        token = Token.IDENT;
+        value = interned != null ? interned : name;
+    }
+
+    private void readString() {
+        text.setLength(0);
+        while(true) {
+            int c = readChar();
+            if(c < 0 || c == '\n') throw error("unterminated string literal");
+            if(c == '"') break;
+            if(c == '\\') {
+                c = readChar();
+                switch (c) {
+                    case 'n': text.append('\n'); break;
+                    case 't': text.append('\t'); break;
+                    case 'r': text.append('\r'); break;
+                    case '"': text.append('"'); break;
+                    case '\\': text.append('\\'); break;
+                    default: throw error("unknown escape sequence");
+                }
+            } else {
+                text.append((char)c);
+            }
+        }
+        token = Token.STRING;
+        value = text.toString();
+    }
+}
@@ -0,0 +1,518 @@
+package com.github.kmizu.nub2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Moves work out of while loops.
+ *
+ * Loop-invariant subexpressions are hoisted into a let around the loop, named $inv0, $inv1 and so on.  An
+ * expression is invariant when every variable it reads is local to the current frame and neither assigned nor
+ * declared anywhere in the loop.  Only expressions that cannot fail and have no effect are hoisted, since the
+ * let evaluates them even when the loop does not run: division is never hoisted, and other operators only when
+ * Typer proved the operand types they need.
+ *
+ * Multiplications i * k of an induction variable i, assigned once per iteration by a statement i = i + c in
+ * the loop body, by a literal k are strength-reduced when the loop uses them more than once: a variable $srN
+ * starts as i * k before the loop and grows by c * k right after that statement, which stays exact under int
+ * overflow.
+ *
+ * Loops that call or define a function are left alone, since the callee may assign the variables the loop
+ * reads.  Runs after Typer, whose types it reads; like ConstantFolder it returns a node unchanged when nothing
+ * under it changed, and a changed program has to go through VariableChecker and Typer again.
+ */
+public class LoopOptimizer implements Ast.ExpressionVisitor<Ast.Expression> {
+    private int invariants;
+    private int reductions;
+    // the variable names of the program, which the new variables must not take
+    private final Set<String> taken = new HashSet<>();
+
+    /*
+     * What a loop reads, writes and declares, including its nested loops
+     */
+    private static final class Effects extends Ast.Traverser {
+        final Map<String, Integer> assigned = new HashMap<>();
+        final Set<String> declared = new HashSet<>();
+        boolean calls;
+
+        @Override
+        public Object visitAssignmentExpression(Ast.AssignmentExpression node) {
+            assigned.merge(node.variableName, 1, Integer::sum);
+            return super.visitAssignmentExpression(node);
+        }
+
+        @Override
+        public Object visitLetExpression(Ast.LetExpression node) {
+            declared.add(node.variableName);
+            return super.visitLetExpression(node);
+        }
+
+        @Override
+        public Object visitFunctionCall(Ast.FunctionCall node) {
+            calls = true;
+            return null;
+        }
+
+        @Override
+        public Object visitDefFunction(Ast.DefFunction node) {
+            calls = true;
+            return null;
+        }
+
+        boolean isStable(Ast.Id id) {
+            return id.depth == 0 && !assigned.containsKey(id.name) && !declared.contains(id.name);
+        }
+    }
+
+    /*
+     * Rebuilds the tree of one loop through replace, which sees every binary expression before its operands.
+     * Nested loops are only rebuilt, not optimized again.
+     */
+    private static abstract class Rewriter extends LoopOptimizer {
+        abstract Ast.Expression replace(Ast.Expression e);
+
+        @Override
+        public Ast.Expression visitBinaryExpression(Ast.BinaryExpression node) {
+            Ast.Expression replaced = replace(node);
+            if(replaced != node) return replaced;
+            return rebuild(node, node.lhs.accept(this), node.rhs.accept(this));
+        }
+
+        @Override
+        public Ast.Expression visitWhileExpression(Ast.WhileExpression node) {
+            return rebuild(node, node.condition.accept(this), rewrite(new Ast.Block(node.body)).expressions);
+        }
+    }
+
+    private static Ast.Expression rebuild(Ast.BinaryExpression node, Ast.Expression lhs, Ast.Expression rhs) {
+        if(lhs == node.lhs && rhs == node.rhs) return node;
+        Ast.BinaryExpression result = new Ast.BinaryExpression(node.operator, lhs, rhs);
+        result.type = node.type;
+        return result;
+    }
+
+    private static Ast.Expression rebuild(Ast.WhileExpression node, Ast.Expression condition, List<Ast.Expression> body) {
+        if(condition == node.condition && body.equals(node.body)) return node;
+        return new Ast.WhileExpression(condition, new ArrayList<>(body));
+    }
+
+    /*
+     * Whether e can be evaluated ahead of the loop: it reads only stable variables and cannot fail
+     */
+    private static boolean isInvariant(Ast.Expression e, Effects effects) {
+        if(e instanceof Ast.IntLiteral || e instanceof Ast.BooleanLiteral || e instanceof Ast.StringLiteral) return true;
+        if(e instanceof Ast.Id) return effects.isStable((Ast.Id)e);
+        if(!(e instanceof Ast.BinaryExpression)) return false;
+        Ast.BinaryExpression b = (Ast.BinaryExpression)e;
+        if(!isInvariant(b.lhs, effects) || !isInvariant(b.rhs, effects)) return false;
+        switch (b.operator) {
+            case ADD:
+                return b.type == Type.INT || b.type == Type.STRING;
+            case SUBTRACT:
+            case MULTIPLY:
+            case LESS_THAN:
+            case LESS_THAN_OR_EQUAL:
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQUAL:
+                return b.lhs.type == Type.INT && b.rhs.type == Type.INT;
+            case EQUAL:
+            case NOT_EQUAL:
+                return true;
+            case LOGICAL_AND:
+            case LOGCIAL_OR:
+                return b.lhs.type == Type.BOOLEAN && b.rhs.type == Type.BOOLEAN;
+            default:
+                return false;
+        }
+    }
+
+    /*
+     * Structural equality of invariant expressions, so that each is hoisted once
+     */
+    private static boolean same(Ast.Expression a, Ast.Expression b) {
+        if(a instanceof Ast.IntLiteral && b instanceof Ast.IntLiteral) return ((Ast.IntLiteral)a).value == ((Ast.IntLiteral)b).value;
+        if(a instanceof Ast.BooleanLiteral && b instanceof Ast.BooleanLiteral) return ((Ast.BooleanLiteral)a).value == ((Ast.BooleanLiteral)b).value;
+        if(a instanceof Ast.StringLiteral && b instanceof Ast.StringLiteral) return ((Ast.StringLiteral)a).value.equals(((Ast.StringLiteral)b).value);
+        if(a instanceof Ast.Id && b instanceof Ast.Id) return ((Ast.Id)a).name.equals(((Ast.Id)b).name);
+        if(a instanceof Ast.BinaryExpression && b instanceof Ast.BinaryExpression) {
+            Ast.BinaryExpression x = (Ast.BinaryExpression)a, y = (Ast.BinaryExpression)b;
+            return x.operator == y.operator && same(x.lhs, y.lhs) && same(x.rhs, y.rhs);
+        }
+        return false;
+    }
+
+    /*
+     * The step c of a body statement i = i + c, i = c + i or i = i - c over an int variable i, or null
+     */
+    private static Integer step(Ast.Expression statement, Effects effects) {
+        if(!(statement instanceof Ast.AssignmentExpression)) return null;
+        Ast.AssignmentExpression a = (Ast.AssignmentExpression)statement;
+        if(a.depth != 0 || effects.assigned.get(a.variableName) != 1 || effects.declared.contains(a.variableName)) return null;
+        if(!(a.expression instanceof Ast.BinaryExpression)) return null;
+        Ast.BinaryExpression b = (Ast.BinaryExpression)a.expression;
+        if(b.type != Type.INT) return null;
+        if(b.operator == Ast.BinaryOperator.ADD || b.operator == Ast.BinaryOperator.SUBTRACT) {
+            if(isVariable(b.lhs, a.variableName) && b.rhs instanceof Ast.IntLiteral) {
+                int c = ((Ast.IntLiteral)b.rhs).value;
+                return b.operator == Ast.BinaryOperator.ADD ? c : -c;
+            }
+            if(b.operator == Ast.BinaryOperator.ADD && b.lhs instanceof Ast.IntLiteral && isVariable(b.rhs, a.variableName)) {
+                return ((Ast.IntLiteral)b.lhs).value;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isVariable(Ast.Expression e, String name) {
+        return e instanceof Ast.Id && ((Ast.Id)e).name.equals(name) && ((Ast.Id)e).depth == 0 && e.type == Type.INT;
+    }
+
+    /*
+     * The variable of a multiplication i * k or k * i of an induction variable i by a literal k, or null
+     */
+    private static Ast.Id inductionFactor(Ast.BinaryExpression b, Map<String, Integer> steps) {
+        if(b.operator != Ast.BinaryOperator.MULTIPLY) return null;
+        Ast.Expression variable = b.lhs instanceof Ast.IntLiteral ? b.rhs : b.lhs;
+        Ast.Expression factor = b.lhs instanceof Ast.IntLiteral ? b.lhs : b.rhs;
+        if(!(factor instanceof Ast.IntLiteral) || !(variable instanceof Ast.Id)) return null;
+        String name = ((Ast.Id)variable).name;
+        return steps.containsKey(name) && isVariable(variable, name) ? (Ast.Id)variable : null;
+    }
+
+    private static int factor(Ast.BinaryExpression b) {
+        return ((Ast.IntLiteral)(b.lhs instanceof Ast.IntLiteral ? b.lhs : b.rhs)).value;
+    }
+
+    private static Ast.Expression let(String name, Ast.Expression init, Ast.Expression body) {
+        return new Ast.LetExpression(name, init, new Ast.Block(Collections.listOf(body)));
+    }
+
+    private static Ast.Expression intLiteral(int value) {
+        Ast.Expression literal = new Ast.IntLiteral(value);
+        literal.type = Type.INT;
+        return literal;
+    }
+
+    private static Ast.Expression id(String name, Type type) {
+        Ast.Id id = new Ast.Id(name);
+        id.type = type;
+        id.depth = 0;
+        return id;
+    }
+
+    /*
+     * Replaces each i * k by a variable kept equal to it, and returns the lets that introduce them around loop
+     */
+    private Ast.WhileExpression reduce(Ast.WhileExpression loop, Effects effects, List<String> names, List<Ast.Expression> inits) {
+        Map<String, Integer> steps = new HashMap<>();
+        for(Ast.Expression statement:loop.body) {
+            Integer c = step(statement, effects);
+            if(c != null) steps.put(((Ast.AssignmentExpression)statement).variableName, c);
+        }
+        if(steps.isEmpty()) return loop;
+        // a product used once is left alone: updating its variable costs as much as the multiplication saved
+        Map<String, Integer> uses = new HashMap<>();
+        loop.accept(new Ast.Traverser() {
+            @Override
+            public Object visitBinaryExpression(Ast.BinaryExpression node) {
+                Ast.Id variable = inductionFactor(node, steps);
+                if(variable != null) uses.merge(variable.name + " " + factor(node), 1, Integer::sum);
+                return super.visitBinaryExpression(node);
+            }
+        });
+        // the variable for each product, by induction variable and factor
+        Map<String, Map<Integer, String>> products = new HashMap<>();
+        Rewriter rewriter = new Rewriter() {
+            @Override
+            Ast.Expression replace(Ast.Expression e) {
+                Ast.Id variable = inductionFactor((Ast.BinaryExpression)e, steps);
+                if(variable == null) return e;
+                String name = variable.name;
+                int k = factor((Ast.BinaryExpression)e);
+                if(uses.get(name + " " + k) < 2) return e;
+                String reduced = products.computeIfAbsent(name, n -> new HashMap<>()).get(k);
+                if(reduced == null) {
+                    reduced = "$sr" + reductions++;
+                    while(taken.contains(reduced)) reduced = "$sr" + reductions++;
+                    products.get(name).put(k, reduced);
+                    Ast.BinaryExpression init = new Ast.BinaryExpression(Ast.BinaryOperator.MULTIPLY, id(name, Type.INT), intLiteral(k));
+                    init.type = Type.INT;
+                    names.add(reduced);
+                    inits.add(init);
+                }
+                return id(reduced, Type.INT);
+            }
+        };
+        Ast.Expression condition = loop.condition.accept(rewriter);
+        List<Ast.Expression> body = new ArrayList<>();
+        for(Ast.Expression statement:loop.body) {
+            body.add(statement.accept(rewriter));
+            if(!(statement instanceof Ast.AssignmentExpression)) continue;
+            String name = ((Ast.AssignmentExpression)statement).variableName;
+            Map<Integer, String> reduced = products.get(name);
+            if(reduced == null || !steps.containsKey(name)) continue;
+            for(Map.Entry<Integer, String> product:reduced.entrySet()) {
+                Ast.BinaryExpression next = new Ast.BinaryExpression(Ast.BinaryOperator.ADD, id(product.getValue(), Type.INT), intLiteral(steps.get(name) * product.getKey()));
+                next.type = Type.INT;
+                body.add(new Ast.AssignmentExpression(product.getValue(), next));
+            }
+        }
+        if(products.isEmpty()) return loop;
+        return new Ast.WhileExpression(condition, body);
+    }
+
+    /*
+     * Replaces the largest invariant subexpressions of the loop by variables, and records their lets
+     */
+    private Ast.Expression hoist(Ast.WhileExpression loop, Effects effects, List<String> names, List<Ast.Expression> inits) {
+        List<Ast.Expression> hoisted = new ArrayList<>();
+        List<String> hoistedNames = new ArrayList<>();
+        Rewriter rewriter = new Rewriter() {
+            @Override
+            Ast.Expression replace(Ast.Expression e) {
+                if(!isInvariant(e, effects)) return e;
+                for(int i = 0; i < hoisted.size(); i++) {
+                    if(same(hoisted.get(i), e)) return id(hoistedNames.get(i), e.type);
+                }
+                String name = "$inv" + invariants++;
+                while(taken.contains(name)) name = "$inv" + invariants++;
+                hoisted.add(e);
+                hoistedNames.add(name);
+                return id(name, e.type);
+            }
+        };
+        Ast.Expression result = loop.accept(rewriter);
+        names.addAll(hoistedNames);
+        inits.addAll(hoisted);
+        return result;
+    }
+
+    private Ast.Expression optimizeLoop(Ast.WhileExpression loop) {
+        Effects effects = new Effects();
+        loop.accept(effects);
+        if(effects.calls) return loop;
+        List<String> names = new ArrayList<>();
+        List<Ast.Expression> inits = new ArrayList<>();
+        Ast.WhileExpression reduced = reduce(loop, effects, names, inits);
+        if(reduced != loop) {
+            // the variables of the reductions are assigned in the loop as well
+            effects = new Effects();
+            reduced.accept(effects);
+        }
+        Ast.Expression result = hoist(reduced, effects, names, inits);
+        for(int i = names.size() - 1; i >= 0; i--) {
+            result = let(names.get(i), inits.get(i), result);
+        }
+        return result;
+    }
+
+    Ast.Block rewrite(Ast.Block node) {
+        List<Ast.Expression> expressions = new ArrayList<>();
+        return rewriteExpressions(node, node.expressions.size(), expressions) ? new Ast.Block(expressions) : node;
+    }
+
+    /*
+     * Adds the first end expressions of node, after visiting each, to rewritten and tells whether any changed
+     */
+    private boolean rewriteExpressions(Ast.Block node, int end, List<Ast.Expression> rewritten) {
+        boolean changed = false;
+        for(int i = 0; i < end; i++) {
+            Ast.Expression e = node.expressions.get(i);
+            Ast.Expression r = e.accept(this);
+            changed |= r != e;
+            rewritten.add(r);
+        }
+        return changed;
+    }
+
+    /*
+     * The expressions after visiting each, or the same list when none changed
+     */
+    private List<Ast.Expression> rewriteAll(List<Ast.Expression> expressions) {
+        List<Ast.Expression> result = new ArrayList<>();
+        boolean changed = false;
+        for(Ast.Expression e:expressions) {
+            Ast.Expression r = e.accept(this);
+            changed |= r != e;
+            result.add(r);
+        }
+        return changed ? result : expressions;
+    }
+
+    @Override
+    public Ast.Expression visitBinaryExpression(Ast.BinaryExpression node) {
+        return rebuild(node, node.lhs.accept(this), node.rhs.accept(this));
+    }
+
+    @Override
+    public Ast.Expression visitIntLiteral(Ast.IntLiteral node) {
+        return node;
+    }
+
+    @Override
+    public Ast.Expression visitBooleanLiteral(Ast.BooleanLiteral node) {
+        return node;
+    }
+
+    @Override
+    public Ast.Expression visitStringLiteral(Ast.StringLiteral node) {
+        return node;
+    }
+
+    @Override
+    public Ast.Expression visitLetExpression(Ast.LetExpression node) {
+        // a run of lets is visited in one loop, then rebuilt from the last let up
+        List<Ast.LetExpression> lets = new ArrayList<>();
+        List<Ast.Expression> inits = new ArrayList<>();
+        List<List<Ast.Expression>> befores = new ArrayList<>();
+        List<Boolean> changes = new ArrayList<>();
+        for(Ast.LetExpression let = node; let != null; let = let.next()) {
+            List<Ast.Expression> before = new ArrayList<>();
+            int size = let.inner().expressions.size();
+            lets.add(let);
+            inits.add(let.init.accept(this));
+            changes.add(rewriteExpressions(let.inner(), let.next() == null ? size : size - 1, before));
+            befores.add(before);
+        }
+        Ast.Expression result = null;
+        for(int i = lets.size() - 1; i >= 0; i--) {
+            Ast.LetExpression let = lets.get(i);
+            boolean changed = changes.get(i) || inits.get(i) != let.init;
+            if(result != null) {
+                changed |= result != lets.get(i + 1);
+                befores.get(i).add(result);
+            }
+            result = changed ? new Ast.LetExpression(let.variableName, inits.get(i), new Ast.Block(befores.get(i))) : let;
+        }
+        return result;
+    }
+
+    @Override
+    public Ast.Expression visitId(Ast.Id node) {
+        return node;
+    }
+
+    @Override
+    public Ast.Expression visitBlock(Ast.Block node) {
+        return rewrite(node);
+    }
+
+    @Override
+    public Ast.Expression visitIfExpression(Ast.IfExpression node) {
+        Ast.Expression condition = node.condition.accept(this);
+        Ast.Block thenClause = rewrite(node.thenClause);
+        Ast.Block elseClause = rewrite(node.elseClause);
+        if(condition == node.condition && thenClause == node.thenClause && elseClause == node.elseClause) return node;
+        return new Ast.IfExpression(condition, thenClause, elseClause);
+    }
+
+    @Override
+    public Ast.Expression visitWhileExpression(Ast.WhileExpression node) {
+        // inner loops first, so that what they hoisted can move further out
+        Ast.Expression inner = rebuild(node, node.condition.accept(this), rewrite(new Ast.Block(node.body)).expressions);
+        return optimizeLoop((Ast.WhileExpression)inner);
+    }
+
+    @Override
+    public Ast.Expression visitAssignmentExpression(Ast.AssignmentExpression node) {
+        Ast.Expression expression = node.expression.accept(this);
+        if(expression == node.expression) return node;
+        return new Ast.AssignmentExpression(node.variableName, expression);
+    }
+
+    @Override
+    public Ast.Expression visitPrintlnExpression(Ast.PrintlnExpression node) {
+        Ast.Expression target = node.target.accept(this);
+        if(target == node.target) return node;
+        return new Ast.PrintlnExpression(target);
+    }
+
+    @Override
+    public Ast.Expression visitDefFunction(Ast.DefFunction node) {
+        Ast.Block body = rewrite(node.body);
+        if(body == node.body) return node;
+        return new Ast.DefFunction(node.name, node.args, body);
+    }
+
+    @Override
+    public Ast.Expression visitFunctionCall(Ast.FunctionCall node) {
+        List<Ast.Expression> params = rewriteAll(node.params);
+        return params == node.params ? node : new Ast.FunctionCall(node.name, params);
+    }
+
+    @Override
+    public Ast.Expression visitArrayLiteral(Ast.ArrayLiteral node) {
+        List<Ast.Expression> elements = rewriteAll(node.elements);
+        return elements == node.elements ? node : new Ast.ArrayLiteral(elements);
+    }
+
+    @Override
+    public Ast.Expression visitMapLiteral(Ast.MapLiteral node) {
+        List<Ast.Expression> keys = rewriteAll(node.keys);
+        List<Ast.Expression> values = rewriteAll(node.values);
+        if(keys == node.keys && values == node.values) return node;
+        return new Ast.MapLiteral(keys, values);
+    }
+
+    @Override
+    public Ast.Expression visitIndexExpression(Ast.IndexExpression node) {
+        Ast.Expression target = node.target.accept(this);
+        Ast.Expression index = node.index.accept(this);
+        if(target == node.target && index == node.index) return node;
+        return new Ast.IndexExpression(target, index);
+    }
+
+    @Override
+    public Ast.Expression visitIndexAssignment(Ast.IndexAssignment node) {
+        Ast.Expression target = node.target.accept(this);
+        Ast.Expression index = node.index.accept(this);
+        Ast.Expression value = node.value.accept(this);
+        if(target == node.target && index == node.index && value == node.value) return node;
+        return new Ast.IndexAssignment(target, index, value);
+    }
+
+    @Override
+    public Ast.Expression visitLengthExpression(Ast.LengthExpression node) {
+        Ast.Expression target = node.target.accept(this);
+        if(target == node.target) return node;
+        return new Ast.LengthExpression(target);
+    }
+
+    /**
+     * Optimizes the loops of a program that has been through VariableChecker and Typer.  When the result is
+     * a different object it has to go through both passes again.
+     */
+    public Ast.Block optimize(Ast.Block program) {
+        // $ may start an identifier, so a program can already use the names given to new variables
+        program.accept(new Ast.Traverser() {
+            @Override
+            public Object visitLetExpression(Ast.LetExpression node) {
+                taken.add(node.variableName);
+                return super.visitLetExpression(node);
+            }
+
+            @Override
+            public Object visitId(Ast.Id node) {
+                taken.add(node.name);
+                return null;
+            }
+
+            @Override
+            public Object visitAssignmentExpression(Ast.AssignmentExpression node) {
+                taken.add(node.variableName);
+                return super.visitAssignmentExpression(node);
+            }
+
+            @Override
+            public Object visitDefFunction(Ast.DefFunction node) {
+                taken.addAll(node.args);
+                return super.visitDefFunction(node);
+            }
+        });
+        return rewrite(program);
+    }
+}
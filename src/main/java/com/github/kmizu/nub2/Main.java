@@ -1,11 +1,40 @@
 package com.github.kmizu.nub2;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
 import static com.github.kmizu.nub2.Ast.*;
 import static com.github.kmizu.nub2.Ast.Factory.*;
 
 public class Main {
     public static void main(String[] args) {
         Evaluator evaluator = new Evaluator();
+        if(args.length == 3 && args[0].equals("-c")) {
+            AstWriter.write(evaluator.prepare(Parser.parse(Paths.get(args[1]))), Paths.get(args[2]));
+            return;
+        }
+        if(args.length == 3 && args[0].equals("-p")) {
+            ProfilingEvaluator profiler = new ProfilingEvaluator();
+            profiler.eval(Parser.parse(Paths.get(args[1])));
+            System.err.print(profiler.report());
+            try {
+                Files.write(Paths.get(args[2]), profiler.collapsedStacks(false).getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return;
+        }
+        if(args.length > 0) {
+            if(args[0].endsWith(".nubc")) {
+                evaluator.execute(AstReader.read(Paths.get(args[0])));
+            } else {
+                evaluator.eval(Parser.parse(Paths.get(args[0])));
+            }
+            return;
+        }
         evaluator.eval(
                 tBlock(
                         tPrintln(tString("Hello, World"))
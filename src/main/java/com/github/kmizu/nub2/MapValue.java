@@ -0,0 +1,194 @@
+package com.github.kmizu.nub2;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The value of [k1: v1, k2: v2, ...]: a map that keeps its keys in insertion order.
+ *
+ * While every key is an int the entries live in parallel arrays in insertion order, found through an
+ * open-addressing table of entry numbers with linear probing, and while every value is an int as well those
+ * are kept in an int[], so getInt and putInt neither box nor allocate.  The first key of another type moves
+ * the entries to a LinkedHashMap for good; strings are flattened before they are used as keys.  Reading a
+ * missing key is an error.  Maps compare by identity.
+ */
+public final class MapValue {
+    private int[] table;
+    private int[] keys;
+    private int[] ints;
+    private Object[] objects;
+    private int size;
+    private Map<Object, Object> generic;
+
+    public MapValue(int capacity) {
+        int entries = Math.max(capacity, 4);
+        Budget.charge(24L * entries);
+        table = new int[Integer.highestOneBit(entries - 1) << 2];
+        keys = new int[entries];
+        ints = new int[entries];
+    }
+
+    public MapValue() {
+        this(4);
+    }
+
+    public int size() {
+        return generic == null ? size : generic.size();
+    }
+
+    /**
+     * Whether the keys are still kept unboxed.
+     */
+    public boolean isIntMap() {
+        return generic == null;
+    }
+
+    private static int slot(int key, int mask) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /*
+     * The entry number of key, or -1
+     */
+    private int find(int key) {
+        int mask = table.length - 1;
+        for(int i = slot(key, mask); table[i] != 0; i = (i + 1) & mask) {
+            if(keys[table[i] - 1] == key) return table[i] - 1;
+        }
+        return -1;
+    }
+
+    /*
+     * The entry number of key, adding an entry whose value is still to be set when there is none
+     */
+    private int insert(int key) {
+        int mask = table.length - 1;
+        int i = slot(key, mask);
+        for(; table[i] != 0; i = (i + 1) & mask) {
+            if(keys[table[i] - 1] == key) return table[i] - 1;
+        }
+        if(size == keys.length) {
+            Budget.charge(16L * size);
+            keys = Arrays.copyOf(keys, size * 2);
+            if(objects == null) {
+                ints = Arrays.copyOf(ints, size * 2);
+            } else {
+                objects = Arrays.copyOf(objects, size * 2);
+            }
+        }
+        keys[size] = key;
+        table[i] = ++size;
+        // at most half of the table is used
+        if(size * 2 > table.length) rehash(table.length * 2);
+        return size - 1;
+    }
+
+    private void rehash(int capacity) {
+        Budget.charge(4L * capacity);
+        table = new int[capacity];
+        int mask = capacity - 1;
+        for(int entry = 0; entry < size; entry++) {
+            int i = slot(keys[entry], mask);
+            while(table[i] != 0) i = (i + 1) & mask;
+            table[i] = entry + 1;
+        }
+    }
+
+    private void box() {
+        Budget.charge(24L * size);
+        Object[] boxed = new Object[keys.length];
+        for(int i = 0; i < size; i++) {
+            boxed[i] = ints[i];
+        }
+        objects = boxed;
+        ints = null;
+    }
+
+    private void generalize() {
+        Budget.charge(64L * size);
+        generic = new LinkedHashMap<>();
+        for(int i = 0; i < size; i++) {
+            generic.put(keys[i], objects == null ? Integer.valueOf(ints[i]) : objects[i]);
+        }
+        table = keys = ints = null;
+        objects = null;
+    }
+
+    private static NubRuntimeException missing(Object key) {
+        return new NubRuntimeException("key " + key + " is not in the map");
+    }
+
+    public Object get(Object key) {
+        if(generic == null) {
+            if(!(key instanceof Integer)) throw missing(key);
+            int entry = find((Integer)key);
+            if(entry < 0) throw missing(key);
+            return objects == null ? Integer.valueOf(ints[entry]) : objects[entry];
+        }
+        Object value = generic.get(StringValue.flatten(key));
+        if(value == null) throw missing(key);
+        return value;
+    }
+
+    public int getInt(int key) {
+        if(generic != null) return (Integer)get(key);
+        int entry = find(key);
+        if(entry < 0) throw missing(key);
+        return objects == null ? ints[entry] : (Integer)objects[entry];
+    }
+
+    public void put(Object key, Object value) {
+        if(generic == null && key instanceof Integer) {
+            if(value instanceof Integer) {
+                putInt((Integer)key, (Integer)value);
+                return;
+            }
+            int entry = insert((Integer)key);
+            if(objects == null) box();
+            objects[entry] = value;
+            return;
+        }
+        if(generic == null) generalize();
+        generic.put(StringValue.flatten(key), value);
+    }
+
+    public void putInt(int key, int value) {
+        if(generic != null) {
+            generic.put(key, value);
+            return;
+        }
+        int entry = insert(key);
+        if(objects == null) {
+            ints[entry] = value;
+        } else {
+            objects[entry] = value;
+        }
+    }
+
+    @Override
+    public String toString() {
+        if(size() == 0) return "[:]";
+        StringBuilder builder = new StringBuilder("[");
+        if(generic == null) {
+            for(int i = 0; i < size; i++) {
+                if(i > 0) builder.append(", ");
+                builder.append(keys[i]).append(": ");
+                if(objects == null) {
+                    builder.append(ints[i]);
+                } else {
+                    builder.append(objects[i] == this ? "[...]" : objects[i]);
+                }
+            }
+        } else {
+            boolean first = true;
+            for(Map.Entry<Object, Object> entry:generic.entrySet()) {
+                if(!first) builder.append(", ");
+                first = false;
+                builder.append(entry.getKey()).append(": ").append(entry.getValue() == this ? "[...]" : entry.getValue());
+            }
+        }
+        return builder.append("]").toString();
+    }
+}
@@ -0,0 +1,124 @@
+package com.github.kmizu.nub2;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembered results of one pure function, see Memoizer.  The table is direct-mapped: each argument tuple has
+ * one place, and storing a tuple there evicts whatever held it, so the table never grows past its capacity.
+ *
+ * Tables belong to the checked program and are shared by every run and every thread.  An entry is immutable and
+ * published by a single array store, so a reader sees either a whole entry or an older one.  Strings are
+ * flattened before they are kept, since a StringValue may be extended in place by the run that made it.
+ */
+public final class MemoTable {
+    public static final int DEFAULT_ENTRIES = 1024;
+
+    private static final class Entry {
+        final int hash;
+        final Object[] arguments;
+        final Object result;
+        Entry(int hash, Object[] arguments, Object result) {
+            this.hash = hash;
+            this.arguments = arguments;
+            this.result = result;
+        }
+    }
+
+    private final Entry[] entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * A table of at least the given number of entries, rounded up to a power of two.
+     */
+    public MemoTable(int entries) {
+        if(entries <= 0) throw new IllegalArgumentException("entries must be positive: " + entries);
+        this.entries = new Entry[Integer.highestOneBit(Math.max(entries - 1, 1)) << 1];
+    }
+
+    private static int hash(Object[] values, int from, int count) {
+        int hash = 1;
+        for(int i = from; i < from + count; i++) {
+            Object value = values[i];
+            hash = 31 * hash + (value instanceof CharSequence ? value.toString() : value).hashCode();
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * The result remembered for the count values starting at from, or null.
+     */
+    public Object get(Object[] values, int from, int count) {
+        int hash = hash(values, from, count);
+        Entry entry = entries[hash & (entries.length - 1)];
+        if(entry != null && entry.hash == hash) {
+            Object[] arguments = entry.arguments;
+            int i = 0;
+            while(i < count && StringValue.equal(arguments[i], values[from + i])) i++;
+            if(i == count) {
+                hits.increment();
+                return entry.result;
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * A copy of the count values starting at from, to store a result under once it is known.  Callers take it
+     * before the call runs, since the callee may assign its parameters.  Null when one of the values is an
+     * array or a map: those compare by identity and would only keep the run's data alive.
+     */
+    public Object[] key(Object[] values, int from, int count) {
+        Object[] key = new Object[count];
+        for(int i = 0; i < count; i++) {
+            Object value = values[from + i];
+            if(value instanceof ArrayValue || value instanceof MapValue) return null;
+            key[i] = StringValue.flatten(value);
+        }
+        return key;
+    }
+
+    /**
+     * Remembers result under a key from key and returns the result as it is kept.  A null key keeps nothing.
+     */
+    public Object put(Object[] key, Object result) {
+        if(key == null) return result;
+        Object kept = StringValue.flatten(result);
+        int hash = hash(key, 0, key.length);
+        int index = hash & (entries.length - 1);
+        if(entries[index] != null) evictions.increment();
+        entries[index] = new Entry(hash, key, kept);
+        return kept;
+    }
+
+    public int capacity() {
+        return entries.length;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Hits per lookup, or 0 before the first lookup.
+     */
+    public double hitRate() {
+        long hits = hits(), lookups = hits + misses();
+        return lookups == 0 ? 0 : (double)hits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d hits, %d misses, %d evictions, %d entries", hits(), misses(), evictions(), capacity());
+    }
+}
@@ -0,0 +1,180 @@
+package com.github.kmizu.nub2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the pure functions of a checked program and gives each one that does real work a MemoTable, which
+ * every engine consults at non-tail call sites.
+ *
+ * A function is pure when its body prints nothing, neither reads nor assigns a variable outside its own frame
+ * (depth > 0), does not touch arrays or maps, and calls only pure functions; such a call always yields the same
+ * value for the same arguments.  Only pure functions that call a function or loop are memoized, since for
+ * straight-line arithmetic the lookup costs more than the call.  A memoized call that hits skips the steps and
+ * the call depth it would have counted against the run's ExecutionLimits.
+ */
+public class Memoizer {
+    private final int entries;
+
+    /**
+     * Gives every memoized function a table of the given number of entries; 0 turns memoization off.
+     */
+    public Memoizer(int entries) {
+        this.entries = entries;
+    }
+
+    public Memoizer() {
+        this(MemoTable.DEFAULT_ENTRIES);
+    }
+
+    private static List<Ast.DefFunction> definitions(Ast.Block program) {
+        List<Ast.DefFunction> definitions = new ArrayList<>();
+        program.accept(new Ast.Traverser() {
+            @Override
+            public Object visitDefFunction(Ast.DefFunction node) {
+                definitions.add(node);
+                return super.visitDefFunction(node);
+            }
+        });
+        return definitions;
+    }
+
+    /*
+     * What one function body does, not counting the functions defined inside it
+     */
+    private static final class Summary extends Ast.Traverser {
+        boolean effects;
+        boolean works;
+        final List<Ast.DefFunction> callees = new ArrayList<>();
+
+        @Override
+        public Object visitPrintlnExpression(Ast.PrintlnExpression node) {
+            effects = true;
+            return super.visitPrintlnExpression(node);
+        }
+
+        @Override
+        public Object visitId(Ast.Id node) {
+            if(node.depth > 0) effects = true;
+            return null;
+        }
+
+        @Override
+        public Object visitAssignmentExpression(Ast.AssignmentExpression node) {
+            if(node.depth > 0) effects = true;
+            return super.visitAssignmentExpression(node);
+        }
+
+        /*
+         * Arrays and maps are mutable and compare by identity, so neither reading nor making one is pure
+         */
+        @Override
+        public Object visitArrayLiteral(Ast.ArrayLiteral node) {
+            effects = true;
+            return super.visitArrayLiteral(node);
+        }
+
+        @Override
+        public Object visitMapLiteral(Ast.MapLiteral node) {
+            effects = true;
+            return super.visitMapLiteral(node);
+        }
+
+        @Override
+        public Object visitIndexExpression(Ast.IndexExpression node) {
+            effects = true;
+            return super.visitIndexExpression(node);
+        }
+
+        @Override
+        public Object visitIndexAssignment(Ast.IndexAssignment node) {
+            effects = true;
+            return super.visitIndexAssignment(node);
+        }
+
+        @Override
+        public Object visitLengthExpression(Ast.LengthExpression node) {
+            effects = true;
+            return super.visitLengthExpression(node);
+        }
+
+        @Override
+        public Object visitWhileExpression(Ast.WhileExpression node) {
+            works = true;
+            return super.visitWhileExpression(node);
+        }
+
+        @Override
+        public Object visitFunctionCall(Ast.FunctionCall node) {
+            works = true;
+            callees.add(node.function);
+            return super.visitFunctionCall(node);
+        }
+
+        @Override
+        public Object visitDefFunction(Ast.DefFunction node) {
+            return null;
+        }
+    }
+
+    private static Map<Ast.DefFunction, Summary> summarize(Ast.Block program) {
+        Map<Ast.DefFunction, Summary> summaries = new IdentityHashMap<>();
+        for(Ast.DefFunction function:definitions(program)) {
+            Summary summary = new Summary();
+            function.body.accept(summary);
+            summaries.put(function, summary);
+        }
+        return summaries;
+    }
+
+    private static Set<Ast.DefFunction> pure(Map<Ast.DefFunction, Summary> summaries) {
+        Set<Ast.DefFunction> pure = Collections.newSetFromMap(new IdentityHashMap<>());
+        for(Map.Entry<Ast.DefFunction, Summary> entry:summaries.entrySet()) {
+            if(!entry.getValue().effects) pure.add(entry.getKey());
+        }
+        // assume every candidate is pure and drop those that call an impure function until none is left
+        boolean changed = true;
+        while(changed) {
+            changed = pure.removeIf(function -> !pure.containsAll(summaries.get(function).callees));
+        }
+        return pure;
+    }
+
+    /**
+     * The pure functions of a program that has been through VariableChecker.
+     */
+    public static Set<Ast.DefFunction> pureFunctions(Ast.Block program) {
+        return pure(summarize(program));
+    }
+
+    /**
+     * Sets DefFunction.memo on every function of the program: a fresh table for the pure ones that do real
+     * work and null for the rest.  Returns the program.
+     */
+    public Ast.Block memoize(Ast.Block program) {
+        Map<Ast.DefFunction, Summary> summaries = summarize(program);
+        Set<Ast.DefFunction> pure = pure(summaries);
+        for(Map.Entry<Ast.DefFunction, Summary> entry:summaries.entrySet()) {
+            Ast.DefFunction function = entry.getKey();
+            boolean memoized = entries > 0 && pure.contains(function) && entry.getValue().works;
+            function.memo = memoized ? new MemoTable(entries) : null;
+        }
+        return program;
+    }
+
+    /**
+     * The tables of the memoized functions of a program, by function name, to read their statistics.
+     */
+    public static Map<String, MemoTable> tables(Ast.Block program) {
+        Map<String, MemoTable> tables = new LinkedHashMap<>();
+        for(Ast.DefFunction function:definitions(program)) {
+            if(function.memo != null) tables.put(function.name, function.memo);
+        }
+        return tables;
+    }
+}
@@ -0,0 +1,37 @@
+package com.github.kmizu.nub2;
+
+/**
+ * Receives measurements of program runs.  Implementations are called from every thread that runs programs,
+ * so they must be thread-safe; see EvaluationMetrics.
+ */
+public interface Metrics {
+    /**
+     * After each run, with its wall time in nanoseconds and the exception it threw, or null.  Evaluator.eval
+     * also reports a program that the checker rejects.
+     */
+    void executed(Ast.Block program, Evaluator.Engine engine, long nanos, Throwable failure);
+
+    /**
+     * After each run of a CompiledProgram.  Implementations that tell programs apart may override this to use
+     * what the CompiledProgram already knows of its program.
+     */
+    default void executed(CompiledProgram program, long nanos, Throwable failure) {
+        executed(program.program(), program.engine(), nanos, failure);
+    }
+
+    /**
+     * After each run of the visitor engine, with the nodes it visited, the functions it called and the
+     * variables it looked up or assigned.  Nodes on the int and boolean fast paths are not counted.
+     */
+    void visited(long nodes, long calls, long lookups);
+
+    Metrics NONE = new Metrics() {
+        @Override
+        public void executed(Ast.Block program, Evaluator.Engine engine, long nanos, Throwable failure) {
+        }
+
+        @Override
+        public void visited(long nodes, long calls, long lookups) {
+        }
+    };
+}
@@ -0,0 +1,71 @@
+package com.github.kmizu.nub2;
+
+import java.io.PrintStream;
+
+/**
+ * Where println writes.  One Output serves one run at a time; CompiledProgram flushes it when the run ends.
+ */
+public interface Output {
+    void println(Object value);
+
+    void flush();
+
+    /**
+     * Collects lines and writes them to a stream in batches, so that the stream's lock is taken once per batch
+     * instead of once per line.
+     */
+    final class Buffered implements Output {
+        private final PrintStream out;
+        private final int limit;
+        private final StringBuilder buffer = new StringBuilder();
+
+        public Buffered(PrintStream out, int limit) {
+            this.out = out;
+            this.limit = limit;
+        }
+
+        public Buffered(PrintStream out) {
+            this(out, 8192);
+        }
+
+        @Override
+        public void println(Object value) {
+            buffer.append(value).append(System.lineSeparator());
+            if(buffer.length() >= limit) flush();
+        }
+
+        @Override
+        public void flush() {
+            if(buffer.length() > 0) {
+                out.print(buffer);
+                buffer.setLength(0);
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Keeps everything printed in memory.  Call reset to reuse it for the next run.
+     */
+    final class Capture implements Output {
+        private final StringBuilder buffer = new StringBuilder();
+
+        @Override
+        public void println(Object value) {
+            buffer.append(value).append('\n');
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        public void reset() {
+            buffer.setLength(0);
+        }
+
+        @Override
+        public String toString() {
+            return buffer.toString();
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.github.kmizu.nub2;
+
+public class ParseException extends NubRuntimeException {
+    public final int line, column;
+    public ParseException(String message, int line, int column) {
+        super(line + ":" + column + ": " + message);
+        this.line = line;
+        this.column = column;
+    }
+}
@@ -0,0 +1,417 @@
+package com.github.kmizu.nub2;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import static com.github.kmizu.nub2.Lexer.Token.*;
+
+/**
+ * A recursive-descent parser for the syntax shown in README.md.
+ *
+ * <pre>
+ * program    ::= statement*
+ * statement  ::= "let" ID "=" expression ";"
+ *              | "def" ID "(" (ID ("," ID)*)? ")" block
+ *              | "while" "(" expression ")" block
+ *              | "if" "(" expression ")" block ("else" (block | if))?
+ *              | ID "=" expression ";"
+ *              | expression ";"
+ * expression ::= or
+ * or         ::= and ("||" and)*
+ * and        ::= equality ("&&" equality)*
+ * equality   ::= comparison (("==" | "!=") comparison)*
+ * comparison ::= additive (("<" | "<=" | ">" | ">=") additive)*
+ * additive   ::= term (("+" | "-") term)*
+ * term       ::= unary (("*" | "/") unary)*
+ * unary      ::= "-" unary | postfix
+ * postfix    ::= primary ("[" expression "]")*
+ * primary    ::= INT | STRING | "true" | "false" | "print" "(" expression ")" | "length" "(" expression ")"
+ *              | ID ("(" (expression ("," expression)*)? ")")? | "(" expression ")"
+ *              | "[" (expression ("," expression)*)? "]"
+ *              | "[" ":" "]" | "[" expression ":" expression ("," expression ":" expression)* "]"
+ * </pre>
+ *
+ * A statement whose expression is an index and is followed by "=" stores into the array or map.
+ *
+ * A let scopes over the rest of its block.  Lets are folded into nested LetExpressions after the block has
+ * been read, so a long sequence of lets does not make the parser recurse.
+ */
+public class Parser {
+    private static class PendingLet {
+        final String name;
+        final Ast.Expression init;
+        final List<Ast.Expression> before;
+        PendingLet(String name, Ast.Expression init, List<Ast.Expression> before) {
+            this.name = name;
+            this.init = init;
+            this.before = before;
+        }
+    }
+
+    /*
+     * Decodes a memory-mapped file incrementally instead of materializing it as one String.
+     */
+    private static class MappedReader extends Reader {
+        private final ByteBuffer bytes;
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+        private boolean flushed;
+        MappedReader(ByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if(flushed) return -1;
+            CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+            CoderResult result = decoder.decode(bytes, out, true);
+            if(result.isError()) result.throwException();
+            if(result.isUnderflow()) {
+                decoder.flush(out);
+                flushed = true;
+            }
+            int n = out.position() - off;
+            return n == 0 && flushed ? -1 : n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final Lexer lexer;
+
+    public Parser(Reader reader) {
+        this.lexer = new Lexer(reader);
+    }
+
+    public static Ast.Block parse(String source) {
+        return new Parser(new StringReader(source)).parseProgram();
+    }
+
+    /**
+     * Parses a UTF-8 source file through a read-only memory mapping.
+     */
+    public static Ast.Block parse(Path path) {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new Parser(new MappedReader(bytes)).parseProgram();
+        } catch (CharacterCodingException e) {
+            throw new NubRuntimeException(path + " is not valid UTF-8");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private ParseException error(String message) {
+        return new ParseException(message, lexer.line(), lexer.column());
+    }
+
+    private boolean accept(Lexer.Token token) {
+        if(lexer.token() == token) {
+            lexer.next();
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(Lexer.Token token) {
+        if(!accept(token)) {
+            throw error(token + " expected but " + lexer.token() + " found");
+        }
+    }
+
+    private String identifier() {
+        if(lexer.token() != IDENT) {
+            throw error("identifier expected but " + lexer.token() + " found");
+        }
+        String name = lexer.value();
+        lexer.next();
+        return name;
+    }
+
+    public Ast.Block parseProgram() {
+        Ast.Block program = statements(EOF);
+        expect(EOF);
+        return program;
+    }
+
+    private Ast.Block block() {
+        expect(LBRACE);
+        Ast.Block block = statements(RBRACE);
+        expect(RBRACE);
+        return block;
+    }
+
+    private Ast.Block statements(Lexer.Token terminator) {
+        Deque<PendingLet> lets = new ArrayDeque<>();
+        List<Ast.Expression> current = new ArrayList<>();
+        while(lexer.token() != terminator && lexer.token() != EOF) {
+            if(accept(LET)) {
+                String name = identifier();
+                expect(ASSIGN);
+                Ast.Expression init = expression();
+                expect(SEMICOLON);
+                lets.push(new PendingLet(name, init, current));
+                current = new ArrayList<>();
+            } else {
+                current.add(statement());
+            }
+        }
+        Ast.Block result = new Ast.Block(current);
+        while(!lets.isEmpty()) {
+            PendingLet let = lets.pop();
+            let.before.add(new Ast.LetExpression(let.name, let.init, result));
+            result = new Ast.Block(let.before);
+        }
+        return result;
+    }
+
+    private Ast.Expression statement() {
+        switch (lexer.token()) {
+            case DEF: {
+                lexer.next();
+                String name = identifier();
+                expect(LPAREN);
+                List<String> args = new ArrayList<>();
+                if(lexer.token() != RPAREN) {
+                    do {
+                        args.add(identifier());
+                    } while(accept(COMMA));
+                }
+                expect(RPAREN);
+                return new Ast.DefFunction(name, args, block());
+            }
+            case WHILE: {
+                lexer.next();
+                expect(LPAREN);
+                Ast.Expression condition = expression();
+                expect(RPAREN);
+                return new Ast.WhileExpression(condition, block().expressions);
+            }
+            case IF:
+                return ifExpression();
+            default: {
+                Ast.Expression e = expression();
+                if(e instanceof Ast.Id && accept(ASSIGN)) {
+                    e = new Ast.AssignmentExpression(((Ast.Id)e).name, expression());
+                } else if(e instanceof Ast.IndexExpression && accept(ASSIGN)) {
+                    Ast.IndexExpression index = (Ast.IndexExpression)e;
+                    e = new Ast.IndexAssignment(index.target, index.index, expression());
+                }
+                expect(SEMICOLON);
+                return e;
+            }
+        }
+    }
+
+    private Ast.Expression ifExpression() {
+        expect(IF);
+        expect(LPAREN);
+        Ast.Expression condition = expression();
+        expect(RPAREN);
+        Ast.Block thenClause = block();
+        Ast.Block elseClause;
+        if(accept(ELSE)) {
+            elseClause = lexer.token() == IF ? new Ast.Block(ifExpression()) : block();
+        } else {
+            elseClause = new Ast.Block();
+        }
+        return new Ast.IfExpression(condition, thenClause, elseClause);
+    }
+
+    private Ast.Expression expression() {
+        Ast.Expression e = and();
+        while(accept(OR)) {
+            e = new Ast.BinaryExpression(Ast.BinaryOperator.LOGCIAL_OR, e, and());
+        }
+        return e;
+    }
+
+    private Ast.Expression and() {
+        Ast.Expression e = equality();
+        while(accept(AND)) {
+            e = new Ast.BinaryExpression(Ast.BinaryOperator.LOGICAL_AND, e, equality());
+        }
+        return e;
+    }
+
+    private Ast.Expression equality() {
+        Ast.Expression e = comparison();
+        while(true) {
+            if(accept(EQ)) {
+                e = new Ast.BinaryExpression(Ast.BinaryOperator.EQUAL, e, comparison());
+            } else if(accept(NE)) {
+                e = new Ast.BinaryExpression(Ast.BinaryOperator.NOT_EQUAL, e, comparison());
+            } else {
+                return e;
+            }
+        }
+    }
+
+    private Ast.Expression comparison() {
+        Ast.Expression e = additive();
+        while(true) {
+            if(accept(LT)) {
+                e = new Ast.BinaryExpression(Ast.BinaryOperator.LESS_THAN, e, additive());
+            } else if(accept(LE)) {
+                e = new Ast.BinaryExpression(Ast.BinaryOperator.LESS_THAN_OR_EQUAL, e, additive());
+            } else if(accept(GT)) {
+                e = new Ast.BinaryExpression(Ast.BinaryOperator.GREATER_THAN, e, additive());
+            } else if(accept(GE)) {
+                e = new Ast.BinaryExpression(Ast.BinaryOperator.GREATER_THAN_OR_EQUAL, e, additive());
+            } else {
+                return e;
+            }
+        }
+    }
+
+    private Ast.Expression additive() {
+        Ast.Expression e = term();
+        while(true) {
+            if(accept(PLUS)) {
+                e = new Ast.BinaryExpression(Ast.BinaryOperator.ADD, e, term());
+            } else if(accept(MINUS)) {
+                e = new Ast.BinaryExpression(Ast.BinaryOperator.SUBTRACT, e, term());
+            } else {
+                return e;
+            }
+        }
+    }
+
+    private Ast.Expression term() {
+        Ast.Expression e = unary();
+        while(true) {
+            if(accept(STAR)) {
+                e = new Ast.BinaryExpression(Ast.BinaryOperator.MULTIPLY, e, unary());
+            } else if(accept(SLASH)) {
+                e = new Ast.BinaryExpression(Ast.BinaryOperator.DIVIDE, e, unary());
+            } else {
+                return e;
+            }
+        }
+    }
+
+    private Ast.Expression unary() {
+        if(accept(MINUS)) {
+            if(lexer.token() == INT) {
+                long n = -lexer.number();
+                lexer.next();
+                return new Ast.IntLiteral((int)n);
+            }
+            return new Ast.BinaryExpression(Ast.BinaryOperator.SUBTRACT, new Ast.IntLiteral(0), unary());
+        }
+        return postfix();
+    }
+
+    private Ast.Expression postfix() {
+        Ast.Expression e = primary();
+        while(accept(LBRACKET)) {
+            e = new Ast.IndexExpression(e, expression());
+            expect(RBRACKET);
+        }
+        return e;
+    }
+
+    private Ast.Expression collection() {
+        expect(LBRACKET);
+        List<Ast.Expression> elements = new ArrayList<>();
+        if(accept(RBRACKET)) return new Ast.ArrayLiteral(elements);
+        if(accept(COLON)) {
+            expect(RBRACKET);
+            return new Ast.MapLiteral(elements, new ArrayList<>());
+        }
+        Ast.Expression first = expression();
+        if(!accept(COLON)) {
+            elements.add(first);
+            while(accept(COMMA)) {
+                elements.add(expression());
+            }
+            expect(RBRACKET);
+            return new Ast.ArrayLiteral(elements);
+        }
+        List<Ast.Expression> values = new ArrayList<>();
+        elements.add(first);
+        values.add(expression());
+        while(accept(COMMA)) {
+            elements.add(expression());
+            expect(COLON);
+            values.add(expression());
+        }
+        expect(RBRACKET);
+        return new Ast.MapLiteral(elements, values);
+    }
+
+    private Ast.Expression primary() {
+        switch (lexer.token()) {
+            case INT: {
+                long n = lexer.number();
+                if(n > Integer.MAX_VALUE) throw error("integer literal is too large");
+                lexer.next();
+                return new Ast.IntLiteral((int)n);
+            }
+            case STRING: {
+                String value = lexer.value();
+                lexer.next();
+                return new Ast.StringLiteral(value);
+            }
+            case TRUE:
+                lexer.next();
+                return new Ast.BooleanLiteral(true);
+            case FALSE:
+                lexer.next();
+                return new Ast.BooleanLiteral(false);
+            case PRINT: {
+                lexer.next();
+                expect(LPAREN);
+                Ast.Expression target = expression();
+                expect(RPAREN);
+                return new Ast.PrintlnExpression(target);
+            }
+            case LENGTH: {
+                lexer.next();
+                expect(LPAREN);
+                Ast.Expression target = expression();
+                expect(RPAREN);
+                return new Ast.LengthExpression(target);
+            }
+            case LBRACKET:
+                return collection();
+            case IDENT: {
+                String name = identifier();
+                if(!accept(LPAREN)) return new Ast.Id(name);
+                List<Ast.Expression> params = new ArrayList<>();
+                if(lexer.token() != RPAREN) {
+                    do {
+                        params.add(expression());
+                    } while(accept(COMMA));
+                }
+                expect(RPAREN);
+                return new Ast.FunctionCall(name, params);
+            }
+            case LPAREN: {
+                lexer.next();
+                Ast.Expression e = expression();
+                expect(RPAREN);
+                return e;
+            }
+            default:
+                throw error("expression expected but " + lexer.token() + " found");
+        }
+    }
+}
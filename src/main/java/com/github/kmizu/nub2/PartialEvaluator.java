@@ -0,0 +1,536 @@
+package com.github.kmizu.nub2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Specializes a program on the values of some of its free variables.
+ *
+ * The result is a residual program over the remaining free variables that does only what could not be done
+ * ahead of time: variables holding known ints, booleans and strings are replaced by their values, operations on
+ * known values are folded, an if whose condition is known is replaced by its branch, a loop whose condition stays
+ * known is unrolled, and a call of a pure function on known arguments is replaced by its result.  Unrolling and
+ * unfolding calls cost budget, one unit for each node visited; once it is spent the rest of the program is only
+ * substituted and folded.
+ *
+ * A variable assigned a known value stays known and the assignment is left out; before control flow the
+ * specializer cannot follow runs code that may read or assign it, the current value is written back with an
+ * assignment and the variable becomes unknown.  Functions may be called from anywhere, so their bodies only
+ * see the known variables that are never assigned.  Run the residual program with bind, or with a let for each
+ * remaining variable.
+ */
+public class PartialEvaluator implements Ast.ExpressionVisitor<Ast.Expression> {
+    public static final int DEFAULT_BUDGET = 100000;
+    private static final int MAX_UNFOLDING = 64;
+
+    private final int limit;
+    private int budget;
+    private int unfolding;
+    private Map<String, Ast.DefFunction> functions;
+    private Set<String> pure;
+    private Set<String> shared;
+    private Set<String> assigned;
+    // the known values of the variables in scope
+    private Map<String, Object> values = new HashMap<>();
+    // for each variable in scope, the nesting of unfollowed control flow it was defined in
+    private Map<String, Integer> levels = new HashMap<>();
+    private int level;
+
+    public PartialEvaluator(int budget) {
+        this.limit = budget;
+    }
+
+    public PartialEvaluator() {
+        this(DEFAULT_BUDGET);
+    }
+
+    /**
+     * Wraps program in a let for each of the values, innermost last.
+     */
+    public static Ast.Block bind(Ast.Block program, Map<String, Object> values) {
+        Ast.Block result = program;
+        List<String> names = new ArrayList<>(values.keySet());
+        Collections.reverse(names);
+        for(String name:names) {
+            Object value = values.get(name);
+            if(!(value instanceof Integer || value instanceof Boolean || value instanceof String)) {
+                throw new IllegalArgumentException(name + " is bound to " + value + ", which is not an int, a boolean or a string");
+            }
+            result = new Ast.Block(new Ast.LetExpression(name, ConstantFolder.literalOf(value), result));
+        }
+        return result;
+    }
+
+    /**
+     * The residual of program when the given variables have the given values.
+     */
+    public Ast.Block specialize(Ast.Block program, Map<String, Object> known) {
+        Ast.Block bound = bind(program, new LinkedHashMap<>(known));
+        functions = new HashMap<>();
+        bound.accept(new Ast.Traverser() {
+            @Override
+            public Object visitDefFunction(Ast.DefFunction node) {
+                functions.put(node.name, node);
+                return super.visitDefFunction(node);
+            }
+        });
+        assigned = assignedIn(bound);
+        shared = new LinkedHashSet<>();
+        for(Ast.DefFunction function:functions.values()) {
+            shared.addAll(freeNames(function));
+        }
+        // the variables that are never assigned are known inside functions as well
+        shared.retainAll(assigned);
+        pure = pureFunctions();
+        budget = limit;
+        unfolding = 0;
+        values = new HashMap<>();
+        levels = new HashMap<>();
+        level = 0;
+        return block(Collections.singletonList(residual(bound)));
+    }
+
+    private static Set<String> assignedIn(Ast.Expression... expressions) {
+        Set<String> names = new LinkedHashSet<>();
+        Ast.Traverser traverser = new Ast.Traverser() {
+            @Override
+            public Object visitAssignmentExpression(Ast.AssignmentExpression node) {
+                names.add(node.variableName);
+                return super.visitAssignmentExpression(node);
+            }
+        };
+        for(Ast.Expression e:expressions) e.accept(traverser);
+        return names;
+    }
+
+    private static boolean calls(Ast.Expression... expressions) {
+        boolean[] found = new boolean[1];
+        Ast.Traverser traverser = new Ast.Traverser() {
+            @Override
+            public Object visitFunctionCall(Ast.FunctionCall node) {
+                found[0] = true;
+                return super.visitFunctionCall(node);
+            }
+        };
+        for(Ast.Expression e:expressions) e.accept(traverser);
+        return found[0];
+    }
+
+    /*
+     * The variables a function body reads or assigns that are neither its parameters nor its own lets
+     */
+    private static Set<String> freeNames(Ast.DefFunction function) {
+        Set<String> bound = new HashSet<>(function.args);
+        Set<String> used = new LinkedHashSet<>();
+        function.body.accept(new Ast.Traverser() {
+            @Override
+            public Object visitLetExpression(Ast.LetExpression node) {
+                bound.add(node.variableName);
+                return super.visitLetExpression(node);
+            }
+
+            @Override
+            public Object visitId(Ast.Id node) {
+                used.add(node.name);
+                return null;
+            }
+
+            @Override
+            public Object visitAssignmentExpression(Ast.AssignmentExpression node) {
+                used.add(node.variableName);
+                return super.visitAssignmentExpression(node);
+            }
+        });
+        used.removeAll(bound);
+        return used;
+    }
+
+    /*
+     * The functions whose result depends on their arguments alone: they use no variables outside their own
+     * frame, print nothing, do not touch arrays or maps, and call only such functions
+     */
+    private Set<String> pureFunctions() {
+        Map<String, Set<String>> callees = new HashMap<>();
+        for(Ast.DefFunction function:functions.values()) {
+            boolean[] effects = {!freeNames(function).isEmpty()};
+            Set<String> called = new HashSet<>();
+            function.body.accept(new Ast.Traverser() {
+                @Override
+                public Object visitPrintlnExpression(Ast.PrintlnExpression node) {
+                    effects[0] = true;
+                    return super.visitPrintlnExpression(node);
+                }
+
+                @Override
+                public Object visitFunctionCall(Ast.FunctionCall node) {
+                    called.add(node.name);
+                    return super.visitFunctionCall(node);
+                }
+
+                @Override
+                public Object visitArrayLiteral(Ast.ArrayLiteral node) {
+                    effects[0] = true;
+                    return super.visitArrayLiteral(node);
+                }
+
+                @Override
+                public Object visitMapLiteral(Ast.MapLiteral node) {
+                    effects[0] = true;
+                    return super.visitMapLiteral(node);
+                }
+
+                @Override
+                public Object visitIndexExpression(Ast.IndexExpression node) {
+                    effects[0] = true;
+                    return super.visitIndexExpression(node);
+                }
+
+                @Override
+                public Object visitIndexAssignment(Ast.IndexAssignment node) {
+                    effects[0] = true;
+                    return super.visitIndexAssignment(node);
+                }
+
+                @Override
+                public Object visitLengthExpression(Ast.LengthExpression node) {
+                    effects[0] = true;
+                    return super.visitLengthExpression(node);
+                }
+            });
+            if(!effects[0]) callees.put(function.name, called);
+        }
+        boolean changed = true;
+        while(changed) {
+            changed = callees.values().removeIf(called -> !callees.keySet().containsAll(called));
+        }
+        return callees.keySet();
+    }
+
+    private Ast.Expression residual(Ast.Expression e) {
+        budget--;
+        return e.accept(this);
+    }
+
+    private List<Ast.Expression> residualAll(List<Ast.Expression> expressions) {
+        List<Ast.Expression> result = new ArrayList<>();
+        for(Ast.Expression e:expressions) {
+            result.add(residual(e));
+        }
+        return result;
+    }
+
+    /*
+     * The expressions in order as one block, with nested blocks spliced in and values that are not used dropped
+     */
+    private static Ast.Block block(List<Ast.Expression> expressions) {
+        List<Ast.Expression> result = new ArrayList<>();
+        int last = expressions.size() - 1;
+        for(int i = 0; i <= last; i++) {
+            Ast.Expression e = expressions.get(i);
+            if(e instanceof Ast.Block) {
+                List<Ast.Expression> inner = ((Ast.Block)e).expressions;
+                if(i == last && inner.isEmpty()) {
+                    result.add(ConstantFolder.literalOf(0));
+                } else {
+                    result.addAll(inner);
+                }
+            } else if(i == last || !(ConstantFolder.isLiteral(e) || e instanceof Ast.Id)) {
+                result.add(e);
+            }
+        }
+        // the spliced blocks may have left unused values in the middle
+        for(int i = result.size() - 2; i >= 0; i--) {
+            Ast.Expression e = result.get(i);
+            if(ConstantFolder.isLiteral(e) || e instanceof Ast.Id) result.remove(i);
+        }
+        return new Ast.Block(result);
+    }
+
+    private static Ast.Expression sequence(List<Ast.Expression> expressions) {
+        return expressions.size() == 1 ? expressions.get(0) : block(expressions);
+    }
+
+    /*
+     * Writes back the known values of the given variables and forgets them
+     */
+    private void materialize(Set<String> names, List<Ast.Expression> out) {
+        for(String name:names) {
+            if(values.containsKey(name)) {
+                out.add(new Ast.AssignmentExpression(name, ConstantFolder.literalOf(values.remove(name))));
+            }
+        }
+    }
+
+    /*
+     * Writes back what code the specializer cannot follow may read or assign
+     */
+    private void materializeFor(List<Ast.Expression> out, Ast.Expression... expressions) {
+        materialize(assignedIn(expressions), out);
+        if(calls(expressions)) materialize(shared, out);
+    }
+
+    private static boolean mentions(Ast.Expression e, String name) {
+        boolean[] found = new boolean[1];
+        e.accept(new Ast.Traverser() {
+            @Override
+            public Object visitId(Ast.Id node) {
+                if(node.name.equals(name)) found[0] = true;
+                return null;
+            }
+
+            @Override
+            public Object visitAssignmentExpression(Ast.AssignmentExpression node) {
+                if(node.variableName.equals(name)) found[0] = true;
+                return super.visitAssignmentExpression(node);
+            }
+        });
+        return found[0];
+    }
+
+    private Ast.Expression logical(Ast.BinaryExpression node) {
+        boolean and = node.operator == Ast.BinaryOperator.LOGICAL_AND;
+        Ast.Expression lhs = residual(node.lhs);
+        if(ConstantFolder.isBoolean(lhs, !and)) return lhs;
+        if(ConstantFolder.isBoolean(lhs, and)) {
+            Ast.Expression rhs = residual(node.rhs);
+            return rhs instanceof Ast.BooleanLiteral ? rhs : new Ast.BinaryExpression(node.operator, lhs, rhs);
+        }
+        // the right operand may not run
+        List<Ast.Expression> result = new ArrayList<>();
+        materializeFor(result, node.rhs);
+        level++;
+        Ast.Expression rhs = residual(node.rhs);
+        level--;
+        result.add(new Ast.BinaryExpression(node.operator, lhs, rhs));
+        return sequence(result);
+    }
+
+    @Override
+    public Ast.Expression visitBinaryExpression(Ast.BinaryExpression node) {
+        if(node.operator == Ast.BinaryOperator.LOGICAL_AND || node.operator == Ast.BinaryOperator.LOGCIAL_OR) {
+            return logical(node);
+        }
+        Ast.Expression lhs = residual(node.lhs);
+        Ast.Expression rhs = residual(node.rhs);
+        if(ConstantFolder.isLiteral(lhs) && ConstantFolder.isLiteral(rhs)) {
+            Ast.Expression folded = ConstantFolder.foldLiterals(node.operator, ConstantFolder.valueOf(lhs), ConstantFolder.valueOf(rhs));
+            if(folded != null) return folded;
+        }
+        return new Ast.BinaryExpression(node.operator, lhs, rhs);
+    }
+
+    @Override
+    public Ast.Expression visitIntLiteral(Ast.IntLiteral node) {
+        return new Ast.IntLiteral(node.value);
+    }
+
+    @Override
+    public Ast.Expression visitBooleanLiteral(Ast.BooleanLiteral node) {
+        return new Ast.BooleanLiteral(node.value);
+    }
+
+    @Override
+    public Ast.Expression visitStringLiteral(Ast.StringLiteral node) {
+        return new Ast.StringLiteral(node.value);
+    }
+
+    @Override
+    public Ast.Expression visitLetExpression(Ast.LetExpression node) {
+        Ast.Expression init = residual(node.init);
+        String name = node.variableName;
+        boolean known = values.containsKey(name);
+        Object backupValue = values.get(name);
+        Integer backupLevel = levels.get(name);
+        if(ConstantFolder.isLiteral(init)) {
+            values.put(name, ConstantFolder.valueOf(init));
+        } else {
+            values.remove(name);
+        }
+        levels.put(name, level);
+        Ast.Block body = block(Collections.singletonList(residual(node.body)));
+        if(known) values.put(name, backupValue); else values.remove(name);
+        if(backupLevel != null) levels.put(name, backupLevel); else levels.remove(name);
+        // a known variable that is never written back needs no binding
+        if(ConstantFolder.isLiteral(init) && !mentions(body, name)) return body;
+        return new Ast.LetExpression(name, init, body);
+    }
+
+    @Override
+    public Ast.Expression visitId(Ast.Id node) {
+        if(values.containsKey(node.name)) return ConstantFolder.literalOf(values.get(node.name));
+        return new Ast.Id(node.name);
+    }
+
+    @Override
+    public Ast.Expression visitBlock(Ast.Block node) {
+        return block(residualAll(node.expressions));
+    }
+
+    @Override
+    public Ast.Expression visitIfExpression(Ast.IfExpression node) {
+        Ast.Expression condition = residual(node.condition);
+        // functions are visible to the whole program wherever they are defined, so neither branch may be dropped
+        if(ConstantFolder.isBoolean(condition, true) && !ConstantFolder.definesFunction(node.elseClause)) {
+            return residual(node.thenClause);
+        }
+        if(ConstantFolder.isBoolean(condition, false) && !ConstantFolder.definesFunction(node.thenClause)) {
+            return residual(node.elseClause);
+        }
+        List<Ast.Expression> result = new ArrayList<>();
+        materializeFor(result, node.thenClause, node.elseClause);
+        level++;
+        Ast.Block thenClause = block(residualAll(node.thenClause.expressions));
+        Ast.Block elseClause = block(residualAll(node.elseClause.expressions));
+        level--;
+        result.add(new Ast.IfExpression(condition, thenClause, elseClause));
+        return sequence(result);
+    }
+
+    @Override
+    public Ast.Expression visitWhileExpression(Ast.WhileExpression node) {
+        List<Ast.Expression> result = new ArrayList<>();
+        Ast.Block body = new Ast.Block(node.body);
+        // unroll while the condition is known; it is only tried when trying it changes nothing
+        boolean unroll = assignedIn(node.condition).isEmpty() && !calls(node.condition) && !ConstantFolder.definesFunction(body);
+        while(unroll && budget > 0) {
+            Ast.Expression condition = residual(node.condition);
+            if(ConstantFolder.isBoolean(condition, false)) {
+                result.add(ConstantFolder.literalOf(0));
+                return sequence(result);
+            }
+            if(!ConstantFolder.isBoolean(condition, true)) break;
+            result.addAll(residualAll(node.body));
+        }
+        materializeFor(result, node.condition, body);
+        level++;
+        Ast.Expression condition = residual(node.condition);
+        List<Ast.Expression> residualBody = block(residualAll(node.body)).expressions;
+        level--;
+        result.add(new Ast.WhileExpression(condition, residualBody));
+        return sequence(result);
+    }
+
+    @Override
+    public Ast.Expression visitAssignmentExpression(Ast.AssignmentExpression node) {
+        String name = node.variableName;
+        Ast.Expression value = residual(node.expression);
+        Integer defined = levels.get(name);
+        // a variable defined outside control flow that is not followed may be read there after this
+        if(ConstantFolder.isLiteral(value) && defined != null && defined == level) {
+            values.put(name, ConstantFolder.valueOf(value));
+            return value;
+        }
+        values.remove(name);
+        return new Ast.AssignmentExpression(name, value);
+    }
+
+    @Override
+    public Ast.Expression visitPrintlnExpression(Ast.PrintlnExpression node) {
+        return new Ast.PrintlnExpression(residual(node.target));
+    }
+
+    @Override
+    public Ast.Expression visitDefFunction(Ast.DefFunction node) {
+        Map<String, Object> backupValues = values;
+        Map<String, Integer> backupLevels = levels;
+        int backupLevel = level;
+        values = new HashMap<>();
+        for(Map.Entry<String, Object> entry:backupValues.entrySet()) {
+            if(!assigned.contains(entry.getKey())) values.put(entry.getKey(), entry.getValue());
+        }
+        levels = new HashMap<>();
+        level = 0;
+        for(String arg:node.args) {
+            values.remove(arg);
+            levels.put(arg, 0);
+        }
+        try {
+            return new Ast.DefFunction(node.name, node.args, block(residualAll(node.body.expressions)));
+        } finally {
+            values = backupValues;
+            levels = backupLevels;
+            level = backupLevel;
+        }
+    }
+
+    /*
+     * The value of a call of a pure function on known arguments, or null when it cannot be found within budget
+     */
+    private Ast.Expression unfold(Ast.DefFunction function, List<Ast.Expression> params) {
+        Map<String, Object> backupValues = values;
+        Map<String, Integer> backupLevels = levels;
+        int backupLevel = level;
+        values = new HashMap<>();
+        levels = new HashMap<>();
+        level = 0;
+        for(int i = 0; i < params.size(); i++) {
+            values.put(function.args.get(i), ConstantFolder.valueOf(params.get(i)));
+            levels.put(function.args.get(i), 0);
+        }
+        unfolding++;
+        try {
+            Ast.Expression result = residual(function.body);
+            if(result instanceof Ast.Block && ((Ast.Block)result).expressions.size() == 1) {
+                result = ((Ast.Block)result).expressions.get(0);
+            }
+            return ConstantFolder.isLiteral(result) ? result : null;
+        } finally {
+            unfolding--;
+            values = backupValues;
+            levels = backupLevels;
+            level = backupLevel;
+        }
+    }
+
+    @Override
+    public Ast.Expression visitFunctionCall(Ast.FunctionCall node) {
+        List<Ast.Expression> params = residualAll(node.params);
+        Ast.DefFunction function = functions.get(node.name);
+        boolean known = true;
+        for(Ast.Expression p:params) {
+            known &= ConstantFolder.isLiteral(p);
+        }
+        if(known && pure.contains(node.name) && function.args.size() == params.size() && budget > 0 && unfolding < MAX_UNFOLDING) {
+            Ast.Expression value = unfold(function, params);
+            if(value != null) return value;
+        }
+        List<Ast.Expression> result = new ArrayList<>();
+        materialize(shared, result);
+        result.add(new Ast.FunctionCall(node.name, params));
+        return sequence(result);
+    }
+
+    @Override
+    public Ast.Expression visitArrayLiteral(Ast.ArrayLiteral node) {
+        return new Ast.ArrayLiteral(residualAll(node.elements));
+    }
+
+    @Override
+    public Ast.Expression visitMapLiteral(Ast.MapLiteral node) {
+        return new Ast.MapLiteral(residualAll(node.keys), residualAll(node.values));
+    }
+
+    @Override
+    public Ast.Expression visitIndexExpression(Ast.IndexExpression node) {
+        return new Ast.IndexExpression(residual(node.target), residual(node.index));
+    }
+
+    @Override
+    public Ast.Expression visitIndexAssignment(Ast.IndexAssignment node) {
+        Ast.Expression target = residual(node.target);
+        Ast.Expression index = residual(node.index);
+        return new Ast.IndexAssignment(target, index, residual(node.value));
+    }
+
+    @Override
+    public Ast.Expression visitLengthExpression(Ast.LengthExpression node) {
+        return new Ast.LengthExpression(residual(node.target));
+    }
+}
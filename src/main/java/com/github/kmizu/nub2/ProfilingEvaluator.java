@@ -0,0 +1,369 @@
+package com.github.kmizu.nub2;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The visitor engine with every node and function call measured.  Plain Evaluators are not affected.
+ *
+ * Each node counts how often it ran and the wall time of its outermost activations, so recursion is not
+ * counted twice.  Nodes that the int and boolean fast paths evaluate without visiting them count toward
+ * their parent.  Calls are also recorded on a tree of call stacks with their time and the bytes the thread
+ * allocated meanwhile, which collapsedStacks writes in the format of flamegraph.pl.  Memoization is off by
+ * default so that every call is seen.
+ */
+public class ProfilingEvaluator extends Evaluator {
+    /**
+     * Measurements of one node or function.
+     */
+    public static final class Stats {
+        public final Ast.Expression node;
+        public long count;
+        public long nanos;
+        private int active;
+        private long start;
+
+        Stats(Ast.Expression node) {
+            this.node = node;
+        }
+    }
+
+    private static final class Stack {
+        final String name;
+        final Map<Ast.DefFunction, Stack> children = new LinkedHashMap<>();
+        long nanos;
+        long bytes;
+
+        Stack(String name) {
+            this.name = name;
+        }
+
+        Stack child(Ast.DefFunction function) {
+            Stack child = children.get(function);
+            if(child == null) {
+                child = new Stack(function.name);
+                children.put(function, child);
+            }
+            return child;
+        }
+    }
+
+    private final Output output;
+    private final Map<Ast.Expression, Stats> nodes = new IdentityHashMap<>();
+    private final Map<Ast.Expression, Stats> functions = new IdentityHashMap<>();
+    // the nodes that prepare annotated and ran, by the nodes of the program given to eval
+    private final Map<Ast.Expression, Ast.Expression> copies = new IdentityHashMap<>();
+    private final Stack root = new Stack("main");
+    private Stack stack = root;
+    private long thread;
+
+    public ProfilingEvaluator() {
+        this(new Output.Buffered(System.out));
+    }
+
+    public ProfilingEvaluator(Output output) {
+        super(Engine.VISITOR, output);
+        this.output = output;
+        memoize(0);
+    }
+
+    private long allocatedBytes() {
+        return Allocations.allocatedBytes(thread);
+    }
+
+    private static Stats enter(Map<Ast.Expression, Stats> table, Ast.Expression node) {
+        Stats stats = table.get(node);
+        if(stats == null) {
+            stats = new Stats(node);
+            table.put(node, stats);
+        }
+        stats.count++;
+        if(stats.active++ == 0) stats.start = System.nanoTime();
+        return stats;
+    }
+
+    private static void exit(Stats stats) {
+        if(--stats.active == 0) stats.nanos += System.nanoTime() - stats.start;
+    }
+
+    private Stats enter(Ast.Expression node) {
+        return enter(nodes, node);
+    }
+
+    @Override
+    protected Ast.Copier copier() {
+        return new Ast.Copier() {
+            @Override
+            protected Ast.Expression copied(Ast.Expression node, Ast.Expression copy) {
+                copies.put(node, copy);
+                return copy;
+            }
+        };
+    }
+
+    @Override
+    public Object execute(Ast.Block program) {
+        thread = Thread.currentThread().getId();
+        long start = System.nanoTime();
+        long allocated = allocatedBytes();
+        try {
+            return StringValue.flatten(interpret(program, ExecutionLimits.NONE.start()));
+        } finally {
+            root.nanos += System.nanoTime() - start;
+            root.bytes += allocatedBytes() - allocated;
+            output.flush();
+        }
+    }
+
+    @Override
+    protected Object invoke(Ast.DefFunction function) {
+        Stats stats = enter(functions, function);
+        Stack caller = stack;
+        Stack callee = caller.child(function);
+        stack = callee;
+        long start = System.nanoTime();
+        long allocated = allocatedBytes();
+        try {
+            return super.invoke(function);
+        } finally {
+            callee.nanos += System.nanoTime() - start;
+            callee.bytes += allocatedBytes() - allocated;
+            stack = caller;
+            exit(stats);
+        }
+    }
+
+    /**
+     * The measurements of a node of a program given to eval, or of the program that ran.
+     */
+    public Stats stats(Ast.Expression node) {
+        node = copies.getOrDefault(node, node);
+        return node instanceof Ast.DefFunction ? functions.get(node) : nodes.get(node);
+    }
+
+    /**
+     * Functions, then nodes, by descending time.
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%12s %12s  %s%n", "calls", "total ms", "function"));
+        for(Stats stats:sorted(functions)) {
+            report.append(String.format("%12d %12.3f  %s%n", stats.count, stats.nanos / 1e6, ((Ast.DefFunction)stats.node).name));
+        }
+        report.append(String.format("%12s %12s  %s%n", "count", "total ms", "node"));
+        for(Stats stats:sorted(nodes)) {
+            report.append(String.format("%12d %12.3f  %s%n", stats.count, stats.nanos / 1e6, describe(stats.node)));
+        }
+        return report.toString();
+    }
+
+    private static List<Stats> sorted(Map<?, Stats> table) {
+        List<Stats> stats = new ArrayList<>(table.values());
+        stats.sort((a, b) -> Long.compare(b.nanos, a.nanos));
+        return stats;
+    }
+
+    private static String describe(Ast.Expression node) {
+        String kind = node.getClass().getSimpleName();
+        if(node instanceof Ast.FunctionCall) return kind + " " + ((Ast.FunctionCall)node).name;
+        if(node instanceof Ast.Id) return kind + " " + ((Ast.Id)node).name;
+        if(node instanceof Ast.LetExpression) return kind + " " + ((Ast.LetExpression)node).variableName;
+        if(node instanceof Ast.AssignmentExpression) return kind + " " + ((Ast.AssignmentExpression)node).variableName;
+        if(node instanceof Ast.BinaryExpression) return kind + " " + ((Ast.BinaryExpression)node).operator;
+        if(node instanceof Ast.IntLiteral) return kind + " " + ((Ast.IntLiteral)node).value;
+        return kind;
+    }
+
+    /**
+     * One line per call stack with its own time in nanoseconds, or with the bytes allocated in it.
+     */
+    public String collapsedStacks(boolean allocations) {
+        StringBuilder out = new StringBuilder();
+        collapse(root, root.name, allocations, out);
+        return out.toString();
+    }
+
+    private static void collapse(Stack stack, String path, boolean allocations, StringBuilder out) {
+        long self = allocations ? stack.bytes : stack.nanos;
+        for(Stack child:stack.children.values()) {
+            self -= allocations ? child.bytes : child.nanos;
+        }
+        if(self > 0) out.append(path).append(' ').append(self).append('\n');
+        for(Stack child:stack.children.values()) {
+            collapse(child, path + ";" + child.name, allocations, out);
+        }
+    }
+
+    @Override
+    public Object visitBinaryExpression(Ast.BinaryExpression node) {
+        Stats stats = enter(node);
+        try {
+            return super.visitBinaryExpression(node);
+        } finally {
+            exit(stats);
+        }
+    }
+
+    @Override
+    public Integer visitIntLiteral(Ast.IntLiteral node) {
+        Stats stats = enter(node);
+        try {
+            return super.visitIntLiteral(node);
+        } finally {
+            exit(stats);
+        }
+    }
+
+    @Override
+    public String visitStringLiteral(Ast.StringLiteral node) {
+        Stats stats = enter(node);
+        try {
+            return super.visitStringLiteral(node);
+        } finally {
+            exit(stats);
+        }
+    }
+
+    @Override
+    public Object visitBooleanLiteral(Ast.BooleanLiteral node) {
+        Stats stats = enter(node);
+        try {
+            return super.visitBooleanLiteral(node);
+        } finally {
+            exit(stats);
+        }
+    }
+
+    @Override
+    public Object visitLetExpression(Ast.LetExpression node) {
+        Stats stats = enter(node);
+        try {
+            return super.visitLetExpression(node);
+        } finally {
+            exit(stats);
+        }
+    }
+
+    @Override
+    public Object visitPrintlnExpression(Ast.PrintlnExpression node) {
+        Stats stats = enter(node);
+        try {
+            return super.visitPrintlnExpression(node);
+        } finally {
+            exit(stats);
+        }
+    }
+
+    @Override
+    public Object visitBlock(Ast.Block node) {
+        Stats stats = enter(node);
+        try {
+            return super.visitBlock(node);
+        } finally {
+            exit(stats);
+        }
+    }
+
+    @Override
+    public Object visitId(Ast.Id node) {
+        Stats stats = enter(node);
+        try {
+            return super.visitId(node);
+        } finally {
+            exit(stats);
+        }
+    }
+
+    @Override
+    public Object visitIfExpression(Ast.IfExpression node) {
+        Stats stats = enter(node);
+        try {
+            return super.visitIfExpression(node);
+        } finally {
+            exit(stats);
+        }
+    }
+
+    @Override
+    public Object visitWhileExpression(Ast.WhileExpression node) {
+        Stats stats = enter(node);
+        try {
+            return super.visitWhileExpression(node);
+        } finally {
+            exit(stats);
+        }
+    }
+
+    @Override
+    public Object visitAssignmentExpression(Ast.AssignmentExpression node) {
+        Stats stats = enter(node);
+        try {
+            return super.visitAssignmentExpression(node);
+        } finally {
+            exit(stats);
+        }
+    }
+
+    @Override
+    public Object visitFunctionCall(Ast.FunctionCall node) {
+        Stats stats = enter(node);
+        try {
+            return super.visitFunctionCall(node);
+        } finally {
+            exit(stats);
+        }
+    }
+
+    @Override
+    public Object visitArrayLiteral(Ast.ArrayLiteral node) {
+        Stats stats = enter(node);
+        try {
+            return super.visitArrayLiteral(node);
+        } finally {
+            exit(stats);
+        }
+    }
+
+    @Override
+    public Object visitMapLiteral(Ast.MapLiteral node) {
+        Stats stats = enter(node);
+        try {
+            return super.visitMapLiteral(node);
+        } finally {
+            exit(stats);
+        }
+    }
+
+    @Override
+    public Object visitIndexExpression(Ast.IndexExpression node) {
+        Stats stats = enter(node);
+        try {
+            return super.visitIndexExpression(node);
+        } finally {
+            exit(stats);
+        }
+    }
+
+    @Override
+    public Object visitIndexAssignment(Ast.IndexAssignment node) {
+        Stats stats = enter(node);
+        try {
+            return super.visitIndexAssignment(node);
+        } finally {
+            exit(stats);
+        }
+    }
+
+    @Override
+    public Object visitLengthExpression(Ast.LengthExpression node) {
+        Stats stats = enter(node);
+        try {
+            return super.visitLengthExpression(node);
+        } finally {
+            exit(stats);
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package com.github.kmizu.nub2;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of compiled programs for one engine, keyed by the structure of the parsed Ast.
+ *
+ * Two trees with the same nodes, names and literals share one CompiledProgram, so a repeated program skips
+ * checking, typing, folding and compilation.  The annotations those passes leave on a tree are not part of
+ * its key.  Entries are weighed by the size of their key and the least recently used ones are evicted
+ * once the total weight goes over the maximum.  The cache may be used from several threads; programs are
+ * compiled outside its lock, each key by one thread at a time while the others that want it wait.  Compiling
+ * checks a copy of the tree, so a caller that still holds or runs the tree is not disturbed.  A thread that
+ * waits counts as a hit.
+ */
+public class ProgramCache {
+    private final Evaluator.Engine engine;
+    private final long maximumWeight;
+    private final LinkedHashMap<Key, CompiledProgram> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Key, FutureTask<CompiledProgram>> compiling = new HashMap<>();
+    private long weight;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ProgramCache(Evaluator.Engine engine, long maximumWeight) {
+        this.engine = engine;
+        this.maximumWeight = maximumWeight;
+    }
+
+    public CompiledProgram get(Ast.Block program) {
+        Key key = new Key(program);
+        FutureTask<CompiledProgram> task;
+        boolean compiles = false;
+        synchronized (this) {
+            CompiledProgram compiled = entries.get(key);
+            if(compiled != null) {
+                hits.increment();
+                return compiled;
+            }
+            // a program that another thread is compiling is waited for rather than compiled again
+            task = compiling.get(key);
+            if(task == null) {
+                task = new FutureTask<>(() -> CompiledProgram.compile(program, engine));
+                compiling.put(key, task);
+                compiles = true;
+            }
+        }
+        if(!compiles) {
+            hits.increment();
+            return result(task);
+        }
+        misses.increment();
+        task.run();
+        synchronized (this) {
+            compiling.remove(key);
+            if(!task.isDone() || key.weight() > maximumWeight) return result(task);
+            CompiledProgram compiled = result(task);
+            entries.put(key, compiled);
+            weight += key.weight();
+            Iterator<Key> eldest = entries.keySet().iterator();
+            while(weight > maximumWeight) {
+                weight -= eldest.next().weight();
+                eldest.remove();
+                evictions.increment();
+            }
+            return compiled;
+        }
+    }
+
+    /*
+     * What compiling gave: the program, or the exception it threw
+     */
+    private static CompiledProgram result(FutureTask<CompiledProgram> task) {
+        boolean interrupted = false;
+        try {
+            while(true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if(cause instanceof Error) throw (Error)cause;
+            throw new IllegalStateException(cause);
+        } finally {
+            if(interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    public Object eval(Ast.Block program) {
+        return get(program).execute();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long weight() {
+        return weight;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    /*
+     * The tree in pre-order: a tag per node followed by its names, literals and the number of its children.
+     * Keys of trees of the same structure are equal; a key holds no reference to its tree.
+     */
+    static final class Key implements Ast.ExpressionVisitor<Object> {
+        private ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final byte[] bytes;
+        private final int hash;
+
+        Key(Ast.Block program) {
+            program.accept(this);
+            bytes = out.toByteArray();
+            out = null;
+            hash = Arrays.hashCode(bytes);
+        }
+
+        int weight() {
+            return bytes.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && Arrays.equals(bytes, ((Key)other).bytes);
+        }
+
+        private void number(int n) {
+            out.write(n >>> 24);
+            out.write(n >>> 16);
+            out.write(n >>> 8);
+            out.write(n);
+        }
+
+        private void string(String s) {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            number(utf8.length);
+            out.write(utf8, 0, utf8.length);
+        }
+
+        private void all(List<Ast.Expression> expressions) {
+            number(expressions.size());
+            for(Ast.Expression e:expressions) {
+                e.accept(this);
+            }
+        }
+
+        @Override
+        public Object visitBinaryExpression(Ast.BinaryExpression node) {
+            out.write(AstWriter.BINARY);
+            out.write(node.operator.ordinal());
+            node.lhs.accept(this);
+            node.rhs.accept(this);
+            return null;
+        }
+
+        @Override
+        public Object visitIntLiteral(Ast.IntLiteral node) {
+            out.write(AstWriter.INT);
+            number(node.value);
+            return null;
+        }
+
+        @Override
+        public Object visitBooleanLiteral(Ast.BooleanLiteral node) {
+            out.write(AstWriter.BOOLEAN);
+            out.write(node.value ? 1 : 0);
+            return null;
+        }
+
+        @Override
+        public Object visitStringLiteral(Ast.StringLiteral node) {
+            out.write(AstWriter.STRING);
+            string(node.value);
+            return null;
+        }
+
+        @Override
+        public Object visitLetExpression(Ast.LetExpression node) {
+            // in pre-order the let ending a body comes last, so a run of lets is written in one loop
+            for(Ast.LetExpression let = node; let != null; let = let.next()) {
+                out.write(AstWriter.LET);
+                string(let.variableName);
+                let.init.accept(this);
+                out.write(AstWriter.BLOCK);
+                number(1);
+                List<Ast.Expression> expressions = let.inner().expressions;
+                out.write(AstWriter.BLOCK);
+                number(expressions.size());
+                int end = let.next() == null ? expressions.size() : expressions.size() - 1;
+                for(int i = 0; i < end; i++) {
+                    expressions.get(i).accept(this);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Object visitId(Ast.Id node) {
+            out.write(AstWriter.ID);
+            string(node.name);
+            return null;
+        }
+
+        @Override
+        public Object visitBlock(Ast.Block node) {
+            out.write(AstWriter.BLOCK);
+            all(node.expressions);
+            return null;
+        }
+
+        @Override
+        public Object visitIfExpression(Ast.IfExpression node) {
+            out.write(AstWriter.IF);
+            node.condition.accept(this);
+            node.thenClause.accept(this);
+            node.elseClause.accept(this);
+            return null;
+        }
+
+        @Override
+        public Object visitWhileExpression(Ast.WhileExpression node) {
+            out.write(AstWriter.WHILE);
+            node.condition.accept(this);
+            all(node.body);
+            return null;
+        }
+
+        @Override
+        public Object visitAssignmentExpression(Ast.AssignmentExpression node) {
+            out.write(AstWriter.ASSIGN);
+            string(node.variableName);
+            node.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Object visitPrintlnExpression(Ast.PrintlnExpression node) {
+            out.write(AstWriter.PRINTLN);
+            node.target.accept(this);
+            return null;
+        }
+
+        @Override
+        public Object visitDefFunction(Ast.DefFunction node) {
+            out.write(AstWriter.DEF);
+            string(node.name);
+            number(node.args.size());
+            for(String arg:node.args) {
+                string(arg);
+            }
+            node.body.accept(this);
+            return null;
+        }
+
+        @Override
+        public Object visitFunctionCall(Ast.FunctionCall node) {
+            out.write(AstWriter.CALL);
+            string(node.name);
+            all(node.params);
+            return null;
+        }
+
+        @Override
+        public Object visitArrayLiteral(Ast.ArrayLiteral node) {
+            out.write(AstWriter.ARRAY);
+            all(node.elements);
+            return null;
+        }
+
+        @Override
+        public Object visitMapLiteral(Ast.MapLiteral node) {
+            out.write(AstWriter.MAP);
+            all(node.keys);
+            all(node.values);
+            return null;
+        }
+
+        @Override
+        public Object visitIndexExpression(Ast.IndexExpression node) {
+            out.write(AstWriter.INDEX);
+            node.target.accept(this);
+            node.index.accept(this);
+            return null;
+        }
+
+        @Override
+        public Object visitIndexAssignment(Ast.IndexAssignment node) {
+            out.write(AstWriter.STORE);
+            node.target.accept(this);
+            node.index.accept(this);
+            node.value.accept(this);
+            return null;
+        }
+
+        @Override
+        public Object visitLengthExpression(Ast.LengthExpression node) {
+            out.write(AstWriter.LENGTH);
+            node.target.accept(this);
+            return null;
+        }
+    }
+}
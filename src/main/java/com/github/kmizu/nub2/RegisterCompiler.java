@@ -0,0 +1,695 @@
+package com.github.kmizu.nub2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.github.kmizu.nub2.RegisterMachine.*;
+
+/**
+ * Compiles a checked program into register code for RegisterMachine.
+ *
+ * Each expression is compiled into a destination register of the kind its consumer wants: an int, a boolean or
+ * an object.  Types from Typer decide the natural kind of every expression and the kind of every variable, so
+ * for well-typed code values stay in the int register file and no boxing is emitted.  Operands that are already
+ * in a variable register of the right kind are used in place, conditions of if and while compile to fused
+ * compare-and-branch instructions, and literal operands of additions, multiplications and comparisons are
+ * encoded as immediates.
+ *
+ * Program variables that a function reaches at depth 1 always live in the object file, where GLOAD and GSTORE
+ * can address them, and are cleared when their let ends so that a late read fails as it does in Evaluator.
+ */
+public class RegisterCompiler implements Ast.ExpressionVisitor<Object> {
+    private enum Kind { INT, BOOLEAN, OBJECT, NONE }
+
+    private static class FunctionInfo {
+        final int index;
+        final Kind[] params;
+        final Kind result;
+        final RegisterMachine.Function function;
+        FunctionInfo(int index, String name, Kind[] params, Kind result) {
+            this.index = index;
+            this.params = params;
+            this.result = result;
+            boolean[] intParams = new boolean[params.length];
+            for(int i = 0; i < params.length; i++) {
+                intParams[i] = params[i] != Kind.OBJECT;
+            }
+            this.function = new RegisterMachine.Function(name, index, intParams);
+        }
+    }
+
+    private final Map<Ast.DefFunction, FunctionInfo> functions = new IdentityHashMap<>();
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndices = new HashMap<>();
+    private final Set<Integer> sharedSlots = new HashSet<>();
+
+    /*
+     * State of the function being compiled; current is null for the program itself
+     */
+    private Ast.DefFunction current;
+    private int[] code = new int[64];
+    private int size;
+    private Kind[] slotKinds;
+    private int nextRegister, maxRegister;
+
+    /*
+     * Where the node being visited has to leave its value
+     */
+    private Kind want = Kind.NONE;
+    private int target = -1;
+
+    private static Kind kindOf(Type type) {
+        if(type == Type.INT) return Kind.INT;
+        if(type == Type.BOOLEAN) return Kind.BOOLEAN;
+        return Kind.OBJECT;
+    }
+
+    private static boolean hasEffects(Ast.Expression e) {
+        boolean[] found = new boolean[1];
+        e.accept(new Ast.Traverser() {
+            @Override
+            public Object visitAssignmentExpression(Ast.AssignmentExpression node) {
+                found[0] = true;
+                return null;
+            }
+
+            @Override
+            public Object visitFunctionCall(Ast.FunctionCall node) {
+                found[0] = true;
+                return null;
+            }
+        });
+        return found[0];
+    }
+
+    /*
+     * Whether e writes its destination only after it has read everything it needs, so it can be compiled
+     * straight into the register of the variable it is assigned to.
+     */
+    private static boolean writesLast(Ast.Expression e) {
+        if(e instanceof Ast.BinaryExpression) {
+            Ast.BinaryOperator operator = ((Ast.BinaryExpression)e).operator;
+            return operator != Ast.BinaryOperator.LOGICAL_AND && operator != Ast.BinaryOperator.LOGCIAL_OR;
+        }
+        return !(e instanceof Ast.IfExpression || e instanceof Ast.Block || e instanceof Ast.LetExpression);
+    }
+
+    private void emit(int... words) {
+        if(size + words.length > code.length) code = Arrays.copyOf(code, Math.max(code.length * 2, size + words.length));
+        System.arraycopy(words, 0, code, size, words.length);
+        size += words.length;
+    }
+
+    /*
+     * Emits a jump whose target is filled in later and returns where the target goes.
+     */
+    private int jump(int... words) {
+        emit(words);
+        emit(-1);
+        return size - 1;
+    }
+
+    private void patch(List<Integer> jumps, int to) {
+        for(int at:jumps) {
+            code[at] = to;
+        }
+    }
+
+    private int constant(Object value) {
+        Integer index = constantIndices.get(value);
+        if(index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantIndices.put(value, index);
+        }
+        return index;
+    }
+
+    private int temp() {
+        int r = nextRegister++;
+        if(nextRegister > maxRegister) maxRegister = nextRegister;
+        return r;
+    }
+
+    private void compile(Ast.Expression e, Kind kind, int dst) {
+        Kind backupWant = want;
+        int backupTarget = target;
+        int mark = nextRegister;
+        want = kind;
+        target = dst;
+        e.accept(this);
+        want = backupWant;
+        target = backupTarget;
+        nextRegister = mark;
+    }
+
+    /*
+     * The register to compute a value of the given kind into: the destination itself when it wants that kind.
+     */
+    private int destination(Kind natural) {
+        return want == natural ? target : temp();
+    }
+
+    private void move(Kind from, int src, Kind to, int dst) {
+        if(to == Kind.NONE) return;
+        if(from == to) {
+            if(src != dst) emit(to == Kind.OBJECT ? OMOV : IMOV, dst, src);
+            return;
+        }
+        int boxed = src;
+        if(from != Kind.OBJECT) {
+            boxed = to == Kind.OBJECT ? dst : temp();
+            emit(from == Kind.INT ? BOXI : BOXZ, boxed, src);
+            if(to == Kind.OBJECT) return;
+        }
+        emit(to == Kind.INT ? UNBOXI : UNBOXZ, dst, boxed);
+    }
+
+    private void result(Kind natural, int src) {
+        move(natural, src, want, target);
+    }
+
+    /*
+     * Returns a register holding the value of e.  A variable is used in place unless later operands may change it.
+     */
+    private int operand(Ast.Expression e, Kind kind, boolean stable) {
+        if(stable && e instanceof Ast.Id) {
+            Ast.Id id = (Ast.Id)e;
+            if(id.depth == 0 && slotKinds[id.slot] == kind) return id.slot;
+        }
+        int r = temp();
+        compile(e, kind, r);
+        return r;
+    }
+
+    private void store(Ast.Expression e, Kind kind, int register) {
+        if(writesLast(e)) {
+            compile(e, kind, register);
+        } else {
+            int r = temp();
+            compile(e, kind, r);
+            move(kind, r, kind, register);
+        }
+    }
+
+    private void constant(Kind natural, int bits, Object value) {
+        if(want == Kind.NONE) return;
+        if(natural == Kind.OBJECT || want == Kind.OBJECT) {
+            int out = destination(Kind.OBJECT);
+            emit(OCONST, out, constant(value));
+            result(Kind.OBJECT, out);
+        } else {
+            int out = destination(natural);
+            emit(ICONST, out, bits);
+            result(natural, out);
+        }
+    }
+
+    /*
+     * Emits jumps taken when cond evaluates to when and records them in jumps; otherwise control falls through.
+     */
+    private void branch(Ast.Expression cond, boolean when, List<Integer> jumps) {
+        int mark = nextRegister;
+        if(cond instanceof Ast.BooleanLiteral) {
+            if(((Ast.BooleanLiteral)cond).value == when) jumps.add(jump(JMP));
+            return;
+        }
+        if(cond instanceof Ast.BinaryExpression) {
+            Ast.BinaryExpression b = (Ast.BinaryExpression)cond;
+            int op = -1, negated = -1;
+            switch (b.operator) {
+                case LESS_THAN: op = JLT; negated = JGE; break;
+                case LESS_THAN_OR_EQUAL: op = JLE; negated = JGT; break;
+                case GREATER_THAN: op = JGT; negated = JLE; break;
+                case GREATER_THAN_OR_EQUAL: op = JGE; negated = JLT; break;
+                case EQUAL:
+                case NOT_EQUAL: {
+                    Kind kind = comparedKind(b);
+                    if(kind != Kind.OBJECT) {
+                        boolean equal = b.operator == Ast.BinaryOperator.EQUAL;
+                        compareAndJump(equal == when ? JEQ : JNE, b, kind, jumps);
+                        nextRegister = mark;
+                        return;
+                    }
+                    break;
+                }
+                case LOGICAL_AND:
+                case LOGCIAL_OR: {
+                    boolean and = b.operator == Ast.BinaryOperator.LOGICAL_AND;
+                    if(and != when) {
+                        // jumping when && is false or || is true: either operand alone decides
+                        branch(b.lhs, when, jumps);
+                        branch(b.rhs, when, jumps);
+                    } else {
+                        List<Integer> skip = new ArrayList<>();
+                        branch(b.lhs, !when, skip);
+                        branch(b.rhs, when, jumps);
+                        patch(skip, size);
+                    }
+                    return;
+                }
+                default:
+                    break;
+            }
+            if(op >= 0) {
+                compareAndJump(when ? op : negated, b, Kind.INT, jumps);
+                nextRegister = mark;
+                return;
+            }
+        }
+        int r = operand(cond, Kind.BOOLEAN, true);
+        jumps.add(jump(when ? JNZ : JZ, r));
+        nextRegister = mark;
+    }
+
+    /*
+     * The comparison that holds for swapped operands: k < x is x > k.
+     */
+    private static int mirror(int op) {
+        switch (op) {
+            case JLT: return JGT;
+            case JLE: return JGE;
+            case JGT: return JLT;
+            case JGE: return JLE;
+            default: return op;
+        }
+    }
+
+    private void compareAndJump(int op, Ast.BinaryExpression b, Kind kind, List<Integer> jumps) {
+        // the immediate forms JLTK..JNEK follow JLT..JNE in the same order
+        int immediate = JLTK - JLT;
+        if(kind == Kind.INT && b.rhs instanceof Ast.IntLiteral) {
+            jumps.add(jump(op + immediate, operand(b.lhs, kind, true), ((Ast.IntLiteral)b.rhs).value));
+        } else if(kind == Kind.INT && b.lhs instanceof Ast.IntLiteral) {
+            jumps.add(jump(mirror(op) + immediate, operand(b.rhs, kind, true), ((Ast.IntLiteral)b.lhs).value));
+        } else {
+            int a = operand(b.lhs, kind, !hasEffects(b.rhs));
+            int c = operand(b.rhs, kind, true);
+            jumps.add(jump(op, a, c));
+        }
+    }
+
+    private static Kind comparedKind(Ast.BinaryExpression b) {
+        if(b.lhs.type == Type.INT && b.rhs.type == Type.INT) return Kind.INT;
+        if(b.lhs.type == Type.BOOLEAN && b.rhs.type == Type.BOOLEAN) return Kind.BOOLEAN;
+        return Kind.OBJECT;
+    }
+
+    private void binary(int op, Kind operands, Kind natural, Ast.BinaryExpression node) {
+        int out = destination(natural);
+        int a = operand(node.lhs, operands, !hasEffects(node.rhs));
+        int b = operand(node.rhs, operands, true);
+        emit(op, out, a, b);
+        result(natural, out);
+    }
+
+    private void immediate(int op, Ast.Expression operand, int k) {
+        int out = destination(Kind.INT);
+        emit(op, out, operand(operand, Kind.INT, true), k);
+        result(Kind.INT, out);
+    }
+
+    @Override
+    public Object visitBinaryExpression(Ast.BinaryExpression node) {
+        switch (node.operator) {
+            case ADD:
+                if(node.type != Type.INT) {
+                    binary(node.type == Type.STRING ? OCONCAT : OADD, Kind.OBJECT, Kind.OBJECT, node);
+                } else if(node.rhs instanceof Ast.IntLiteral) {
+                    immediate(IADDK, node.lhs, ((Ast.IntLiteral)node.rhs).value);
+                } else if(node.lhs instanceof Ast.IntLiteral) {
+                    immediate(IADDK, node.rhs, ((Ast.IntLiteral)node.lhs).value);
+                } else {
+                    binary(IADD, Kind.INT, Kind.INT, node);
+                }
+                return null;
+            case SUBTRACT:
+                if(node.rhs instanceof Ast.IntLiteral) {
+                    immediate(IADDK, node.lhs, -((Ast.IntLiteral)node.rhs).value);
+                } else {
+                    binary(ISUB, Kind.INT, Kind.INT, node);
+                }
+                return null;
+            case MULTIPLY:
+                if(node.rhs instanceof Ast.IntLiteral) {
+                    immediate(IMULK, node.lhs, ((Ast.IntLiteral)node.rhs).value);
+                } else if(node.lhs instanceof Ast.IntLiteral) {
+                    immediate(IMULK, node.rhs, ((Ast.IntLiteral)node.lhs).value);
+                } else {
+                    binary(IMUL, Kind.INT, Kind.INT, node);
+                }
+                return null;
+            case DIVIDE:
+                binary(IDIV, Kind.INT, Kind.INT, node);
+                return null;
+            case LESS_THAN:
+                binary(ILT, Kind.INT, Kind.BOOLEAN, node);
+                return null;
+            case LESS_THAN_OR_EQUAL:
+                binary(ILE, Kind.INT, Kind.BOOLEAN, node);
+                return null;
+            case GREATER_THAN:
+                binary(IGT, Kind.INT, Kind.BOOLEAN, node);
+                return null;
+            case GREATER_THAN_OR_EQUAL:
+                binary(IGE, Kind.INT, Kind.BOOLEAN, node);
+                return null;
+            case EQUAL:
+            case NOT_EQUAL: {
+                boolean equal = node.operator == Ast.BinaryOperator.EQUAL;
+                Kind kind = comparedKind(node);
+                if(kind == Kind.OBJECT) {
+                    binary(equal ? OEQ : ONE, kind, Kind.BOOLEAN, node);
+                } else {
+                    binary(equal ? IEQ : INE, kind, Kind.BOOLEAN, node);
+                }
+                return null;
+            }
+            default: {
+                boolean and = node.operator == Ast.BinaryOperator.LOGICAL_AND;
+                int out = destination(Kind.BOOLEAN);
+                compile(node.lhs, Kind.BOOLEAN, out);
+                int skip = jump(and ? JZ : JNZ, out);
+                compile(node.rhs, Kind.BOOLEAN, out);
+                code[skip] = size;
+                result(Kind.BOOLEAN, out);
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public Object visitIntLiteral(Ast.IntLiteral node) {
+        constant(Kind.INT, node.value, node.value);
+        return null;
+    }
+
+    @Override
+    public Object visitBooleanLiteral(Ast.BooleanLiteral node) {
+        constant(Kind.BOOLEAN, node.value ? 1 : 0, node.value);
+        return null;
+    }
+
+    @Override
+    public Object visitStringLiteral(Ast.StringLiteral node) {
+        constant(Kind.OBJECT, 0, node.value);
+        return null;
+    }
+
+    @Override
+    public Object visitLetExpression(Ast.LetExpression node) {
+        // a run of lets is compiled in one loop; each let ends the body of the one before
+        List<Ast.LetExpression> lets = new ArrayList<>();
+        List<Kind> backups = new ArrayList<>();
+        int mark = nextRegister;
+        for(Ast.LetExpression let = node; let != null; let = let.next()) {
+            boolean shared = current == null && sharedSlots.contains(let.slot);
+            Kind kind = shared ? Kind.OBJECT : kindOf(let.variableType);
+            store(let.init, kind, let.slot);
+            nextRegister = mark;
+            lets.add(let);
+            backups.add(slotKinds[let.slot]);
+            slotKinds[let.slot] = kind;
+            if(let.next() == null) {
+                compile(let.body, want, target);
+                break;
+            }
+            List<Ast.Expression> expressions = let.inner().expressions;
+            for(int i = 0; i < expressions.size() - 1; i++) {
+                compile(expressions.get(i), Kind.NONE, -1);
+            }
+        }
+        for(int i = lets.size() - 1; i >= 0; i--) {
+            int slot = lets.get(i).slot;
+            slotKinds[slot] = backups.get(i);
+            if(current == null && sharedSlots.contains(slot)) emit(OCLEAR, slot);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitId(Ast.Id node) {
+        if(want == Kind.NONE) return null;
+        if(node.depth == 0) {
+            result(slotKinds[node.slot], node.slot);
+        } else {
+            int out = destination(Kind.OBJECT);
+            emit(GLOAD, out, node.slot, constant(node.name));
+            result(Kind.OBJECT, out);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitBlock(Ast.Block node) {
+        List<Ast.Expression> expressions = node.expressions;
+        int last = expressions.size() - 1;
+        for(int i = 0; i < last; i++) {
+            compile(expressions.get(i), Kind.NONE, -1);
+        }
+        if(last >= 0) {
+            compile(expressions.get(last), want, target);
+        } else {
+            constant(Kind.INT, 0, 0);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitIfExpression(Ast.IfExpression node) {
+        List<Integer> toElse = new ArrayList<>();
+        branch(node.condition, false, toElse);
+        compile(node.thenClause, want, target);
+        if(want == Kind.NONE && node.elseClause.expressions.isEmpty()) {
+            patch(toElse, size);
+            return null;
+        }
+        int toEnd = jump(JMP);
+        patch(toElse, size);
+        compile(node.elseClause, want, target);
+        code[toEnd] = size;
+        return null;
+    }
+
+    @Override
+    public Object visitWhileExpression(Ast.WhileExpression node) {
+        int toCondition = jump(JMP);
+        int top = size;
+        emit(TICK);
+        for(Ast.Expression e:node.body) {
+            compile(e, Kind.NONE, -1);
+        }
+        code[toCondition] = size;
+        List<Integer> back = new ArrayList<>();
+        branch(node.condition, true, back);
+        patch(back, top);
+        constant(Kind.INT, 0, 0);
+        return null;
+    }
+
+    @Override
+    public Object visitAssignmentExpression(Ast.AssignmentExpression node) {
+        if(node.depth == 0) {
+            Kind kind = slotKinds[node.slot];
+            store(node.expression, kind, node.slot);
+            result(kind, node.slot);
+        } else {
+            int out = destination(Kind.OBJECT);
+            compile(node.expression, Kind.OBJECT, out);
+            emit(GSTORE, node.slot, out);
+            result(Kind.OBJECT, out);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitPrintlnExpression(Ast.PrintlnExpression node) {
+        int r = operand(node.target, Kind.OBJECT, true);
+        emit(PRINT, r);
+        result(Kind.OBJECT, r);
+        return null;
+    }
+
+    @Override
+    public Object visitDefFunction(Ast.DefFunction node) {
+        constant(Kind.OBJECT, 0, null);
+        return null;
+    }
+
+    @Override
+    public Object visitFunctionCall(Ast.FunctionCall node) {
+        FunctionInfo callee = functions.get(node.function);
+        List<Ast.Expression> params = node.params;
+        int n = params.size();
+        if(node.tailCall && node.function == current) {
+            // a self tail call becomes a jump back to the start with new arguments
+            int[] values = new int[n];
+            for(int i = 0; i < n; i++) {
+                values[i] = temp();
+                compile(params.get(i), callee.params[i], values[i]);
+            }
+            for(int i = 0; i < n; i++) {
+                move(callee.params[i], values[i], callee.params[i], i);
+            }
+            emit(TICK);
+            emit(JMP, 0);
+            return null;
+        }
+        int[] args = new int[n];
+        for(int i = 0; i < n; i++) {
+            args[i] = operand(params.get(i), callee.params[i], !hasEffects(new Ast.Block(params.subList(i + 1, n))));
+        }
+        if(node.tailCall && current != null && functions.get(current).result == callee.result) {
+            emit(TAILCALL, callee.index, n);
+            emit(args);
+            return null;
+        }
+        int out = destination(callee.result);
+        emit(CALL, callee.index, out, n);
+        emit(args);
+        result(callee.result, out);
+        return null;
+    }
+
+    @Override
+    public Object visitArrayLiteral(Ast.ArrayLiteral node) {
+        // built in a temporary, since the elements may read the variable it is assigned to
+        int out = temp();
+        int index = temp();
+        List<Ast.Expression> elements = node.elements;
+        emit(NEWARRAY, out, elements.size());
+        for(int i = 0; i < elements.size(); i++) {
+            Ast.Expression e = elements.get(i);
+            int mark = nextRegister;
+            if(e.type == Type.INT) {
+                int value = operand(e, Kind.INT, true);
+                emit(ICONST, index, i);
+                emit(ISTORE, out, index, value);
+            } else {
+                int value = operand(e, Kind.OBJECT, true);
+                emit(OCONST, index, constant(i));
+                emit(OSTORE, out, index, value);
+            }
+            nextRegister = mark;
+        }
+        result(Kind.OBJECT, out);
+        return null;
+    }
+
+    @Override
+    public Object visitMapLiteral(Ast.MapLiteral node) {
+        int out = temp();
+        emit(NEWMAP, out, node.keys.size());
+        for(int i = 0; i < node.keys.size(); i++) {
+            int mark = nextRegister;
+            int key = operand(node.keys.get(i), Kind.OBJECT, !hasEffects(node.values.get(i)));
+            int value = operand(node.values.get(i), Kind.OBJECT, true);
+            emit(OSTORE, out, key, value);
+            nextRegister = mark;
+        }
+        result(Kind.OBJECT, out);
+        return null;
+    }
+
+    @Override
+    public Object visitIndexExpression(Ast.IndexExpression node) {
+        Kind natural = node.type == Type.INT && node.index.type == Type.INT ? Kind.INT : Kind.OBJECT;
+        // OINDEX reads its index from the object registers, so only IINDEX takes it unboxed
+        Kind index = natural;
+        int out = destination(natural);
+        int a = operand(node.target, Kind.OBJECT, !hasEffects(node.index));
+        int b = operand(node.index, index, true);
+        emit(natural == Kind.INT ? IINDEX : OINDEX, out, a, b);
+        result(natural, out);
+        return null;
+    }
+
+    @Override
+    public Object visitIndexAssignment(Ast.IndexAssignment node) {
+        Kind kind = node.index.type == Type.INT && node.value.type == Type.INT ? Kind.INT : Kind.OBJECT;
+        int a = operand(node.target, Kind.OBJECT, !hasEffects(new Ast.Block(Arrays.asList(node.index, node.value))));
+        int b = operand(node.index, kind, !hasEffects(node.value));
+        int c = operand(node.value, kind, true);
+        emit(kind == Kind.INT ? ISTORE : OSTORE, a, b, c);
+        result(kind, c);
+        return null;
+    }
+
+    @Override
+    public Object visitLengthExpression(Ast.LengthExpression node) {
+        int out = destination(Kind.INT);
+        emit(LENGTH, out, operand(node.target, Kind.OBJECT, true));
+        result(Kind.INT, out);
+        return null;
+    }
+
+    private void compileFunction(Ast.DefFunction function, Ast.Block body, RegisterMachine.Function into, Kind[] params, Kind resultKind) {
+        current = function;
+        size = 0;
+        slotKinds = new Kind[Math.max(body.frameSize, params.length)];
+        System.arraycopy(params, 0, slotKinds, 0, params.length);
+        nextRegister = maxRegister = slotKinds.length;
+        int r = temp();
+        compile(body, resultKind, r);
+        emit(resultKind == Kind.OBJECT ? RETO : RETI, r);
+        into.code = Arrays.copyOf(code, size);
+        into.registers = maxRegister;
+    }
+
+    public RegisterMachine.Program compile(Ast.Block program) {
+        List<Ast.DefFunction> defs = new ArrayList<>();
+        program.accept(new Ast.Traverser() {
+            @Override
+            public Object visitDefFunction(Ast.DefFunction node) {
+                defs.add(node);
+                return super.visitDefFunction(node);
+            }
+        });
+        Ast.Traverser sharedFinder = new Ast.Traverser() {
+            @Override
+            public Object visitId(Ast.Id node) {
+                if(node.depth == 1) sharedSlots.add(node.slot);
+                return null;
+            }
+
+            @Override
+            public Object visitAssignmentExpression(Ast.AssignmentExpression node) {
+                if(node.depth == 1) sharedSlots.add(node.slot);
+                return super.visitAssignmentExpression(node);
+            }
+        };
+        RegisterMachine.Function[] compiled = new RegisterMachine.Function[defs.size()];
+        for(int i = 0; i < defs.size(); i++) {
+            Ast.DefFunction def = defs.get(i);
+            Kind[] params = new Kind[def.args.size()];
+            Kind result = Kind.OBJECT;
+            Arrays.fill(params, Kind.OBJECT);
+            // a memoized function takes and returns objects, which is what its MemoTable keeps
+            if(def.memo == null && def.type instanceof Type.FunctionType) {
+                Type.FunctionType type = (Type.FunctionType)def.type;
+                for(int j = 0; j < params.length; j++) {
+                    params[j] = kindOf(type.params.get(j));
+                }
+                result = kindOf(type.result);
+            }
+            FunctionInfo info = new FunctionInfo(i, def.name, params, result);
+            info.function.memo = def.memo;
+            functions.put(def, info);
+            compiled[i] = info.function;
+            def.body.accept(sharedFinder);
+        }
+        for(Ast.DefFunction def:defs) {
+            FunctionInfo info = functions.get(def);
+            compileFunction(def, def.body, info.function, info.params, info.result);
+        }
+        RegisterMachine.Function main = new RegisterMachine.Function("main", -1, new boolean[0]);
+        compileFunction(null, program, main, new Kind[0], Kind.OBJECT);
+        return new RegisterMachine.Program(main, compiled, constants.toArray());
+    }
+}
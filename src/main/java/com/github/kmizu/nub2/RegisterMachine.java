@@ -0,0 +1,455 @@
+package com.github.kmizu.nub2;
+
+import java.util.Arrays;
+
+/**
+ * Runs register code produced by RegisterCompiler.
+ *
+ * Every function is a flat int[] of instructions, each an opcode followed by its operands.  There are two
+ * register files, ints for INT and BOOLEAN values (booleans as 0 and 1) and objs for everything else, so
+ * operands typed by Typer are never boxed.  Each activation owns a window of both files starting at its base;
+ * registers below the frame size of a function hold its variables under the slots VariableChecker assigned and
+ * the rest are temporaries.  The program's window starts at 0 and holds the globals that functions reach with
+ * GLOAD and GSTORE.
+ *
+ * Calls do not recurse on the Java stack and do not allocate: the callee's window is placed right after the
+ * caller's, the return address is pushed on an int stack, and a tail call reuses the caller's window.
+ */
+public class RegisterMachine {
+    /*
+     * Operands are listed after each opcode.  d is a destination register, a, b and s are source registers,
+     * k is an immediate int, c is an index into the constant pool and t is a jump target.
+     */
+    static final int
+        ICONST = 0,      // d k
+        OCONST = 1,      // d c
+        IMOV = 2,        // d s
+        OMOV = 3,        // d s
+        BOXI = 4,        // d s      objs[d] = Integer
+        BOXZ = 5,        // d s      objs[d] = Boolean
+        UNBOXI = 6,      // d s      ints[d] = (Integer)objs[s]
+        UNBOXZ = 7,      // d s      ints[d] = (Boolean)objs[s]
+        GLOAD = 8,       // d slot c objs[d] = global, failing with the name in constant c when it is unset
+        GSTORE = 9,      // slot s
+        OCLEAR = 10,     // d
+        IADD = 11,       // d a b
+        IADDK = 12,      // d a k
+        ISUB = 13,       // d a b
+        IMUL = 14,       // d a b
+        IDIV = 15,       // d a b
+        ILT = 16,        // d a b
+        ILE = 17,        // d a b
+        IGT = 18,        // d a b
+        IGE = 19,        // d a b
+        IEQ = 20,        // d a b
+        INE = 21,        // d a b
+        OEQ = 22,        // d a b    ints[d] = StringValue.equal(objs[a], objs[b])
+        ONE = 23,        // d a b
+        OADD = 24,       // d a b    string concatenation or int addition, quickened on its first run
+        OCONCAT = 25,    // d a b
+        JMP = 26,        // t
+        JZ = 27,         // s t
+        JNZ = 28,        // s t
+        JLT = 29,        // a b t    jump if ints[a] < ints[b]
+        JLE = 30,        // a b t
+        JGT = 31,        // a b t
+        JGE = 32,        // a b t
+        JEQ = 33,        // a b t
+        JNE = 34,        // a b t
+        PRINT = 35,      // s
+        CALL = 36,       // function d argc args...
+        TAILCALL = 37,   // function argc args...
+        RETI = 38,       // s
+        RETO = 39,       // s
+        IMULK = 40,      // d a k
+        JLTK = 41,       // a k t    jump if ints[a] < k
+        JLEK = 42,       // a k t
+        JGTK = 43,       // a k t
+        JGEK = 44,       // a k t
+        JEQK = 45,       // a k t
+        JNEK = 46,       // a k t
+        TICK = 47,       //          a step of the run's Budget, at the head of every loop
+        OADDI = 48,      // d a b    OADD that has seen two ints, see AddCache
+        OADDS = 49,      // d a b    OADD that has seen two strings
+        OADDG = 50,      // d a b    OADD that has seen both
+        NEWARRAY = 51,   // d k      objs[d] = an empty ArrayValue with room for k elements
+        NEWMAP = 52,     // d k      objs[d] = an empty MapValue with room for k keys
+        OINDEX = 53,     // d a b    objs[d] = objs[a][objs[b]]
+        IINDEX = 54,     // d a b    ints[d] = objs[a][ints[b]], an int element at an int index
+        OSTORE = 55,     // a b s    objs[a][objs[b]] = objs[s]
+        ISTORE = 56,     // a b s    objs[a][ints[b]] = ints[s]
+        LENGTH = 57;     // d a      ints[d] = length(objs[a])
+
+    public static class Function {
+        final String name;
+        final int index;
+        final boolean[] intParams;
+        int[] code;
+        /*
+         * The MemoTable of a memoized function, whose parameters and result are then objects
+         */
+        MemoTable memo;
+        int registers;
+        Function(String name, int index, boolean[] intParams) {
+            this.name = name;
+            this.index = index;
+            this.intParams = intParams;
+        }
+    }
+
+    /**
+     * A compiled program.  It can be run any number of times, also at once; its only mutable state is the
+     * OADD instructions that rewrite themselves into OADDI, OADDS or OADDG, which is safe to race on.
+     */
+    public static class Program {
+        final Function main;
+        final Function[] functions;
+        final Object[] constants;
+        Program(Function main, Function[] functions, Object[] constants) {
+            this.main = main;
+            this.functions = functions;
+            this.constants = constants;
+        }
+    }
+
+    private final Program program;
+    private final Output output;
+    private final Budget budget;
+
+    public RegisterMachine(Program program, Output output, Budget budget) {
+        this.program = program;
+        this.output = output;
+        this.budget = budget;
+    }
+
+    public Object run() {
+        Object[] constants = program.constants;
+        Budget budget = this.budget;
+        Function[] functions = program.functions;
+        Function function = program.main;
+        int[] code = function.code;
+        int[] ints = new int[Math.max(256, function.registers)];
+        Object[] objs = new Object[ints.length];
+        // per call: index of the calling function (-1 for the program), return address, base, result register
+        int[] calls = new int[64];
+        // per call of a memoized function that missed: its table and the key to store the result under
+        MemoTable[] memos = new MemoTable[calls.length / 4];
+        Object[][] keys = new Object[calls.length / 4][];
+        int sp = 0;
+        int base = 0;
+        int pc = 0;
+        while(true) {
+            switch (code[pc]) {
+                case ICONST:
+                    ints[base + code[pc + 1]] = code[pc + 2];
+                    pc += 3;
+                    break;
+                case OCONST:
+                    objs[base + code[pc + 1]] = constants[code[pc + 2]];
+                    pc += 3;
+                    break;
+                case IMOV:
+                    ints[base + code[pc + 1]] = ints[base + code[pc + 2]];
+                    pc += 3;
+                    break;
+                case OMOV:
+                    objs[base + code[pc + 1]] = objs[base + code[pc + 2]];
+                    pc += 3;
+                    break;
+                case BOXI:
+                    objs[base + code[pc + 1]] = ints[base + code[pc + 2]];
+                    pc += 3;
+                    break;
+                case BOXZ:
+                    objs[base + code[pc + 1]] = ints[base + code[pc + 2]] != 0;
+                    pc += 3;
+                    break;
+                case UNBOXI:
+                    ints[base + code[pc + 1]] = (Integer)objs[base + code[pc + 2]];
+                    pc += 3;
+                    break;
+                case UNBOXZ:
+                    ints[base + code[pc + 1]] = (Boolean)objs[base + code[pc + 2]] ? 1 : 0;
+                    pc += 3;
+                    break;
+                case GLOAD: {
+                    Object value = objs[code[pc + 2]];
+                    if(value == null) throw new NubRuntimeException(constants[code[pc + 3]] + " is not defined");
+                    objs[base + code[pc + 1]] = value;
+                    pc += 4;
+                    break;
+                }
+                case GSTORE:
+                    objs[code[pc + 1]] = objs[base + code[pc + 2]];
+                    pc += 3;
+                    break;
+                case OCLEAR:
+                    objs[base + code[pc + 1]] = null;
+                    pc += 2;
+                    break;
+                case IADD:
+                    ints[base + code[pc + 1]] = ints[base + code[pc + 2]] + ints[base + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case IADDK:
+                    ints[base + code[pc + 1]] = ints[base + code[pc + 2]] + code[pc + 3];
+                    pc += 4;
+                    break;
+                case ISUB:
+                    ints[base + code[pc + 1]] = ints[base + code[pc + 2]] - ints[base + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case IMUL:
+                    ints[base + code[pc + 1]] = ints[base + code[pc + 2]] * ints[base + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case IMULK:
+                    ints[base + code[pc + 1]] = ints[base + code[pc + 2]] * code[pc + 3];
+                    pc += 4;
+                    break;
+                case IDIV:
+                    ints[base + code[pc + 1]] = ints[base + code[pc + 2]] / ints[base + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case ILT:
+                    ints[base + code[pc + 1]] = ints[base + code[pc + 2]] < ints[base + code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case ILE:
+                    ints[base + code[pc + 1]] = ints[base + code[pc + 2]] <= ints[base + code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case IGT:
+                    ints[base + code[pc + 1]] = ints[base + code[pc + 2]] > ints[base + code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case IGE:
+                    ints[base + code[pc + 1]] = ints[base + code[pc + 2]] >= ints[base + code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case IEQ:
+                    ints[base + code[pc + 1]] = ints[base + code[pc + 2]] == ints[base + code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case INE:
+                    ints[base + code[pc + 1]] = ints[base + code[pc + 2]] != ints[base + code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case OEQ:
+                    ints[base + code[pc + 1]] = StringValue.equal(objs[base + code[pc + 2]], objs[base + code[pc + 3]]) ? 1 : 0;
+                    pc += 4;
+                    break;
+                case ONE:
+                    ints[base + code[pc + 1]] = StringValue.equal(objs[base + code[pc + 2]], objs[base + code[pc + 3]]) ? 0 : 1;
+                    pc += 4;
+                    break;
+                case OADD: {
+                    Object l = objs[base + code[pc + 2]], r = objs[base + code[pc + 3]];
+                    byte state = AddCache.next(AddCache.UNSEEN, l, r);
+                    code[pc] = state == AddCache.INTS ? OADDI : state == AddCache.STRINGS ? OADDS : OADDG;
+                    objs[base + code[pc + 1]] = BytecodeSupport.add(l, r);
+                    pc += 4;
+                    break;
+                }
+                case OADDI: {
+                    Object l = objs[base + code[pc + 2]], r = objs[base + code[pc + 3]];
+                    if(l instanceof Integer && r instanceof Integer) {
+                        objs[base + code[pc + 1]] = (Integer)l + (Integer)r;
+                    } else {
+                        code[pc] = OADDG;
+                        objs[base + code[pc + 1]] = BytecodeSupport.add(l, r);
+                    }
+                    pc += 4;
+                    break;
+                }
+                case OADDS: {
+                    Object l = objs[base + code[pc + 2]], r = objs[base + code[pc + 3]];
+                    if(l instanceof CharSequence && r instanceof CharSequence) {
+                        objs[base + code[pc + 1]] = StringValue.concat(l, r);
+                    } else {
+                        code[pc] = OADDG;
+                        objs[base + code[pc + 1]] = BytecodeSupport.add(l, r);
+                    }
+                    pc += 4;
+                    break;
+                }
+                case OADDG:
+                    objs[base + code[pc + 1]] = BytecodeSupport.add(objs[base + code[pc + 2]], objs[base + code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case OCONCAT:
+                    objs[base + code[pc + 1]] = BytecodeSupport.concat(objs[base + code[pc + 2]], objs[base + code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case NEWARRAY:
+                    objs[base + code[pc + 1]] = new ArrayValue(code[pc + 2]);
+                    pc += 3;
+                    break;
+                case NEWMAP:
+                    objs[base + code[pc + 1]] = new MapValue(code[pc + 2]);
+                    pc += 3;
+                    break;
+                case OINDEX:
+                    objs[base + code[pc + 1]] = BytecodeSupport.index(objs[base + code[pc + 2]], objs[base + code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case IINDEX:
+                    ints[base + code[pc + 1]] = BytecodeSupport.indexInt(objs[base + code[pc + 2]], ints[base + code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case OSTORE:
+                    BytecodeSupport.store(objs[base + code[pc + 1]], objs[base + code[pc + 2]], objs[base + code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case ISTORE:
+                    BytecodeSupport.storeInt(objs[base + code[pc + 1]], ints[base + code[pc + 2]], ints[base + code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case LENGTH:
+                    ints[base + code[pc + 1]] = BytecodeSupport.length(objs[base + code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case JMP:
+                    pc = code[pc + 1];
+                    break;
+                case JZ:
+                    pc = ints[base + code[pc + 1]] == 0 ? code[pc + 2] : pc + 3;
+                    break;
+                case JNZ:
+                    pc = ints[base + code[pc + 1]] != 0 ? code[pc + 2] : pc + 3;
+                    break;
+                case JLT:
+                    pc = ints[base + code[pc + 1]] < ints[base + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case JLE:
+                    pc = ints[base + code[pc + 1]] <= ints[base + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case JGT:
+                    pc = ints[base + code[pc + 1]] > ints[base + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case JGE:
+                    pc = ints[base + code[pc + 1]] >= ints[base + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case JEQ:
+                    pc = ints[base + code[pc + 1]] == ints[base + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case JNE:
+                    pc = ints[base + code[pc + 1]] != ints[base + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case JLTK:
+                    pc = ints[base + code[pc + 1]] < code[pc + 2] ? code[pc + 3] : pc + 4;
+                    break;
+                case JLEK:
+                    pc = ints[base + code[pc + 1]] <= code[pc + 2] ? code[pc + 3] : pc + 4;
+                    break;
+                case JGTK:
+                    pc = ints[base + code[pc + 1]] > code[pc + 2] ? code[pc + 3] : pc + 4;
+                    break;
+                case JGEK:
+                    pc = ints[base + code[pc + 1]] >= code[pc + 2] ? code[pc + 3] : pc + 4;
+                    break;
+                case JEQK:
+                    pc = ints[base + code[pc + 1]] == code[pc + 2] ? code[pc + 3] : pc + 4;
+                    break;
+                case JNEK:
+                    pc = ints[base + code[pc + 1]] != code[pc + 2] ? code[pc + 3] : pc + 4;
+                    break;
+                case PRINT:
+                    output.println(objs[base + code[pc + 1]]);
+                    pc += 2;
+                    break;
+                case CALL:
+                case TAILCALL: {
+                    boolean tail = code[pc] == TAILCALL;
+                    Function callee = functions[code[pc + 1]];
+                    int argc = tail ? code[pc + 2] : code[pc + 3];
+                    int args = tail ? pc + 3 : pc + 4;
+                    // the callee's window follows ours; a tail call copies its arguments there first as well
+                    int next = base + function.registers;
+                    int end = next + Math.max(callee.registers, argc);
+                    if(end > ints.length) {
+                        int length = Math.max(end, ints.length * 2);
+                        ints = Arrays.copyOf(ints, length);
+                        objs = Arrays.copyOf(objs, length);
+                    }
+                    for(int i = 0; i < argc; i++) {
+                        int r = base + code[args + i];
+                        if(callee.intParams[i]) {
+                            ints[next + i] = ints[r];
+                        } else {
+                            objs[next + i] = objs[r];
+                        }
+                    }
+                    if(tail) {
+                        budget.tick();
+                        System.arraycopy(ints, next, ints, base, argc);
+                        System.arraycopy(objs, next, objs, base, argc);
+                    } else {
+                        MemoTable memo = callee.memo;
+                        if(memo != null) {
+                            Object result = memo.get(objs, next, argc);
+                            if(result != null) {
+                                objs[base + code[pc + 2]] = result;
+                                Arrays.fill(objs, next, next + argc, null);
+                                pc = args + argc;
+                                break;
+                            }
+                        }
+                        budget.enter();
+                        if(sp + 4 > calls.length) {
+                            calls = Arrays.copyOf(calls, calls.length * 2);
+                            memos = Arrays.copyOf(memos, calls.length / 4);
+                            keys = Arrays.copyOf(keys, calls.length / 4);
+                        }
+                        if(memo != null) {
+                            memos[sp / 4] = memo;
+                            keys[sp / 4] = memo.key(objs, next, argc);
+                        }
+                        calls[sp] = function.index;
+                        calls[sp + 1] = args + argc;
+                        calls[sp + 2] = base;
+                        calls[sp + 3] = code[pc + 2];
+                        sp += 4;
+                        base = next;
+                    }
+                    function = callee;
+                    code = callee.code;
+                    pc = 0;
+                    break;
+                }
+                case RETI:
+                case RETO: {
+                    boolean boxed = code[pc] == RETO;
+                    int from = base + code[pc + 1];
+                    if(sp == 0) {
+                        return boxed ? objs[from] : (Object)ints[from];
+                    }
+                    budget.exit();
+                    sp -= 4;
+                    if(keys[sp / 4] != null) {
+                        objs[from] = memos[sp / 4].put(keys[sp / 4], objs[from]);
+                        keys[sp / 4] = null;
+                    }
+                    function = calls[sp] < 0 ? program.main : functions[calls[sp]];
+                    code = function.code;
+                    pc = calls[sp + 1];
+                    base = calls[sp + 2];
+                    int to = base + calls[sp + 3];
+                    if(boxed) {
+                        objs[to] = objs[from];
+                        objs[from] = null;
+                    } else {
+                        ints[to] = ints[from];
+                    }
+                    break;
+                }
+                case TICK:
+                    budget.tick();
+                    pc += 1;
+                    break;
+                default:
+                    throw new NubRuntimeException("bad instruction " + code[pc] + " at " + pc);
+            }
+        }
+    }
+}
@@ -3,7 +3,8 @@ package com.github.kmizu.nub2;
 public class ReturnException extends RuntimeException {
     private final Object value;
     public ReturnException(Object value) {
-        super("return");
+        // used for control flow only, so skip capturing a stack trace
+        super("return", null, false, false);
         this.value = value;
     }
     public Object value() {
@@ -0,0 +1,99 @@
+package com.github.kmizu.nub2;
+
+/**
+ * A long string built by concatenation: a prefix of a StringBuilder.
+ *
+ * Concatenating onto the newest value of a builder appends to the builder in place, so a loop that keeps
+ * appending to one variable runs in linear time.  Older values keep their length and still see only their
+ * prefix.  Short results stay plain Strings.  A value is flattened (and cached) by toString, which print,
+ * equal and CompiledProgram.execute rely on.  Values never outlive the run that built them, so no locking
+ * is needed.
+ */
+final class StringValue implements CharSequence {
+    private static final int SHORT = 64;
+
+    private final StringBuilder builder;
+    private final int length;
+    private String flat;
+
+    private StringValue(StringBuilder builder) {
+        this.builder = builder;
+        this.length = builder.length();
+    }
+
+    /**
+     * lhs + rhs where at least one side is a string.
+     */
+    static Object concat(Object lhs, Object rhs) {
+        StringBuilder builder;
+        int rhsLength = rhs instanceof CharSequence ? ((CharSequence)rhs).length() : 11;
+        if(lhs instanceof StringValue) {
+            StringValue l = (StringValue)lhs;
+            if(l.length == l.builder.length()) {
+                builder = l.builder;
+                long size = (long)l.length + rhsLength;
+                // appending past the capacity copies the builder into one about twice its size
+                long grown = size > builder.capacity() ? Math.max(size, builder.capacity() * 2L + 2) : 0;
+                Budget.charge(2 * (grown + (rhs instanceof StringValue && ((StringValue)rhs).builder == builder ? rhsLength : 0)));
+            } else {
+                Budget.charge(4L * l.length);
+                builder = new StringBuilder(l.length * 2).append(l.builder, 0, l.length);
+            }
+        } else {
+            String l = lhs.toString();
+            if(!(rhs instanceof StringValue)) {
+                String r = rhs.toString();
+                int size = l.length() + r.length();
+                if(size < SHORT) return l.concat(r);
+                Budget.charge(4L * size);
+                return new StringValue(new StringBuilder(size * 2).append(l).append(r));
+            }
+            Budget.charge(4L * (l.length() + (long)rhsLength));
+            builder = new StringBuilder((l.length() + rhsLength) * 2).append(l);
+        }
+        if(rhs instanceof StringValue) {
+            StringValue r = (StringValue)rhs;
+            if(r.builder == builder) {
+                builder.append(r.toString());
+            } else {
+                builder.append(r.builder, 0, r.length);
+            }
+        } else {
+            builder.append(rhs);
+        }
+        return new StringValue(builder);
+    }
+
+    /**
+     * The == of Nub.  Strings compare by contents however they were built.
+     */
+    static boolean equal(Object lhs, Object rhs) {
+        return flatten(lhs).equals(flatten(rhs));
+    }
+
+    static Object flatten(Object value) {
+        return value instanceof StringValue ? value.toString() : value;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if(index >= length) throw new StringIndexOutOfBoundsException(index);
+        return builder.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        if(flat == null) flat = builder.substring(0, length);
+        return flat;
+    }
+}
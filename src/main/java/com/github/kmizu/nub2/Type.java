@@ -0,0 +1,47 @@
+package com.github.kmizu.nub2;
+
+import java.util.List;
+
+/**
+ * Static types inferred by Typer.
+ *
+ * Value types form a small lattice: UNKNOWN (no value reaches the expression) is below INT, BOOLEAN, STRING,
+ * ARRAY and MAP, and DYNAMIC (values of more than one type may reach it) is above them.  Evaluation engines
+ * only specialize on INT, BOOLEAN and STRING and treat everything else as "no information".
+ */
+public class Type {
+    public static final Type UNKNOWN = new Type("unknown");
+    public static final Type INT = new Type("int");
+    public static final Type BOOLEAN = new Type("boolean");
+    public static final Type STRING = new Type("string");
+    public static final Type ARRAY = new Type("array");
+    public static final Type MAP = new Type("map");
+    public static final Type DYNAMIC = new Type("dynamic");
+
+    public static class FunctionType extends Type {
+        public final List<Type> params;
+        public final Type result;
+        public FunctionType(List<Type> params, Type result) {
+            super(params + " => " + result);
+            this.params = params;
+            this.result = result;
+        }
+    }
+
+    private final String name;
+
+    private Type(String name) {
+        this.name = name;
+    }
+
+    public Type join(Type other) {
+        if(this == other || other == UNKNOWN) return this;
+        if(this == UNKNOWN) return other;
+        return DYNAMIC;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
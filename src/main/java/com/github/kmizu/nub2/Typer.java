@@ -1,76 +1,282 @@
 package com.github.kmizu.nub2;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 
-public class Typer implements Ast.ExpressionVisitor<Object> {
+/**
+ * Infers the type of every expression and records it in Ast.Expression.type.
+ *
+ * Each variable and function parameter gets the join of every value assigned or passed to it, and each
+ * function the join of what its body returns.  The program is walked repeatedly until none of these change;
+ * since types only move up a lattice of height two this terminates after a few passes.  The inference never
+ * rejects a program: operands it cannot type make the result DYNAMIC and the engines check at runtime.
+ *
+ * All arrays of a program share one element type and all maps one value type, the join of everything stored
+ * in any of them.  That is coarse, but it stays sound however arrays and maps are aliased or passed around.
+ */
+public class Typer implements Ast.ExpressionVisitor<Type> {
+    private static class Variable {
+        Type type = Type.UNKNOWN;
+    }
+
+    private static class Function {
+        final Variable[] params;
+        Type result = Type.UNKNOWN;
+        Function(int arity) {
+            params = new Variable[arity];
+            for(int i = 0; i < arity; i++) {
+                params[i] = new Variable();
+            }
+        }
+    }
+
+    private static class Binding {
+        final String name;
+        final Variable variable;
+        final boolean global;
+        final Binding next;
+        Binding(String name, Variable variable, boolean global, Binding next) {
+            this.name = name;
+            this.variable = variable;
+            this.global = global;
+            this.next = next;
+        }
+    }
+
+    private final Map<Ast.LetExpression, Variable> variables = new IdentityHashMap<>();
+    private final Map<String, Function> functions = new HashMap<>();
+    private Variable elements = new Variable();
+    private Variable values = new Variable();
+    private Binding scope;
+    private boolean inFunction;
+    private boolean changed;
+
+    private Variable lookup(String name) {
+        for(Binding b = scope; b != null; b = b.next) {
+            if(b.name.equals(name)) return b.variable;
+        }
+        throw new NubRuntimeException(name + " is not defined");
+    }
+
+    private void flow(Variable variable, Type type) {
+        Type joined = variable.type.join(type);
+        if(joined != variable.type) {
+            variable.type = joined;
+            changed = true;
+        }
+    }
+
+    private Type record(Ast.Expression node, Type type) {
+        node.type = type;
+        return type;
+    }
+
+    @Override
+    public Type visitBinaryExpression(Ast.BinaryExpression node) {
+        Type lhs = node.lhs.accept(this);
+        Type rhs = node.rhs.accept(this);
+        switch (node.operator) {
+            case ADD:
+                if(lhs == Type.STRING || rhs == Type.STRING) return record(node, Type.STRING);
+                if(lhs == Type.INT && rhs == Type.INT) return record(node, Type.INT);
+                if(lhs == Type.UNKNOWN || rhs == Type.UNKNOWN) return record(node, Type.UNKNOWN);
+                return record(node, Type.DYNAMIC);
+            case SUBTRACT:
+            case MULTIPLY:
+            case DIVIDE:
+                return record(node, Type.INT);
+            default:
+                return record(node, Type.BOOLEAN);
+        }
+    }
+
+    @Override
+    public Type visitIntLiteral(Ast.IntLiteral node) {
+        return record(node, Type.INT);
+    }
+
+    @Override
+    public Type visitBooleanLiteral(Ast.BooleanLiteral node) {
+        return record(node, Type.BOOLEAN);
+    }
+
+    @Override
+    public Type visitStringLiteral(Ast.StringLiteral node) {
+        return record(node, Type.STRING);
+    }
+
+    @Override
+    public Type visitLetExpression(Ast.LetExpression node) {
+        Binding backup = scope;
+        List<Ast.LetExpression> lets = new ArrayList<>();
+        Type result = Type.INT;
+        // a run of lets is typed in one loop; each let ends the body of the one before
+        for(Ast.LetExpression let = node; let != null; let = let.next()) {
+            Variable variable = variables.computeIfAbsent(let, n -> new Variable());
+            flow(variable, let.init.accept(this));
+            scope = new Binding(let.variableName, variable, !inFunction, scope);
+            lets.add(let);
+            List<Ast.Expression> expressions = let.inner().expressions;
+            int end = let.next() == null ? expressions.size() : expressions.size() - 1;
+            result = Type.INT;
+            for(int i = 0; i < end; i++) {
+                result = expressions.get(i).accept(this);
+            }
+        }
+        scope = backup;
+        for(int i = lets.size() - 1; i >= 0; i--) {
+            Ast.LetExpression let = lets.get(i);
+            record(let.inner(), result);
+            record(let.body, result);
+            let.variableType = variables.get(let).type;
+            record(let, result);
+        }
+        return result;
+    }
+
     @Override
-    public Object visitBinaryExpression(Ast.BinaryExpression node) {
-        return null;
+    public Type visitId(Ast.Id node) {
+        return record(node, lookup(node.name).type);
     }
 
     @Override
-    public Object visitIntLiteral(Ast.IntLiteral node) {
-        return null;
+    public Type visitBlock(Ast.Block node) {
+        Type last = Type.INT;
+        for(Ast.Expression e:node.expressions) {
+            last = e.accept(this);
+        }
+        return record(node, last);
     }
 
     @Override
-    public Object visitBooleanLiteral(Ast.BooleanLiteral node) {
-        return null;
+    public Type visitIfExpression(Ast.IfExpression node) {
+        node.condition.accept(this);
+        Type thenType = node.thenClause.accept(this);
+        Type elseType = node.elseClause.accept(this);
+        return record(node, thenType.join(elseType));
     }
 
     @Override
-    public Object visitStringLiteral(Ast.StringLiteral node) {
-        return null;
+    public Type visitWhileExpression(Ast.WhileExpression node) {
+        node.condition.accept(this);
+        for(Ast.Expression e:node.body) {
+            e.accept(this);
+        }
+        return record(node, Type.INT);
     }
 
     @Override
-    public Object visitLetExpression(Ast.LetExpression node) {
-        return null;
+    public Type visitAssignmentExpression(Ast.AssignmentExpression node) {
+        Type type = node.expression.accept(this);
+        flow(lookup(node.variableName), type);
+        return record(node, type);
     }
 
     @Override
-    public Object visitId(Ast.Id node) {
-        return null;
+    public Type visitPrintlnExpression(Ast.PrintlnExpression node) {
+        return record(node, node.target.accept(this));
     }
 
     @Override
-    public Object visitBlock(Ast.Block node) {
-        return null;
+    public Type visitDefFunction(Ast.DefFunction node) {
+        Function function = functions.get(node.name);
+        Binding backupScope = scope;
+        boolean backupInFunction = inFunction;
+        while(scope != null && !scope.global) scope = scope.next;
+        inFunction = true;
+        for(int i = 0; i < node.args.size(); i++) {
+            scope = new Binding(node.args.get(i), function.params[i], false, scope);
+        }
+        Type result = function.result.join(node.body.accept(this));
+        if(result != function.result) {
+            function.result = result;
+            changed = true;
+        }
+        scope = backupScope;
+        inFunction = backupInFunction;
+        List<Type> params = new ArrayList<>();
+        for(Variable param:function.params) {
+            params.add(param.type);
+        }
+        return record(node, new Type.FunctionType(params, function.result));
     }
 
     @Override
-    public Object visitIfExpression(Ast.IfExpression node) {
-        return null;
+    public Type visitFunctionCall(Ast.FunctionCall node) {
+        Function function = functions.get(node.name);
+        for(int i = 0; i < node.params.size(); i++) {
+            flow(function.params[i], node.params.get(i).accept(this));
+        }
+        return record(node, function.result);
     }
 
     @Override
-    public Object visitWhileExpression(Ast.WhileExpression node) {
-        return null;
+    public Type visitArrayLiteral(Ast.ArrayLiteral node) {
+        for(Ast.Expression e:node.elements) {
+            flow(elements, e.accept(this));
+        }
+        return record(node, Type.ARRAY);
     }
 
     @Override
-    public Object visitAssignmentExpression(Ast.AssignmentExpression node) {
-        return null;
+    public Type visitMapLiteral(Ast.MapLiteral node) {
+        for(int i = 0; i < node.keys.size(); i++) {
+            node.keys.get(i).accept(this);
+            flow(values, node.values.get(i).accept(this));
+        }
+        return record(node, Type.MAP);
     }
 
     @Override
-    public Object visitPrintlnExpression(Ast.PrintlnExpression node) {
-        return null;
+    public Type visitIndexExpression(Ast.IndexExpression node) {
+        Type target = node.target.accept(this);
+        node.index.accept(this);
+        if(target == Type.ARRAY) return record(node, elements.type);
+        if(target == Type.MAP) return record(node, values.type);
+        if(target == Type.UNKNOWN) return record(node, Type.UNKNOWN);
+        return record(node, elements.type.join(values.type));
     }
 
     @Override
-    public Object visitDefFunction(Ast.DefFunction node) {
-        return null;
+    public Type visitIndexAssignment(Ast.IndexAssignment node) {
+        Type target = node.target.accept(this);
+        node.index.accept(this);
+        Type value = node.value.accept(this);
+        if(target != Type.MAP && target != Type.UNKNOWN) flow(elements, value);
+        if(target != Type.ARRAY && target != Type.UNKNOWN) flow(values, value);
+        return record(node, value);
     }
 
     @Override
-    public Object visitFunctionCall(Ast.FunctionCall node) {
-        return null;
+    public Type visitLengthExpression(Ast.LengthExpression node) {
+        node.target.accept(this);
+        return record(node, Type.INT);
     }
 
+    /**
+     * Annotates a program that has already been through VariableChecker with inferred types.
+     */
     public Ast.Block typeCheck(Ast.Block program) {
+        variables.clear();
+        functions.clear();
+        elements = new Variable();
+        values = new Variable();
+        program.accept(new Ast.Traverser() {
+            @Override
+            public Object visitDefFunction(Ast.DefFunction node) {
+                functions.put(node.name, new Function(node.args.size()));
+                return super.visitDefFunction(node);
+            }
+        });
+        do {
+            changed = false;
+            scope = null;
+            inFunction = false;
+            program.accept(this);
+        } while(changed);
         return program;
     }
 }
@@ -1,8 +1,142 @@
 package com.github.kmizu.nub2;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves every variable reference to a (depth, slot) pair.
+ *
+ * The whole program owns one frame and every function activation owns one frame whose parent is
+ * the program frame.  Each let allocates a slot in the frame of the enclosing program or function, so
+ * depth is 0 for locals and 1 when a function body reads a variable of the program that surrounds it.
+ * Slots of sibling lets are reused, so a frame is only as large as the deepest let nesting, except the slots
+ * of program lets whose name a function body uses: such a function may run before the let starts or after it
+ * has ended, and has to find the slot empty rather than holding another variable, so each such let gets a slot
+ * of its own.
+ */
 public class VariableChecker implements Ast.ExpressionVisitor<Object> {
+    private static class Binding {
+        final String name;
+        final int level;
+        final int slot;
+        final Binding next;
+        // the binding of the same name that this one hides
+        Binding shadowed;
+        Binding(String name, int level, int slot, Binding next) {
+            this.name = name;
+            this.level = level;
+            this.slot = slot;
+            this.next = next;
+        }
+    }
+
+    private Binding scope;
+    // the innermost binding of each name in scope, so that a long run of lets is checked in linear time
+    private final Map<String, Binding> visible = new HashMap<>();
+    private int level;
+    private int nextSlot;
+    private int maxSlot;
+    // slots of the program frame that functions may use, which no other let may take
+    private final BitSet reserved = new BitSet();
+    // the variable names that function bodies use
+    private final Set<String> captured = new HashSet<>();
+    private Map<String, Ast.DefFunction> functions = new HashMap<>();
+    private List<Ast.FunctionCall> calls = new ArrayList<>();
+
+    private Binding lookup(String name) {
+        return visible.get(name);
+    }
+
+    private void push(Binding binding) {
+        binding.shadowed = visible.put(binding.name, binding);
+        scope = binding;
+    }
+
+    private void pop() {
+        if(scope.shadowed == null) {
+            visible.remove(scope.name);
+        } else {
+            visible.put(scope.name, scope.shadowed);
+        }
+        scope = scope.next;
+    }
+
+    private void restore(Binding backup) {
+        while(scope != backup) pop();
+    }
+
+    private int allocate(String name) {
+        if(level == 0) nextSlot = reserved.nextClearBit(nextSlot);
+        int slot = nextSlot++;
+        if(nextSlot > maxSlot) maxSlot = nextSlot;
+        push(new Binding(name, level, slot, scope));
+        return slot;
+    }
+
+    /*
+     * A slot of the program frame that no let has taken so far and none will take later
+     */
+    private int pin(String name) {
+        int slot = maxSlot++;
+        reserved.set(slot);
+        push(new Binding(name, level, slot, scope));
+        return slot;
+    }
+
+    private static void collectCaptured(Ast.Block program, Set<String> names) {
+        Ast.Traverser collector = new Ast.Traverser() {
+            @Override
+            public Object visitId(Ast.Id node) {
+                names.add(node.name);
+                return null;
+            }
+
+            @Override
+            public Object visitAssignmentExpression(Ast.AssignmentExpression node) {
+                names.add(node.variableName);
+                return super.visitAssignmentExpression(node);
+            }
+        };
+        program.accept(new Ast.Traverser() {
+            @Override
+            public Object visitDefFunction(Ast.DefFunction node) {
+                node.body.accept(collector);
+                return super.visitDefFunction(node);
+            }
+        });
+    }
+
+    /*
+     * Marks the calls whose value becomes the value of the enclosing function body.
+     */
+    private static void markTailCalls(Ast.Expression e) {
+        while(e != null) {
+            if(e instanceof Ast.FunctionCall) {
+                ((Ast.FunctionCall)e).tailCall = true;
+                e = null;
+            } else if(e instanceof Ast.Block) {
+                List<Ast.Expression> expressions = ((Ast.Block)e).expressions;
+                e = expressions.isEmpty() ? null : expressions.get(expressions.size() - 1);
+            } else if(e instanceof Ast.IfExpression) {
+                markTailCalls(((Ast.IfExpression)e).thenClause);
+                e = ((Ast.IfExpression)e).elseClause;
+            } else if(e instanceof Ast.LetExpression) {
+                e = ((Ast.LetExpression)e).body;
+            } else {
+                e = null;
+            }
+        }
+    }
+
     @Override
     public Object visitBinaryExpression(Ast.BinaryExpression node) {
+        node.lhs.accept(this);
+        node.rhs.accept(this);
         return null;
     }
 
@@ -23,50 +157,190 @@ public class VariableChecker implements Ast.ExpressionVisitor<Object> {
 
     @Override
     public Object visitLetExpression(Ast.LetExpression node) {
+        Binding backup = scope;
+        int backupNext = nextSlot;
+        // a run of lets is checked in one loop; each let ends the body of the one before
+        for(Ast.LetExpression let = node; let != null; let = let.next()) {
+            let.init.accept(this);
+            if(lookup(let.variableName) != null) {
+                throw new NubRuntimeException("variable " + let.variableName + " is already defined");
+            }
+            let.depth = 0;
+            let.slot = level == 0 && captured.contains(let.variableName) ? pin(let.variableName) : allocate(let.variableName);
+            List<Ast.Expression> expressions = let.inner().expressions;
+            int end = let.next() == null ? expressions.size() : expressions.size() - 1;
+            for(int i = 0; i < end; i++) {
+                expressions.get(i).accept(this);
+            }
+        }
+        restore(backup);
+        nextSlot = backupNext;
         return null;
     }
 
     @Override
     public Object visitId(Ast.Id node) {
+        Binding b = lookup(node.name);
+        if(b == null) {
+            throw new NubRuntimeException(node.name + " is not defined");
+        }
+        node.depth = level - b.level;
+        node.slot = b.slot;
         return null;
     }
 
     @Override
     public Object visitBlock(Ast.Block node) {
+        for(Ast.Expression e:node.expressions) {
+            e.accept(this);
+        }
         return null;
     }
 
     @Override
     public Object visitIfExpression(Ast.IfExpression node) {
+        node.condition.accept(this);
+        node.thenClause.accept(this);
+        node.elseClause.accept(this);
         return null;
     }
 
     @Override
     public Object visitWhileExpression(Ast.WhileExpression node) {
+        node.condition.accept(this);
+        for(Ast.Expression e:node.body) {
+            e.accept(this);
+        }
         return null;
     }
 
     @Override
     public Object visitAssignmentExpression(Ast.AssignmentExpression node) {
+        node.expression.accept(this);
+        Binding b = lookup(node.variableName);
+        if(b == null) {
+            throw new NubRuntimeException(node.variableName + " is not defined");
+        }
+        node.depth = level - b.level;
+        node.slot = b.slot;
         return null;
     }
 
     @Override
     public Object visitPrintlnExpression(Ast.PrintlnExpression node) {
+        node.target.accept(this);
         return null;
     }
 
     @Override
     public Object visitDefFunction(Ast.DefFunction node) {
+        if(functions.put(node.name, node) != null) {
+            throw new NubRuntimeException("function " + node.name + " is already defined");
+        }
+        int backupLevel = level, backupNext = nextSlot, backupMax = maxSlot;
+        // function bodies only see their own parameters and the variables of the program frame
+        List<Binding> hidden = new ArrayList<>();
+        while(scope != null && scope.level != 0) {
+            hidden.add(scope);
+            pop();
+        }
+        level = 1;
+        nextSlot = 0;
+        maxSlot = 0;
+        Binding globals = scope;
+        for(String arg:node.args) {
+            for(Binding b = scope; b != globals; b = b.next) {
+                if(b.name.equals(arg)) {
+                    throw new NubRuntimeException("parameter " + arg + " of " + node.name + " is duplicated");
+                }
+            }
+            allocate(arg);
+        }
+        node.body.accept(this);
+        node.body.frameSize = maxSlot;
+        markTailCalls(node.body);
+        restore(globals);
+        for(int i = hidden.size() - 1; i >= 0; i--) {
+            push(hidden.get(i));
+        }
+        level = backupLevel;
+        nextSlot = backupNext;
+        maxSlot = backupMax;
         return null;
     }
 
     @Override
     public Object visitFunctionCall(Ast.FunctionCall node) {
+        for(Ast.Expression p:node.params) {
+            p.accept(this);
+        }
+        calls.add(node);
+        return null;
+    }
+
+    @Override
+    public Object visitArrayLiteral(Ast.ArrayLiteral node) {
+        for(Ast.Expression e:node.elements) {
+            e.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitMapLiteral(Ast.MapLiteral node) {
+        for(int i = 0; i < node.keys.size(); i++) {
+            node.keys.get(i).accept(this);
+            node.values.get(i).accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitIndexExpression(Ast.IndexExpression node) {
+        node.target.accept(this);
+        node.index.accept(this);
+        return null;
+    }
+
+    @Override
+    public Object visitIndexAssignment(Ast.IndexAssignment node) {
+        node.target.accept(this);
+        node.index.accept(this);
+        node.value.accept(this);
+        return null;
+    }
+
+    @Override
+    public Object visitLengthExpression(Ast.LengthExpression node) {
+        node.target.accept(this);
         return null;
     }
 
     public Ast.Block checkVariable(Ast.Block program) {
+        scope = null;
+        visible.clear();
+        level = 0;
+        nextSlot = 0;
+        maxSlot = 0;
+        reserved.clear();
+        captured.clear();
+        collectCaptured(program, captured);
+        functions.clear();
+        calls.clear();
+        program.accept(this);
+        program.frameSize = maxSlot;
+        for(Ast.FunctionCall call:calls) {
+            Ast.DefFunction f = functions.get(call.name);
+            if(f == null) {
+                throw new NubRuntimeException("function " + call.name + " is not defined");
+            }
+            if(f.args.size() != call.params.size()) {
+                throw new NubRuntimeException(
+                    "function " + call.name + " takes " + f.args.size() + " arguments but " + call.params.size() + " given"
+                );
+            }
+            call.function = f;
+        }
         return program;
     }
 }
@@ -0,0 +1,131 @@
+package com.github.kmizu.nub2;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class ArrayMapTest {
+    private static Object eval(Evaluator.Engine engine, String source) {
+        return new Evaluator(engine, new Output.Capture()).eval(Parser.parse(source));
+    }
+
+    private static void assertOnEveryEngine(Object expected, String source) {
+        for(Evaluator.Engine engine:Evaluator.Engine.values()) {
+            Object actual = eval(engine, source);
+            assertEquals(engine.toString(), expected, expected instanceof String ? actual.toString() : actual);
+        }
+    }
+
+    private static void assertFailsOnEveryEngine(String message, String source) {
+        for(Evaluator.Engine engine:Evaluator.Engine.values()) {
+            try {
+                eval(engine, source);
+                fail(engine + " ran to the end");
+            } catch (NubRuntimeException e) {
+                assertTrue(engine + ": " + e.getMessage(), e.getMessage().contains(message));
+            }
+        }
+    }
+
+    @Test
+    public void testArrays() {
+        assertOnEveryEngine("[1, 2, 3]", "[1, 2, 3];");
+        assertOnEveryEngine("[]", "[];");
+        assertOnEveryEngine(20, "let a = [10, 20, 30]; a[1];");
+        assertOnEveryEngine(3, "let a = [10, 20, 30]; length(a);");
+        assertOnEveryEngine("[10, 5, 30]", "let a = [10, 20, 30]; a[1] = 5; a;");
+        assertOnEveryEngine("[a, 1, true]", "[\"a\", 1, true];");
+    }
+
+    @Test
+    public void testStoringAtTheLengthAppends() {
+        String squares = "let a = []; let i = 0; while(i < 100) { a[length(a)] = i * i; i = i + 1; } a[99] + length(a);";
+        assertOnEveryEngine(9901, squares);
+        assertFailsOnEveryEngine("out of bounds", "let a = [1]; a[2] = 3;");
+        assertFailsOnEveryEngine("out of bounds", "let a = [1]; a[1];");
+    }
+
+    @Test
+    public void testIntArrayInALoop() {
+        String sum =
+            "let a = [0, 0, 0, 0, 0, 0, 0, 0, 0, 0];\n" +
+            "let i = 0; while(i < 1000) { a[i - i / 10 * 10] = a[i - i / 10 * 10] + i; i = i + 1; }\n" +
+            "let s = 0; let j = 0; while(j < length(a)) { s = s + a[j]; j = j + 1; } s;";
+        assertOnEveryEngine(499500, sum);
+    }
+
+    @Test
+    public void testMaps() {
+        assertOnEveryEngine("[:]", "[:];");
+        assertOnEveryEngine(200, "let m = [1: 100, 2: 200]; m[2];");
+        assertOnEveryEngine("[1: 100, 2: 7, 3: 9]", "let m = [1: 100, 2: 200]; m[2] = 7; m[3] = 9; m;");
+        assertOnEveryEngine("x", "let m = [\"a\" + \"b\": \"x\"]; m[\"ab\"];");
+        assertOnEveryEngine(2, "let m = [1: 1]; m[\"one\"] = 1; length(m);");
+        assertFailsOnEveryEngine("not in the map", "let m = [1: 2]; m[3];");
+    }
+
+    @Test
+    public void testElementsThatAreNotIntsReadWithAnIntIndex() {
+        assertOnEveryEngine("one", "let m = [1: \"one\", \"1\": \"str\"]; m[1];");
+        assertOnEveryEngine("one", "let m = [1: \"one\", 2: \"two\"]; m[3] = \"three\"; m[1];");
+        assertOnEveryEngine("xy", "let a = [\"x\", \"y\"]; let s = \"\"; let i = 0; while(i < 2) { s = s + a[i]; i = i + 1; } s;");
+        assertOnEveryEngine(2, "let a = [[1, 2], [3]]; a[0][1];");
+        assertOnEveryEngine("[3]", "let a = [[1, 2], [3]]; let i = 1; a[i];");
+        assertOnEveryEngine(true, "let a = [false, true]; let i = 1; a[i];");
+    }
+
+    @Test
+    public void testArraysAreShared() {
+        assertOnEveryEngine(42, "def set(a) { a[0] = 42; } let a = [0]; set(a); a[0];");
+        assertOnEveryEngine(true, "let a = [1]; let b = a; a == b;");
+        assertOnEveryEngine(false, "[1] == [1];");
+    }
+
+    @Test
+    public void testMixedElementsAreTypedDynamic() {
+        Ast.Block program = new Evaluator().prepare(Parser.parse("let a = [1]; a[0] = \"s\"; a[0];"));
+        Ast.Block body = (Ast.Block)((Ast.LetExpression)program.expressions.get(0)).body.expressions.get(0);
+        assertEquals(Type.DYNAMIC, body.expressions.get(1).type);
+        assertOnEveryEngine("s", "let a = [1]; a[0] = \"s\"; a[0];");
+    }
+
+    @Test
+    public void testIntRepresentations() {
+        ArrayValue array = new ArrayValue();
+        for(int i = 0; i < 100; i++) {
+            array.setInt(i, i);
+        }
+        assertTrue(array.isIntArray());
+        array.set(50, "x");
+        assertFalse(array.isIntArray());
+        assertEquals(99, array.getInt(99));
+        assertEquals("x", array.get(50));
+
+        MapValue map = new MapValue();
+        for(int i = 0; i < 1000; i++) {
+            map.putInt(i * 7919, i);
+        }
+        assertTrue(map.isIntMap());
+        assertEquals(1000, map.size());
+        for(int i = 0; i < 1000; i++) {
+            assertEquals(i, map.getInt(i * 7919));
+        }
+        map.put("k", 1);
+        assertFalse(map.isIntMap());
+        assertEquals(999, map.getInt(999 * 7919));
+        assertEquals(1001, map.size());
+    }
+
+    @Test
+    public void testArraysAreNotMemoized() {
+        String source = "def sum(a, n) { let s = 0; let i = 0; while(i < n) { s = s + i; i = i + 1; } s; } sum([1], 10) + sum([1], 10);";
+        assertOnEveryEngine(90, source);
+        Ast.Block program = new Evaluator().prepare(Parser.parse(source));
+        MemoTable table = Memoizer.tables(program).get("sum");
+        new Evaluator(Evaluator.Engine.VISITOR, new Output.Capture()).execute(program);
+        assertEquals(0, table.hits());
+    }
+}
@@ -0,0 +1,230 @@
+package com.github.kmizu.nub2;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static com.github.kmizu.nub2.Collections.listOf;
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class AstReaderTest {
+    private static Ast.Block roundTrip(Ast.Block program) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new AstWriter().write(program, out);
+        return new AstReader(ByteBuffer.wrap(out.toByteArray())).read();
+    }
+
+    @Test
+    public void testLoadedProgramRunsOnEveryEngine() throws IOException {
+        String source =
+                "def fib(n) { if(n < 2) { n; } else { fib(n - 1) + fib(n - 2); } }\n" +
+                "def count(i, acc) { if(i == 0) { acc; } else { count(i - 1, acc + \"x\"); } }\n" +
+                "let total = 0;\n" +
+                "let i = 0;\n" +
+                "while(i < 10) { total = total + fib(i); i = i + 1; }\n" +
+                "count(3, \"\") + total;\n";
+        for(Evaluator.Engine engine:Evaluator.Engine.values()) {
+            Evaluator evaluator = new Evaluator(engine);
+            Ast.Block loaded = roundTrip(evaluator.prepare(Parser.parse(source)));
+            assertEquals(engine.toString(), "xxx88", evaluator.execute(loaded));
+        }
+    }
+
+    @Test
+    public void testArraysAndMaps() throws IOException {
+        String source = "let a = [1, 2]; a[length(a)] = 3; let m = [\"k\": a]; m[\"k\"][2] + length(m);";
+        for(Evaluator.Engine engine:Evaluator.Engine.values()) {
+            Evaluator evaluator = new Evaluator(engine);
+            Ast.Block loaded = roundTrip(evaluator.prepare(Parser.parse(source)));
+            assertEquals(engine.toString(), 4, evaluator.execute(loaded));
+        }
+    }
+
+    @Test
+    public void testAnnotationsAreKept() throws IOException {
+        Ast.Block loaded = roundTrip(new Evaluator().prepare(Parser.parse("def f(x) { f(x); } let a = 1; a + 2;")));
+        Ast.FunctionCall call = (Ast.FunctionCall)((Ast.DefFunction)loaded.expressions.get(0)).body.expressions.get(0);
+        assertTrue(call.tailCall);
+        assertSame(loaded.expressions.get(0), call.function);
+        assertEquals(1, loaded.frameSize);
+        assertEquals(Type.INT, loaded.type);
+    }
+
+    @Test
+    public void testMemoTablesAreRebuilt() throws IOException {
+        String source =
+                "def fib(n) { if(n < 2) { n; } else { fib(n - 1) + fib(n - 2); } }\n" +
+                "def show(n) { print(n); n; }\n" +
+                "fib(20) + show(1);\n";
+        Ast.Block prepared = new Evaluator().prepare(Parser.parse(source));
+        Ast.Block loaded = roundTrip(prepared);
+        assertEquals(Memoizer.tables(prepared).keySet(), Memoizer.tables(loaded).keySet());
+        assertTrue(Memoizer.tables(loaded).containsKey("fib"));
+        assertNotSame(Memoizer.tables(prepared).get("fib"), Memoizer.tables(loaded).get("fib"));
+        assertEquals(6766, CompiledProgram.load(loaded, Evaluator.Engine.VM).execute(new Output.Capture()));
+        assertTrue(Memoizer.tables(loaded).get("fib").hits() > 0);
+    }
+
+    private static void assertCorrupt(Ast.Block program) throws IOException {
+        try {
+            roundTrip(program);
+            fail();
+        } catch (NubRuntimeException e) {
+            assertEquals("not a compiled nub2 program", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testSlotsOutsideTheirFrameAreRejected() throws IOException {
+        String source = "let a = 1; def f(x) { x + a; } f(2);";
+        Ast.Block program = new Evaluator().prepare(Parser.parse(source));
+        Ast.LetExpression let = (Ast.LetExpression)program.expressions.get(0);
+        Ast.DefFunction f = (Ast.DefFunction)let.inner().expressions.get(0);
+        Ast.BinaryExpression sum = (Ast.BinaryExpression)f.body.expressions.get(0);
+        Ast.Id x = (Ast.Id)sum.lhs, a = (Ast.Id)sum.rhs;
+
+        x.slot = f.body.frameSize;
+        assertCorrupt(program);
+        x.slot = -1;
+        assertCorrupt(program);
+        x.slot = 0;
+        a.depth = 2;
+        assertCorrupt(program);
+        a.depth = 1;
+        a.slot = program.frameSize;
+        assertCorrupt(program);
+        a.slot = 0;
+        let.depth = 1;
+        assertCorrupt(program);
+        let.depth = 0;
+        let.slot = program.frameSize;
+        assertCorrupt(program);
+        let.slot = 0;
+        assertEquals(3, new Evaluator().execute(roundTrip(program)));
+    }
+
+    @Test
+    public void testProgramFrameHasNoParent() throws IOException {
+        Ast.Block program = new Evaluator().prepare(Parser.parse("let a = 1; a;"));
+        Ast.Id a = (Ast.Id)((Ast.LetExpression)program.expressions.get(0)).inner().expressions.get(0);
+        a.depth = 1;
+        assertCorrupt(program);
+    }
+
+    @Test
+    public void testTypesTyperCannotGiveAreRejected() throws IOException {
+        String source = "def f(x) { x < 1; } f(2) == \"s\";";
+        Ast.Block program = new Evaluator().prepare(Parser.parse(source));
+        Ast.DefFunction f = (Ast.DefFunction)program.expressions.get(0);
+        Ast.BinaryExpression compare = (Ast.BinaryExpression)f.body.expressions.get(0);
+        Ast.BinaryExpression equal = (Ast.BinaryExpression)program.expressions.get(1);
+
+        compare.type = Type.INT;
+        assertCorrupt(program);
+        compare.type = Type.BOOLEAN;
+        equal.rhs.type = Type.INT;
+        assertCorrupt(program);
+        equal.rhs.type = Type.STRING;
+        equal.lhs.type = f.type;
+        assertCorrupt(program);
+        equal.lhs.type = Type.BOOLEAN;
+        Type type = f.type;
+        f.type = Type.INT;
+        assertCorrupt(program);
+        f.type = new Type.FunctionType(listOf(), Type.BOOLEAN);
+        assertCorrupt(program);
+        f.type = type;
+        assertEquals(false, new Evaluator().execute(roundTrip(program)));
+    }
+
+    @Test
+    public void testCallsOfTheWrongArityAreRejected() throws IOException {
+        Ast.Block program = new Evaluator().prepare(Parser.parse("def f(x) { x; } def g(x, y) { x; } f(1);"));
+        Ast.FunctionCall call = (Ast.FunctionCall)program.expressions.get(2);
+        call.function = (Ast.DefFunction)program.expressions.get(1);
+        assertCorrupt(program);
+    }
+
+    @Test
+    public void testTypesThatDoNotCoverTheirOperandsAreRejected() throws IOException {
+        String source = "let s = \"a\"; let n = 1; def f(x) { x + 1; } s + f(n);";
+        Ast.Block program = new Evaluator().prepare(Parser.parse(source));
+        Ast.LetExpression s = (Ast.LetExpression)program.expressions.get(0);
+        Ast.LetExpression n = s.next();
+        Ast.DefFunction f = (Ast.DefFunction)n.inner().expressions.get(0);
+        Ast.BinaryExpression concat = (Ast.BinaryExpression)n.inner().expressions.get(1);
+        Ast.FunctionCall call = (Ast.FunctionCall)concat.rhs;
+
+        concat.lhs.type = Type.INT;
+        assertCorrupt(program);
+        concat.lhs.type = Type.STRING;
+        s.variableType = Type.INT;
+        assertCorrupt(program);
+        s.variableType = Type.STRING;
+        concat.type = Type.INT;
+        assertCorrupt(program);
+        concat.type = Type.STRING;
+        call.params.get(0).type = Type.STRING;
+        assertCorrupt(program);
+        call.params.get(0).type = Type.INT;
+        call.type = Type.BOOLEAN;
+        assertCorrupt(program);
+        call.type = Type.INT;
+        Type type = f.type;
+        f.type = new Type.FunctionType(listOf(Type.INT), Type.BOOLEAN);
+        assertCorrupt(program);
+
+        // wider types are sound, so they are kept
+        f.type = new Type.FunctionType(listOf(Type.DYNAMIC), Type.DYNAMIC);
+        ((Ast.Id)((Ast.BinaryExpression)f.body.expressions.get(0)).lhs).type = Type.DYNAMIC;
+        ((Ast.BinaryExpression)f.body.expressions.get(0)).type = Type.DYNAMIC;
+        f.body.type = Type.DYNAMIC;
+        call.type = Type.DYNAMIC;
+        concat.rhs.type = Type.DYNAMIC;
+        assertEquals("a2", new Evaluator().execute(roundTrip(program)).toString());
+        f.type = type;
+    }
+
+    @Test
+    public void testTailCallsOutsideTailPositionAreRejected() throws IOException {
+        Ast.Block program = new Evaluator().prepare(Parser.parse("def f(x) { if(x < 1) { 0; } else { 1 + f(x - 1); } } f(3);"));
+        Ast.DefFunction f = (Ast.DefFunction)program.expressions.get(0);
+        Ast.IfExpression ifExpression = (Ast.IfExpression)f.body.expressions.get(0);
+        Ast.FunctionCall inner = (Ast.FunctionCall)((Ast.BinaryExpression)ifExpression.elseClause.expressions.get(0)).rhs;
+        Ast.FunctionCall outer = (Ast.FunctionCall)program.expressions.get(1);
+        inner.tailCall = true;
+        assertCorrupt(program);
+        inner.tailCall = false;
+        outer.tailCall = true;
+        assertCorrupt(program);
+        outer.tailCall = false;
+        assertEquals(3, new Evaluator().execute(roundTrip(program)));
+    }
+
+    @Test
+    public void testNamesAndSharedNodesAreChecked() throws IOException {
+        Ast.Block program = new Evaluator().prepare(Parser.parse("def f(x) { x; } def g(x) { x; } f(1); 2;"));
+        Ast.FunctionCall call = (Ast.FunctionCall)program.expressions.get(2);
+        call.function = (Ast.DefFunction)program.expressions.get(1);
+        assertCorrupt(program);
+        call.function = (Ast.DefFunction)program.expressions.get(0);
+        program.expressions.set(3, program.expressions.get(2));
+        assertCorrupt(program);
+
+        program = new Evaluator().prepare(Parser.parse("def f(x) { x; } f(1);"));
+        call = (Ast.FunctionCall)program.expressions.get(1);
+        program.expressions.set(0, new Ast.DefFunction("f/x", listOf("x"), ((Ast.DefFunction)program.expressions.get(0)).body));
+        call.function = (Ast.DefFunction)program.expressions.get(0);
+        assertCorrupt(program);
+    }
+
+    @Test(expected = NubRuntimeException.class)
+    public void testGarbageIsRejected() {
+        new AstReader(ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5})).read();
+    }
+}
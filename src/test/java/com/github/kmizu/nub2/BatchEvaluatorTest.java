@@ -0,0 +1,160 @@
+package com.github.kmizu.nub2;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class BatchEvaluatorTest {
+    private static final int[] XS = {0, 1, -3, 7, 12, 100, -50, 3};
+    private static final boolean[] BS = {true, false, true, true, false, false, true, false};
+    private static final String[] SS = {"a", "", "bc", "a", "x", "yz", "a", "q"};
+
+    private static BatchEvaluator.Columns columns() {
+        return new BatchEvaluator.Columns(XS.length).put("x", XS).put("b", BS).put("s", SS);
+    }
+
+    private static String statement(String source) {
+        return source.endsWith("}") ? source : source + ";";
+    }
+
+    private static Ast.Expression expression(String source) {
+        return Parser.parse(statement(source)).expressions.get(0);
+    }
+
+    /*
+     * The value of source for row i, run by Evaluator with the row bound by lets
+     */
+    private static Object row(String source, int i) {
+        String program = "let x = " + XS[i] + "; let b = " + BS[i] + "; let s = \"" + SS[i] + "\"; " + statement(source);
+        return StringValue.flatten(new Evaluator().eval(Parser.parse(program)));
+    }
+
+    private static void assertSameAsRows(String source) {
+        Object result = new BatchEvaluator(expression(source)).evaluate(columns());
+        for(int i = 0; i < XS.length; i++) {
+            Object actual;
+            if(result instanceof int[]) {
+                actual = ((int[])result)[i];
+            } else if(result instanceof boolean[]) {
+                actual = ((boolean[])result)[i];
+            } else {
+                actual = ((Object[])result)[i];
+            }
+            assertEquals(source + " at row " + i, row(source, i), actual);
+        }
+    }
+
+    @Test
+    public void testArithmetic() {
+        assertSameAsRows("x * 3 + 7 - x / 2");
+        assertSameAsRows("(x + 1) * (x - 1)");
+        assertSameAsRows("42");
+        assertTrue(new BatchEvaluator(expression("x + 1")).evaluate(columns()) instanceof int[]);
+    }
+
+    @Test
+    public void testComparisonsAndLogic() {
+        assertSameAsRows("x < 5");
+        assertSameAsRows("x >= 3 && b");
+        assertSameAsRows("x == 3 || b == false");
+        assertSameAsRows("b != (x > 0)");
+        assertTrue(new BatchEvaluator(expression("x < 5")).evaluate(columns()) instanceof boolean[]);
+    }
+
+    @Test
+    public void testStrings() {
+        assertSameAsRows("s + x");
+        assertSameAsRows("s == \"a\"");
+        assertSameAsRows("if(b) { s; } else { x; }");
+    }
+
+    @Test
+    public void testIfAndLet() {
+        assertSameAsRows("if(x < 5) { x * 2; } else { x - 1; }");
+        assertSameAsRows("let y = x * x; y + x");
+        assertSameAsRows("if(b) { let y = x + 1; y * y; } else { 0; }");
+        assertSameAsRows("if(x < 5) { x < 3; } else { b; }");
+        assertSameAsRows("if(x < 5) { x < 3; } else { true; }");
+        assertTrue(new BatchEvaluator(expression("if(x < 5) { x < 3; } else { b; }")).evaluate(columns()) instanceof boolean[]);
+    }
+
+    @Test
+    public void testBooleanBranchesUnderASplitIf() {
+        assertSameAsRows("if(x == 0) { false; } else { if(100 / x > 2) { x < 3; } else { b; } }");
+        assertSameAsRows("if(x == 0) { true; } else { if(x < 5) { x < 3; } else { 100 / x > 2; } }");
+        assertSameAsRows("if(b) { if(x < 5) { x < 3; } else { true; } } else { x == 0 || 100 / x > 2; }");
+    }
+
+    @Test
+    public void testDivisionRunsOnlyOnTheRowsThatReachIt() {
+        assertSameAsRows("if(x == 0) { 0; } else { 100 / x; }");
+        assertSameAsRows("x != 0 && 100 / x > 2");
+        assertSameAsRows("x == 0 || 100 / x > 2");
+        try {
+            new BatchEvaluator(expression("100 / x")).evaluate(columns());
+            fail("divided by zero");
+        } catch (ArithmeticException e) {
+        }
+    }
+
+    @Test
+    public void testRejections() {
+        try {
+            new BatchEvaluator(expression("while(x < 10) { x = x + 1; }")).evaluate(columns());
+            fail();
+        } catch (NubRuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("cannot be evaluated in batches"));
+        }
+        try {
+            new BatchEvaluator(expression("y + 1")).evaluate(columns());
+            fail();
+        } catch (NubRuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("y is not defined"));
+        }
+        try {
+            new BatchEvaluator.Columns(3).put("x", new int[2]);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void testBranchesOfMixedTypesRunOnlyOnTheRowsThatReachThem() {
+        // let v = if(b) { 1 } else { "a" }; if(b) { v - 1 } else { 0 }
+        Ast.Expression program = new Ast.LetExpression("v",
+                new Ast.IfExpression(new Ast.Id("b"), new Ast.Block(new Ast.IntLiteral(1)), new Ast.Block(new Ast.StringLiteral("a"))),
+                new Ast.Block(new Ast.IfExpression(new Ast.Id("b"),
+                        new Ast.Block(new Ast.BinaryExpression(Ast.BinaryOperator.SUBTRACT, new Ast.Id("v"), new Ast.IntLiteral(1))),
+                        new Ast.Block(new Ast.IntLiteral(0)))));
+        Object result = new BatchEvaluator(program).evaluate(new BatchEvaluator.Columns(2).put("b", new boolean[]{true, false}));
+        assertArrayEquals(new int[]{0, 0}, (int[])result);
+        for(boolean b:new boolean[]{true, false}) {
+            Ast.Block row = new Ast.Block(new Ast.LetExpression("b", new Ast.BooleanLiteral(b), new Ast.Block(program)));
+            assertEquals(0, new Evaluator().eval(row));
+        }
+        assertSameAsRows("if(x > 1000) { s - 1; } else { x; }");
+        assertSameAsRows("x > 1000 && s < 1");
+    }
+
+    @Test
+    public void testValuesOfTheWrongTypeAreReported() {
+        Ast.Expression program = new Ast.LetExpression("v",
+                new Ast.IfExpression(new Ast.Id("b"), new Ast.Block(new Ast.IntLiteral(1)), new Ast.Block(new Ast.StringLiteral("a"))),
+                new Ast.Block(new Ast.BinaryExpression(Ast.BinaryOperator.SUBTRACT, new Ast.Id("v"), new Ast.IntLiteral(1))));
+        try {
+            new BatchEvaluator(program).evaluate(new BatchEvaluator.Columns(2).put("b", new boolean[]{true, false}));
+            fail();
+        } catch (NubRuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("a is not an int"));
+        }
+        try {
+            new BatchEvaluator(expression("if(x) { 1; } else { 2; }")).evaluate(columns());
+            fail();
+        } catch (NubRuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("is not a boolean"));
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.github.kmizu.nub2;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class CompiledProgramTest {
+    private static final String SOURCE =
+            "let total = 0;\n" +
+            "def add(n) { total = total + n; }\n" +
+            "def fib(n) { if(n < 2) { n; } else { fib(n - 1) + fib(n - 2); } }\n" +
+            "let i = 0;\n" +
+            "while(i < 15) { add(fib(i)); i = i + 1; }\n" +
+            "total;\n";
+
+    @Test
+    public void testRunsRepeatedly() {
+        for(Evaluator.Engine engine:Evaluator.Engine.values()) {
+            CompiledProgram program = CompiledProgram.compile(Parser.parse(SOURCE), engine);
+            assertEquals(engine.toString(), 986, program.execute());
+            assertEquals(engine.toString(), 986, program.execute());
+        }
+    }
+
+    @Test
+    public void testCapturesOutput() {
+        String source =
+                "def show(x) { print(x); }\n" +
+                "def twice(x) { def inner(y) { print(y + y); } inner(x); }\n" +
+                "print(1);\n" +
+                "show(\"a\");\n" +
+                "twice(2);\n";
+        Output.Capture output = new Output.Capture();
+        for(Evaluator.Engine engine:Evaluator.Engine.values()) {
+            output.reset();
+            assertEquals(engine.toString(), 4, new Evaluator(engine, output).eval(Parser.parse(source)));
+            assertEquals(engine.toString(), "1\na\n4\n", output.toString());
+        }
+    }
+
+    @Test
+    public void testBufferedOutputIsFlushedAtTheEnd() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CompiledProgram program = CompiledProgram.compile(Parser.parse("print(1); print(2);"), Evaluator.Engine.VM);
+        program.execute(new Output.Buffered(new PrintStream(bytes), 1 << 16));
+        assertEquals("1" + System.lineSeparator() + "2" + System.lineSeparator(), bytes.toString());
+    }
+
+    @Test
+    public void testRunsConcurrently() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            for(Evaluator.Engine engine:Evaluator.Engine.values()) {
+                final CompiledProgram program = CompiledProgram.compile(Parser.parse(SOURCE), engine);
+                List<Future<Object>> results = new ArrayList<>();
+                for(int i = 0; i < 64; i++) {
+                    results.add(pool.submit(new Callable<Object>() {
+                        @Override
+                        public Object call() {
+                            return program.execute();
+                        }
+                    }));
+                }
+                for(Future<Object> result:results) {
+                    assertEquals(engine.toString(), 986, result.get());
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testSharesNothingWithItsInput() {
+        Ast.Block tree = Parser.parse(SOURCE);
+        CompiledProgram program = CompiledProgram.compile(tree);
+        assertNotSame(tree, program.program());
+        // checking the same tree again, here without memoization, must not touch the compiled program
+        new ProfilingEvaluator(new Output.Capture()).eval(tree);
+        assertTrue(Memoizer.tables(program.program()).containsKey("fib"));
+        assertEquals(986, program.execute());
+    }
+}
@@ -0,0 +1,55 @@
+package com.github.kmizu.nub2;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.*;
+import static com.github.kmizu.nub2.Ast.Factory.*;
+import static com.github.kmizu.nub2.Ast.*;
+
+@RunWith(JUnit4.class)
+public class ConstantFolderTest {
+    private static Expression fold(Expression e) {
+        Block program = new Typer().typeCheck(new VariableChecker().checkVariable(tBlock(e)));
+        return new ConstantFolder().fold(program).expressions.get(0);
+    }
+
+    @Test
+    public void testArithmeticIsFolded() {
+        Expression e = fold(tAdd(tInt(1), tMultiply(tInt(2), tInt(3))));
+        assertEquals(7, ((IntLiteral)e).value);
+    }
+
+    @Test
+    public void testDivisionByZeroIsKept() {
+        assertTrue(fold(tDivide(tInt(1), tInt(0))) instanceof BinaryExpression);
+    }
+
+    @Test
+    public void testStringAdditionIsFolded() {
+        Expression e = fold(tAdd(tAdd(tString("a"), tInt(1)), tBoolean(true)));
+        assertEquals("a1true", ((StringLiteral)e).value);
+    }
+
+    @Test
+    public void testIntIdentityIsRemovedButConcatenationIsNot() {
+        Expression e = fold(tLet("x", tInt(1), x -> tBlock(tAdd(tId(x), tInt(0)))));
+        assertTrue(((Block)((LetExpression)e).body.expressions.get(0)).expressions.get(0) instanceof Id);
+        e = fold(tLet("x", tString("s"), x -> tBlock(tAdd(tId(x), tInt(0)))));
+        assertTrue(((Block)((LetExpression)e).body.expressions.get(0)).expressions.get(0) instanceof BinaryExpression);
+    }
+
+    @Test
+    public void testConstantConditionSelectsBranch() {
+        Expression e = fold(tIf(tAnd(tBoolean(true), tLt(tInt(1), tInt(2))), tPrintln(tInt(1)), tPrintln(tInt(2))));
+        PrintlnExpression println = (PrintlnExpression)((Block)e).expressions.get(0);
+        assertEquals(1, ((IntLiteral)println.target).value);
+    }
+
+    @Test
+    public void testLogicalOperatorsShortCircuit() {
+        Expression e = fold(tLet("b", tBoolean(true), b -> tBlock(tOr(tBoolean(true), tAssign(b, tBoolean(false))))));
+        assertTrue(((BooleanLiteral)((Block)((LetExpression)e).body.expressions.get(0)).expressions.get(0)).value);
+    }
+}
@@ -0,0 +1,108 @@
+package com.github.kmizu.nub2;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class EvaluationMetricsTest {
+    private static final String FIB = "def fib(n) { if(n < 2) { n; } else { fib(n - 1) + fib(n - 2); } } fib(10);";
+
+    @Test
+    public void testCountsRunsAndFailures() {
+        EvaluationMetrics metrics = new EvaluationMetrics();
+        Evaluator evaluator = new Evaluator(Evaluator.Engine.VISITOR, new Output.Capture(), metrics).memoize(0);
+        assertEquals(55, evaluator.eval(Parser.parse(FIB)));
+        assertEquals(177, metrics.functionCalls());
+        assertTrue(metrics.nodeVisits() > 177);
+        try {
+            evaluator.eval(Parser.parse("x;"));
+            fail();
+        } catch (NubRuntimeException expected) {
+        }
+        try {
+            evaluator.eval(Parser.parse("let x = 0; 1 / x;"));
+            fail();
+        } catch (ArithmeticException expected) {
+        }
+        assertEquals(3, metrics.evaluations());
+        assertEquals(2, metrics.failures());
+        assertEquals(1, metrics.runtimeErrors());
+    }
+
+    @Test
+    public void testLatencyPerProgram() throws Exception {
+        EvaluationMetrics metrics = new EvaluationMetrics();
+        CompiledProgram fib = CompiledProgram.compile(Parser.parse(FIB), Evaluator.Engine.CLOSURE);
+        CompiledProgram one = CompiledProgram.compile(Parser.parse("1;"), Evaluator.Engine.CLOSURE);
+        List<Thread> threads = new ArrayList<>();
+        for(int i = 0; i < 4; i++) {
+            Thread thread = new Thread(() -> {
+                for(int j = 0; j < 50; j++) {
+                    fib.execute(new Output.Capture(), metrics);
+                    one.execute(new Output.Capture(), metrics);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for(Thread thread:threads) {
+            thread.join();
+        }
+        assertEquals(400, metrics.evaluations());
+        assertEquals(200, metrics.latency(fib.program()).count());
+        assertEquals(200, metrics.latency(one.program()).count());
+        assertSame(fib.key(), fib.key());
+        EvaluationMetrics.Histogram all = metrics.latency();
+        assertTrue(all.percentileNanos(50) <= all.percentileNanos(99));
+        assertTrue(all.maxNanos() <= all.percentileNanos(100));
+    }
+
+    @Test
+    public void testProgramsOfTheSameStructureShareAHistogram() {
+        EvaluationMetrics metrics = new EvaluationMetrics(2);
+        for(int i = 0; i < 100; i++) {
+            CompiledProgram.compile(Parser.parse(FIB), Evaluator.Engine.VM).execute(new Output.Capture(), metrics);
+            CompiledProgram.compile(Parser.parse("1;"), Evaluator.Engine.VM).execute(new Output.Capture(), metrics);
+        }
+        CompiledProgram other = CompiledProgram.compile(Parser.parse("2;"), Evaluator.Engine.VM);
+        other.execute(new Output.Capture(), metrics);
+        assertEquals(100, metrics.latency(CompiledProgram.compile(Parser.parse(FIB)).program()).count());
+        assertEquals(100, metrics.latency(CompiledProgram.compile(Parser.parse("1;")).program()).count());
+        assertEquals(1, metrics.others().count());
+        assertSame(metrics.others(), metrics.latency(other.program()));
+    }
+
+    @Test
+    public void testFlightRecorderEvents() throws Exception {
+        Path file = Files.createTempFile("nub2", ".jfr");
+        try(Recording recording = new Recording()) {
+            recording.enable("com.github.kmizu.nub2.Evaluation");
+            recording.start();
+            EvaluationMetrics metrics = new EvaluationMetrics();
+            CompiledProgram.compile(Parser.parse(FIB), Evaluator.Engine.VM).execute(new Output.Capture(), metrics);
+            CompiledProgram.compile(Parser.parse(FIB), Evaluator.Engine.CLOSURE).execute(new Output.Capture(), metrics);
+            CompiledProgram.compile(Parser.parse("1;"), Evaluator.Engine.VM).execute(new Output.Capture(), metrics);
+            recording.stop();
+            recording.dump(file);
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            assertEquals(3, events.size());
+            assertEquals("VM", events.get(0).getString("engine"));
+            // runs of the same program are labelled alike, whichever tree they ran
+            assertEquals(events.get(0).getString("program"), events.get(1).getString("program"));
+            assertNotEquals(events.get(0).getString("program"), events.get(2).getString("program"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.github.kmizu.nub2;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class ExecutionLimitsTest {
+    private static final String LOOP = "let i = 0; while(i < 100) { i = i + 1; } i;";
+    private static final String FOREVER = "let i = 0; while(true) { i = i + 1; }";
+
+    private static Object eval(Evaluator.Engine engine, ExecutionLimits limits, String source) {
+        return new Evaluator(engine, new Output.Capture(), Metrics.NONE, limits).eval(Parser.parse(source));
+    }
+
+    private static String exceeded(Evaluator.Engine engine, ExecutionLimits limits, String source) {
+        try {
+            eval(engine, limits, source);
+        } catch (ExecutionLimitExceededException e) {
+            return e.getMessage();
+        }
+        fail(engine + " ran to the end");
+        return null;
+    }
+
+    @Test
+    public void testStepsAreCountedPerIteration() {
+        for(Evaluator.Engine engine:Evaluator.Engine.values()) {
+            assertEquals(engine.toString(), 100, eval(engine, ExecutionLimits.NONE.withSteps(100), LOOP));
+            assertTrue(exceeded(engine, ExecutionLimits.NONE.withSteps(99), LOOP).contains("steps"));
+            assertTrue(exceeded(engine, ExecutionLimits.NONE.withSteps(1000000), FOREVER).contains("steps"));
+        }
+    }
+
+    @Test
+    public void testTimeout() {
+        for(Evaluator.Engine engine:Evaluator.Engine.values()) {
+            assertTrue(exceeded(engine, ExecutionLimits.NONE.withTimeout(20, TimeUnit.MILLISECONDS), FOREVER).contains("ms"));
+        }
+    }
+
+    @Test
+    public void testCallDepth() {
+        String deep = "def down(n) { if(n == 0) { 0; } else { 1 + down(n - 1); } } down(50);";
+        String tail = "def count(n) { if(n == 0) { 0; } else { count(n - 1); } } count(10000);";
+        for(Evaluator.Engine engine:Evaluator.Engine.values()) {
+            ExecutionLimits limits = ExecutionLimits.NONE.withCallDepth(20);
+            assertTrue(exceeded(engine, limits, deep).contains("deeper"));
+            assertEquals(engine.toString(), 50, eval(engine, ExecutionLimits.NONE.withCallDepth(51), deep));
+            assertEquals(engine.toString(), 0, eval(engine, limits, tail));
+        }
+    }
+
+    @Test
+    public void testAllocatedBytes() {
+        String grow = "let s = \"\"; while(true) { s = s + \"0123456789\"; }";
+        for(Evaluator.Engine engine:Evaluator.Engine.values()) {
+            ExecutionLimits limits = ExecutionLimits.NONE.withAllocatedBytes(1 << 20).withTimeout(10, TimeUnit.SECONDS);
+            assertTrue(exceeded(engine, limits, grow).contains("bytes"));
+        }
+    }
+
+    @Test
+    public void testIntLoopsDoNotAllocate() {
+        String count = "let i = 0; while(i < 1000000) { i = i + 1; } i;";
+        String sum = "let s = 0; let i = 0; while(i < 1000000) { s = s + i; i = i + 1; } s;";
+        String inFunction = "def sum(n) { let s = 0; let i = 0; while(i < n) { s = s + i; i = i + 1; } s; } sum(1000000);";
+        for(Evaluator.Engine engine:Evaluator.Engine.values()) {
+            ExecutionLimits limits = ExecutionLimits.NONE.withAllocatedBytes(4 << 20).withTimeout(10, TimeUnit.SECONDS);
+            assertEquals(engine.toString(), 1000000, eval(engine, limits, count));
+            assertEquals(engine.toString(), 1783293664, eval(engine, limits, sum));
+            assertEquals(engine.toString(), 1783293664, eval(engine, limits, inFunction));
+        }
+    }
+
+    @Test
+    public void testAllocatedBytesStopDoubling() {
+        String strings = "let s = \"x\"; while(true) { s = s + s; }";
+        String arrays = "let a = [0]; while(true) { let n = length(a); let i = 0; while(i < n) { a[n + i] = i; i = i + 1; } }";
+        for(Evaluator.Engine engine:Evaluator.Engine.values()) {
+            ExecutionLimits limits = ExecutionLimits.NONE.withAllocatedBytes(16 << 20).withTimeout(10, TimeUnit.SECONDS);
+            assertTrue(exceeded(engine, limits, strings).contains("bytes"));
+            assertTrue(exceeded(engine, limits, arrays).contains("bytes"));
+        }
+    }
+}
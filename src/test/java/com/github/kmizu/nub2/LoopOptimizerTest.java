@@ -0,0 +1,95 @@
+package com.github.kmizu.nub2;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class LoopOptimizerTest {
+    private static final String CONCAT =
+            "let prefix = \"item\";\n" +
+            "let s = \"\";\n" +
+            "let i = 0;\n" +
+            "while(i < 100) { s = s + (prefix + \"-\"); i = i + 1; }\n" +
+            "s == \"\";";
+
+    private static Ast.Block checked(String source) {
+        return new Typer().typeCheck(new VariableChecker().checkVariable(Parser.parse(source)));
+    }
+
+    private static List<String> lets(Ast.Block program) {
+        List<String> names = new ArrayList<>();
+        program.accept(new Ast.Traverser() {
+            @Override
+            public Object visitLetExpression(Ast.LetExpression node) {
+                names.add(node.variableName);
+                return super.visitLetExpression(node);
+            }
+        });
+        return names;
+    }
+
+    private static void assertSameResults(String source) {
+        Object expected = new Evaluator().execute(checked(source));
+        for(Evaluator.Engine engine:Evaluator.Engine.values()) {
+            assertEquals(engine + ": " + source, expected, new Evaluator(engine).eval(Parser.parse(source)));
+        }
+    }
+
+    @Test
+    public void testInvariantsAreHoisted() {
+        Ast.Block program = new LoopOptimizer().optimize(checked(CONCAT));
+        assertTrue(lets(program).contains("$inv0"));
+        assertSameResults(CONCAT);
+    }
+
+    @Test
+    public void testInductionMultiplicationBecomesAddition() {
+        String source = "let i = 0; let t = 0; while(i < 100) { t = t + i * 4 + (i * 4) / 3; i = i + 1; } t;";
+        assertTrue(lets(new LoopOptimizer().optimize(checked(source))).contains("$sr0"));
+        assertSameResults(source);
+        assertSameResults("let i = 100; let t = 0; while(i > 0) { t = t - 3 * i; i = i - 7; t = t + i * 3; } t;");
+        assertSameResults("let i = 0; let t = 0; while(i < 1000) { t = t + i * 1000003; i = 999 + i; t = t - i * 1000003; } t;");
+        assertFalse(lets(new LoopOptimizer().optimize(checked(
+                "let i = 0; let t = 0; while(i < 100) { t = t + i * 4; i = i + 1; } t;"
+        ))).contains("$sr0"));
+    }
+
+    @Test
+    public void testNewVariablesAvoidTheNamesOfTheProgram() {
+        String source = "let $inv0 = 1; let a = 2; let i = 0; let s = 0; while(i < 10) { s = s + a * 3; i = i + 1; } s * 10 + $inv0;";
+        assertTrue(lets(new LoopOptimizer().optimize(checked(source))).contains("$inv1"));
+        assertSameResults(source);
+        assertEquals(601, new Evaluator().eval(Parser.parse(source)));
+        source = "def f($sr0) { let i = 0; let t = 0; while(i < 100) { t = t + i * 4 + (i * 4) / 3; i = i + 1; } t + $sr0; } f(1);";
+        assertTrue(lets(new LoopOptimizer().optimize(checked(source))).contains("$sr1"));
+        assertSameResults(source);
+    }
+
+    @Test
+    public void testUnsafeOrVariantCodeStays() {
+        List<String> names = lets(new LoopOptimizer().optimize(checked(
+                "let n = 10; let i = 0; let t = 0; while(i < 10) { t = t + n / 2 + i * 2; i = i + 1; i = i + 1; } t;"
+        )));
+        assertFalse(names.contains("$inv0"));
+        assertFalse(names.contains("$sr0"));
+        names = lets(new LoopOptimizer().optimize(checked(
+                "def f(x) { x; } let n = 10; let i = 0; while(i < n * 2) { i = i + f(1); } i;"
+        )));
+        assertFalse(names.contains("$inv0"));
+        assertSameResults("let n = 0; let i = 0; while(i < n) { i = i + n / n; } i;");
+    }
+
+    @Test
+    public void testFewerNodesPerIteration() {
+        EvaluationMetrics before = new EvaluationMetrics(), after = new EvaluationMetrics();
+        new Evaluator(Evaluator.Engine.VISITOR, new Output.Capture(), before).execute(checked(CONCAT));
+        new Evaluator(Evaluator.Engine.VISITOR, new Output.Capture(), after).eval(Parser.parse(CONCAT));
+        assertTrue(before.nodeVisits() - after.nodeVisits() >= 2 * 100 - 10);
+    }
+}
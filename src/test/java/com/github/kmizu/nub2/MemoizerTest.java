@@ -0,0 +1,94 @@
+package com.github.kmizu.nub2;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class MemoizerTest {
+    private static final String FIB =
+            "def fib(n) { if(n < 2) { n; } else { fib(n - 1) + fib(n - 2); } }\n" +
+            "fib(25);";
+
+    private static Set<String> pureNames(String source) {
+        Set<String> names = new HashSet<>();
+        for(Ast.DefFunction function:Memoizer.pureFunctions(new Evaluator().memoize(0).prepare(Parser.parse(source)))) {
+            names.add(function.name);
+        }
+        return names;
+    }
+
+    @Test
+    public void testPurity() {
+        Set<String> pure = pureNames(
+                "let total = 0;\n" +
+                "def square(x) { x * x; }\n" +
+                "def even(n) { if(n == 0) { true; } else { odd(n - 1); } }\n" +
+                "def odd(n) { if(n == 0) { false; } else { even(n - 1); } }\n" +
+                "def local(n) { let i = 0; while(i < n) { i = i + 1; } i; }\n" +
+                "def shout(x) { print(x); }\n" +
+                "def loud(x) { shout(x) + 1; }\n" +
+                "def add(x) { total = total + x; }\n" +
+                "def peek(x) { total + x; }\n" +
+                "0;"
+        );
+        assertEquals(new HashSet<>(java.util.Arrays.asList("square", "even", "odd", "local")), pure);
+    }
+
+    @Test
+    public void testMemoizedCallsOnEveryEngine() {
+        for(Evaluator.Engine engine:Evaluator.Engine.values()) {
+            Ast.Block program = new Evaluator(engine).prepare(Parser.parse(FIB));
+            Map<String, MemoTable> tables = Memoizer.tables(program);
+            assertEquals(engine.toString(), 75025, new Evaluator(engine).execute(program));
+            MemoTable fib = tables.get("fib");
+            assertEquals(engine.toString(), 26, fib.misses());
+            assertTrue(engine.toString(), fib.hits() > 0);
+            assertEquals(engine.toString(), 75025, new Evaluator(engine).execute(program));
+            assertEquals(engine.toString(), 26, fib.misses());
+        }
+    }
+
+    @Test
+    public void testSwitchedOff() {
+        Ast.Block program = new Evaluator().memoize(0).prepare(Parser.parse(FIB));
+        assertTrue(Memoizer.tables(program).isEmpty());
+        assertEquals(75025, new Evaluator().execute(program));
+    }
+
+    @Test
+    public void testStringArgumentsAndResults() {
+        String source =
+                "def repeat(s, n) { let r = \"\"; let i = 0; while(i < n) { r = r + s; i = i + 1; } r; }\n" +
+                "let a = \"\";\n" +
+                "let i = 0;\n" +
+                "while(i < 100) { a = a + \"x\"; i = i + 1; }\n" +
+                "let b = repeat(a, 2);\n" +
+                "let c = repeat(repeat(\"x\", 100), 2);\n" +
+                "if(b == c) { b + repeat(\"y\", 1); } else { \"different\"; }";
+        for(Evaluator.Engine engine:Evaluator.Engine.values()) {
+            Object result = new Evaluator(engine).eval(Parser.parse(source));
+            assertEquals(engine.toString(), 201, result.toString().length());
+            assertTrue(engine.toString(), result.toString().endsWith("xy"));
+        }
+    }
+
+    @Test
+    public void testTableIsBounded() {
+        MemoTable table = new MemoTable(4);
+        assertEquals(4, table.capacity());
+        for(int i = 0; i < 100; i++) {
+            table.put(table.key(new Object[]{i}, 0, 1), i * 2);
+        }
+        assertEquals(96, table.evictions());
+        assertEquals(198, table.get(new Object[]{99}, 0, 1));
+        assertNull(table.get(new Object[]{0}, 0, 1));
+        assertEquals(0.5, table.hitRate(), 0);
+    }
+}
@@ -2,9 +2,13 @@ package com.github.kmizu.nub2;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
-import org.junit.runners.JUnit4;
+import org.junit.runners.Parameterized;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Collection;
 
 import static com.github.kmizu.nub2.Collections.listOf;
 import static org.junit.Assert.*;
@@ -12,10 +16,26 @@ import static com.github.kmizu.nub2.Ast.Factory.*;
 import static com.github.kmizu.nub2.Ast.*;
 
 
-@RunWith(JUnit4.class)
+@RunWith(Parameterized.class)
 public class Nub2Test {
-    private static Object eval(Expression input) {
-        return new Evaluator().eval(new Block(input));
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> engines() {
+        return Arrays.asList(new Object[][] {
+                { Evaluator.Engine.VISITOR },
+                { Evaluator.Engine.CLOSURE },
+                { Evaluator.Engine.BYTECODE },
+                { Evaluator.Engine.VM }
+        });
+    }
+
+    private final Evaluator.Engine engine;
+
+    public Nub2Test(Evaluator.Engine engine) {
+        this.engine = engine;
+    }
+
+    private Object eval(Expression input) {
+        return new Evaluator(engine).eval(new Block(input));
     }
 
     @Test
@@ -191,7 +211,7 @@ public class Nub2Test {
                 eval(
                         tIf(
                                 tLt(tInt(1), tInt(2)),
-                                tString("1  < 2"),
+                                tString("1 < 2"),
                                 tString("1 >= 2")
                         )
                 )
@@ -213,5 +233,176 @@ public class Nub2Test {
                 )
         );
     }
-}
 
+    @Test
+    public void testNestedLetsShareOneFrame() {
+        Block program = tBlock(
+                tLet("x", tInt(1), x -> tBlock(
+                        tLet("y", tInt(2), y -> tBlock(tAdd(tId(x), tId(y)))),
+                        tLet("z", tInt(3), z -> tBlock(tAdd(tId(x), tId(z))))
+                ))
+        );
+        new VariableChecker().checkVariable(program);
+        assertEquals(2, program.frameSize);
+        assertEquals(4, new Evaluator(engine).eval(program));
+    }
+
+    @Test(expected = NubRuntimeException.class)
+    public void testLetRedefinitionIsRejected() {
+        eval(tLet("x", tInt(1), x -> tBlock(tLet(x, tInt(2), y -> tBlock(tId(y))))));
+    }
+
+    @Test(expected = NubRuntimeException.class)
+    public void testUndefinedVariableIsRejected() {
+        eval(tId("x"));
+    }
+
+    @Test
+    public void testFunctionReadsAndWritesProgramVariable() {
+        assertEquals(
+                15,
+                eval(
+                        tLet("total", tInt(0), total -> tBlock(
+                                tDef("accumulate", listOf("n"), tBlock(tAssign(total, tAdd(tId(total), tId("n"))))),
+                                tLet("i", tInt(1), i -> tBlock(
+                                        tWhile(
+                                                tLte(tId(i), tInt(5)),
+                                                tCall("accumulate", tId(i)),
+                                                tAssign(i, tAdd(tId(i), tInt(1)))
+                                        )
+                                )),
+                                tId(total)
+                        ))
+                )
+        );
+    }
+
+    @Test
+    public void testIntVariableMixedWithStrings() {
+        assertEquals(
+                "2a",
+                eval(
+                        tLet("x", tInt(1), x -> tBlock(
+                                tAssign(x, tAdd(tId(x), tInt(1))),
+                                tAdd(tId(x), tString("a"))
+                        ))
+                )
+        );
+        assertEquals(false, eval(tEqual(tInt(1), tString("1"))));
+        assertEquals(true, eval(tNotEqual(tString("a"), tString("b"))));
+    }
+
+    @Test
+    public void testDeepTailRecursionRunsInConstantStack() {
+        assertEquals(
+                1000000,
+                eval(
+                        tBlock(
+                                tDef(
+                                        "count", listOf("n", "acc"),
+                                        tBlock(
+                                                tIf(
+                                                        tEqual(tId("n"), tInt(0)),
+                                                        tId("acc"),
+                                                        tCall("count", tSubtract(tId("n"), tInt(1)), tAdd(tId("acc"), tInt(1)))
+                                                )
+                                        )
+                                ),
+                                tCall("count", tInt(1000000), tInt(0))
+                        )
+                )
+        );
+    }
+
+    @Test
+    public void testDeepMutualTailRecursionRunsInConstantStack() {
+        assertEquals(true, eval(Parser.parse(
+                "def even(n) { if(n == 0) { true; } else { odd(n - 1); } }\n" +
+                "def odd(n) { if(n == 0) { false; } else { even(n - 1); } }\n" +
+                "even(1000000);\n"
+        )));
+    }
+
+    @Test
+    public void testAppendingInALoopKeepsOlderValues() {
+        Object result = eval(Parser.parse(
+                "let s = \"\";\n" +
+                "let i = 0;\n" +
+                "while(i < 100000) { s = s + \"ab\"; i = i + 1; }\n" +
+                "let t = s + \"x\";\n" +
+                "let u = s + \"y\";\n" +
+                "if(t == u) { \"same\"; } else { u; }\n"
+        ));
+        assertTrue(result instanceof String);
+        assertEquals(200001, ((String)result).length());
+        assertTrue(((String)result).startsWith("abab") && ((String)result).endsWith("aby"));
+    }
+
+    @Test
+    public void testBuiltStringEqualsLiteral() {
+        StringBuilder expected = new StringBuilder();
+        for(int i = 0; i < 40; i++) expected.append("ab");
+        assertEquals(true, eval(Parser.parse(
+                "let s = \"\"; let i = 0; while(i < 40) { s = s + \"ab\"; i = i + 1; } s == \"" + expected + "\";"
+        )));
+    }
+
+    @Test
+    public void testAddFallsBackWhenItsOperandsChange() {
+        CompiledProgram program = CompiledProgram.compile(Parser.parse(
+                "def plus(a, b) { a + b; }\n" +
+                "let n = 0;\n" +
+                "let i = 0;\n" +
+                "while(i < 10) { n = plus(n, i); i = i + 1; }\n" +
+                "let s = plus(\"x\", \"y\");\n" +
+                "let t = plus(s, n);\n" +
+                "let m = plus(n, 1);\n" +
+                "t + m;\n"
+        ), engine);
+        assertEquals("xy4546", program.execute());
+        assertEquals("xy4546", program.execute());
+    }
+
+    @Test
+    public void testFunctionRunAfterItsLetEndedDoesNotSeeALaterLet() {
+        String source = "if(true) { let a = 5; def f() { a; } 0; } else { 0; } let b = \"x\"; f();";
+        try {
+            eval(Parser.parse(source));
+            fail("f read a after its let ended");
+        } catch (NubRuntimeException e) {
+            assertEquals("a is not defined", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testFunctionRunBeforeItsLetStartedDoesNotSeeAnEarlierLet() {
+        String source = "if(true) { let x = \"a\"; f(); } else { 0; } let y = 1; def f() { y + 1; } f();";
+        try {
+            eval(Parser.parse(source));
+            fail("f read y before its let started");
+        } catch (NubRuntimeException e) {
+            assertEquals("y is not defined", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testLongRunOfLetsDoesNotRecurse() throws IOException {
+        StringBuilder source = new StringBuilder("let total = 0;\n");
+        for(int i = 0; i < 20000; i++) {
+            source.append("let v").append(i).append(" = ").append(i).append(";\n");
+        }
+        source.append("def last() { v19999; }\n");
+        source.append("if(v1 == 1) { total = v0 + v19999; } else { total = 0; }\n");
+        source.append("while(total < 40000) { total = total + 1; }\n");
+        source.append("total + last();\n");
+        Evaluator evaluator = new Evaluator(engine);
+        assertEquals(59999, evaluator.eval(Parser.parse(source.toString())));
+        // keys for caches and metrics, and .nubc files, walk the run too
+        Ast.Block checked = evaluator.prepare(Parser.parse(source.toString()));
+        CompiledProgram compiled = CompiledProgram.load(checked, engine);
+        assertEquals(59999, compiled.execute(new Output.Buffered(System.out), new EvaluationMetrics()));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new AstWriter().write(checked, out);
+        assertEquals(59999, evaluator.execute(new AstReader(ByteBuffer.wrap(out.toByteArray())).read()));
+    }
+}
@@ -0,0 +1,117 @@
+package com.github.kmizu.nub2;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class ParserTest {
+    private static Object run(String source) {
+        return new Evaluator().eval(Parser.parse(source));
+    }
+
+    @Test
+    public void testArithmeticPrecedence() {
+        assertEquals(7, run("1 + 2 * 3;"));
+        assertEquals(9, run("(1 + 2) * 3;"));
+        assertEquals(2, run("(1 + 2) * 3 / 4;"));
+        assertEquals(-3, run("1 - 4;"));
+        assertEquals(Integer.MIN_VALUE, run("-2147483648;"));
+    }
+
+    @Test
+    public void testComparisonAndLogic() {
+        assertEquals(true, run("1 < 2 && 3 <= 3 || false;"));
+        assertEquals(false, run("1 == 2;"));
+        assertEquals(true, run("\"a\" != \"b\";"));
+    }
+
+    @Test
+    public void testLetAndAssignment() {
+        assertEquals(4, run("let x = 1;\nlet y = 2;\nprint(x + y); // 3\nx = 2;\nx + y;"));
+    }
+
+    @Test
+    public void testWhileAndIf() {
+        assertEquals(
+                "even",
+                run("let i = 0;\n" +
+                    "while(i < 10) {\n" +
+                    "  i = i + 1;\n" +
+                    "}\n" +
+                    "if(i / 2 * 2 == i) {\n" +
+                    "  \"even\";\n" +
+                    "} else {\n" +
+                    "  \"odd\";\n" +
+                    "}")
+        );
+    }
+
+    @Test
+    public void testFunctionDefinition() {
+        assertEquals(
+                55,
+                run("def fib(n) {\n" +
+                    "  if(n < 2) { n; } else { fib(n - 1) + fib(n - 2); }\n" +
+                    "}\n" +
+                    "fib(10);")
+        );
+    }
+
+    @Test
+    public void testManyLetsDoNotRecurseInParser() {
+        StringBuilder source = new StringBuilder();
+        for(int i = 0; i < 20000; i++) {
+            source.append("let x").append(i).append(" = ").append(i).append(";\n");
+        }
+        source.append("x19999;");
+        Ast.Block program = Parser.parse(source.toString());
+        assertEquals(1, program.expressions.size());
+    }
+
+    @Test
+    public void testParseMappedFile() throws IOException {
+        Path file = Files.createTempFile("nub", ".nub");
+        try {
+            Files.write(file, "let s = \"あ\";\ns + \"\\n\";".getBytes(StandardCharsets.UTF_8));
+            assertEquals("あ\n", new Evaluator().eval(Parser.parse(file)));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testReaderIsConsumedInSmallChunks() {
+        // a Reader that hands out one character at a time exercises every buffer boundary
+        String source = "let a = 10; // comment\nlet b = a/2; a / b;";
+        Reader slow = new Reader() {
+            int position;
+            public int read(char[] cbuf, int off, int len) {
+                if(position == source.length()) return -1;
+                cbuf[off] = source.charAt(position++);
+                return 1;
+            }
+            public void close() {}
+        };
+        assertEquals(2, new Evaluator().eval(new Parser(slow).parseProgram()));
+    }
+
+    @Test
+    public void testSyntaxErrorHasPosition() {
+        try {
+            Parser.parse("let x = ;");
+            fail();
+        } catch (ParseException e) {
+            assertEquals(1, e.line);
+            assertEquals(9, e.column);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.github.kmizu.nub2;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class PartialEvaluatorTest {
+    private static Map<String, Object> bindings(Object... pairs) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        for(int i = 0; i < pairs.length; i += 2) {
+            result.put((String)pairs[i], pairs[i + 1]);
+        }
+        return result;
+    }
+
+    private static String run(Evaluator.Engine engine, Ast.Block program) {
+        Output.Capture output = new Output.Capture();
+        Object result = new Evaluator(engine, output).eval(program);
+        return output + "=" + result;
+    }
+
+    /*
+     * Checks that the residual of source on known does what source does for every one of the dynamic bindings
+     */
+    private static Ast.Block assertSpecializes(String source, Map<String, Object> known, Map<?, ?>... dynamic) {
+        Ast.Block residual = new PartialEvaluator().specialize(Parser.parse(source), known);
+        for(Map<?, ?> d:dynamic) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> values = (Map<String, Object>)d;
+            Map<String, Object> all = new LinkedHashMap<>(known);
+            all.putAll(values);
+            for(Evaluator.Engine engine:Evaluator.Engine.values()) {
+                String expected = run(engine, PartialEvaluator.bind(Parser.parse(source), all));
+                assertEquals(engine + " " + values, expected, run(engine, PartialEvaluator.bind(residual, values)));
+            }
+        }
+        return residual;
+    }
+
+    private static int count(Ast.Expression program, Class<?> kind) {
+        List<Ast.Expression> found = new ArrayList<>();
+        program.accept(new Ast.Traverser() {
+            @Override
+            public Object visitIfExpression(Ast.IfExpression node) {
+                if(kind.isInstance(node)) found.add(node);
+                return super.visitIfExpression(node);
+            }
+
+            @Override
+            public Object visitWhileExpression(Ast.WhileExpression node) {
+                if(kind.isInstance(node)) found.add(node);
+                return super.visitWhileExpression(node);
+            }
+
+            @Override
+            public Object visitFunctionCall(Ast.FunctionCall node) {
+                if(kind.isInstance(node)) found.add(node);
+                return super.visitFunctionCall(node);
+            }
+
+            @Override
+            public Object visitLetExpression(Ast.LetExpression node) {
+                if(kind.isInstance(node)) found.add(node);
+                return super.visitLetExpression(node);
+            }
+
+            @Override
+            public Object visitId(Ast.Id node) {
+                if(kind.isInstance(node)) found.add(node);
+                return null;
+            }
+        });
+        return found.size();
+    }
+
+    @Test
+    public void testKnownBranchesAreTaken() {
+        String source = "if(verbose) { print(\"x is \" + x); } if(mode == \"double\") { x * factor; } else { x + factor; }";
+        Ast.Block residual = assertSpecializes(source, bindings("verbose", false, "mode", "double", "factor", 3),
+                bindings("x", 5), bindings("x", -2));
+        assertEquals(0, count(residual, Ast.IfExpression.class));
+        assertEquals(0, count(residual, Ast.LetExpression.class));
+        assertEquals(1, count(residual, Ast.Id.class));
+    }
+
+    @Test
+    public void testLetsOfKnownValuesAreDropped() {
+        String source = "let scale = base * 10; let offset = scale + 1; x * scale + offset;";
+        Ast.Block residual = assertSpecializes(source, bindings("base", 4), bindings("x", 1), bindings("x", 7));
+        assertEquals(0, count(residual, Ast.LetExpression.class));
+    }
+
+    @Test
+    public void testBoundedLoopsAreUnrolled() {
+        String source = "let acc = 0; let i = 0; while(i < n) { acc = acc + x * i; i = i + 1; } acc;";
+        Ast.Block residual = assertSpecializes(source, bindings("n", 4), bindings("x", 3), bindings("x", -1));
+        assertEquals(0, count(residual, Ast.WhileExpression.class));
+        String known = "let acc = 0; let i = 0; while(i < n) { acc = acc + i; i = i + 1; } acc;";
+        residual = assertSpecializes(known, bindings("n", 100), bindings());
+        assertEquals(1, residual.expressions.size());
+        assertEquals(4950, ((Ast.IntLiteral)residual.expressions.get(0)).value);
+    }
+
+    @Test
+    public void testCallsOnKnownArgumentsAreEvaluated() {
+        String source =
+            "def fib(n) { if(n < 2) { n; } else { fib(n - 1) + fib(n - 2); } }\n" +
+            "def scale(v) { v * fib(k); }\n" +
+            "scale(x) + fib(k);";
+        Ast.Block residual = assertSpecializes(source, bindings("k", 10), bindings("x", 2), bindings("x", 0));
+        // fib(k) is folded at both sites; only scale(x) is left
+        assertEquals(1, count(residual.expressions.get(residual.expressions.size() - 1), Ast.FunctionCall.class));
+    }
+
+    @Test
+    public void testDynamicControlFlowWritesBackKnownValues() {
+        String source =
+            "let count = start; let total = 0;\n" +
+            "if(x > 0) { count = count + 1; } else { total = total + 5; }\n" +
+            "while(total < x) { total = total + count; }\n" +
+            "count * 100 + total;";
+        assertSpecializes(source, bindings("start", 2), bindings("x", 5), bindings("x", -3), bindings("x", 0));
+    }
+
+    @Test
+    public void testFunctionsSeeWrittenBackGlobals() {
+        String source =
+            "let g = base;\n" +
+            "def bump() { g = g + 1; }\n" +
+            "def get() { g; }\n" +
+            "g = g * 2; bump(); let a = get(); g = g + x; bump(); a * 1000 + get();";
+        assertSpecializes(source, bindings("base", 5), bindings("x", 1), bindings("x", 10));
+    }
+
+    @Test
+    public void testRuntimeErrorsAreLeftInTheResidual() {
+        String source = "if(x > 0) { 10 / d; } else { 1; }";
+        Ast.Block residual = new PartialEvaluator().specialize(Parser.parse(source), bindings("d", 0));
+        assertEquals(1, new Evaluator().eval(PartialEvaluator.bind(residual, bindings("x", -1))));
+        try {
+            new Evaluator().eval(PartialEvaluator.bind(residual, bindings("x", 1)));
+            fail("divided by zero");
+        } catch (ArithmeticException e) {
+        }
+    }
+
+    @Test
+    public void testBudgetBoundsUnrolling() {
+        String source = "let i = 0; while(true) { i = i + 1; if(i == stop) { print(i); } } 0;";
+        Ast.Block residual = new PartialEvaluator(200).specialize(Parser.parse(source), new HashMap<>());
+        assertEquals(1, count(residual, Ast.WhileExpression.class));
+        String loop = "let i = 0; while(i < n) { i = i + 1; } i;";
+        residual = assertSpecializes(loop, bindings("n", 1000000), bindings());
+        assertEquals(1, count(residual, Ast.WhileExpression.class));
+    }
+}
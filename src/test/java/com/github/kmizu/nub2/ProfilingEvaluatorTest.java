@@ -0,0 +1,42 @@
+package com.github.kmizu.nub2;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class ProfilingEvaluatorTest {
+    @Test
+    public void testCountsCallsAndNodes() {
+        Ast.Block program = Parser.parse(
+                "def fib(n) { if(n < 2) { n; } else { fib(n - 1) + fib(n - 2); } }\n" +
+                "let i = 0;\n" +
+                "while(i < 3) { i = i + 1; }\n" +
+                "fib(10);\n"
+        );
+        ProfilingEvaluator profiler = new ProfilingEvaluator(new Output.Capture());
+        assertEquals(55, profiler.eval(program));
+        Ast.DefFunction fib = (Ast.DefFunction)program.expressions.get(0);
+        assertEquals(177, profiler.stats(fib).count);
+        assertEquals(177, profiler.stats(fib.body.expressions.get(0)).count);
+        assertTrue(profiler.stats(fib).nanos > 0);
+        assertTrue(profiler.report().contains("fib"));
+    }
+
+    @Test
+    public void testCollapsedStacks() {
+        ProfilingEvaluator profiler = new ProfilingEvaluator(new Output.Capture());
+        profiler.eval(Parser.parse(
+                "def leaf(n) { let s = \"\"; let i = 0; while(i < n) { s = s + \"x\"; i = i + 1; } s; }\n" +
+                "def middle(n) { let r = leaf(n); r; }\n" +
+                "middle(1000);\n"
+        ));
+        String stacks = profiler.collapsedStacks(false);
+        assertTrue(stacks, stacks.contains("main;middle;leaf "));
+        for(String line:stacks.split("\n")) {
+            assertTrue(line, line.matches("main(;\\w+)* \\d+"));
+        }
+    }
+}
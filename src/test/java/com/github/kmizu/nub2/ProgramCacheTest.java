@@ -0,0 +1,108 @@
+package com.github.kmizu.nub2;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class ProgramCacheTest {
+    private static final String FIB = "def fib(n) { if(n < 2) { n; } else { fib(n - 1) + fib(n - 2); } } fib(10);";
+
+    @Test
+    public void testSameStructureHits() {
+        ProgramCache cache = new ProgramCache(Evaluator.Engine.CLOSURE, 1 << 20);
+        Ast.Block program = Parser.parse(FIB);
+        CompiledProgram compiled = cache.get(program);
+        assertEquals(55, compiled.execute());
+        // the same tree, now annotated by the checker, and a tree parsed again are both found
+        assertSame(compiled, cache.get(program));
+        assertSame(compiled, cache.get(Parser.parse(FIB)));
+        assertEquals(55, cache.eval(Parser.parse(FIB)));
+        assertEquals(3, cache.hits());
+        assertEquals(1, cache.misses());
+    }
+
+    @Test
+    public void testDifferentStructureMisses() {
+        ProgramCache cache = new ProgramCache(Evaluator.Engine.VISITOR, 1 << 20);
+        assertEquals(3, cache.eval(Parser.parse("1 + 2;")));
+        assertEquals(-1, cache.eval(Parser.parse("1 - 2;")));
+        assertEquals("12", cache.eval(Parser.parse("\"1\" + 2;")));
+        assertEquals(0, cache.hits());
+        assertEquals(3, cache.misses());
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        Ast.Block a = Parser.parse("1 + 1;");
+        Ast.Block b = Parser.parse("2 + 2;");
+        Ast.Block c = Parser.parse("3 + 3;");
+        ProgramCache probe = new ProgramCache(Evaluator.Engine.VM, Long.MAX_VALUE);
+        probe.get(a);
+        ProgramCache cache = new ProgramCache(Evaluator.Engine.VM, 2 * probe.weight());
+        CompiledProgram first = cache.get(a);
+        cache.get(b);
+        cache.get(a);
+        cache.get(c);
+        assertEquals(1, cache.evictions());
+        assertEquals(2, cache.size());
+        assertSame(first, cache.get(a));
+        assertEquals(6, cache.eval(c));
+        assertEquals(4, cache.eval(b));
+        assertEquals(2, cache.evictions());
+    }
+
+    @Test
+    public void testThreadsMissingTogetherCompileOnce() throws Exception {
+        int threads = 8;
+        ProgramCache cache = new ProgramCache(Evaluator.Engine.BYTECODE, 1 << 20);
+        Ast.Block program = Parser.parse(FIB);
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<CompiledProgram>> results = new ArrayList<>();
+            for(int i = 0; i < threads; i++) {
+                results.add(pool.submit(() -> {
+                    start.await();
+                    return cache.get(program);
+                }));
+            }
+            start.countDown();
+            CompiledProgram compiled = results.get(0).get();
+            for(Future<CompiledProgram> result:results) {
+                assertSame(compiled, result.get());
+            }
+            assertEquals(55, compiled.execute());
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(1, cache.misses());
+        assertEquals(threads - 1, cache.hits());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testFailuresAreNotCached() {
+        ProgramCache cache = new ProgramCache(Evaluator.Engine.VISITOR, 1 << 20);
+        for(int i = 0; i < 2; i++) {
+            try {
+                cache.get(Parser.parse("y + 1;"));
+                fail();
+            } catch (NubRuntimeException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("y is not defined"));
+            }
+        }
+        assertEquals(2, cache.misses());
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,60 @@
+package com.github.kmizu.nub2;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.github.kmizu.nub2.Collections.listOf;
+import static org.junit.Assert.*;
+import static com.github.kmizu.nub2.Ast.Factory.*;
+import static com.github.kmizu.nub2.Ast.*;
+
+@RunWith(JUnit4.class)
+public class TyperTest {
+    private static Block typeCheck(Block program) {
+        return new Typer().typeCheck(new VariableChecker().checkVariable(program));
+    }
+
+    @Test
+    public void testLoopVariableIsInt() {
+        BinaryExpression increment = tAdd(tId("i"), tInt(1));
+        Block program = typeCheck(tBlock(
+                tLet("i", tInt(0), i -> tBlock(
+                        tWhile(tLt(tId(i), tInt(10)), tAssign(i, increment)),
+                        tId(i)
+                ))
+        ));
+        assertEquals(Type.INT, increment.type);
+        assertEquals(Type.INT, program.type);
+    }
+
+    @Test
+    public void testConcatenationIsString() {
+        BinaryExpression concat = tAdd(tId("s"), tInt(1));
+        typeCheck(tBlock(tLet("s", tString("a"), s -> tBlock(tAssign(s, concat)))));
+        assertEquals(Type.STRING, concat.type);
+    }
+
+    @Test
+    public void testParametersAreInferredFromCallSites() {
+        BinaryExpression body = tAdd(tId("x"), tId("y"));
+        DefFunction add = tDef("add", listOf("x", "y"), tBlock(body));
+        FunctionCall call = tCall("add", tInt(1), tInt(2));
+        typeCheck(tBlock(add, call));
+        assertEquals(Type.INT, body.type);
+        assertEquals(Type.INT, call.type);
+        assertEquals(listOf(Type.INT, Type.INT), ((Type.FunctionType)add.type).params);
+    }
+
+    @Test
+    public void testVariableHoldingIntAndStringIsDynamic() {
+        BinaryExpression sum = tAdd(tId("x"), tInt(1));
+        typeCheck(tBlock(
+                tLet("x", tInt(1), x -> tBlock(
+                        tAssign(x, tString("a")),
+                        sum
+                ))
+        ));
+        assertEquals(Type.DYNAMIC, sum.type);
+    }
+}